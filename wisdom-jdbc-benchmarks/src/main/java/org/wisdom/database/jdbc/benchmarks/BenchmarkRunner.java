@@ -0,0 +1,72 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.benchmarks;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the benchmarks for each thread count of the {@code benchmark.threads} system property (1 to 256 by
+ * default), and writes all the results in a single JSON file, {@code benchmark.result} ({@code jmh-result.json}
+ * by default). The usual JMH options can be given on the command line, for instance {@code -p partitionCount=1,8}.
+ */
+public final class BenchmarkRunner {
+
+    public static final String THREADS_PROPERTY = "benchmark.threads";
+    public static final String RESULT_PROPERTY = "benchmark.result";
+
+    private BenchmarkRunner() {
+        // Avoid direct instantiation.
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException,
+            FileNotFoundException {
+        CommandLineOptions parent = new CommandLineOptions(args);
+        List<RunResult> results = new ArrayList<>();
+        for (String threads : System.getProperty(THREADS_PROPERTY, "1,2,4,8,16,32,64,128,256").split(",")) {
+            OptionsBuilder builder = new OptionsBuilder();
+            builder.parent(parent);
+            if (parent.getIncludes().isEmpty()) {
+                builder.include(PoolBenchmark.class.getSimpleName());
+            }
+            Options options = builder.threads(Integer.parseInt(threads.trim())).build();
+            results.addAll(new Runner(options).run());
+        }
+
+        File output = new File(System.getProperty(RESULT_PROPERTY, "jmh-result.json"));
+        try (PrintStream stream = new PrintStream(output)) {
+            ResultFormatFactory.getInstance(ResultFormatType.JSON, stream).writeOut(results);
+        }
+        System.out.println("Results written to " + output.getAbsolutePath());
+    }
+}
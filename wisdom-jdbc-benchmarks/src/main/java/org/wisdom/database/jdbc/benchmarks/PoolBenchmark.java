@@ -0,0 +1,154 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.benchmarks;
+
+import com.google.common.collect.ImmutableMap;
+import com.typesafe.config.ConfigFactory;
+import org.h2.Driver;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.jdbc.DataSourceFactory;
+import org.wisdom.api.configuration.ApplicationConfiguration;
+import org.wisdom.configuration.ConfigurationImpl;
+import org.wisdom.database.jdbc.impl.BoneCPDataSources;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures the throughput of the connection acquisition and release through
+ * {@link BoneCPDataSources#getConnection(String)}, against an in-memory H2 database. The pool settings are
+ * benchmark parameters, so the same run compares the partition counts, pool strategies and service orders. The
+ * number of threads is set by the {@link BenchmarkRunner}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PoolBenchmark {
+
+    public static final String DATA_SOURCE = "bench";
+
+    /**
+     * The total number of connections, spread over the partitions.
+     */
+    @Param({"32"})
+    public int poolSize;
+
+    @Param({"1", "2", "4"})
+    public int partitionCount;
+
+    @Param({"DEFAULT", "CACHED"})
+    public String poolStrategy;
+
+    @Param({"FIFO", "LIFO"})
+    public String serviceOrder;
+
+    private BoneCPDataSources sources;
+
+    @Setup(Level.Trial)
+    public void start() throws SQLException {
+        Bundle bundle = mock(Bundle.class);
+        BundleContext context = mock(BundleContext.class);
+        when(context.getBundle()).thenReturn(bundle);
+        try {
+            when(bundle.loadClass(anyString())).thenAnswer(new Answer<Class>() {
+                @Override
+                public Class answer(InvocationOnMock invocation) throws Throwable {
+                    return PoolBenchmark.class.getClassLoader().loadClass((String) invocation.getArguments()[0]);
+                }
+            });
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+
+        DataSourceFactory factory = mock(DataSourceFactory.class);
+        when(factory.createDriver(any(Properties.class))).thenReturn(new Driver());
+
+        int perPartition = Math.max(1, poolSize / partitionCount);
+        Map<String, Object> map = new HashMap<>();
+        map.put(DATA_SOURCE + ".driver", "org.h2.Driver");
+        // Keep the in-memory database when the pool renews all its connections.
+        map.put(DATA_SOURCE + ".url", "jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1");
+        map.put(DATA_SOURCE + ".partitionCount", String.valueOf(partitionCount));
+        map.put(DATA_SOURCE + ".minConnectionsPerPartition", String.valueOf(perPartition));
+        map.put(DATA_SOURCE + ".maxConnectionsPerPartition", String.valueOf(perPartition));
+        map.put(DATA_SOURCE + ".poolStrategy", poolStrategy);
+        map.put(DATA_SOURCE + ".serviceOrder", serviceOrder);
+        // With 256 threads most requests wait for a connection, they must not time out.
+        map.put(DATA_SOURCE + ".connectionTimeout", "60000");
+        map.put(DATA_SOURCE + ".circuitBreakerThreshold", "0");
+
+        ApplicationConfiguration configuration = mock(ApplicationConfiguration.class);
+        when(configuration.getConfiguration(BoneCPDataSources.DB_CONFIGURATION_PREFIX))
+                .thenReturn(new ConfigurationImpl(null, ConfigFactory.parseMap(map)));
+
+        sources = new BoneCPDataSources(context).setApplicationConfiguration(configuration);
+        sources.bindFactory(factory, ImmutableMap.of(DataSourceFactory.OSGI_JDBC_DRIVER_CLASS, "org.h2.Driver"));
+        sources.onStart();
+        if (sources.getDataSource(DATA_SOURCE) == null) {
+            throw new IllegalStateException("The benchmark data source has not been started");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        sources.onStop();
+    }
+
+    /**
+     * Gets a connection and gives it back immediately, measuring the pool overhead only.
+     */
+    @Benchmark
+    public void acquireRelease() throws SQLException {
+        Connection connection = sources.getConnection(DATA_SOURCE);
+        connection.close();
+    }
+
+    /**
+     * Gets a connection, runs a trivial query, and gives it back, the usual shape of a request.
+     */
+    @Benchmark
+    public void acquireQueryRelease(Blackhole hole) throws SQLException {
+        try (Connection connection = sources.getConnection(DATA_SOURCE);
+             PreparedStatement statement = connection.prepareStatement("SELECT 1");
+             ResultSet results = statement.executeQuery()) {
+            results.next();
+            hole.consume(results.getInt(1));
+        }
+    }
+}
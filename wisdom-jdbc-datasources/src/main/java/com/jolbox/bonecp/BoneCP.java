@@ -45,6 +45,8 @@ import com.jolbox.bonecp.hooks.AcquireFailConfig;
 import com.jolbox.bonecp.hooks.ConnectionHook;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.wisdom.database.jdbc.impl.pool.ConnectionValidator;
+import org.wisdom.database.jdbc.impl.pool.MaintenanceScheduler;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
@@ -54,8 +56,10 @@ import java.lang.management.ManagementFactory;
 import java.lang.ref.Reference;
 import java.sql.*;
 import java.util.AbstractMap;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -113,6 +117,17 @@ public class BoneCP implements Closeable {
      */
     public static final String DRIVER_INSTANCE_PROPERTY = "driver.instance";
 
+    /**
+     * Constant to give the {@link ConnectionValidator} checking the connections to the pool.
+     */
+    public static final String VALIDATOR_PROPERTY = "connection.validator";
+
+    /**
+     * Constant to give the {@link MaintenanceScheduler} shared by the pools. When set, the pool does not create its
+     * own keep-alive, max-age and pool-watch threads.
+     */
+    public static final String MAINTENANCE_PROPERTY = "maintenance.scheduler";
+
     /**
      * Create more connections when we hit x% of our possible number of connections.
      */
@@ -123,6 +138,11 @@ public class BoneCP implements Closeable {
      */
     private final Driver driver;
 
+    /**
+     * The validator, {@code null} to use the connection test statement or the metadata.
+     */
+    private final ConnectionValidator validator;
+
     /**
      * Number of partitions passed in constructor. *
      */
@@ -146,6 +166,16 @@ public class BoneCP implements Closeable {
      * Executor for threads watching each partition to dynamically create new threads/kill off excess ones.
      */
     private ExecutorService connectionsScheduler;
+    /**
+     * Whether or not the maintenance tasks run on a shared scheduler. The partitions are then filled on demand
+     * instead of by a pool watch thread per partition.
+     */
+    private final boolean sharedMaintenance;
+    /**
+     * The partitions having a fill task pending on the shared scheduler.
+     */
+    private final Set<ConnectionPartition> fillPending =
+            Collections.newSetFromMap(new ConcurrentHashMap<ConnectionPartition, Boolean>());
     /**
      * Configuration object used in constructor.
      */
@@ -389,6 +419,8 @@ public class BoneCP implements Closeable {
                 // call the hook, if available.
                 if (connectionHook != null) {
                     connectionHook.onAcquire(connectionHandle);
+                    // The hook may have wrapped the raw connection.
+                    result = connectionHandle.getInternalConnection();
                 }
 
 
@@ -480,6 +512,8 @@ public class BoneCP implements Closeable {
         if (this.driver == null) {
             if (props != null) {
                 props.remove(DRIVER_INSTANCE_PROPERTY);
+                props.remove(VALIDATOR_PROPERTY);
+                props.remove(MAINTENANCE_PROPERTY);
                 result = DriverManager.getConnection(url, props);
             } else {
                 result = DriverManager.getConnection(url, username, password);
@@ -487,6 +521,8 @@ public class BoneCP implements Closeable {
         } else {
             if (props != null) {
                 props.remove(DRIVER_INSTANCE_PROPERTY);
+                props.remove(VALIDATOR_PROPERTY);
+                props.remove(MAINTENANCE_PROPERTY);
                 result = this.driver.connect(url, props);
             } else {
                 Properties info = new Properties();
@@ -519,6 +555,9 @@ public class BoneCP implements Closeable {
         } else {
             this.driver = null;
         }
+        Object validatorInstance = config.getDriverProperties().get(VALIDATOR_PROPERTY);
+        this.validator = validatorInstance instanceof ConnectionValidator ? (ConnectionValidator) validatorInstance
+                : null;
 
         Class<?> clazz;
         try {
@@ -584,9 +623,20 @@ public class BoneCP implements Closeable {
         }
 
 
-        this.keepAliveScheduler = Executors.newScheduledThreadPool(config.getPartitionCount(), new CustomThreadFactory("BoneCP-keep-alive-scheduler" + suffix, true));
-        this.maxAliveScheduler = Executors.newScheduledThreadPool(config.getPartitionCount(), new CustomThreadFactory("BoneCP-max-alive-scheduler" + suffix, true));
-        this.connectionsScheduler = Executors.newFixedThreadPool(config.getPartitionCount(), new CustomThreadFactory("BoneCP-pool-watch-thread" + suffix, true));
+        Object maintenance = config.getDriverProperties().get(MAINTENANCE_PROPERTY);
+        if (maintenance instanceof MaintenanceScheduler) {
+            // Groups on the shared threads: the fill rounds are not delayed by the connection tests.
+            ScheduledExecutorService group = ((MaintenanceScheduler) maintenance).newGroup();
+            this.sharedMaintenance = true;
+            this.keepAliveScheduler = group;
+            this.maxAliveScheduler = group;
+            this.connectionsScheduler = ((MaintenanceScheduler) maintenance).newGroup();
+        } else {
+            this.sharedMaintenance = false;
+            this.keepAliveScheduler = Executors.newScheduledThreadPool(config.getPartitionCount(), new CustomThreadFactory("BoneCP-keep-alive-scheduler" + suffix, true));
+            this.maxAliveScheduler = Executors.newScheduledThreadPool(config.getPartitionCount(), new CustomThreadFactory("BoneCP-max-alive-scheduler" + suffix, true));
+            this.connectionsScheduler = Executors.newFixedThreadPool(config.getPartitionCount(), new CustomThreadFactory("BoneCP-pool-watch-thread" + suffix, true));
+        }
 
         this.partitionCount = config.getPartitionCount();
         this.closeConnectionWatch = config.isCloseConnectionWatch();
@@ -640,7 +690,14 @@ public class BoneCP implements Closeable {
                 this.maxAliveScheduler.schedule(connectionMaxAgeTester, config.getMaxConnectionAgeInSeconds(), TimeUnit.SECONDS);
             }
             // watch this partition for low no of threads
-            this.connectionsScheduler.execute(new PoolWatchThread(connectionPartition, this));
+            if (this.sharedMaintenance) {
+                // Filled on demand, see maybeSignalForMoreConnections.
+                if (connectionPartition.getCreatedConnections() < connectionPartition.getMinConnections()) {
+                    scheduleFill(connectionPartition, 0);
+                }
+            } else {
+                this.connectionsScheduler.execute(new PoolWatchThread(connectionPartition, this));
+            }
         }
 
         if (!this.config.isDisableJMX()) {
@@ -759,7 +816,74 @@ public class BoneCP implements Closeable {
         if (!connectionPartition.isUnableToCreateMoreTransactions()
                 && !this.poolShuttingDown &&
                 connectionPartition.getAvailableConnections() * 100 / connectionPartition.getMaxConnections() <= this.poolAvailabilityThreshold) {
-            connectionPartition.getPoolWatchThreadSignalQueue().offer(new Object()); // item being pushed is not important.
+            if (this.sharedMaintenance) {
+                scheduleFill(connectionPartition, 0);
+            } else {
+                connectionPartition.getPoolWatchThreadSignalQueue().offer(new Object()); // item being pushed is not important.
+            }
+        }
+    }
+
+    /**
+     * Schedules a fill round of the given partition on the shared maintenance scheduler, unless one is already
+     * pending.
+     *
+     * @param partition the partition
+     * @param delayInMs the delay before the round
+     */
+    private void scheduleFill(final ConnectionPartition partition, long delayInMs) {
+        if (this.poolShuttingDown || !this.fillPending.add(partition)) {
+            return;
+        }
+        try {
+            ((ScheduledExecutorService) this.connectionsScheduler).schedule(new Runnable() {
+                @Override
+                public void run() {
+                    fill(partition);
+                }
+            }, delayInMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            this.fillPending.remove(partition);
+        }
+    }
+
+    /**
+     * A fill round, replacing the pool watch thread when the maintenance is shared: opens at most
+     * {@code acquireIncrement} connections (or up to the minimum), then yields to the other partitions. The round is
+     * scheduled again while the partition is under the availability threshold, so the partitions are served according
+     * to their demand, the connections being opened on the I/O thread of the fill group.
+     *
+     * @param partition the partition
+     */
+    private void fill(ConnectionPartition partition) {
+        long retryDelay = -1;
+        try {
+            int created = partition.getCreatedConnections();
+            int missing = partition.getMaxConnections() - created;
+            if (missing <= 0) {
+                partition.setUnableToCreateMoreTransactions(true);
+                return;
+            }
+            int count = 0;
+            if (partition.getAvailableConnections() * 100 / partition.getMaxConnections() <= this.poolAvailabilityThreshold) {
+                count = Math.min(missing, this.config.getAcquireIncrement());
+            }
+            count = Math.max(count, partition.getMinConnections() - created);
+            for (int i = 0; i < count && !this.poolShuttingDown; i++) {
+                partition.addFreeConnection(new ConnectionHandle(null, partition, this, false));
+            }
+        } catch (SQLException e) {
+            LOGGER.error("Error in trying to obtain a connection. Retrying in " + this.config.getAcquireRetryDelayInMs() + "ms", e);
+            retryDelay = this.config.getAcquireRetryDelayInMs();
+        } finally {
+            this.fillPending.remove(partition);
+        }
+        if (retryDelay >= 0) {
+            scheduleFill(partition, retryDelay);
+        } else if (partition.getCreatedConnections() < partition.getMinConnections()) {
+            scheduleFill(partition, 0);
+        } else {
+            maybeSignalForMoreConnections(partition);
         }
     }
 
@@ -866,20 +990,25 @@ public class BoneCP implements Closeable {
             String testStatement = this.config.getConnectionTestStatement();
             ResultSet rs = null;
 
-            if (testStatement == null) {
-                // Make a call to fetch the metadata instead of a dummy query.
-                rs = connection.getMetaData().getTables(null, null, KEEPALIVEMETADATA, METADATATABLE);
+            if (this.validator != null) {
+                // Validation configured by the data source manager (isValid by default).
+                result = this.validator.isAlive(connection.getInternalConnection());
             } else {
-                stmt = connection.createStatement();
-                stmt.execute(testStatement);
-            }
+                if (testStatement == null) {
+                    // Make a call to fetch the metadata instead of a dummy query.
+                    rs = connection.getMetaData().getTables(null, null, KEEPALIVEMETADATA, METADATATABLE);
+                } else {
+                    stmt = connection.createStatement();
+                    stmt.execute(testStatement);
+                }
 
 
-            if (rs != null) {
-                rs.close();
-            }
+                if (rs != null) {
+                    rs.close();
+                }
 
-            result = true;
+                result = true;
+            }
         } catch (SQLException e) {
             // connection must be broken!
             LOGGER.debug("Broken connection", e);
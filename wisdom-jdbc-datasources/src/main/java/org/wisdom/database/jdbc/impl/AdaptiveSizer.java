@@ -0,0 +1,146 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wisdom.api.configuration.Configuration;
+import org.wisdom.database.jdbc.impl.pool.ConcurrentDataSource;
+import org.wisdom.database.jdbc.service.LatencyStatistics;
+
+import javax.sql.DataSource;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adjusts the maximum size of a {@link ConcurrentDataSource} from the observed acquire wait. Every period, if the
+ * given percentile of the wait measured during the period exceeds the target (or requests are queued on a full
+ * pool), the pool grows by at most {@code adaptiveMaxGrowth} connections, so a spike does not flood the database
+ * with new sessions. When less than half of the pool has been used for {@code adaptiveShrinkDelay} ms, the pool
+ * shrinks by one connection per period, closing the idle ones. The size always stays between
+ * {@code partitionCount * minConnectionsPerPartition} and {@code partitionCount * maxConnectionsPerPartition}.
+ * <p>
+ * The settings are read from the configuration of the data source on every period, and the current pool is
+ * resolved on every period too, so the sizer follows the reconfigurations.
+ */
+public class AdaptiveSizer implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveSizer.class);
+
+    private final WrappedDataSource source;
+
+    private LatencyStatistics previous;
+    private DataSource pool;
+    private long lowSince;
+    private volatile ScheduledFuture<?> task;
+
+    public AdaptiveSizer(WrappedDataSource source) {
+        this.source = source;
+    }
+
+    /**
+     * Starts the periodic evaluation.
+     *
+     * @param scheduler the scheduler
+     * @param periodMs  the period in milliseconds
+     */
+    public void start(ScheduledExecutorService scheduler, long periodMs) {
+        task = scheduler.scheduleWithFixedDelay(this, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the periodic evaluation. The pool keeps its current size.
+     */
+    public void stop() {
+        ScheduledFuture<?> current = task;
+        if (current != null) {
+            current.cancel(false);
+            task = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            adjust(System.nanoTime());
+        } catch (RuntimeException e) {
+            LOGGER.error("Cannot adjust the size of the pool of '{}'", source.getName(), e);
+        }
+    }
+
+    void adjust(long now) {
+        DataSource current = source.getWrapped();
+        if (!(current instanceof ConcurrentDataSource)) {
+            return;
+        }
+        ConcurrentDataSource concurrent = (ConcurrentDataSource) current;
+        Configuration conf = source.getConfiguration();
+        int partitions = Math.max(1, conf.getIntegerWithDefault("partitionCount", 1));
+        int upper = Math.max(1, partitions * conf.getIntegerWithDefault("maxConnectionsPerPartition", 30));
+        int lower = Math.max(1, Math.min(upper,
+                partitions * conf.getIntegerWithDefault("minConnectionsPerPartition", 5)));
+        long target = TimeUnit.MILLISECONDS.toNanos(conf.getLongWithDefault("adaptiveTargetWait", 20L));
+        double percentile = conf.getDoubleWithDefault("adaptivePercentile", 95.0);
+        int growth = Math.max(1, conf.getIntegerWithDefault("adaptiveMaxGrowth", 2));
+        long shrinkDelay = TimeUnit.MILLISECONDS.toNanos(conf.getLongWithDefault("adaptiveShrinkDelay", 60000L));
+
+        LatencyStatistics wait = source.getMetrics().getAcquireWait();
+        LatencyStatistics interval = LatencyHistogram.difference(wait, previous);
+        previous = wait;
+
+        if (current != pool) {
+            // New pool (first run or pools replaced), start from the lower bound.
+            pool = current;
+            lowSince = now;
+            concurrent.resize(lower);
+            return;
+        }
+
+        int size = concurrent.getMaxSize();
+        int used = concurrent.getTotalLeased();
+        int waiting = concurrent.getWaitingThreadCount();
+        if (size < lower || size > upper) {
+            // Bounds changed by a reconfiguration.
+            concurrent.resize(Math.max(lower, Math.min(upper, size)));
+            return;
+        }
+
+        boolean slow = interval.getCount() > 0 && interval.getValueAtPercentileInNs(percentile) > target;
+        boolean saturated = waiting > 0 && used >= size;
+        if ((slow || saturated) && size < upper) {
+            int next = Math.min(upper, size + growth);
+            LOGGER.info("Growing the pool of '{}' from {} to {} connection(s) (p{} wait: {} ms, {} waiting)",
+                    source.getName(), size, next, percentile,
+                    TimeUnit.NANOSECONDS.toMillis(interval.getValueAtPercentileInNs(percentile)), waiting);
+            concurrent.resize(next);
+            lowSince = now;
+            return;
+        }
+
+        if (slow || waiting > 0 || used * 2 >= size) {
+            lowSince = now;
+        } else if (size > lower && now - lowSince >= shrinkDelay) {
+            LOGGER.debug("Shrinking the pool of '{}' from {} to {} connection(s) ({} used)", source.getName(), size,
+                    size - 1, used);
+            concurrent.resize(size - 1);
+        }
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.felix.ipojo.annotations.Component;
+import org.apache.felix.ipojo.annotations.Instantiate;
+import org.apache.felix.ipojo.annotations.Invalidate;
+import org.apache.felix.ipojo.annotations.Provides;
+import org.apache.felix.ipojo.annotations.Requires;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wisdom.api.configuration.ApplicationConfiguration;
+import org.wisdom.database.jdbc.service.BatchingWriter;
+import org.wisdom.database.jdbc.service.DataSources;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The {@link BatchingWriter} service, writing through the {@link DataSources} service. Each registered statement
+ * has its own queue. The statements share a bounded pool of {@code jdbc.batching.flushers} threads: a statement is
+ * handed to the pool when rows arrive and gives its thread back once its queue is empty, or once a batch is written
+ * while other statements wait for a thread. A statement is flushed by one thread at a time, so its rows are written
+ * in submission order, and idle statements do not hold any thread. The pool queue holds at most one entry per
+ * statement.
+ */
+@Component
+@Provides
+@Instantiate
+public class BatchingWriterImpl implements BatchingWriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchingWriterImpl.class);
+
+    public static final String MAX_BATCH_SIZE_KEY = "jdbc.batching.maxBatchSize";
+    public static final String MAX_LINGER_KEY = "jdbc.batching.maxLinger";
+    public static final String QUEUE_SIZE_KEY = "jdbc.batching.queueSize";
+    public static final String OFFER_TIMEOUT_KEY = "jdbc.batching.offerTimeout";
+    public static final String FLUSHERS_KEY = "jdbc.batching.flushers";
+
+    @Requires
+    DataSources sources;
+
+    @Requires
+    ApplicationConfiguration configuration;
+
+    private final Map<String, QueuedStatement> statements = new ConcurrentHashMap<>();
+
+    private volatile boolean stopped;
+
+    /**
+     * The flusher threads, created on the first registration.
+     */
+    private ThreadPoolExecutor flushers;
+
+    @Override
+    public Statement register(String datasource, String sql) {
+        String key = datasource + '\u0000' + sql;
+        synchronized (statements) {
+            if (stopped) {
+                throw new IllegalStateException("The batching writer is stopped");
+            }
+            QueuedStatement statement = statements.get(key);
+            if (statement == null) {
+                if (flushers == null) {
+                    int threads = positive(FLUSHERS_KEY, 4);
+                    flushers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(),
+                            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("wisdom-batching-writer-%d")
+                                    .build());
+                    flushers.allowCoreThreadTimeOut(true);
+                }
+                statement = new QueuedStatement(flushers, datasource, sql,
+                        positive(MAX_BATCH_SIZE_KEY, 100), positive(MAX_LINGER_KEY, 5),
+                        positive(QUEUE_SIZE_KEY, 10000), positive(OFFER_TIMEOUT_KEY, 1000));
+                statements.put(key, statement);
+            }
+            return statement;
+        }
+    }
+
+    private int positive(String key, int defaultValue) {
+        int value = configuration.getIntegerWithDefault(key, defaultValue);
+        return value <= 0 ? defaultValue : value;
+    }
+
+    /**
+     * Stops the flushers. The rows already queued are written before the flushers exit, the rows submitted
+     * afterwards are rejected.
+     */
+    @Invalidate
+    public void stop() {
+        List<QueuedStatement> current;
+        ThreadPoolExecutor executor;
+        synchronized (statements) {
+            stopped = true;
+            current = new ArrayList<>(statements.values());
+            statements.clear();
+            executor = flushers;
+            flushers = null;
+        }
+        for (QueuedStatement statement : current) {
+            statement.closed = true;
+        }
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                    LOGGER.warn("The batching writer flushers did not stop within 30 seconds");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (QueuedStatement statement : current) {
+            statement.reject();
+        }
+    }
+
+    private static final class Row {
+        private final Object[] parameters;
+        private final SettableFuture<Integer> future = SettableFuture.create();
+
+        private Row(Object[] parameters) {
+            this.parameters = parameters;
+        }
+    }
+
+    private final class QueuedStatement implements Statement, Runnable {
+
+        private final String datasource;
+        private final String sql;
+        private final int maxBatchSize;
+        private final long maxLinger;
+        private final long offerTimeout;
+        private final BlockingQueue<Row> queue;
+        private final ThreadPoolExecutor flushers;
+
+        /**
+         * Whether the statement is handed to a flusher thread.
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private volatile boolean closed;
+
+        private QueuedStatement(ThreadPoolExecutor flushers, String datasource, String sql, int maxBatchSize,
+                                long maxLinger, int queueSize, long offerTimeout) {
+            this.flushers = flushers;
+            this.datasource = datasource;
+            this.sql = sql;
+            this.maxBatchSize = maxBatchSize;
+            this.maxLinger = TimeUnit.MILLISECONDS.toNanos(maxLinger);
+            this.offerTimeout = offerTimeout;
+            this.queue = new LinkedBlockingQueue<>(queueSize);
+        }
+
+        /**
+         * Fails the rows still queued once the flushers are stopped.
+         */
+        private void reject() {
+            List<Row> rows = new ArrayList<>();
+            queue.drainTo(rows);
+            fail(rows, new RejectedExecutionException("The batching writer is stopped"));
+        }
+
+        /**
+         * Hands the statement to a flusher thread, unless it is already.
+         */
+        private void schedule() {
+            if (!scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                flushers.execute(this);
+            } catch (RejectedExecutionException e) {
+                // The writer is stopping and its last pass is over.
+                scheduled.set(false);
+                reject();
+            }
+        }
+
+        @Override
+        public ListenableFuture<Integer> submit(Object... parameters) {
+            if (closed) {
+                return Futures.immediateFailedFuture(new RejectedExecutionException("The batching writer is stopped"));
+            }
+            Row row = new Row(parameters);
+            try {
+                if (!queue.offer(row, offerTimeout, TimeUnit.MILLISECONDS)) {
+                    return Futures.immediateFailedFuture(new RejectedExecutionException("The queue of '" + sql
+                            + "' on '" + datasource + "' is full"));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Futures.immediateFailedFuture(e);
+            }
+            if (closed && queue.remove(row)) {
+                // Stopped while offering, the final pass may have missed the row.
+                row.future.setException(new RejectedExecutionException("The batching writer is stopped"));
+            } else {
+                schedule();
+            }
+            return row.future;
+        }
+
+        @Override
+        public void run() {
+            List<Row> batch = new ArrayList<>(maxBatchSize);
+            do {
+                boolean yielded = false;
+                try {
+                    while (collect(batch)) {
+                        write(batch);
+                        batch.clear();
+                        if (!flushers.getQueue().isEmpty() && !queue.isEmpty()) {
+                            // Other statements wait for a thread, queue this one behind them.
+                            yielded = requeue();
+                            if (yielded) {
+                                return;
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    write(batch);
+                    return;
+                } finally {
+                    if (!yielded) {
+                        scheduled.set(false);
+                    }
+                }
+                // A row may have been queued after the last poll, when the statement was still scheduled.
+            } while (!queue.isEmpty() && scheduled.compareAndSet(false, true));
+        }
+
+        /**
+         * Hands the statement, still scheduled, back to the pool.
+         *
+         * @return {@code false} if the writer is stopping, the current thread then keeps flushing the statement
+         */
+        private boolean requeue() {
+            try {
+                flushers.execute(this);
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Collects the next batch, waiting up to {@code maxLinger} for more rows unless the writer is stopping.
+         *
+         * @return {@code false} if the queue is empty
+         */
+        private boolean collect(List<Row> batch) throws InterruptedException {
+            Row first = queue.poll();
+            if (first == null) {
+                return false;
+            }
+            batch.add(first);
+            long deadline = System.nanoTime() + maxLinger;
+            while (batch.size() < maxBatchSize) {
+                queue.drainTo(batch, maxBatchSize - batch.size());
+                long remaining = deadline - System.nanoTime();
+                if (batch.size() >= maxBatchSize || remaining <= 0 || closed) {
+                    break;
+                }
+                Row next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (next == null) {
+                    break;
+                }
+                batch.add(next);
+            }
+            return true;
+        }
+
+        private void write(List<Row> batch) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            try {
+                writeBatch(batch);
+            } catch (RuntimeException e) {
+                // The rows already written keep their outcome, setting a completed future has no effect.
+                LOGGER.error("The batch of {} row(s) of '{}' on '{}' failed", batch.size(), sql, datasource, e);
+                fail(batch, e);
+            }
+        }
+
+        private void writeBatch(List<Row> batch) {
+            Connection connection = sources.getConnection(datasource, false);
+            if (connection == null) {
+                fail(batch, new SQLException("Cannot get a connection on '" + datasource + "'"));
+                return;
+            }
+            try {
+                int[] counts;
+                try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                    for (Row row : batch) {
+                        bind(statement, row);
+                        statement.addBatch();
+                    }
+                    counts = statement.executeBatch();
+                } catch (SQLException e) {
+                    rollback(connection);
+                    LOGGER.debug("The batch of {} row(s) of '{}' failed, writing the rows one by one", batch.size(),
+                            sql, e);
+                    writeOneByOne(connection, batch);
+                    return;
+                }
+                try {
+                    connection.commit();
+                } catch (SQLException e) {
+                    // The outcome of the commit is unknown, writing the rows again could write them twice.
+                    rollback(connection);
+                    LOGGER.error("Cannot commit the batch of {} row(s) of '{}' on '{}'", batch.size(), sql,
+                            datasource, e);
+                    fail(batch, e);
+                    return;
+                }
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).future.set(i < counts.length ? counts[i] : PreparedStatement.SUCCESS_NO_INFO);
+                }
+            } finally {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    LOGGER.error("Cannot give back the connection of '{}'", datasource, e);
+                }
+            }
+        }
+
+        private void writeOneByOne(Connection connection, List<Row> batch) {
+            for (Row row : batch) {
+                try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                    bind(statement, row);
+                    int count = statement.executeUpdate();
+                    connection.commit();
+                    row.future.set(count);
+                } catch (SQLException e) {
+                    rollback(connection);
+                    row.future.setException(e);
+                }
+            }
+        }
+
+        private void bind(PreparedStatement statement, Row row) throws SQLException {
+            Object[] parameters = row.parameters;
+            for (int i = 0; i < parameters.length; i++) {
+                statement.setObject(i + 1, parameters[i]);
+            }
+        }
+
+        private void rollback(Connection connection) {
+            try {
+                connection.rollback();
+            } catch (SQLException e) {
+                LOGGER.warn("Cannot roll back the batch of '{}'", sql, e);
+            }
+        }
+    }
+
+    private static void fail(Iterable<Row> rows, Exception failure) {
+        for (Row row : rows) {
+            row.future.setException(failure);
+        }
+    }
+}
@@ -19,7 +19,13 @@
  */
 package org.wisdom.database.jdbc.impl;
 
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.jolbox.bonecp.BoneCP;
+import com.jolbox.bonecp.BoneCPConfig;
 import com.jolbox.bonecp.BoneCPDataSource;
 import com.jolbox.bonecp.ConnectionHandle;
 import com.jolbox.bonecp.PoolUtil;
@@ -31,14 +37,32 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wisdom.api.configuration.ApplicationConfiguration;
 import org.wisdom.api.configuration.Configuration;
+import org.wisdom.database.jdbc.impl.pool.Bulkhead;
+import org.wisdom.database.jdbc.impl.pool.ChainedCustomizer;
+import org.wisdom.database.jdbc.impl.pool.ConcurrentDataSource;
+import org.wisdom.database.jdbc.impl.pool.ConnectionCustomizer;
+import org.wisdom.database.jdbc.impl.pool.ConnectionValidator;
+import org.wisdom.database.jdbc.impl.pool.MaintenanceScheduler;
+import org.wisdom.database.jdbc.impl.pool.NativePool;
+import org.wisdom.database.jdbc.impl.pool.PooledConnectionPool;
+import org.wisdom.database.jdbc.impl.pool.XAPool;
+import org.wisdom.database.jdbc.service.Cursor;
+import org.wisdom.database.jdbc.service.CursorException;
+import org.wisdom.database.jdbc.service.DataSourceUnavailableException;
 import org.wisdom.database.jdbc.service.DataSources;
+import org.wisdom.database.jdbc.service.ReadIntent;
+import org.wisdom.database.jdbc.service.RowMapper;
 
+import javax.sql.ConnectionPoolDataSource;
 import javax.sql.DataSource;
+import javax.sql.XADataSource;
 import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.*;
 
 
 /**
@@ -53,6 +77,108 @@ public class BoneCPDataSources implements DataSources {
     private static final Logger LOGGER = LoggerFactory.getLogger(BoneCPDataSources.class);
     public static final String DB_CONFIGURATION_PREFIX = "db";
 
+    /**
+     * The pool engine based on the Bone CP partitions (default).
+     */
+    public static final String POOL_BONECP = "bonecp";
+
+    /**
+     * The pool engine based on the lock-free {@link org.wisdom.database.jdbc.impl.pool.ConcurrentBag}.
+     */
+    public static final String POOL_CONCURRENT = "concurrent";
+
+    /**
+     * The pool engine reusing the {@link javax.sql.PooledConnection}s of the driver, see
+     * {@link org.wisdom.database.jdbc.impl.pool.NativePool}.
+     */
+    public static final String POOL_NATIVE = "native";
+
+    /**
+     * The pool engine enlisting the {@link javax.sql.XAConnection}s of the driver in the JTA transactions, see
+     * {@link org.wisdom.database.jdbc.impl.pool.XAPool}.
+     */
+    public static final String POOL_XA = "xa";
+
+    /**
+     * The number of threads used to acquire connections asynchronously from the pools that do not support it
+     * natively.
+     */
+    private static final int ASYNC_ACQUIRE_THREADS = 4;
+
+    /**
+     * Runs the (short) future listeners in the completing thread.
+     */
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * The application configuration key setting the maximum time (in ms) {@link #onStart()} waits for the data
+     * sources to be reachable. The sources not reachable in time are activated in background.
+     */
+    public static final String STARTUP_TIMEOUT_KEY = "jdbc.startupTimeout";
+
+    private static final long DEFAULT_STARTUP_TIMEOUT = 10000L;
+
+    /**
+     * The maximum delay between two activation attempts of an unreachable data source.
+     */
+    private static final long MAX_ACTIVATION_DELAY = 60000L;
+
+    /**
+     * The delay before an activation checks again a data source whose pools are being created by another thread.
+     */
+    private static final long CREATION_RETRY_DELAY = 100L;
+
+    /**
+     * The data source settings that can be applied to a running {@link #POOL_CONCURRENT} pool. Changing any other
+     * setting replaces the pools.
+     */
+    private static final Set<String> IN_PLACE_SETTINGS = new HashSet<>(Arrays.asList("partitionCount",
+            "maxConnectionsPerPartition", "minConnectionsPerPartition", "connectionTimeout", "idleMaxAge",
+            "maxConnectionAge", "acquireRetryDelay", "drainTimeout", "adaptiveTargetWait", "adaptivePercentile",
+            "adaptiveMaxGrowth", "adaptiveShrinkDelay"));
+
+    /**
+     * The data source settings only read by the {@link #POOL_BONECP} engine.
+     */
+    private static final List<String> BONECP_SETTINGS = Arrays.asList("queryExecuteTimeLimit", "logStatements",
+            "acquireIncrement", "acquireRetryAttempts", "poolStrategy", "serviceOrder", "statisticsEnabled",
+            "disableJMX", "disableConnectionTracking");
+
+    /**
+     * The SQLite connection setting opening the readers of the single-writer mode in read-only mode
+     * ({@code SQLITE_OPEN_READONLY}).
+     */
+    private static final String SQLITE_OPEN_MODE = "open_mode";
+    private static final String SQLITE_OPEN_READONLY = "1";
+
+    /**
+     * The period between two checks of the leased connections of a pool being drained.
+     */
+    private static final long DRAIN_CHECK_PERIOD = 100L;
+
+    /**
+     * The application configuration key setting the number of threads running the maintenance of all the pools.
+     */
+    public static final String MAINTENANCE_THREADS_KEY = "jdbc.maintenanceThreads";
+
+    private static final int DEFAULT_MAINTENANCE_THREADS = 2;
+
+    /**
+     * The application configuration key setting the maximum number of threads running the maintenance tasks (the
+     * connection creations, validations and probes) of all the pools.
+     */
+    public static final String MAINTENANCE_IO_THREADS_KEY = "jdbc.maintenanceIoThreads";
+
+    /**
+     * How long the threads of the bootstrap and acquire executors are kept when idle.
+     */
+    private static final long IDLE_THREAD_KEEP_ALIVE = 30L;
+
     private final BundleContext context;
 
     /**
@@ -60,9 +186,46 @@ public class BoneCPDataSources implements DataSources {
      */
     private boolean isDev;
 
-    private Map<String, WrappedDataSource> sources = new HashMap<>();
+    /**
+     * The data sources, read by the bootstrap and request threads.
+     */
+    private final Map<String, WrappedDataSource> sources = new ConcurrentHashMap<>();
+
+    /**
+     * The available drivers, read by the bootstrap threads creating the pools.
+     */
+    private final Map<String, DataSourceFactory> drivers = new ConcurrentHashMap<>();
+
+    /**
+     * The transaction manager in which the connections of the {@link #POOL_XA} pools are enlisted, {@code null} if
+     * none. JTA is an optional import of the bundle, so this class never uses its types: the XA classes do.
+     */
+    private Object transactionManager;
+
+    /**
+     * Blocks on {@link DataSource#getConnection()} for the pools without asynchronous support, created on first use.
+     */
+    private ScheduledThreadPoolExecutor acquirer;
+
+    /**
+     * Creates and probes the data sources, and retries the unreachable ones.
+     */
+    private ScheduledExecutorService bootstrap;
+
+    /**
+     * Runs the maintenance of all the pools (keep-alive, max age, pool fill...), created on first use.
+     */
+    private MaintenanceScheduler maintenance;
+
+    /**
+     * The tasks of the manager itself (adaptive sizing, drains) on the maintenance scheduler.
+     */
+    private ScheduledExecutorService housekeeping;
 
-    private Map<String, DataSourceFactory> drivers = new HashMap<>();
+    /**
+     * The replaced pools waiting for their leased connections before being closed.
+     */
+    private final Set<DataSource> draining = Collections.newSetFromMap(new ConcurrentHashMap<DataSource, Boolean>());
 
     @Requires
     ApplicationConfiguration configuration;
@@ -79,15 +242,195 @@ public class BoneCPDataSources implements DataSources {
             return null;
         }
         try {
-            Connection connection = ds.getConnection();
-            connection.setAutoCommit(autocommit);
-            return connection;
+            Connection connection = bound(database);
+            if (connection != null) {
+                // The action owns the transaction of the bound connection: enabling the auto-commit would commit it
+                // behind its back, but a caller disabling it starts the transaction it expects to roll back.
+                if (!autocommit && connection.getAutoCommit()) {
+                    connection.setAutoCommit(false);
+                }
+                return connection;
+            }
+            return setAutoCommit(database, ds.getConnection(), autocommit);
+        } catch (DataSourceUnavailableException e) {
+            LOGGER.debug("Data source '{}' unavailable", database, e);
+            return null;
         } catch (SQLException e) {
             LOGGER.error("Cannot open connection on data source '{}", database, e);
             return null;
         }
     }
 
+    /**
+     * Gets a connection on the given database for the given intent. Read-only connections are served by a read
+     * replica when some are configured and available. The auto-commit is enabled. Within an action annotated with
+     * {@link org.wisdom.database.jdbc.service.WithConnection}, the connection bound to the action is returned
+     * whatever the intent.
+     *
+     * @param database the data source name
+     * @param intent   the intent
+     * @return the connection, {@literal null} if the data source with the given name is not configured,
+     * or if the connection cannot be opened.
+     */
+    @Override
+    public Connection getConnection(String database, ReadIntent intent) {
+        WrappedDataSource ds = sources.get(database);
+        if (ds == null) {
+            return null;
+        }
+        try {
+            Connection connection = bound(database);
+            if (connection != null) {
+                return connection;
+            }
+            return setAutoCommit(database, ds.getConnection(intent), true);
+        } catch (DataSourceUnavailableException e) {
+            LOGGER.debug("Data source '{}' unavailable", database, e);
+            return null;
+        } catch (SQLException e) {
+            LOGGER.error("Cannot open connection on data source '{}", database, e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets a connection on the given database for the given lane. The lane slot is given back when the connection
+     * is closed. Within an action annotated with {@link org.wisdom.database.jdbc.service.WithConnection}, the
+     * connection bound to the action is returned, without lane accounting.
+     *
+     * @param database the data source name
+     * @param lane     the lane name
+     * @return the connection, {@literal null} if the data source with the given name or the lane are not configured,
+     * if the lane stayed full for the connection timeout, or if the connection cannot be opened.
+     */
+    @Override
+    public Connection getConnection(String database, String lane) {
+        WrappedDataSource ds = sources.get(database);
+        if (ds == null) {
+            return null;
+        }
+        Connection connection = bound(database);
+        if (connection != null) {
+            return connection;
+        }
+        Bulkhead bulkhead = ds.getBulkhead();
+        if (bulkhead == null || !bulkhead.hasLane(lane)) {
+            LOGGER.error("No lane '{}' configured on the data source '{}'", lane, database);
+            return null;
+        }
+        try {
+            bulkhead.acquire(lane, ds.getConfiguration().getLongWithDefault("connectionTimeout", 1000L),
+                    TimeUnit.MILLISECONDS);
+            try {
+                connection = bulkhead.wrap(ds.getConnection(), lane);
+            } catch (SQLException | RuntimeException e) {
+                bulkhead.release(lane);
+                throw e;
+            }
+            return setAutoCommit(database, connection, true);
+        } catch (DataSourceUnavailableException e) {
+            LOGGER.debug("Data source '{}' unavailable", database, e);
+            return null;
+        } catch (SQLException e) {
+            LOGGER.error("Cannot open connection on the lane '{}' of the data source '{}'", lane, database, e);
+            return null;
+        }
+    }
+
+    /**
+     * Sets the auto-commit mode of a connection just leased. If it fails, the connection is given back before
+     * reporting the failure.
+     *
+     * @param database   the data source name
+     * @param connection the connection
+     * @param autocommit the auto-commit mode
+     * @return the connection
+     * @throws SQLException if the auto-commit mode cannot be set
+     */
+    private static Connection setAutoCommit(String database, Connection connection, boolean autocommit)
+            throws SQLException {
+        try {
+            connection.setAutoCommit(autocommit);
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            try {
+                connection.close();
+            } catch (SQLException closing) {
+                LOGGER.debug("Cannot give back a connection of '{}'", database, closing);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public <T> Cursor<T> stream(String database, String sql, RowMapper<T> mapper, Object... parameters)
+            throws SQLException {
+        WrappedDataSource ds = sources.get(database);
+        if (ds == null) {
+            throw new SQLException("The data source '" + database + "' is not configured");
+        }
+        int fetchSize = ds.getConfiguration().getIntegerWithDefault("fetchSize", 100);
+        Connection connection = bound(database);
+        if (connection != null) {
+            return ResultSetCursor.open(connection, sql, parameters, fetchSize, mapper, false);
+        }
+        return ResultSetCursor.open(ds.getConnection(ReadIntent.READ_ONLY), sql, parameters, fetchSize, mapper, true);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> List<T> cachedQuery(String database, String sql, RowMapper<T> mapper, Object... parameters)
+            throws SQLException {
+        WrappedDataSource ds = sources.get(database);
+        if (ds == null) {
+            throw new SQLException("The data source '" + database + "' is not configured");
+        }
+        ResultCache cache = ds.getResultCache();
+        Connection connection = bound(database);
+        if (cache == null || connection != null && !connection.getAutoCommit()) {
+            return Collections.unmodifiableList(readAll(connection == null ? ds.getConnection() : connection, sql,
+                    mapper, parameters));
+        }
+        ResultCache.Key key = cache.key(sql, parameters, mapper);
+        List<T> rows = (List<T>) cache.get(key);
+        if (rows != null) {
+            return rows;
+        }
+        // Read on the primary whatever the intent of the thread, a lagging replica would put back results that have
+        // just been invalidated. A bound read-only connection may be a replica connection too.
+        long generation = cache.getGeneration();
+        if (connection == null || connection.isReadOnly()) {
+            connection = ds.getConnection(ReadIntent.READ_WRITE);
+        }
+        rows = readAll(connection, sql, mapper, parameters);
+        cache.put(key, rows, generation);
+        return Collections.unmodifiableList(rows);
+    }
+
+    private static <T> List<T> readAll(Connection connection, String sql, RowMapper<T> mapper, Object[] parameters)
+            throws SQLException {
+        List<T> rows = new ArrayList<>();
+        try (Cursor<T> cursor = ResultSetCursor.open(connection, sql, parameters, 0, mapper, false)) {
+            for (T row : cursor) {
+                rows.add(row);
+            }
+        } catch (CursorException e) {
+            throw e.getCause();
+        }
+        return rows;
+    }
+
+    /**
+     * Gets a view of the connection bound to the current action by {@link WithConnectionInterceptor}, if any.
+     *
+     * @param database the data source name
+     * @return the view, {@literal null} if no connection of this data source is bound to the current thread
+     */
+    private static Connection bound(String database) {
+        Connection connection = BoundConnections.get(database);
+        return connection == null ? null : new BoundConnection(connection);
+    }
+
     /**
      * Gets the data source with the given name.
      *
@@ -148,6 +491,120 @@ public class BoneCPDataSources implements DataSources {
         return getConnection(database, true);
     }
 
+    /**
+     * Acquires a connection without blocking the calling thread. The {@code concurrent} pool queues the request and
+     * completes it from the thread releasing the next connection. For BoneCP, the wait happens on a small bounded
+     * set of threads shared by all the data sources.
+     *
+     * @param database the data source name
+     * @param timeout  the maximum time to wait, 0 to use the data source connection timeout
+     * @param unit     the unit of the timeout
+     * @return the future connection
+     */
+    @Override
+    public ListenableFuture<Connection> acquire(String database, long timeout, TimeUnit unit) {
+        WrappedDataSource source = sources.get(database);
+        if (source == null || !source.isAvailable()) {
+            return Futures.immediateFailedFuture(new SQLException("The data source '" + database + "' is not " +
+                    "available"));
+        }
+        CircuitBreaker breaker = source.getCircuitBreaker();
+        if (breaker != null) {
+            try {
+                breaker.check();
+            } catch (DataSourceUnavailableException e) {
+                return Futures.immediateFailedFuture(e);
+            }
+        }
+        DataSource pool = source.getWrapped();
+        final PoolMetrics metrics = source.getMetrics();
+        final long start = metrics.onAcquireStart();
+        ListenableFuture<Connection> future;
+        if (pool instanceof ConcurrentDataSource) {
+            future = ((ConcurrentDataSource) pool).acquire(timeout, unit);
+        } else {
+            future = acquireOnExecutor(database, pool, timeout, unit);
+        }
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                metrics.onAcquireEnd(start);
+            }
+        }, DIRECT);
+        return future;
+    }
+
+    private ListenableFuture<Connection> acquireOnExecutor(final String database, final DataSource pool,
+                                                           final long timeout, final TimeUnit unit) {
+        final SettableFuture<Connection> future = SettableFuture.create();
+        ScheduledExecutorService executor = getAcquirer();
+        try {
+            final ScheduledFuture<?> expiration = timeout <= 0 ? null : executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    future.setException(new SQLTransientConnectionException("Cannot get a connection from '"
+                            + database + "' within " + unit.toMillis(timeout) + " ms"));
+                }
+            }, timeout, unit);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isDone()) {
+                        return;
+                    }
+                    try {
+                        Connection connection = pool.getConnection();
+                        if (!future.set(connection)) {
+                            // Timed out or cancelled meanwhile.
+                            connection.close();
+                        }
+                    } catch (SQLException e) {
+                        future.setException(e);
+                    }
+                    if (expiration != null) {
+                        expiration.cancel(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.setException(new SQLException("The data source service is stopping", e));
+        }
+        return future;
+    }
+
+    private synchronized ScheduledExecutorService getAcquirer() {
+        if (acquirer == null) {
+            acquirer = new ScheduledThreadPoolExecutor(ASYNC_ACQUIRE_THREADS,
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("wisdom-datasources-acquire-%d").build());
+            acquirer.setRemoveOnCancelPolicy(true);
+            acquirer.setKeepAliveTime(IDLE_THREAD_KEEP_ALIVE, TimeUnit.SECONDS);
+            acquirer.allowCoreThreadTimeOut(true);
+        }
+        return acquirer;
+    }
+
+    private synchronized MaintenanceScheduler getMaintenance() {
+        if (maintenance == null) {
+            int threads = DEFAULT_MAINTENANCE_THREADS;
+            int ioThreads = MaintenanceScheduler.DEFAULT_IO_THREADS;
+            if (configuration != null) {
+                threads = configuration.getIntegerWithDefault(MAINTENANCE_THREADS_KEY, DEFAULT_MAINTENANCE_THREADS);
+                ioThreads = configuration.getIntegerWithDefault(MAINTENANCE_IO_THREADS_KEY,
+                        MaintenanceScheduler.DEFAULT_IO_THREADS);
+            }
+            maintenance = new MaintenanceScheduler("wisdom-datasources-maintenance",
+                    threads <= 0 ? DEFAULT_MAINTENANCE_THREADS : threads,
+                    ioThreads <= 0 ? MaintenanceScheduler.DEFAULT_IO_THREADS : ioThreads);
+            housekeeping = maintenance.newGroup();
+        }
+        return maintenance;
+    }
+
+    private synchronized ScheduledExecutorService getHousekeeping() {
+        getMaintenance();
+        return housekeeping;
+    }
+
     @Validate
     public void onStart() throws SQLException {
         Configuration dbConfiguration = configuration.getConfiguration(DB_CONFIGURATION_PREFIX);
@@ -171,83 +628,349 @@ public class BoneCPDataSources implements DataSources {
             for (String k : new HashSet<>(sources.keySet())) {
                 if (!names.contains(k)) {
                     // Lost one.
-                    LOGGER.info("The data source {} has been removed from configuration");
-                    sources.remove(k);
+                    LOGGER.info("The data source {} has been removed from configuration", k);
+                    WrappedDataSource lost = sources.remove(k);
+                    drain(lost, lost.stop());
                 } else if (names.contains(k)) {
                     // Remaining data source, reconfiguration
-                    LOGGER.info("Reconfiguring data source {}", k);
-                    createDataSource(sources.get(k).updateConfiguration(dbConfiguration.getConfiguration(k)));
+                    reconfigure(sources.get(k), dbConfiguration.getConfiguration(k));
                 }
             }
         }
 
+        ScheduledExecutorService executor = getBootstrap();
+        long start = System.nanoTime();
+        Map<String, Future<?>> activations = new LinkedHashMap<>();
         for (String name : names) {
-            if (sources.containsKey(name)) {
-                // The data source is already existing.
-                continue;
+            WrappedDataSource source = sources.get(name);
+            if (source == null) {
+                source = new WrappedDataSource(name, dbConfiguration.getConfiguration(name));
+                sources.put(name, source);
+                activations.put(name, executor.submit(new Activation(source, true)));
+            } else if (source.isAvailable()) {
+                activations.put(name, executor.submit(new Activation(source, false)));
             }
+        }
 
-            Configuration conf = dbConfiguration.getConfiguration(name);
-            WrappedDataSource wrapped = new WrappedDataSource(name, conf);
-            createDataSource(wrapped);
-            if (!wrapped.isAvailable()) {
-                LOGGER.error("The data source '{}' cannot be created, the driver is not available or the " +
-                        "configuration is invalid", name);
+        // Wait for the activations, up to the startup deadline.
+        long timeout = configuration.getLongWithDefault(STARTUP_TIMEOUT_KEY, DEFAULT_STARTUP_TIMEOUT);
+        if (timeout <= 0) {
+            timeout = DEFAULT_STARTUP_TIMEOUT;
+        }
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+        for (Map.Entry<String, Future<?>> entry : activations.entrySet()) {
+            try {
+                entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                LOGGER.warn("The data source '{}' is not reachable after {} ms, it will be activated in background",
+                        entry.getKey(), timeout);
+            } catch (ExecutionException e) {
+                LOGGER.error("The data source '{}' cannot be started", entry.getKey(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
             }
-            sources.put(name, wrapped);
         }
+        LOGGER.info("{} data source(s) started in {} ms", activations.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
 
-        // Try to open a connection to each data source.
-        // Register the data sources as services.
-        for (Map.Entry<String, WrappedDataSource> entry : sources.entrySet()) {
+    /**
+     * Creates (if needed) a data source, opens a connection to check that it is reachable, and registers it as a
+     * service. If the connection fails, the activation is retried in background with an exponential backoff, until
+     * it succeeds or the data source manager stops.
+     */
+    private final class Activation implements Runnable {
+        private final WrappedDataSource source;
+        private final long start = System.nanoTime();
+        private boolean create;
+        private int attempts;
+
+        private Activation(WrappedDataSource source, boolean create) {
+            this.source = source;
+            this.create = create;
+        }
+
+        @Override
+        public void run() {
+            if (create && !source.startCreation()) {
+                // The driver has just arrived, and its binding is creating the pools.
+                schedule(CREATION_RETRY_DELAY);
+                return;
+            }
             try {
-                if (entry.getValue().isAvailable()) {
-                    entry.getValue().getConnection().close();
-                    LOGGER.info("Connection successful to data source '{}'", entry.getKey());
-                    entry.getValue().register(context);
-                } else {
-                    LOGGER.info("The data source '{}' is pending - no driver available", entry.getKey());
+                attempts++;
+                if (create) {
+                    try {
+                        if (!source.isAvailable()) {
+                            createDataSource(source);
+                        }
+                    } finally {
+                        source.endCreation();
+                    }
+                    create = false;
+                    if (!source.isAvailable()) {
+                        LOGGER.error("The data source '{}' cannot be created, the driver is not available or the " +
+                                "configuration is invalid", source.getName());
+                        return;
+                    }
+                }
+                if (!source.isAvailable()) {
+                    // Invalidated meanwhile.
+                    return;
                 }
+                source.getConnection().close();
+                source.register(context);
+                LOGGER.info("Connection successful to data source '{}' ({} ms, {} attempt(s))", source.getName(),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), attempts);
             } catch (SQLException e) {
-                LOGGER.error("The data source '{}' is configured but the connection failed", entry.getKey(), e);
+                long delay = Math.min(MAX_ACTIVATION_DELAY, 1000L << Math.min(attempts - 1, 16));
+                if (attempts == 1) {
+                    LOGGER.error("The data source '{}' is configured but the connection failed, retrying in " +
+                            "background", source.getName(), e);
+                } else {
+                    LOGGER.debug("Activation attempt {} of the data source '{}' failed, next one in {} ms", attempts,
+                            source.getName(), delay, e);
+                }
+                schedule(delay);
+            }
+        }
+
+        private void schedule(long delay) {
+            try {
+                getBootstrap().schedule(this, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ignored) {
+                // Stopping.
+            }
+        }
+    }
+
+    /**
+     * Applies a new configuration to an existing data source. If only sizes or timeouts changed and the data
+     * source uses the {@link #POOL_CONCURRENT} engine, the running pools are updated in place. Otherwise, new pools
+     * are created and swapped in, while the previous ones are drained: they are closed once all their leased
+     * connections have been given back (or after {@code drainTimeout} ms), so the requests in flight complete
+     * normally.
+     *
+     * @param source        the data source
+     * @param configuration the new configuration
+     * @throws SQLException if the new pools cannot be created
+     */
+    private void reconfigure(WrappedDataSource source, Configuration configuration) throws SQLException {
+        Configuration previous = source.getConfiguration();
+        source.updateConfiguration(configuration);
+        if (!source.isAvailable()) {
+            // Not created yet (missing driver), the new configuration is used when the driver arrives.
+            return;
+        }
+
+        Set<String> changes = getChangedSettings(previous, configuration);
+        if (changes.isEmpty()) {
+            LOGGER.debug("The configuration of the data source '{}' has not changed", source.getName());
+            return;
+        }
+
+        if (IN_PLACE_SETTINGS.containsAll(changes) && source.getWrapped() instanceof ConcurrentDataSource) {
+            LOGGER.info("Reconfiguring data source {} in place ({} changed)", source.getName(), changes);
+            BoneCPConfig settings = new BoneCPConfig();
+            configurePool(settings, configuration);
+            if (!isSingleWriter(configuration)) {
+                warnIgnoredSettings(source.getName(), configuration, POOL_CONCURRENT);
+                ((ConcurrentDataSource) source.getWrapped()).reconfigure(settings);
+            }
+            for (Replica replica : source.getReplicas()) {
+                if (replica.getPool() instanceof ConcurrentDataSource) {
+                    ((ConcurrentDataSource) replica.getPool()).reconfigure(settings);
+                }
+            }
+            // The lanes share the new pool size.
+            source.setBulkhead(createBulkhead(source, configuration));
+            return;
+        }
+
+        LOGGER.info("Reconfiguring data source {}, replacing its pools ({} changed)", source.getName(), changes);
+        DataSource previousPrimary = source.getWrapped();
+        List<DataSource> previousPools = detachPools(source);
+        try {
+            createDataSource(source);
+        } finally {
+            if (source.getWrapped() == previousPrimary) {
+                // The new configuration is not usable, the service is withdrawn until it is fixed.
+                source.stop();
             }
+            drain(source, previousPools);
         }
     }
 
+    private static Set<String> getChangedSettings(Configuration previous, Configuration current) {
+        Map<String, Object> before = previous == null ? Collections.<String, Object>emptyMap() : previous.asMap();
+        Map<String, Object> after = current.asMap();
+        Set<String> changes = new TreeSet<>();
+        for (String key : Sets.union(before.keySet(), after.keySet())) {
+            if (!Objects.equals(before.get(key), after.get(key))) {
+                changes.add(key);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Collects the pools (primary and replicas) of the given data source, before new ones are swapped in.
+     */
+    private static List<DataSource> detachPools(WrappedDataSource source) {
+        List<DataSource> pools = new ArrayList<>();
+        if (source.getWrapped() != null) {
+            pools.add(source.getWrapped());
+        }
+        for (Replica replica : source.getReplicas()) {
+            pools.add(replica.getPool());
+        }
+        return pools;
+    }
+
+    /**
+     * Closes the given pools once they do not have leased connections anymore, or when the drain timeout of the data
+     * source expires. The pools must not be reachable from the data source anymore.
+     *
+     * @param source the data source having used the pools
+     * @param pools  the pools
+     */
+    private void drain(WrappedDataSource source, List<DataSource> pools) {
+        if (pools.isEmpty()) {
+            return;
+        }
+        long timeout = source.getConfiguration().getLongWithDefault("drainTimeout", 30000L);
+        draining.addAll(pools);
+        try {
+            getHousekeeping().schedule(new Drain(source.getName(), pools, timeout), DRAIN_CHECK_PERIOD,
+                    TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopping.
+            for (DataSource pool : pools) {
+                closeDrained(pool);
+            }
+        }
+    }
+
+    private void closeDrained(DataSource pool) {
+        if (draining.remove(pool)) {
+            closePool(pool);
+        }
+    }
+
+    /**
+     * Waits for the leased connections of replaced pools to be given back, checking every
+     * {@link #DRAIN_CHECK_PERIOD} ms, and closes the pools.
+     */
+    private final class Drain implements Runnable {
+        private final String name;
+        private final List<DataSource> pools;
+        private final long start = System.nanoTime();
+        private final long timeout;
+
+        private Drain(String name, List<DataSource> pools, long timeout) {
+            this.name = name;
+            this.pools = pools;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public void run() {
+            int leased = 0;
+            for (DataSource pool : pools) {
+                leased += getTotalLeased(pool);
+            }
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (leased > 0 && elapsed < timeout) {
+                try {
+                    getHousekeeping().schedule(this, DRAIN_CHECK_PERIOD, TimeUnit.MILLISECONDS);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // Stopping, close now.
+                }
+            }
+            if (leased > 0) {
+                LOGGER.warn("Closing the previous pool(s) of '{}' with {} connection(s) still leased after {} ms",
+                        name, leased, elapsed);
+            } else {
+                LOGGER.info("Previous pool(s) of '{}' drained in {} ms", name, elapsed);
+            }
+            for (DataSource pool : pools) {
+                closeDrained(pool);
+            }
+        }
+    }
+
+    private static int getTotalLeased(DataSource pool) {
+        if (pool instanceof ConcurrentDataSource) {
+            return ((ConcurrentDataSource) pool).getTotalLeased();
+        } else if (pool instanceof PooledConnectionPool) {
+            return ((PooledConnectionPool) pool).getTotalLeased();
+        } else if (pool instanceof BoneCPDataSource) {
+            return ((BoneCPDataSource) pool).getTotalLeased();
+        }
+        return 0;
+    }
+
+    private synchronized ScheduledExecutorService getBootstrap() {
+        if (bootstrap == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+                    Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("wisdom-datasources-bootstrap-%d").build());
+            executor.setRemoveOnCancelPolicy(true);
+            executor.setKeepAliveTime(IDLE_THREAD_KEEP_ALIVE, TimeUnit.SECONDS);
+            executor.allowCoreThreadTimeOut(true);
+            bootstrap = executor;
+        }
+        return bootstrap;
+    }
+
     @Invalidate
     public void onStop() {
         // Close all data sources
         for (Map.Entry<String, WrappedDataSource> entry : sources.entrySet()) {
-            shutdownPool(entry.getValue());
+            closePools(entry.getValue().stop());
             LOGGER.info("Data source '{}' closed", entry.getKey());
-            entry.getValue().unset();
+        }
+        for (DataSource pool : new ArrayList<>(draining)) {
+            closeDrained(pool);
+        }
+        synchronized (this) {
+            if (acquirer != null) {
+                acquirer.shutdownNow();
+                acquirer = null;
+            }
+            if (bootstrap != null) {
+                bootstrap.shutdownNow();
+                bootstrap = null;
+            }
+            if (maintenance != null) {
+                maintenance.close();
+                maintenance = null;
+                housekeeping = null;
+            }
         }
     }
 
     private void createDataSource(WrappedDataSource source) throws SQLException {
-        final BoneCPDataSource datasource = new BoneCPDataSource();
         Configuration dbConf = source.getConfiguration();
         String driver = dbConf.getWithDefault("driver", null);
         if (driver == null) {
             LOGGER.error("The data source " + source.getName() + " has not driver classname - " + getPropertyKey
                     (source.getName(), "driver") + " property not set");
             return;
-        } else {
-            Driver instance = getDriver(driver);
-            if (instance == null) {
-                // The driver is not available
-                return;
-            }
-            // OSGi is a bit picky about SQL Driver
-            // The fact is that DriverManager is loading drivers from the Classpath Class loader
-            // and check that the loaded class is the same as the driver class. Unfortunately, it's not the case
-            // so we need a turn around. The idea is to give the driver instance we just create to the pool.
-            // We use a special property to achieve this.
-            // The pool implementation is enhanced to handle this new property.
-            datasource.setClassLoader(instance.getClass().getClassLoader());
-            Properties hack = new Properties();
-            hack.put(BoneCP.DRIVER_INSTANCE_PROPERTY, instance);
-            datasource.setDriverProperties(hack);
+        }
+        Driver instance = getDriver(driver);
+        if (instance == null) {
+            // The driver is not available
+            return;
+        }
+
+        String url = dbConf.getWithDefault("url", null);
+        if (url == null) {
+            LOGGER.error("The data source " + source.getName() + " has url - " + getPropertyKey(source.getName(),
+                    "url") + " property not set");
+            return;
         }
 
         final boolean autocommit = dbConf.getBooleanWithDefault("autocommit", true);
@@ -257,22 +980,146 @@ public class BoneCPDataSources implements DataSources {
 
         final String catalog = dbConf.getWithDefault("defaultCatalog", null);
 
+        final SessionDefaults defaults = new SessionDefaults(autocommit, isolationLevel, readOnly, catalog);
+        final PoolMetrics metrics = source.getMetrics();
+        final DriverProfile profile = dbConf.getBooleanWithDefault("driverProfile", true)
+                ? DriverProfile.forUrl(url) : null;
+        final ConnectionValidator validator = createValidator(source.getName(), dbConf, profile);
+        metrics.setValidator(validator);
+        metrics.getQueryProfiler().setCapacity(dbConf.getIntegerWithDefault("slowQueryFingerprints",
+                QueryProfiler.DEFAULT_CAPACITY));
+
+        final CircuitBreaker breaker = createCircuitBreaker(source, dbConf, validator);
+        final LeakDetector leakDetector = createLeakDetector(source, dbConf);
+        source.setBulkhead(createBulkhead(source, dbConf));
+        final ResultCache cache = createResultCache(source, dbConf);
+        DataSource primary;
+        try {
+            primary = createPool(source.getName(), dbConf, instance, url,
+                    withLeakDetector(withResultCache(new ChainedCustomizer(defaults, metrics), cache), leakDetector),
+                    metrics, validator, breaker, true);
+        } catch (RuntimeException e) {
+            if (breaker != null) {
+                breaker.stop();
+            }
+            throw e;
+        }
+        source.set(primary);
+        CircuitBreaker previous = source.getCircuitBreaker();
+        if (previous != null) {
+            // The probes of the replaced pools.
+            previous.stop();
+        }
+        source.setCircuitBreaker(breaker);
+        source.setSessionDefaults(defaults);
+
+        AdaptiveSizer sizer = source.getSizer();
+        if (dbConf.getBooleanWithDefault("adaptive", false)) {
+            if (isSingleWriter(dbConf)) {
+                LOGGER.warn("Adaptive sizing does not apply to the single writer of '{}'", source.getName());
+            } else if (!(source.getWrapped() instanceof ConcurrentDataSource)) {
+                LOGGER.warn("Adaptive sizing requires the '{}' pool engine, the pool of '{}' keeps a fixed size",
+                        POOL_CONCURRENT, source.getName());
+            } else if (sizer == null) {
+                sizer = new AdaptiveSizer(source);
+                sizer.start(getHousekeeping(), dbConf.getLongWithDefault("adaptivePeriod", 1000L));
+                source.setSizer(sizer);
+            }
+        } else if (sizer != null) {
+            sizer.stop();
+            source.setSizer(null);
+        }
+
+        // Read replicas, they share the configuration of the primary, but are always read-only.
+        List<Replica> replicas = new ArrayList<>();
+        if (dbConf.has("replicas")) {
+            long ejection = dbConf.getLongWithDefault("replicaEjectionTime", 30000L);
+            for (String replicaUrl : dbConf.getList("replicas")) {
+                Replica replica = new Replica(source.getName() + "-replica-" + replicas.size(), replicaUrl,
+                        ejection);
+                SessionDefaults replicaDefaults = new SessionDefaults(autocommit, isolationLevel, true, catalog);
+                replica.setPool(createPool(replica.getName(), dbConf, instance, replicaUrl,
+                        withLeakDetector(new ChainedCustomizer(new ChainedCustomizer(replicaDefaults, metrics),
+                                replica), leakDetector), metrics, validator, null, false));
+                replicas.add(replica);
+            }
+            LOGGER.info("{} read replica(s) configured for the data source '{}'", replicas.size(), source.getName());
+        }
+        // The readers of a SQLite data source in single-writer mode are replicas on the same file, opened read-only.
+        if (isSingleWriter(dbConf)) {
+            if (isSQLiteInMemory(url)) {
+                LOGGER.warn("The in-memory SQLite database of '{}' is private to its connection, all the requests " +
+                        "are served by the writer", source.getName());
+            } else {
+                String readerUrl = url.contains(SQLITE_OPEN_MODE + "=") ? url : DriverProfile.SQLITE.extend(url,
+                        Collections.singletonMap(SQLITE_OPEN_MODE, SQLITE_OPEN_READONLY));
+                Replica readers = new Replica(source.getName() + "-readers", readerUrl,
+                        dbConf.getLongWithDefault("replicaEjectionTime", 30000L));
+                SessionDefaults readerDefaults = new SessionDefaults(autocommit, isolationLevel, true, catalog);
+                readers.setPool(createPool(readers.getName(), dbConf, instance, readerUrl,
+                        withLeakDetector(new ChainedCustomizer(new ChainedCustomizer(readerDefaults, metrics),
+                                readers), leakDetector), metrics, validator, null, false));
+                replicas.add(readers);
+                LOGGER.info("Single-writer mode for '{}': 1 writer connection, read-only requests served by the " +
+                        "readers", source.getName());
+            }
+        }
+        source.setReplicas(replicas);
+    }
+
+    /**
+     * Creates the pool of connections to the given url, using the pool settings of the data source.
+     *
+     * @param name       the pool name
+     * @param dbConf     the data source configuration
+     * @param instance   the driver
+     * @param url        the url
+     * @param customizer the callbacks invoked on the pool connections
+     * @param metrics    the data source metrics
+     * @param validator  the validator checking the pool connections
+     * @param breaker    the circuit breaker notified of the connection failures, {@code null} if none
+     * @param primary    whether or not the pool is the primary one, whose gauges are published in the metrics
+     * @return the pool, using the configured engine
+     */
+    private DataSource createPool(String name, Configuration dbConf, Driver instance, String url,
+                                  final ConnectionCustomizer customizer, final PoolMetrics metrics,
+                                  ConnectionValidator validator, CircuitBreaker breaker, final boolean primary) {
+        final BoneCPDataSource datasource = new BoneCPDataSource();
+        // OSGi is a bit picky about SQL Driver
+        // The fact is that DriverManager is loading drivers from the Classpath Class loader
+        // and check that the loaded class is the same as the driver class. Unfortunately, it's not the case
+        // so we need a turn around. The idea is to give the driver instance we just create to the pool.
+        // We use a special property to achieve this.
+        // The pool implementation is enhanced to handle this new property.
+        datasource.setClassLoader(instance.getClass().getClassLoader());
+        Properties hack = new Properties();
+        hack.put(BoneCP.DRIVER_INSTANCE_PROPERTY, new TimedDriver(instance, metrics, breaker));
+        // Same trick for the connection validator.
+        hack.put(BoneCP.VALIDATOR_PROPERTY, validator);
+        // And for the scheduler shared by all the pools.
+        hack.put(BoneCP.MAINTENANCE_PROPERTY, getMaintenance());
+        datasource.setDriverProperties(hack);
+
         datasource.setConnectionHook(new AbstractConnectionHook() {
             @Override
             public void onCheckIn(ConnectionHandle connection) {
+                customizer.onCheckIn(connection.getInternalConnection());
                 LOGGER.trace("Check in connection {} [{} leased]", connection.toString(),
                         datasource.getTotalLeased());
             }
 
+            @Override
+            public void onAcquire(ConnectionHandle connection) {
+                connection.setInternalConnection(customizer.onAcquire(connection.getInternalConnection()));
+                if (primary) {
+                    metrics.setBoneCP(connection.getPool());
+                }
+            }
+
             @Override
             public void onCheckOut(ConnectionHandle connection) {
                 try {
-                    connection.setAutoCommit(autocommit);
-                    connection.setTransactionIsolation(isolationLevel);
-                    connection.setReadOnly(readOnly);
-                    if (catalog != null) {
-                        connection.setCatalog(catalog);
-                    }
+                    customizer.onCheckOut(connection.getInternalConnection());
                     LOGGER.trace("Check out connection {} [{} leased]", connection, datasource.getTotalLeased());
                 } catch (SQLException e) {
                     LOGGER.error("An exception occurred in the `onCheckOut` of {}", connection, e);
@@ -281,47 +1128,29 @@ public class BoneCPDataSources implements DataSources {
 
             @Override
             public void onQueryExecuteTimeLimitExceeded(ConnectionHandle handle, Statement statement, String sql, Map<Object, Object> logParams, long timeElapsedInNs) {
-                double timeMs = timeElapsedInNs / 1000d;
-                String query = PoolUtil.fillLogParams(sql, logParams);
-                LOGGER.warn("Query execute time limit exceeded ({}ms) - query: {}", timeMs, query);
+                // A statement shape is logged when it starts being profiled, the other occurrences are aggregated in
+                // the metrics.
+                double timeMs = timeElapsedInNs / 1000000d;
+                if (metrics.getQueryProfiler().record(sql, timeElapsedInNs)) {
+                    LOGGER.warn("Query execute time limit exceeded ({}ms) - query: {}", timeMs, sql);
+                } else if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Query execute time limit exceeded ({}ms) - query: {}", timeMs,
+                            PoolUtil.fillLogParams(sql, logParams));
+                }
             }
         });
 
-        String url = dbConf.getWithDefault("url", null);
-        if (url == null) {
-            LOGGER.error("The data source " + source.getName() + " has url - " + getPropertyKey(source.getName(),
-                    "url") + " property not set");
-            return;
-        }
-
         boolean populated = Patterns.populate(datasource, url, isDev);
         if (populated) {
-            LOGGER.debug("Data source metadata ('{}') populated from the given url", source.getName());
+            LOGGER.debug("Data source metadata ('{}') populated from the given url", name);
         }
+        applyProfile(name, dbConf, datasource);
 
         datasource.setUsername(dbConf.get("user"));
         datasource.setPassword(dbConf.get("pass"));
         datasource.setPassword(dbConf.get("password"));
 
-        // Pool configuration
-        datasource.setPartitionCount(dbConf.getIntegerWithDefault("partitionCount", 1));
-        datasource.setMaxConnectionsPerPartition(dbConf.getIntegerWithDefault("maxConnectionsPerPartition", 30));
-        datasource.setMinConnectionsPerPartition(dbConf.getIntegerWithDefault("minConnectionsPerPartition", 5));
-        datasource.setAcquireIncrement(dbConf.getIntegerWithDefault("acquireIncrement", 1));
-        datasource.setAcquireRetryAttempts(dbConf.getIntegerWithDefault("acquireRetryAttempts", 10));
-        datasource.setAcquireRetryDelayInMs(dbConf.getIntegerWithDefault("acquireRetryDelay", 1000));
-        datasource.setConnectionTimeoutInMs(dbConf.getIntegerWithDefault("connectionTimeout", 1000));
-        datasource.setIdleMaxAge(dbConf.getIntegerWithDefault("idleMaxAge", 1000 * 60 * 10),
-                java.util.concurrent.TimeUnit.MILLISECONDS);
-        datasource.setMaxConnectionAge(dbConf.getIntegerWithDefault("maxConnectionAge", 1000 * 60 * 60),
-                java.util.concurrent.TimeUnit.MILLISECONDS);
-        datasource.setDisableJMX(dbConf.getBooleanWithDefault("disableJMX", true));
-        datasource.setStatisticsEnabled(dbConf.getBooleanWithDefault("statisticsEnabled", false));
-        datasource.setIdleConnectionTestPeriod(dbConf.getIntegerWithDefault("idleConnectionTestPeriod", 1000 * 60),
-                java.util.concurrent.TimeUnit.MILLISECONDS);
-        datasource.setDisableConnectionTracking(dbConf.getBooleanWithDefault("disableConnectionTracking", true));
-        datasource.setQueryExecuteTimeLimitInMs(dbConf.getIntegerWithDefault("queryExecuteTimeLimit", 0));
-
+        configurePool(datasource, dbConf);
         if (dbConf.get("initSQL") != null) {
             datasource.setInitSQL(dbConf.get("initSQL"));
         }
@@ -332,8 +1161,440 @@ public class BoneCPDataSources implements DataSources {
 
         //TODO JNDI Binding.
 
-        // Inject the data source.
-        source.set(datasource);
+        // The writer of a SQLite data source in single-writer mode is a single connection. The concurrent engine hands
+        // it over to the waiting threads in arrival order.
+        String pool = dbConf.getWithDefault("pool", POOL_BONECP);
+        if (primary && isSingleWriter(dbConf)) {
+            // The readers need the write-ahead log to not block the writer (and to not be blocked by it).
+            if (!datasource.getJdbcUrl().contains("journal_mode=")) {
+                datasource.setJdbcUrl(DriverProfile.SQLITE.extend(datasource.getJdbcUrl(),
+                        Collections.singletonMap("journal_mode", "WAL")));
+            }
+            datasource.setPartitionCount(1);
+            datasource.setMinConnectionsPerPartition(1);
+            datasource.setMaxConnectionsPerPartition(1);
+            pool = POOL_CONCURRENT;
+        }
+
+        // Wrap the data source in the selected pool engine.
+        if (POOL_CONCURRENT.equalsIgnoreCase(pool)) {
+            if (primary && !isSingleWriter(dbConf)) {
+                warnIgnoredSettings(name, dbConf, POOL_CONCURRENT);
+            }
+            return new ConcurrentDataSource(name, datasource, customizer);
+        }
+        if (POOL_NATIVE.equalsIgnoreCase(pool)) {
+            NativePool nativePool = createNativePool(name, dbConf, datasource, customizer, metrics, validator,
+                    breaker);
+            if (nativePool != null) {
+                if (primary) {
+                    warnIgnoredSettings(name, dbConf, POOL_NATIVE);
+                }
+                return nativePool;
+            }
+            LOGGER.error("The driver of {} does not provide a connection pool data source, using '{}'", name,
+                    POOL_BONECP);
+            return datasource;
+        }
+        if (POOL_XA.equalsIgnoreCase(pool)) {
+            XAPool xaPool = createXAPool(name, dbConf, datasource, customizer, metrics, validator, breaker);
+            if (xaPool != null) {
+                if (primary) {
+                    warnIgnoredSettings(name, dbConf, POOL_XA);
+                }
+                return xaPool;
+            }
+            LOGGER.error("The driver of {} does not provide a XA data source, using '{}'", name, POOL_BONECP);
+            return datasource;
+        }
+        if (!POOL_BONECP.equalsIgnoreCase(pool)) {
+            LOGGER.error("Unknown pool engine '{}' for {}, using '{}'", pool, name, POOL_BONECP);
+        }
+        return datasource;
+    }
+
+    /**
+     * Creates a pool of the {@link javax.sql.PooledConnection}s of the driver. The connection pool data source is
+     * configured with the url, user and password of the data source, or with the entries of the
+     * {@code dataSourceProperties} sub-configuration when given. The {@code maxStatements} setting sizes the
+     * statement cache of the driver.
+     *
+     * @param name       the pool name
+     * @param dbConf     the data source configuration
+     * @param config     the pool configuration
+     * @param customizer the callbacks invoked on the pool connections
+     * @param metrics    the data source metrics
+     * @param validator  the validator checking the pool connections
+     * @param breaker    the circuit breaker notified of the connection failures, {@code null} if none
+     * @return the pool, {@code null} if the driver does not provide a connection pool data source
+     */
+    private NativePool createNativePool(String name, Configuration dbConf, BoneCPDataSource config,
+                                        ConnectionCustomizer customizer, PoolMetrics metrics,
+                                        ConnectionValidator validator, CircuitBreaker breaker) {
+        DataSourceFactory factory = drivers.get(dbConf.get("driver"));
+        if (factory == null) {
+            return null;
+        }
+        ConnectionPoolDataSource source;
+        try {
+            source = factory.createConnectionPoolDataSource(getDataSourceProperties(name, dbConf, config));
+        } catch (SQLException | RuntimeException e) {
+            LOGGER.error("Cannot create the connection pool data source of {}", name, e);
+            return null;
+        }
+        if (source == null) {
+            return null;
+        }
+        LOGGER.info("Data source {} uses the connection pool data source of the driver ({})", name, source);
+        NativePool pool = new NativePool(name, new TimedPoolDataSource(source, metrics, breaker), config, customizer,
+                validator);
+        pool.start(getMaintenance().newGroup());
+        return pool;
+    }
+
+    /**
+     * Creates a pool of the {@link javax.sql.XAConnection}s of the driver, enlisted in the transactions of the
+     * transaction manager. The XA data source is configured as the connection pool data source of the
+     * {@link #POOL_NATIVE} engine.
+     *
+     * @param name       the pool name
+     * @param dbConf     the data source configuration
+     * @param config     the pool configuration
+     * @param customizer the callbacks invoked on the pool connections
+     * @param metrics    the data source metrics
+     * @param validator  the validator checking the pool connections
+     * @param breaker    the circuit breaker notified of the connection failures, {@code null} if none
+     * @return the pool, {@code null} if the driver does not provide a XA data source
+     */
+    private XAPool createXAPool(String name, Configuration dbConf, BoneCPDataSource config,
+                                ConnectionCustomizer customizer, PoolMetrics metrics,
+                                ConnectionValidator validator, CircuitBreaker breaker) {
+        DataSourceFactory factory = drivers.get(dbConf.get("driver"));
+        if (factory == null) {
+            return null;
+        }
+        XADataSource source;
+        try {
+            source = factory.createXADataSource(getDataSourceProperties(name, dbConf, config));
+        } catch (SQLException | RuntimeException e) {
+            LOGGER.error("Cannot create the XA data source of {}", name, e);
+            return null;
+        }
+        if (source == null) {
+            return null;
+        }
+        if (transactionManager == null) {
+            LOGGER.warn("No transaction manager available yet, the connections of {} are not enlisted in " +
+                    "transactions until one arrives", name);
+        }
+        LOGGER.info("Data source {} uses the XA data source of the driver ({})", name, source);
+        XAPool pool = new XAPool(name, new TimedPoolDataSource(source, metrics, breaker), config, customizer,
+                validator);
+        pool.setTransactionManager(transactionManager);
+        pool.start(getMaintenance().newGroup());
+        return pool;
+    }
+
+    /**
+     * Computes the properties given to the driver to create its connection pool or XA data source.
+     *
+     * @param name   the pool name
+     * @param dbConf the data source configuration
+     * @param config the pool configuration
+     * @return the properties
+     */
+    private static Properties getDataSourceProperties(String name, Configuration dbConf, BoneCPDataSource config) {
+        Properties properties = new Properties();
+        Configuration sourceProperties = dbConf.getConfiguration("dataSourceProperties");
+        if (sourceProperties != null) {
+            properties.putAll(sourceProperties.asProperties());
+        } else {
+            properties.put(DataSourceFactory.JDBC_URL, config.getJdbcUrl());
+        }
+        if (config.getUsername() != null) {
+            properties.put(DataSourceFactory.JDBC_USER, config.getUsername());
+        }
+        if (config.getPassword() != null) {
+            properties.put(DataSourceFactory.JDBC_PASSWORD, config.getPassword());
+        }
+        int maxStatements = dbConf.getIntegerWithDefault("maxStatements", 0);
+        if (maxStatements > 0) {
+            properties.put(DataSourceFactory.JDBC_MAX_STATEMENTS, Integer.toString(maxStatements));
+        }
+        if (dbConf.getIntegerWithDefault("resultCacheSize", 0) > 0) {
+            LOGGER.warn("The result cache of {} is not invalidated by the writes issued on the '{}' pool", name,
+                    dbConf.get("pool"));
+        }
+        return properties;
+    }
+
+    /**
+     * Checks whether the data source is a SQLite data source with the {@code singleWriter} setting enabled.
+     *
+     * @param dbConf the data source configuration
+     * @return {@code true} if the data source uses the single-writer mode
+     */
+    private static boolean isSingleWriter(Configuration dbConf) {
+        return dbConf.getBooleanWithDefault("singleWriter", false)
+                && DriverProfile.forUrl(dbConf.get("url")) == DriverProfile.SQLITE;
+    }
+
+    private static boolean isSQLiteInMemory(String url) {
+        return url.contains(":memory:") || url.contains("mode=memory") || url.trim().equals("jdbc:sqlite:");
+    }
+
+    /**
+     * Adds the settings of the driver profile matching the url of the pool, if any, that the url does not set. The
+     * profiles are disabled by setting {@code driverProfile} to {@code false}.
+     *
+     * @param name       the pool name
+     * @param dbConf     the data source configuration
+     * @param datasource the pool, whose url has been set
+     */
+    private static void applyProfile(String name, Configuration dbConf, BoneCPDataSource datasource) {
+        if (!dbConf.getBooleanWithDefault("driverProfile", true)) {
+            return;
+        }
+        String url = datasource.getJdbcUrl();
+        DriverProfile profile = DriverProfile.forUrl(url);
+        if (profile == null) {
+            return;
+        }
+        Map<String, String> missing = profile.getMissingSettings(url);
+        if (!missing.isEmpty()) {
+            datasource.setJdbcUrl(profile.extend(url, missing));
+        }
+        LOGGER.info("Driver profile {} applied to '{}': {} added, validation query '{}'", profile, name, missing,
+                profile.getValidationQuery());
+    }
+
+    /**
+     * Creates and starts the leak detector of the data source, replacing the previous one, from the
+     * {@code leakDetectionThreshold} (0 to disable the detection) and {@code leakSampleRate} settings.
+     *
+     * @param source the data source
+     * @param dbConf the data source configuration
+     * @return the leak detector, {@code null} if disabled
+     */
+    private LeakDetector createLeakDetector(WrappedDataSource source, Configuration dbConf) {
+        LeakDetector previous = source.getLeakDetector();
+        if (previous != null) {
+            previous.stop();
+            source.setLeakDetector(null);
+        }
+        long threshold = dbConf.getLongWithDefault("leakDetectionThreshold", 0L);
+        if (threshold <= 0) {
+            return null;
+        }
+        LeakDetector detector = new LeakDetector(source.getName(), threshold,
+                dbConf.getIntegerWithDefault("leakSampleRate", 100));
+        detector.start(getHousekeeping());
+        source.setLeakDetector(detector);
+        return detector;
+    }
+
+    /**
+     * Creates the bulkhead of the data source from the {@code lanes.<lane>.max} and {@code lanes.<lane>.priority}
+     * settings. The lanes share the size of the pool. The current bulkhead is updated in place, so the connections
+     * leased from a replaced pool give back their slot to the bulkhead granting the new ones.
+     *
+     * @param source the data source
+     * @param dbConf the data source configuration
+     * @return the bulkhead, {@code null} if no lane is configured
+     */
+    private static Bulkhead createBulkhead(WrappedDataSource source, Configuration dbConf) {
+        String name = source.getName();
+        Configuration conf = dbConf.getConfiguration("lanes");
+        if (conf == null || conf.asMap().isEmpty()) {
+            return null;
+        }
+        int size = Math.max(1, dbConf.getIntegerWithDefault("partitionCount", 1))
+                * dbConf.getIntegerWithDefault("maxConnectionsPerPartition", 30);
+        Bulkhead bulkhead = source.getBulkhead();
+        if (bulkhead == null) {
+            bulkhead = new Bulkhead(name, size);
+        } else {
+            bulkhead.setCapacity(size);
+            bulkhead.retainLanes(conf.asMap().keySet());
+        }
+        for (String lane : conf.asMap().keySet()) {
+            Configuration laneConf = conf.getConfiguration(lane);
+            int max = laneConf == null ? size : laneConf.getIntegerWithDefault("max", size);
+            int priority = laneConf == null ? 0 : laneConf.getIntegerWithDefault("priority", 0);
+            bulkhead.addLane(lane, max, priority);
+            LOGGER.info("Lane '{}' of '{}': {} connection(s) at most, priority {}", lane, name, max, priority);
+        }
+        return bulkhead;
+    }
+
+    /**
+     * Creates the result cache of the data source from the {@code resultCacheSize} setting (0, the default, to
+     * disable the cache). The current cache is kept if its size has not changed, so the connections of a replaced
+     * pool still invalidate it while they drain.
+     *
+     * @param source the data source
+     * @param dbConf the data source configuration
+     * @return the result cache, {@code null} if disabled
+     */
+    private static ResultCache createResultCache(WrappedDataSource source, Configuration dbConf) {
+        int size = dbConf.getIntegerWithDefault("resultCacheSize", 0);
+        ResultCache previous = source.getResultCache();
+        if (size <= 0) {
+            source.setResultCache(null);
+            return null;
+        }
+        if (previous != null && previous.getCapacity() == size) {
+            return previous;
+        }
+        ResultCache cache = new ResultCache(source.getName(), size);
+        source.setResultCache(cache);
+        LOGGER.info("Result cache of '{}': {} result(s) at most", source.getName(), size);
+        return cache;
+    }
+
+    /**
+     * Puts the result cache first in the chain, so the other customizers wrap the connection invalidating it.
+     */
+    private static ConnectionCustomizer withResultCache(ConnectionCustomizer customizer, ResultCache cache) {
+        if (cache == null) {
+            return customizer;
+        }
+        return new ChainedCustomizer(cache, customizer);
+    }
+
+    private static ConnectionCustomizer withLeakDetector(ConnectionCustomizer customizer, LeakDetector detector) {
+        if (detector == null) {
+            return customizer;
+        }
+        return new ChainedCustomizer(customizer, detector);
+    }
+
+    /**
+     * Creates the circuit breaker of the data source, from the {@code circuitBreakerThreshold} (0, the default,
+     * disables the breaker) and {@code circuitBreakerOpenTime} settings. The probe borrows a connection from the current pool and
+     * validates it.
+     *
+     * @param source    the data source
+     * @param dbConf    the data source configuration
+     * @param validator the validator of the data source
+     * @return the circuit breaker, {@code null} if disabled
+     */
+    private CircuitBreaker createCircuitBreaker(final WrappedDataSource source, Configuration dbConf,
+                                                final ConnectionValidator validator) {
+        int threshold = dbConf.getIntegerWithDefault("circuitBreakerThreshold", 0);
+        if (threshold <= 0) {
+            return null;
+        }
+        return new CircuitBreaker(source.getName(), threshold,
+                dbConf.getLongWithDefault("circuitBreakerOpenTime", 5000L), new Callable<Void>() {
+            @Override
+            public Void call() throws SQLException {
+                DataSource pool = source.getWrapped();
+                if (pool == null) {
+                    throw new SQLException("The data source '" + source.getName() + "' has been stopped");
+                }
+                try (Connection connection = pool.getConnection()) {
+                    if (!validator.isAlive(connection)) {
+                        throw new SQLException("The probe connection of '" + source.getName() + "' is not valid");
+                    }
+                }
+                return null;
+            }
+        }, getMaintenance().newGroup());
+    }
+
+    /**
+     * Creates the validator checking the connections of the data source, from the {@code validation},
+     * {@code validationTimeout} and {@code validationSkipWindow} settings. Without explicit mode, the
+     * {@code connectionTestStatement} is used if set, {@link Connection#isValid(int)} otherwise. The validation query
+     * of the driver profile stands for a missing {@code connectionTestStatement}.
+     *
+     * @param dsName  the data source name
+     * @param dbConf  the data source configuration
+     * @param profile the driver profile, {@code null} if none
+     * @return the validator
+     */
+    private static ConnectionValidator createValidator(String dsName, Configuration dbConf, DriverProfile profile) {
+        String configured = dbConf.get("connectionTestStatement");
+        String mode = dbConf.getWithDefault("validation", configured == null ? "isValid" : "statement");
+        // The validation query of the driver profile replaces the table metadata when isValid is not supported.
+        String statement = configured == null && profile != null ? profile.getValidationQuery() : configured;
+        ConnectionValidator.Mode validation;
+        switch (mode.toLowerCase()) {
+            case "statement":
+                validation = ConnectionValidator.Mode.STATEMENT;
+                break;
+            case "metadata":
+                validation = ConnectionValidator.Mode.METADATA;
+                break;
+            case "isvalid":
+                validation = ConnectionValidator.Mode.IS_VALID;
+                break;
+            default:
+                LOGGER.error("Unknown validation mode : " + mode + " for " + dsName + ", using isValid");
+                validation = ConnectionValidator.Mode.IS_VALID;
+                break;
+        }
+        if (validation == ConnectionValidator.Mode.STATEMENT && statement == null) {
+            LOGGER.error("The statement validation of " + dsName + " requires the connectionTestStatement " +
+                    "property, using isValid");
+            validation = ConnectionValidator.Mode.IS_VALID;
+        }
+        return new ConnectionValidator(validation, statement, dbConf.getLongWithDefault("validationTimeout", 5000L),
+                dbConf.getLongWithDefault("validationSkipWindow", 500L));
+    }
+
+    /**
+     * Warns about the configured settings the given engine does not read. The other engines share the
+     * {@link BoneCPConfig} of the {@link #POOL_BONECP} engine, but not all its settings.
+     *
+     * @param name   the data source name
+     * @param dbConf the data source configuration
+     * @param engine the engine of the pool, other than {@link #POOL_BONECP}
+     */
+    private static void warnIgnoredSettings(String name, Configuration dbConf, String engine) {
+        for (String key : BONECP_SETTINGS) {
+            if (dbConf.has(key)) {
+                LOGGER.warn("The '{}' setting of {} only applies to the '{}' pool engine, the '{}' engine ignores it",
+                        key, name, POOL_BONECP, engine);
+            }
+        }
+        if (!POOL_CONCURRENT.equals(engine) && dbConf.has("acquireRetryDelay")) {
+            LOGGER.warn("The '{}' pool engine of {} does not retry the connection openings, 'acquireRetryDelay' is " +
+                    "ignored", engine, name);
+        }
+        if (dbConf.getIntegerWithDefault("partitionCount", 1) > 1) {
+            LOGGER.warn("The '{}' pool engine of {} has no partitions, it holds up to partitionCount * " +
+                    "maxConnectionsPerPartition connections in a single pool", engine, name);
+        }
+    }
+
+    /**
+     * Applies the pool settings (sizes, timeouts, maintenance) of the data source configuration.
+     *
+     * @param config the pool configuration
+     * @param dbConf the data source configuration
+     */
+    private static void configurePool(BoneCPConfig config, Configuration dbConf) {
+        config.setPartitionCount(dbConf.getIntegerWithDefault("partitionCount", 1));
+        config.setMaxConnectionsPerPartition(dbConf.getIntegerWithDefault("maxConnectionsPerPartition", 30));
+        config.setMinConnectionsPerPartition(dbConf.getIntegerWithDefault("minConnectionsPerPartition", 5));
+        config.setAcquireIncrement(dbConf.getIntegerWithDefault("acquireIncrement", 1));
+        config.setAcquireRetryAttempts(dbConf.getIntegerWithDefault("acquireRetryAttempts", 10));
+        config.setAcquireRetryDelayInMs(dbConf.getIntegerWithDefault("acquireRetryDelay", 1000));
+        config.setConnectionTimeoutInMs(dbConf.getIntegerWithDefault("connectionTimeout", 1000));
+        config.setIdleMaxAge(dbConf.getIntegerWithDefault("idleMaxAge", 1000 * 60 * 10),
+                java.util.concurrent.TimeUnit.MILLISECONDS);
+        config.setMaxConnectionAge(dbConf.getIntegerWithDefault("maxConnectionAge", 1000 * 60 * 60),
+                java.util.concurrent.TimeUnit.MILLISECONDS);
+        config.setDisableJMX(dbConf.getBooleanWithDefault("disableJMX", true));
+        config.setStatisticsEnabled(dbConf.getBooleanWithDefault("statisticsEnabled", false));
+        config.setIdleConnectionTestPeriod(dbConf.getIntegerWithDefault("idleConnectionTestPeriod", 1000 * 60),
+                java.util.concurrent.TimeUnit.MILLISECONDS);
+        config.setDisableConnectionTracking(dbConf.getBooleanWithDefault("disableConnectionTracking", true));
+        config.setQueryExecuteTimeLimitInMs(dbConf.getIntegerWithDefault("queryExecuteTimeLimit", 0));
+        config.setPoolStrategy(dbConf.getWithDefault("poolStrategy", "DEFAULT"));
+        config.setServiceOrder(dbConf.getWithDefault("serviceOrder", "FIFO"));
     }
 
     private static int getIsolationLevel(String dsName, Configuration dbConf) {
@@ -362,11 +1623,21 @@ public class BoneCPDataSources implements DataSources {
         return isolationLevel;
     }
 
-    private void shutdownPool(WrappedDataSource source) {
-        if (source.getWrapped() instanceof BoneCPDataSource) {
-            ((BoneCPDataSource) source.getWrapped()).close();
+    private void closePools(List<DataSource> pools) {
+        for (DataSource pool : pools) {
+            closePool(pool);
+        }
+    }
+
+    private void closePool(DataSource pool) {
+        if (pool instanceof BoneCPDataSource) {
+            ((BoneCPDataSource) pool).close();
+        } else if (pool instanceof ConcurrentDataSource) {
+            ((ConcurrentDataSource) pool).close();
+        } else if (pool instanceof PooledConnectionPool) {
+            ((PooledConnectionPool) pool).close();
         } else {
-            throw new IllegalArgumentException("Cannot close a data source not managed by the manager :" + source);
+            throw new IllegalArgumentException("Cannot close a data source not managed by the manager :" + pool);
         }
     }
 
@@ -374,7 +1645,7 @@ public class BoneCPDataSources implements DataSources {
         return DB_CONFIGURATION_PREFIX + "." + dsName + "." + propertyName;
     }
 
-    public synchronized Driver getDriver(String classname) throws SQLException {
+    public Driver getDriver(String classname) throws SQLException {
         DataSourceFactory factory = drivers.get(classname);
         if (factory != null) {
             return factory.createDriver(null);
@@ -386,6 +1657,11 @@ public class BoneCPDataSources implements DataSources {
     @Bind(optional = true, aggregate = true)
     public synchronized void bindFactory(DataSourceFactory factory, Map<String, String> properties) {
         String driverClassName = properties.get(DataSourceFactory.OSGI_JDBC_DRIVER_CLASS);
+        if (driverClassName == null) {
+            LOGGER.warn("Ignoring a data source factory without the {} property",
+                    DataSourceFactory.OSGI_JDBC_DRIVER_CLASS);
+            return;
+        }
         drivers.put(driverClassName, factory);
         checkPendingDatasource(driverClassName);
     }
@@ -395,19 +1671,53 @@ public class BoneCPDataSources implements DataSources {
             WrappedDataSource wrapped = entry.getValue();
             if (!wrapped.isAvailable() && driverClassName.equals(wrapped.getRequiredDriver())) {
                 // We have a new driver that match one of our unsatisfied data source.
+                if (!wrapped.startCreation()) {
+                    // Its activation is creating the pools, it may have missed the driver: try again afterwards.
+                    getBootstrap().execute(new Activation(wrapped, true));
+                    continue;
+                }
+                // Creating the pool does not open connections, the probe is done in background.
                 try {
-                    createDataSource(wrapped);
                     if (!wrapped.isAvailable()) {
-                        LOGGER.error("The data source '{}' cannot be created, despite the driver just arrives",
-                                wrapped.getName());
-                    } else {
-                        // Register the data source.
-                        wrapped.getConnection().close();
-                        LOGGER.info("Connection successful to data source '{}'", entry.getKey());
-                        wrapped.register(context);
+                        createDataSource(wrapped);
                     }
                 } catch (SQLException e) {
-                    LOGGER.error("The data source '{}' is configured but the connection failed", entry.getKey(), e);
+                    LOGGER.error("The data source '{}' cannot be created", entry.getKey(), e);
+                } finally {
+                    wrapped.endCreation();
+                }
+                if (!wrapped.isAvailable()) {
+                    LOGGER.error("The data source '{}' cannot be created, despite the driver just arrives",
+                            wrapped.getName());
+                } else {
+                    getBootstrap().execute(new Activation(wrapped, false));
+                }
+            }
+        }
+    }
+
+    @Bind(id = "transaction-manager", optional = true, specification = "javax.transaction.TransactionManager")
+    public synchronized void bindTransactionManager(Object manager) {
+        transactionManager = manager;
+        setTransactionManager(manager);
+    }
+
+    @Unbind(id = "transaction-manager", specification = "javax.transaction.TransactionManager")
+    public synchronized void unbindTransactionManager(Object manager) {
+        if (transactionManager == manager) {
+            transactionManager = null;
+            setTransactionManager(null);
+        }
+    }
+
+    private void setTransactionManager(Object manager) {
+        for (WrappedDataSource source : sources.values()) {
+            if (source.getWrapped() instanceof XAPool) {
+                ((XAPool) source.getWrapped()).setTransactionManager(manager);
+            }
+            for (Replica replica : source.getReplicas()) {
+                if (replica.getPool() instanceof XAPool) {
+                    ((XAPool) replica.getPool()).setTransactionManager(manager);
                 }
             }
         }
@@ -424,9 +1734,9 @@ public class BoneCPDataSources implements DataSources {
         for (Map.Entry<String, WrappedDataSource> entry : sources.entrySet()) {
             WrappedDataSource wrapped = entry.getValue();
             if (wrapped.isAvailable() && driverClassName.equals(wrapped.getRequiredDriver())) {
-                // A used driver just left....
-                wrapped.unregister();
-                wrapped.unset();
+                // A used driver just left, its connections cannot be used anymore.
+                closePools(wrapped.stop());
+                LOGGER.info("Data source '{}' closed, its driver {} has left", entry.getKey(), driverClassName);
             }
         }
     }
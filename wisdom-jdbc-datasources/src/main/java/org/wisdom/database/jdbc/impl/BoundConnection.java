@@ -0,0 +1,63 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.wisdom.database.jdbc.impl.pool.DelegatingConnection;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A view of the connection bound to the action by the {@link WithConnectionInterceptor}. Closing the view does not
+ * give the connection back to the pool, the interceptor does it when the action completes. Once closed, any call on
+ * the view throws an {@link SQLException}, and the statements created through the view are closed.
+ */
+class BoundConnection extends DelegatingConnection {
+
+    private boolean closed;
+
+    BoundConnection(Connection delegate) {
+        super(delegate, true);
+    }
+
+    @Override
+    protected Connection delegate() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection is closed");
+        }
+        return delegate;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        closeStatements();
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed || delegate.isClosed();
+    }
+
+    @Override
+    public String toString() {
+        return "BoundConnection[" + delegate + "]";
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import java.sql.Connection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The connections bound to the current thread by the {@link WithConnectionInterceptor}, per data source.
+ */
+final class BoundConnections {
+
+    private static final ThreadLocal<Map<String, Connection>> CURRENT = new ThreadLocal<>();
+
+    private BoundConnections() {
+        // Avoid direct instantiation.
+    }
+
+    /**
+     * @param database the data source name
+     * @return the connection bound to the current thread, {@code null} if none
+     */
+    static Connection get(String database) {
+        Map<String, Connection> bound = CURRENT.get();
+        return bound == null ? null : bound.get(database);
+    }
+
+    static void bind(String database, Connection connection) {
+        Map<String, Connection> bound = CURRENT.get();
+        if (bound == null) {
+            bound = new HashMap<>(2);
+            CURRENT.set(bound);
+        }
+        bound.put(database, connection);
+    }
+
+    static void unbind(String database) {
+        Map<String, Connection> bound = CURRENT.get();
+        if (bound != null) {
+            bound.remove(database);
+            if (bound.isEmpty()) {
+                CURRENT.remove();
+            }
+        }
+    }
+}
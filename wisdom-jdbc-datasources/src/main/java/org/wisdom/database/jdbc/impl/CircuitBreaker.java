@@ -0,0 +1,172 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wisdom.database.jdbc.service.CircuitState;
+import org.wisdom.database.jdbc.service.DataSourceUnavailableException;
+
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The circuit breaker of a data source. It counts the consecutive failures to open a physical connection, and opens
+ * once the threshold is reached: the connection requests then fail immediately with a
+ * {@link DataSourceUnavailableException}, instead of blocking the application threads for the connection timeout.
+ * After the open time, a single probe runs in background (half-open state): if it succeeds the circuit closes,
+ * otherwise it opens again, the delay before the next probe doubling up to one minute. Any connection opened
+ * successfully by the pool meanwhile also closes the circuit.
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private static final long MAX_OPEN_TIME = 60000L;
+
+    private final String name;
+    private final int threshold;
+    private final long openTime;
+    private final Callable<?> probe;
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicReference<CircuitState> state = new AtomicReference<>(CircuitState.CLOSED);
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile SQLException lastFailure;
+    private volatile long openedAt;
+    private volatile int probes;
+
+    /**
+     * Creates the circuit breaker.
+     *
+     * @param name       the data source name
+     * @param threshold  the number of consecutive connection failures opening the circuit
+     * @param openTimeMs the time in milliseconds before the first probe
+     * @param probe      the probe, checking that a connection can be obtained, failing with an exception otherwise
+     * @param scheduler  the scheduler running the probe, owned by the breaker as the probe blocks while the database
+     *                   does not answer
+     */
+    public CircuitBreaker(String name, int threshold, long openTimeMs, Callable<?> probe,
+                          ScheduledExecutorService scheduler) {
+        this.name = name;
+        this.threshold = Math.max(1, threshold);
+        this.openTime = Math.max(1, openTimeMs);
+        this.probe = probe;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Checks whether a connection can be requested.
+     *
+     * @throws DataSourceUnavailableException if the circuit is not closed
+     */
+    public void check() throws DataSourceUnavailableException {
+        CircuitState current = state.get();
+        if (current != CircuitState.CLOSED) {
+            throw new DataSourceUnavailableException(name, String.format("The data source '%s' is unavailable " +
+                            "(circuit %s for %d ms after %d connection failure(s))", name, current,
+                    System.currentTimeMillis() - openedAt, failures.get()), lastFailure);
+        }
+    }
+
+    /**
+     * Called when a physical connection has been opened.
+     */
+    public void onSuccess() {
+        failures.set(0);
+        if (state.get() != CircuitState.CLOSED) {
+            close();
+        }
+    }
+
+    /**
+     * Called when a physical connection cannot be opened.
+     *
+     * @param failure the failure
+     */
+    public void onFailure(SQLException failure) {
+        lastFailure = failure;
+        if (failures.incrementAndGet() >= threshold && state.compareAndSet(CircuitState.CLOSED, CircuitState.OPEN)) {
+            openedAt = System.currentTimeMillis();
+            probes = 0;
+            LOGGER.error("The data source '{}' is considered down after {} connection failure(s), the connection " +
+                    "requests fail immediately until it recovers", name, failures.get(), failure);
+            scheduleProbe(openTime);
+        }
+    }
+
+    /**
+     * Stops the breaker, cancelling the pending probe.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    public CircuitState getState() {
+        return state.get();
+    }
+
+    private void close() {
+        CircuitState previous = state.getAndSet(CircuitState.CLOSED);
+        failures.set(0);
+        if (previous != CircuitState.CLOSED) {
+            LOGGER.info("The data source '{}' is back after {} ms", name, System.currentTimeMillis() - openedAt);
+        }
+    }
+
+    private void scheduleProbe(long delay) {
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    runProbe();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopping.
+        }
+    }
+
+    private void runProbe() {
+        if (!state.compareAndSet(CircuitState.OPEN, CircuitState.HALF_OPEN)) {
+            // Closed meanwhile.
+            return;
+        }
+        try {
+            probe.call();
+            close();
+        } catch (Exception e) {
+            if (e instanceof SQLException) {
+                lastFailure = (SQLException) e;
+            }
+            if (state.compareAndSet(CircuitState.HALF_OPEN, CircuitState.OPEN)) {
+                probes++;
+                long delay = Math.min(MAX_OPEN_TIME, openTime << Math.min(probes, 16));
+                LOGGER.debug("The data source '{}' is still down, next probe in {} ms", name, delay, e);
+                scheduleProbe(delay);
+            }
+        }
+    }
+}
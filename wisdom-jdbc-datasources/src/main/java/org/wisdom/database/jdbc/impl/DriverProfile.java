@@ -0,0 +1,167 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Known-good settings per database engine. The settings are added to the JDBC url when it does not set them
+ * already, so a url can always override them. Each profile also provides a cheap statement to validate the
+ * connections.
+ * <p/>
+ * Profiles are applied unless the {@code driverProfile} setting of the data source is set to {@code false}.
+ */
+public enum DriverProfile {
+
+    H2("jdbc:h2:", ";", ";", "SELECT 1"),
+
+    DERBY("jdbc:derby:", ";", ";", "VALUES 1"),
+
+    /**
+     * No setting: the transaction model ({@code hsqldb.tx}) changes the isolation semantics, it is left to the url.
+     */
+    HSQLDB("jdbc:hsqldb:", ";", ";", "VALUES 1"),
+
+    /**
+     * Multi-rows inserts for batches, and server-side prepared statements from the third execution.
+     */
+    POSTGRESQL("jdbc:postgresql:", "?", "&", "SELECT 1",
+            "reWriteBatchedInserts", "true",
+            "prepareThreshold", "3"),
+
+    /**
+     * Multi-rows batches, server-side prepared statements with a client-side cache, no round-trip for the
+     * session state already known by the driver, and server-side cursors honoring the fetch size (Connector/J reads
+     * the whole result otherwise).
+     */
+    MYSQL("jdbc:mysql:", "?", "&", "/* ping */ SELECT 1",
+            "rewriteBatchedStatements", "true",
+            "cachePrepStmts", "true",
+            "prepStmtCacheSize", "250",
+            "prepStmtCacheSqlLimit", "2048",
+            "useServerPrepStmts", "true",
+            "useLocalSessionState", "true",
+            "cacheServerConfiguration", "true",
+            "useCursorFetch", "true"),
+
+    /**
+     * Write-ahead logging, so readers do not block the writer, with the matching {@code NORMAL} synchronization,
+     * and a busy timeout instead of failing right away when the database is locked.
+     */
+    SQLITE("jdbc:sqlite:", "?", "&", "SELECT 1",
+            "journal_mode", "WAL",
+            "synchronous", "NORMAL",
+            "busy_timeout", "5000");
+
+    private static final String JDBC = "jdbc:";
+
+    private final String prefix;
+    private final String firstSeparator;
+    private final String separator;
+    private final String validationQuery;
+    private final Map<String, String> settings = new LinkedHashMap<>();
+
+    DriverProfile(String prefix, String firstSeparator, String separator, String validationQuery,
+                  String... settings) {
+        this.prefix = prefix;
+        this.firstSeparator = firstSeparator;
+        this.separator = separator;
+        this.validationQuery = validationQuery;
+        for (int i = 0; i < settings.length; i += 2) {
+            this.settings.put(settings[i], settings[i + 1]);
+        }
+    }
+
+    /**
+     * Finds the profile of a JDBC url. The {@code jdbc:} prefix is optional, to support the short MySQL urls handled
+     * by {@link Patterns}.
+     *
+     * @param url the url
+     * @return the profile, {@code null} if the database is not known
+     */
+    public static DriverProfile forUrl(String url) {
+        if (url == null) {
+            return null;
+        }
+        String lower = url.toLowerCase(Locale.ENGLISH);
+        for (DriverProfile profile : values()) {
+            if (lower.startsWith(profile.prefix) || lower.startsWith(profile.prefix.substring(JDBC.length()))) {
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the statement validating the connections
+     */
+    public String getValidationQuery() {
+        return validationQuery;
+    }
+
+    /**
+     * @return the settings of the profile
+     */
+    public Map<String, String> getSettings() {
+        return Collections.unmodifiableMap(settings);
+    }
+
+    /**
+     * Gets the settings of the profile not set by the given url.
+     *
+     * @param url the url
+     * @return the missing settings, empty if none
+     */
+    public Map<String, String> getMissingSettings(String url) {
+        String lower = url.toLowerCase(Locale.ENGLISH);
+        Map<String, String> missing = new LinkedHashMap<>();
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            String key = setting.getKey().toLowerCase(Locale.ENGLISH);
+            if (!lower.contains(firstSeparator + key + "=") && !lower.contains(separator + key + "=")) {
+                missing.put(setting.getKey(), setting.getValue());
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Adds the given settings to the url.
+     *
+     * @param url      the url
+     * @param settings the settings to add, as returned by {@link #getMissingSettings(String)}
+     * @return the extended url
+     */
+    public String extend(String url, Map<String, String> settings) {
+        StringBuilder builder = new StringBuilder(url);
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            String current = builder.toString();
+            if (!current.contains(firstSeparator)) {
+                builder.append(firstSeparator);
+            } else if (!current.endsWith(firstSeparator) && !current.endsWith(separator)) {
+                builder.append(separator);
+            }
+            builder.append(setting.getKey()).append('=').append(setting.getValue());
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.wisdom.database.jdbc.impl.pool.DelegatingConnection;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Wraps a physical connection to invalidate the {@link ResultCache} entries reading the tables modified through
+ * it. The tables are invalidated when a modifying statement is executed, and again on commit and when the connection
+ * is given back to the pool ({@link #flush()}), so results read by other connections before the modification became
+ * visible do not stay in the cache.
+ * <p/>
+ * The statements are wrapped (see {@link org.wisdom.database.jdbc.impl.pool.DelegatingStatement}), which also works
+ * for the statements kept in a statement cache. They are not tracked: the pool gives them back with the connection.
+ */
+public class InvalidatingConnection extends DelegatingConnection {
+
+    private final ResultCache cache;
+
+    /**
+     * The tables modified since the last flush. Connections are used by one thread at a time.
+     */
+    private final Set<String> modified = new HashSet<>();
+    private boolean all;
+
+    /**
+     * Creates a new invalidating connection.
+     *
+     * @param delegate the physical connection
+     * @param cache    the cache to invalidate
+     */
+    public InvalidatingConnection(Connection delegate, ResultCache cache) {
+        super(delegate, false);
+        this.cache = cache;
+    }
+
+    /**
+     * Records a statement about to be executed, and invalidates the tables it modifies.
+     *
+     * @param sql the statement
+     */
+    @Override
+    protected void executing(String sql) {
+        Set<String> tables = sql == null ? null : cache.getModifiedTables(sql);
+        if (tables == null) {
+            return;
+        }
+        if (tables.isEmpty()) {
+            all = true;
+        } else {
+            modified.addAll(tables);
+        }
+        cache.invalidate(tables);
+    }
+
+    /**
+     * Invalidates, again, the tables modified since the last flush.
+     */
+    void flush() {
+        if (all) {
+            cache.clear();
+        } else if (!modified.isEmpty()) {
+            cache.invalidate(modified);
+        }
+        modified.clear();
+        all = false;
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        super.commit();
+        flush();
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        super.rollback();
+        // Nothing has been written, the entries have been invalidated on execution anyway.
+        modified.clear();
+        all = false;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        flush();
+        delegate.close();
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+}
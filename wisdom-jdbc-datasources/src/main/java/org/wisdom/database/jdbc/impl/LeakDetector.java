@@ -0,0 +1,179 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wisdom.database.jdbc.impl.pool.ConnectionCustomizer;
+
+import java.sql.Connection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects the connections kept by the application for too long, cheap enough to stay enabled in production. Unlike
+ * the Bone CP {@code closeConnectionWatch} (one thread and one stack trace string per checkout), a checkout only
+ * records its thread and start time, and the acquisition site is captured for one lease out of
+ * {@code leakSampleRate}. A single sweeper, running on the maintenance scheduler, reports each lease older than the
+ * threshold once: with its acquisition site when it has been sampled, with the current stack of the thread holding
+ * the connection otherwise.
+ * <p>
+ * The site is captured with an exception whose stack trace is only materialized if the lease is reported.
+ */
+public class LeakDetector implements ConnectionCustomizer, Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LeakDetector.class);
+
+    private final String name;
+    private final long threshold;
+    private final int sampleRate;
+
+    private final Map<Connection, Lease> leases = new ConcurrentHashMap<>();
+    private volatile ScheduledFuture<?> task;
+
+    /**
+     * Creates the detector.
+     *
+     * @param name        the data source name
+     * @param thresholdMs the lease duration in milliseconds after which a connection is reported
+     * @param sampleRate  the acquisition site is captured for one lease out of {@code sampleRate}, 0 to never
+     *                    capture it
+     */
+    public LeakDetector(String name, long thresholdMs, int sampleRate) {
+        this.name = name;
+        this.threshold = TimeUnit.MILLISECONDS.toNanos(Math.max(1, thresholdMs));
+        this.sampleRate = Math.max(0, sampleRate);
+    }
+
+    /**
+     * Starts the sweeper. It runs every half threshold, between 100 ms and 10 s.
+     *
+     * @param scheduler the scheduler
+     */
+    public void start(ScheduledExecutorService scheduler) {
+        long period = Math.max(100, Math.min(10000, TimeUnit.NANOSECONDS.toMillis(threshold) / 2));
+        task = scheduler.scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the sweeper and forgets the current leases.
+     */
+    public void stop() {
+        ScheduledFuture<?> current = task;
+        if (current != null) {
+            current.cancel(false);
+            task = null;
+        }
+        leases.clear();
+    }
+
+    @Override
+    public Connection onAcquire(Connection connection) {
+        return connection;
+    }
+
+    @Override
+    public void onCheckOut(Connection connection) {
+        Thread thread = Thread.currentThread();
+        Throwable site = null;
+        if (sampleRate == 1 || sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) == 0) {
+            site = new Throwable("Connection of '" + name + "' acquired by " + thread.getName());
+        }
+        leases.put(connection, new Lease(thread, System.nanoTime(), site));
+    }
+
+    @Override
+    public void onCheckIn(Connection connection) {
+        Lease lease = leases.remove(connection);
+        if (lease != null && lease.reported) {
+            LOGGER.info("The connection of '{}' reported as leaked has been given back after {} ms", name,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lease.start));
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            sweep(System.nanoTime());
+        } catch (RuntimeException e) {
+            LOGGER.error("Cannot check the connections leased from '{}'", name, e);
+        }
+    }
+
+    /**
+     * Reports the leases older than the threshold, not reported yet.
+     *
+     * @param now the current instant, as given by {@link System#nanoTime()}
+     * @return the number of leases reported by this sweep
+     */
+    int sweep(long now) {
+        int reported = 0;
+        for (Lease lease : leases.values()) {
+            if (lease.reported || now - lease.start < threshold) {
+                continue;
+            }
+            lease.reported = true;
+            reported++;
+            long age = TimeUnit.NANOSECONDS.toMillis(now - lease.start);
+            if (lease.site != null) {
+                LOGGER.warn("Connection leak suspected on '{}': a connection has been leased for {} ms, acquired " +
+                        "at:", name, age, lease.site);
+            } else {
+                Throwable current = new Throwable("Connection of '" + name + "' held by " +
+                        lease.thread.getName() + " (current stack, the acquisition site was not sampled)");
+                current.setStackTrace(lease.thread.getStackTrace());
+                LOGGER.warn("Connection leak suspected on '{}': a connection has been leased for {} ms, the " +
+                        "holding thread is at:", name, age, current);
+            }
+        }
+        return reported;
+    }
+
+    /**
+     * @return the number of connections leased for longer than the threshold
+     */
+    public int getSuspectedLeaks() {
+        long now = System.nanoTime();
+        int count = 0;
+        for (Lease lease : leases.values()) {
+            if (now - lease.start >= threshold) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static final class Lease {
+        private final Thread thread;
+        private final long start;
+        private final Throwable site;
+        private volatile boolean reported;
+
+        private Lease(Thread thread, long start, Throwable site) {
+            this.thread = thread;
+            this.start = start;
+            this.site = site;
+        }
+    }
+}
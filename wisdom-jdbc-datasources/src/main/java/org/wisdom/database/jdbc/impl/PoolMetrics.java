@@ -0,0 +1,268 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.jolbox.bonecp.BoneCP;
+import com.jolbox.bonecp.BoneCPDataSource;
+import org.wisdom.database.jdbc.impl.pool.ConcurrentDataSource;
+import org.wisdom.database.jdbc.impl.pool.ConnectionValidator;
+import org.wisdom.database.jdbc.impl.pool.LeaseAwareCustomizer;
+import org.wisdom.database.jdbc.impl.pool.PooledConnectionPool;
+import org.wisdom.database.jdbc.service.CircuitState;
+import org.wisdom.database.jdbc.service.DataSourceMetrics;
+import org.wisdom.database.jdbc.service.QueryStatistics;
+import org.wisdom.database.jdbc.service.LatencyStatistics;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the metrics of a {@link WrappedDataSource}. The instance lives as long as the wrapped data source, so the
+ * histograms survive a reconfiguration of the pool. The gauges are read from the current pool.
+ */
+public class PoolMetrics implements DataSourceMetrics, LeaseAwareCustomizer {
+
+    private final WrappedDataSource source;
+
+    private final LatencyHistogram acquireWait = new LatencyHistogram();
+    private final LatencyHistogram leaseDuration = new LatencyHistogram();
+    private final LatencyHistogram connectionCreation = new LatencyHistogram();
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final QueryProfiler queries = new QueryProfiler();
+
+    /**
+     * The BoneCP pool, only reachable from the connection handles.
+     */
+    private volatile BoneCP bonecp;
+
+    /**
+     * The validator of the current pools.
+     */
+    private volatile ConnectionValidator validator;
+
+    public PoolMetrics(WrappedDataSource source) {
+        this.source = source;
+    }
+
+    /**
+     * Called before waiting for a connection.
+     *
+     * @return the start instant, to give to {@link #onAcquireEnd(long)}
+     */
+    public long onAcquireStart() {
+        pending.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Called once the connection has been obtained, or the attempt failed.
+     *
+     * @param start the instant returned by {@link #onAcquireStart()}
+     */
+    public void onAcquireEnd(long start) {
+        acquireWait.recordSince(start);
+        pending.decrementAndGet();
+    }
+
+    /**
+     * Records the opening of a physical connection.
+     *
+     * @param start the instant the opening started, as given by {@link System#nanoTime()}
+     */
+    public void onConnectionCreated(long start) {
+        connectionCreation.recordSince(start);
+    }
+
+    void setBoneCP(BoneCP pool) {
+        if (bonecp != pool) {
+            bonecp = pool;
+        }
+    }
+
+    void setValidator(ConnectionValidator validator) {
+        this.validator = validator;
+    }
+
+    @Override
+    public Connection onAcquire(Connection connection) {
+        return connection;
+    }
+
+    @Override
+    public void onCheckOut(Connection connection) {
+        if (connection instanceof SessionTrackingConnection) {
+            ((SessionTrackingConnection) connection).setLeaseStart(System.nanoTime());
+        }
+    }
+
+    @Override
+    public void onCheckIn(Connection connection) {
+        if (connection instanceof SessionTrackingConnection) {
+            long start = ((SessionTrackingConnection) connection).getLeaseStart();
+            if (start != 0) {
+                leaseDuration.recordSince(start);
+            }
+        }
+    }
+
+    /**
+     * Records the lease duration of the logical connections handed by the native and xa pools, which keep the lease
+     * start themselves.
+     */
+    @Override
+    public void onCheckIn(Connection connection, long leaseStart) {
+        leaseDuration.recordSince(leaseStart);
+    }
+
+    @Override
+    public String getDataSourceName() {
+        return source.getName();
+    }
+
+    @Override
+    public int getLeasedConnections() {
+        DataSource pool = source.getWrapped();
+        if (pool instanceof ConcurrentDataSource) {
+            return ((ConcurrentDataSource) pool).getTotalLeased();
+        } else if (pool instanceof PooledConnectionPool) {
+            return ((PooledConnectionPool) pool).getTotalLeased();
+        } else if (pool instanceof BoneCPDataSource) {
+            return ((BoneCPDataSource) pool).getTotalLeased();
+        }
+        return 0;
+    }
+
+    @Override
+    public int getIdleConnections() {
+        DataSource pool = source.getWrapped();
+        if (pool instanceof ConcurrentDataSource) {
+            return ((ConcurrentDataSource) pool).getTotalFree();
+        } else if (pool instanceof PooledConnectionPool) {
+            return ((PooledConnectionPool) pool).getTotalFree();
+        }
+        BoneCP current = bonecp;
+        return pool instanceof BoneCPDataSource && current != null ? current.getTotalFree() : 0;
+    }
+
+    @Override
+    public int getPendingRequests() {
+        return pending.get();
+    }
+
+    @Override
+    public LatencyStatistics getAcquireWait() {
+        return acquireWait.snapshot();
+    }
+
+    @Override
+    public LatencyStatistics getLeaseDuration() {
+        return leaseDuration.snapshot();
+    }
+
+    @Override
+    public LatencyStatistics getConnectionCreation() {
+        return connectionCreation.snapshot();
+    }
+
+    public QueryProfiler getQueryProfiler() {
+        return queries;
+    }
+
+    @Override
+    public List<QueryStatistics> getSlowQueries(int count) {
+        return queries.getTop(count);
+    }
+
+    @Override
+    public void resetSlowQueries() {
+        queries.reset();
+    }
+
+    @Override
+    public int getSuspectedLeaks() {
+        LeakDetector detector = source.getLeakDetector();
+        return detector == null ? 0 : detector.getSuspectedLeaks();
+    }
+
+    @Override
+    public long getResultCacheHits() {
+        ResultCache cache = source.getResultCache();
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    @Override
+    public long getResultCacheMisses() {
+        ResultCache cache = source.getResultCache();
+        return cache == null ? 0 : cache.getMisses();
+    }
+
+    @Override
+    public long getResultCacheSize() {
+        ResultCache cache = source.getResultCache();
+        return cache == null ? 0 : cache.getSize();
+    }
+
+    @Override
+    public long getResultCacheInvalidations() {
+        ResultCache cache = source.getResultCache();
+        return cache == null ? 0 : cache.getInvalidations();
+    }
+
+    @Override
+    public CircuitState getCircuitState() {
+        CircuitBreaker breaker = source.getCircuitBreaker();
+        return breaker == null ? CircuitState.CLOSED : breaker.getState();
+    }
+
+    @Override
+    public long getValidations() {
+        ConnectionValidator current = validator;
+        return current == null ? 0 : current.getValidations();
+    }
+
+    @Override
+    public long getSkippedValidations() {
+        ConnectionValidator current = validator;
+        return current == null ? 0 : current.getSkippedValidations();
+    }
+
+    @Override
+    public long getFailedValidations() {
+        ConnectionValidator current = validator;
+        return current == null ? 0 : current.getFailedValidations();
+    }
+
+    @Override
+    public double getMeanValidationTimeInNs() {
+        ConnectionValidator current = validator;
+        return current == null ? 0 : current.getMeanValidationTimeInNs();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d leased, %d idle, %d pending, acquire [%s], lease [%s], creation [%s], %s",
+                getDataSourceName(), getLeasedConnections(), getIdleConnections(), getPendingRequests(),
+                getAcquireWait(), getLeaseDuration(), getConnectionCreation(), validator);
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.wisdom.database.jdbc.service.LatencyStatistics;
+import org.wisdom.database.jdbc.service.QueryStatistics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Aggregates the slow statements of a data source by fingerprint. The number of fingerprints is capped: once the
+ * profiler is full, a new fingerprint is only a candidate, accumulating its total time without a histogram. A
+ * candidate is admitted when its total time exceeds the lowest one of the profiled fingerprints, which is evicted. When
+ * the candidates are full too, the candidate with the lowest total time is forgotten. So a stream of statements seen
+ * once does not push the profiled fingerprints out, and the latency of a fingerprint is recorded from its admission.
+ */
+public class QueryProfiler {
+
+    /**
+     * The default number of fingerprints kept. Each one holds a latency histogram of about 10 KB.
+     */
+    public static final int DEFAULT_CAPACITY = 100;
+
+    private static final int MAX_FINGERPRINT_LENGTH = 2048;
+
+    private static final Pattern VALUE_LIST = Pattern.compile("\\(\\s*\\?(\\s*,\\s*\\?)+\\s*\\)");
+
+    private static final Comparator<Entry> BY_TOTAL = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            return Long.compare(e2.total.get(), e1.total.get());
+        }
+    };
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> candidates = new ConcurrentHashMap<>();
+    private volatile int capacity = DEFAULT_CAPACITY;
+
+    /**
+     * A lower bound of the lowest total time of the profiled fingerprints, the totals only grow.
+     */
+    private volatile long admission;
+
+    /**
+     * Sets the maximum number of fingerprints kept.
+     *
+     * @param capacity the capacity
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Records the execution of a statement.
+     *
+     * @param sql   the SQL text, with the parameters as {@code ?}
+     * @param nanos the execution time
+     * @return {@code true} if the fingerprint of the statement has just been admitted in the profiled fingerprints
+     */
+    public boolean record(String sql, long nanos) {
+        String fingerprint = fingerprint(sql);
+        long time = Math.max(0, nanos);
+        Entry entry = entries.get(fingerprint);
+        boolean admitted = false;
+        if (entry == null) {
+            AtomicLong candidate = candidates.get(fingerprint);
+            if (candidate != null && candidate.addAndGet(time) <= admission && entries.size() >= capacity) {
+                return false;
+            }
+            synchronized (this) {
+                entry = entries.get(fingerprint);
+                if (entry == null) {
+                    entry = admit(fingerprint, time);
+                    if (entry == null) {
+                        return false;
+                    }
+                    admitted = true;
+                }
+            }
+        }
+        if (!admitted) {
+            entry.total.addAndGet(time);
+        }
+        entry.histogram.record(nanos);
+        return admitted;
+    }
+
+    /**
+     * Admits a fingerprint in the profiled ones if there is room or if its total time as a candidate exceeds the
+     * lowest total time of the profiled fingerprints. Otherwise, the fingerprint stays (or becomes) a candidate.
+     *
+     * @param fingerprint the fingerprint
+     * @param time        the execution time being recorded
+     * @return the admitted entry, {@code null} if the fingerprint is a candidate
+     */
+    private Entry admit(String fingerprint, long time) {
+        AtomicLong candidate = candidates.get(fingerprint);
+        long total = candidate == null ? time : candidate.get();
+        if (entries.size() >= capacity) {
+            Entry lowest = lowest();
+            if (lowest != null && lowest.total.get() >= total) {
+                admission = lowest.total.get();
+                if (candidate == null) {
+                    addCandidate(fingerprint, time);
+                }
+                return null;
+            }
+            while (entries.size() >= capacity && lowest != null) {
+                entries.remove(lowest.fingerprint);
+                lowest = lowest();
+            }
+            admission = lowest == null ? 0 : Math.min(lowest.total.get(), total);
+        }
+        candidates.remove(fingerprint);
+        Entry entry = new Entry(fingerprint);
+        entry.total.set(total);
+        entries.put(fingerprint, entry);
+        return entry;
+    }
+
+    private Entry lowest() {
+        Entry lowest = null;
+        for (Entry entry : entries.values()) {
+            if (lowest == null || entry.total.get() < lowest.total.get()) {
+                lowest = entry;
+            }
+        }
+        return lowest;
+    }
+
+    private void addCandidate(String fingerprint, long time) {
+        if (candidates.size() >= capacity) {
+            String lowest = null;
+            long lowestTotal = Long.MAX_VALUE;
+            for (Map.Entry<String, AtomicLong> candidate : candidates.entrySet()) {
+                if (candidate.getValue().get() < lowestTotal) {
+                    lowest = candidate.getKey();
+                    lowestTotal = candidate.getValue().get();
+                }
+            }
+            if (lowest != null) {
+                candidates.remove(lowest);
+            }
+        }
+        candidates.put(fingerprint, new AtomicLong(time));
+    }
+
+    /**
+     * Gets the fingerprints having the highest total execution time.
+     *
+     * @param count the maximum number of fingerprints
+     * @return the statistics, highest total time first
+     */
+    public List<QueryStatistics> getTop(int count) {
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        Collections.sort(sorted, BY_TOTAL);
+        List<QueryStatistics> top = new ArrayList<>();
+        for (Entry entry : sorted.subList(0, Math.min(Math.max(0, count), sorted.size()))) {
+            top.add(new Statistics(entry.fingerprint, entry.histogram.snapshot()));
+        }
+        return top;
+    }
+
+    /**
+     * Forgets all the fingerprints.
+     */
+    public synchronized void reset() {
+        entries.clear();
+        candidates.clear();
+        admission = 0;
+    }
+
+    /**
+     * Computes the fingerprint of a statement: literals are replaced by {@code ?}, comments are removed, value
+     * lists such as {@code IN (?, ?, ?)} are collapsed to {@code (?)} and whitespace is normalized.
+     *
+     * @param sql the SQL text
+     * @return the fingerprint
+     */
+    static String fingerprint(String sql) {
+        if (sql == null) {
+            return "";
+        }
+        StringBuilder builder = new StringBuilder(Math.min(sql.length(), MAX_FINGERPRINT_LENGTH));
+        int length = sql.length();
+        int i = 0;
+        while (i < length && builder.length() < MAX_FINGERPRINT_LENGTH) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                // String literal, '' is an escaped quote.
+                i++;
+                while (i < length) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                i++;
+                builder.append('?');
+            } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                while (i < length && sql.charAt(i) != '\n') {
+                    i++;
+                }
+                space(builder);
+            } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                int end = sql.indexOf("*/", i + 2);
+                i = end < 0 ? length : end + 2;
+                space(builder);
+            } else if (Character.isDigit(c) && !isIdentifierPart(builder)) {
+                while (i < length && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                builder.append('?');
+            } else if (Character.isWhitespace(c)) {
+                space(builder);
+                i++;
+            } else {
+                builder.append(c);
+                i++;
+            }
+        }
+        return VALUE_LIST.matcher(builder.toString().trim()).replaceAll("(?)");
+    }
+
+    private static boolean isIdentifierPart(StringBuilder builder) {
+        if (builder.length() == 0) {
+            return false;
+        }
+        char previous = builder.charAt(builder.length() - 1);
+        return Character.isLetterOrDigit(previous) || previous == '_' || previous == '$';
+    }
+
+    private static void space(StringBuilder builder) {
+        if (builder.length() > 0 && builder.charAt(builder.length() - 1) != ' ') {
+            builder.append(' ');
+        }
+    }
+
+    private static final class Entry {
+        private final String fingerprint;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final AtomicLong total = new AtomicLong();
+
+        private Entry(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private static final class Statistics implements QueryStatistics {
+        private final String fingerprint;
+        private final LatencyStatistics latency;
+
+        private Statistics(String fingerprint, LatencyStatistics latency) {
+            this.fingerprint = fingerprint;
+            this.latency = latency;
+        }
+
+        @Override
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        @Override
+        public long getTotalInNs() {
+            return Math.round(latency.getMeanInNs() * latency.getCount());
+        }
+
+        @Override
+        public long getCount() {
+            return latency.getCount();
+        }
+
+        @Override
+        public double getMeanInNs() {
+            return latency.getMeanInNs();
+        }
+
+        @Override
+        public long getMaxInNs() {
+            return latency.getMaxInNs();
+        }
+
+        @Override
+        public long getValueAtPercentileInNs(double percentile) {
+            return latency.getValueAtPercentileInNs(percentile);
+        }
+
+        @Override
+        public String toString() {
+            return fingerprint + " " + latency;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.wisdom.database.jdbc.impl.pool.ConnectionCustomizer;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A read replica of a data source. The replica counts its outstanding connections (used for the
+ * least-outstanding-requests balancing) and can be taken out of rotation for a while when it fails.
+ */
+public class Replica implements ConnectionCustomizer {
+
+    private final String name;
+    private final String url;
+    private final long ejectionNs;
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    private volatile DataSource pool;
+    private volatile long ejectedUntil;
+    private volatile boolean ejected;
+
+    /**
+     * Creates a replica.
+     *
+     * @param name        the replica name, used in the log messages
+     * @param url         the url
+     * @param ejectionMs  the time in milliseconds during which a failing replica does not receive requests
+     */
+    public Replica(String name, String url, long ejectionMs) {
+        this.name = name;
+        this.url = url;
+        this.ejectionNs = TimeUnit.MILLISECONDS.toNanos(ejectionMs);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public DataSource getPool() {
+        return pool;
+    }
+
+    public void setPool(DataSource pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return the number of connections of this replica currently used by the application
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @param now the current instant, as given by {@link System#nanoTime()}
+     * @return whether or not the replica can receive requests
+     */
+    public boolean isAvailable(long now) {
+        return !ejected || now - ejectedUntil >= 0;
+    }
+
+    /**
+     * Takes the replica out of rotation.
+     */
+    public void eject() {
+        ejectedUntil = System.nanoTime() + ejectionNs;
+        ejected = true;
+    }
+
+    /**
+     * Puts the replica back in rotation.
+     *
+     * @return {@code true} if the replica was ejected
+     */
+    public boolean reinstate() {
+        if (ejected) {
+            ejected = false;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Connection onAcquire(Connection connection) {
+        return connection;
+    }
+
+    @Override
+    public void onCheckOut(Connection connection) {
+        outstanding.incrementAndGet();
+    }
+
+    @Override
+    public void onCheckIn(Connection connection) {
+        // Never go below 0, even if the checkout of a connection failed after it was counted.
+        int current = outstanding.get();
+        while (current > 0 && !outstanding.compareAndSet(current, current - 1)) {
+            current = outstanding.get();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + url + ")";
+    }
+}
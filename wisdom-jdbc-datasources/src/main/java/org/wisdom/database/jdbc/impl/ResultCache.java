@@ -0,0 +1,466 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wisdom.database.jdbc.impl.pool.ConnectionCustomizer;
+import org.wisdom.database.jdbc.service.RowMapper;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Caches the results of the queries marked as cacheable, keyed by SQL, parameters and row mapper, and bounded in
+ * number of entries (least recently used first). Each entry is tagged with the tables read by its query.
+ * <p/>
+ * The cache wraps the physical connections of the pool with an {@link InvalidatingConnection}: the statements
+ * modifying a table invalidate the entries tagged with it when they are executed, and again when the transaction is
+ * committed or the connection given back to the pool. A statement modifying tables that cannot be determined
+ * ({@code CALL}, unknown syntax...) invalidates the whole cache.
+ * <p/>
+ * The results of the queries whose tables cannot be determined are not cached: no table found, common table
+ * expressions ({@code WITH}), table-valued functions ({@code FROM f(?)}). Views are tagged with the view name, so
+ * writes to their base tables do not invalidate them. The analysis of a statement (read or write, tables) is done
+ * once per SQL text.
+ * <p/>
+ * Only the writes made through the data source are seen, changes made by other applications are not.
+ */
+public class ResultCache implements ConnectionCustomizer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResultCache.class);
+
+    /**
+     * The statements (first keyword) not modifying anything.
+     */
+    private static final Set<String> READS = new LinkedHashSet<>(Arrays.asList("SELECT", "WITH", "VALUES", "SHOW",
+            "EXPLAIN", "DESCRIBE", "DESC", "SET", "PRAGMA"));
+
+    /**
+     * The keywords followed by a table name.
+     */
+    private static final Set<String> TABLE_KEYWORDS = new LinkedHashSet<>(Arrays.asList("FROM", "JOIN", "INTO",
+            "UPDATE", "TABLE"));
+
+    private static final Pattern TOKEN = Pattern.compile("[\\w.$\"`\\[\\]]+|,|\\(|\\)");
+
+    /**
+     * The maximum number of statements whose analysis is kept.
+     */
+    private static final int ANALYSES = 1000;
+
+    private final String name;
+    private final int capacity;
+    private final Cache<Key, Entry> cache;
+    private final Cache<String, Analysis> analyses = CacheBuilder.newBuilder().maximumSize(ANALYSES).build();
+    private final Map<String, Set<Key>> tags = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Creates the cache.
+     *
+     * @param name the data source name
+     * @param size the maximum number of cached results
+     */
+    public ResultCache(String name, int size) {
+        this.name = name;
+        this.capacity = size;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(size)
+                .recordStats()
+                .removalListener(new RemovalListener<Key, Entry>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<Key, Entry> notification) {
+                        for (String table : notification.getValue().tables) {
+                            Set<Key> keys = tags.get(table);
+                            if (keys != null) {
+                                keys.remove(notification.getKey());
+                            }
+                        }
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Creates the key of a query.
+     *
+     * @param sql        the query
+     * @param parameters the query parameters
+     * @param mapper     the row mapper
+     * @return the key
+     */
+    public Key key(String sql, Object[] parameters, RowMapper<?> mapper) {
+        return new Key(sql, parameters, mapper);
+    }
+
+    /**
+     * Gets the cached result of a query.
+     *
+     * @param key the query key
+     * @return the rows, {@code null} if not cached
+     */
+    public List<?> get(Key key) {
+        Entry entry = cache.getIfPresent(key);
+        return entry == null ? null : entry.rows;
+    }
+
+    /**
+     * @return the current generation, to give to {@link #put(Key, List, long)} once the query has been executed
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Caches the result of a query, unless an invalidation happened while it was executed: the result may then be
+     * stale already. The results of the queries whose tables cannot be determined are not cached.
+     *
+     * @param key        the query key
+     * @param rows       the rows
+     * @param generation the generation read before executing the query
+     */
+    public void put(Key key, List<?> rows, long generation) {
+        if (this.generation.get() != generation) {
+            return;
+        }
+        Analysis analysis = analyze(key.sql);
+        if (!analysis.cacheable) {
+            LOGGER.debug("The tables read by '{}' cannot be determined, its result is not cached in '{}'", key.sql,
+                    name);
+            return;
+        }
+        Entry entry = new Entry(Collections.unmodifiableList(new ArrayList<>(rows)), analysis.tables);
+        for (String table : entry.tables) {
+            Set<Key> keys = tags.get(table);
+            if (keys == null) {
+                keys = Collections.newSetFromMap(new ConcurrentHashMap<Key, Boolean>());
+                Set<Key> previous = ((ConcurrentHashMap<String, Set<Key>>) tags).putIfAbsent(table, keys);
+                if (previous != null) {
+                    keys = previous;
+                }
+            }
+            keys.add(key);
+        }
+        cache.put(key, entry);
+        if (this.generation.get() != generation) {
+            // Invalidated in the meantime.
+            cache.invalidate(key);
+        }
+    }
+
+    /**
+     * Invalidates the results of the queries reading the given tables.
+     *
+     * @param tables the tables, as returned by {@link #tables(String)}, empty to invalidate everything
+     */
+    public void invalidate(Collection<String> tables) {
+        generation.incrementAndGet();
+        invalidations.incrementAndGet();
+        if (tables.isEmpty()) {
+            cache.invalidateAll();
+            return;
+        }
+        for (String table : tables) {
+            Set<Key> keys = tags.get(table);
+            if (keys != null) {
+                cache.invalidateAll(new ArrayList<>(keys));
+            }
+        }
+    }
+
+    /**
+     * Invalidates everything.
+     */
+    public void clear() {
+        invalidate(Collections.<String>emptySet());
+    }
+
+    /**
+     * @return the maximum number of cached results
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of results served from the cache
+     */
+    public long getHits() {
+        return cache.stats().hitCount();
+    }
+
+    /**
+     * @return the number of results not found in the cache
+     */
+    public long getMisses() {
+        return cache.stats().missCount();
+    }
+
+    /**
+     * @return the number of cached results
+     */
+    public long getSize() {
+        return cache.size();
+    }
+
+    /**
+     * @return the number of invalidations triggered by writes
+     */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * Gets the tables modified by a statement, from the analysis cached for its SQL text.
+     *
+     * @param sql the statement
+     * @return {@code null} for queries, the modified tables otherwise, empty if they cannot be determined
+     */
+    Set<String> getModifiedTables(String sql) {
+        Analysis analysis = analyze(sql);
+        return analysis.write ? analysis.tables : null;
+    }
+
+    private Analysis analyze(String sql) {
+        Analysis analysis = analyses.getIfPresent(sql);
+        if (analysis == null) {
+            List<String> tokens = tokens(sql);
+            Set<String> tables = new LinkedHashSet<>();
+            boolean functions = collect(tokens, tables);
+            String first = tokens.isEmpty() ? null : tokens.get(0).toUpperCase(Locale.ENGLISH);
+            boolean write = first == null || !READS.contains(first);
+            analysis = new Analysis(write, Collections.unmodifiableSet(tables),
+                    !write && !tables.isEmpty() && !functions && !"WITH".equals(first));
+            analyses.put(sql, analysis);
+        }
+        return analysis;
+    }
+
+    /**
+     * Checks whether a statement may modify the database.
+     *
+     * @param sql the statement
+     * @return {@code false} for queries ({@code SELECT}...), {@code true} otherwise
+     */
+    public static boolean isWrite(String sql) {
+        Matcher matcher = TOKEN.matcher(QueryProfiler.fingerprint(sql));
+        return !matcher.find() || !READS.contains(matcher.group().toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Extracts the tables read or written by a statement: the names following {@code FROM}, {@code JOIN},
+     * {@code INTO}, {@code UPDATE} and {@code TABLE}, and the comma-separated lists of tables after {@code FROM}.
+     * Names are upper-cased, without quotes and schema.
+     *
+     * @param sql the statement
+     * @return the tables, empty if none could be found
+     */
+    public static Set<String> tables(String sql) {
+        Set<String> tables = new LinkedHashSet<>();
+        collect(tokens(sql), tables);
+        return tables;
+    }
+
+    private static List<String> tokens(String sql) {
+        List<String> tokens = new ArrayList<>();
+        Matcher matcher = TOKEN.matcher(QueryProfiler.fingerprint(sql));
+        while (matcher.find()) {
+            tokens.add(matcher.group());
+        }
+        return tokens;
+    }
+
+    /**
+     * Collects the tables of a tokenized statement.
+     *
+     * @param tokens the tokens
+     * @param tables the set receiving the tables
+     * @return {@code true} if a function is read as a table ({@code FROM f(?)}), {@code false} otherwise
+     */
+    private static boolean collect(List<String> tokens, Set<String> tables) {
+        boolean functions = false;
+        for (int i = 0; i < tokens.size() - 1; i++) {
+            String keyword = tokens.get(i).toUpperCase(Locale.ENGLISH);
+            if (!TABLE_KEYWORDS.contains(keyword)) {
+                continue;
+            }
+            int next = i + 1;
+            while (next < tokens.size() && isName(tokens.get(next))) {
+                tables.add(normalize(tokens.get(next)));
+                if (("FROM".equals(keyword) || "JOIN".equals(keyword)) && next < tokens.size() - 1
+                        && "(".equals(tokens.get(next + 1))) {
+                    functions = true;
+                }
+                if (!"FROM".equals(keyword)) {
+                    break;
+                }
+                // FROM A [AS] [X], B ...
+                next++;
+                while (next < tokens.size() && isName(tokens.get(next))
+                        && !isClause(tokens.get(next))) {
+                    next++;
+                }
+                if (next < tokens.size() - 1 && ",".equals(tokens.get(next))) {
+                    next++;
+                } else {
+                    break;
+                }
+            }
+        }
+        return functions;
+    }
+
+    private static boolean isName(String token) {
+        return !",".equals(token) && !"(".equals(token) && !")".equals(token) && !"?".equals(token);
+    }
+
+    private static boolean isClause(String token) {
+        switch (token.toUpperCase(Locale.ENGLISH)) {
+            case "WHERE":
+            case "JOIN":
+            case "INNER":
+            case "LEFT":
+            case "RIGHT":
+            case "FULL":
+            case "CROSS":
+            case "NATURAL":
+            case "ON":
+            case "GROUP":
+            case "ORDER":
+            case "HAVING":
+            case "LIMIT":
+            case "UNION":
+            case "FOR":
+            case "WINDOW":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static String normalize(String name) {
+        String table = name.replaceAll("[\"`\\[\\]]", "");
+        int dot = table.lastIndexOf('.');
+        if (dot >= 0) {
+            table = table.substring(dot + 1);
+        }
+        return table.toUpperCase(Locale.ENGLISH);
+    }
+
+    @Override
+    public Connection onAcquire(Connection connection) {
+        return new InvalidatingConnection(connection, this);
+    }
+
+    @Override
+    public void onCheckOut(Connection connection) {
+        // Nothing to do.
+    }
+
+    @Override
+    public void onCheckIn(Connection connection) {
+        try {
+            connection.unwrap(InvalidatingConnection.class).flush();
+        } catch (SQLException e) {
+            LOGGER.debug("Cannot find the statements run on a connection of '{}', clearing the result cache",
+                    name, e);
+            clear();
+        }
+    }
+
+    /**
+     * The key of a query: its SQL text, parameters and row mapper.
+     */
+    public static final class Key {
+        private final String sql;
+        private final List<Object> parameters;
+        private final RowMapper<?> mapper;
+        private final int hash;
+
+        private Key(String sql, Object[] parameters, RowMapper<?> mapper) {
+            this.sql = sql;
+            this.parameters = parameters == null ? Collections.emptyList() : Arrays.asList(parameters.clone());
+            this.mapper = mapper;
+            this.hash = 31 * (31 * sql.hashCode() + this.parameters.hashCode()) + mapper.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return hash == key.hash && sql.equals(key.sql) && parameters.equals(key.parameters)
+                    && mapper.equals(key.mapper);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * What a statement does: read or write, and the tables involved.
+     */
+    private static final class Analysis {
+        private final boolean write;
+        private final Set<String> tables;
+        private final boolean cacheable;
+
+        private Analysis(boolean write, Set<String> tables, boolean cacheable) {
+            this.write = write;
+            this.tables = tables;
+            this.cacheable = cacheable;
+        }
+    }
+
+    private static final class Entry {
+        private final List<?> rows;
+        private final Set<String> tables;
+
+        private Entry(List<?> rows, Set<String> tables) {
+            this.rows = rows;
+            this.tables = tables;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wisdom.database.jdbc.service.Cursor;
+import org.wisdom.database.jdbc.service.CursorException;
+import org.wisdom.database.jdbc.service.RowMapper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A {@link Cursor} over a forward-only, read-only result set. The connection runs a read-only transaction (some
+ * drivers, such as PostgreSQL, only honor the fetch size outside of the auto-commit mode), ended when the cursor is
+ * closed. The transaction is left untouched when the connection is bound to the current action.
+ *
+ * @param <T> the type of the mapped rows
+ */
+class ResultSetCursor<T> implements Cursor<T> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResultSetCursor.class);
+
+    private final Connection connection;
+    private final PreparedStatement statement;
+    private final ResultSet results;
+    private final RowMapper<T> mapper;
+    private final boolean transaction;
+
+    private boolean fetched;
+    private boolean hasRow;
+    private boolean closed;
+    private int count;
+
+    private ResultSetCursor(Connection connection, PreparedStatement statement, ResultSet results,
+                            RowMapper<T> mapper, boolean transaction) {
+        this.connection = connection;
+        this.statement = statement;
+        this.results = results;
+        this.mapper = mapper;
+        this.transaction = transaction;
+    }
+
+    /**
+     * Executes the query and opens the cursor. The connection is closed if the query fails.
+     *
+     * @param connection  the connection, owned by the cursor
+     * @param sql         the query
+     * @param parameters  the query parameters
+     * @param fetchSize   the number of rows read from the database at once
+     * @param mapper      the row mapper
+     * @param transaction whether the cursor runs its own transaction, {@code false} to keep the connection
+     *                    transaction as it is
+     * @param <T>         the type of the mapped rows
+     * @return the cursor
+     * @throws SQLException if the query cannot be executed
+     */
+    static <T> ResultSetCursor<T> open(Connection connection, String sql, Object[] parameters, int fetchSize,
+                                       RowMapper<T> mapper, boolean transaction) throws SQLException {
+        PreparedStatement statement = null;
+        try {
+            if (transaction) {
+                connection.setAutoCommit(false);
+            }
+            statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(fetchSize);
+            if (parameters != null) {
+                for (int i = 0; i < parameters.length; i++) {
+                    statement.setObject(i + 1, parameters[i]);
+                }
+            }
+            ResultSet results = statement.executeQuery();
+            results.setFetchSize(fetchSize);
+            return new ResultSetCursor<>(connection, statement, results, mapper, transaction);
+        } catch (SQLException | RuntimeException e) {
+            release(connection, statement, null, transaction);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        if (!fetched) {
+            try {
+                hasRow = results.next();
+            } catch (SQLException e) {
+                close();
+                throw new CursorException(e);
+            }
+            fetched = true;
+            if (!hasRow) {
+                // Exhausted, give the connection back right away.
+                close();
+            }
+        }
+        return hasRow;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        fetched = false;
+        try {
+            return mapper.map(results, count++);
+        } catch (SQLException e) {
+            close();
+            throw new CursorException(e);
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Cursors are read-only");
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return this;
+    }
+
+    @Override
+    public int getRowCount() {
+        return count;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        hasRow = false;
+        release(connection, statement, results, transaction);
+    }
+
+    private static void release(Connection connection, PreparedStatement statement, ResultSet results,
+                                boolean transaction) {
+        try {
+            if (results != null) {
+                results.close();
+            }
+            if (statement != null) {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            LOGGER.debug("Cannot close the cursor statement", e);
+        }
+        if (transaction) {
+            try {
+                // Nothing has been written, end the read-only transaction.
+                connection.rollback();
+            } catch (SQLException e) {
+                LOGGER.debug("Cannot end the cursor transaction", e);
+            }
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOGGER.error("Cannot give back the cursor connection", e);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.wisdom.database.jdbc.impl.pool.ConnectionCustomizer;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The session settings configured for a data source (auto-commit, isolation, read-only and catalog). They are
+ * applied to the connection each time it leaves the pool, whatever the pool engine.
+ * <p/>
+ * Physical connections are wrapped in a {@link SessionTrackingConnection} when they are opened, so only the settings
+ * that differ from the current session state are sent to the driver. A connection modified by the application is
+ * hence reset on its next checkout, and only for what was changed.
+ */
+public class SessionDefaults implements ConnectionCustomizer {
+
+    private final boolean autocommit;
+    private final int isolation;
+    private final boolean readOnly;
+    private final String catalog;
+
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong saved = new AtomicLong();
+
+    /**
+     * Creates the session defaults.
+     *
+     * @param autocommit the auto-commit mode
+     * @param isolation  the transaction isolation level
+     * @param readOnly   the read-only mode
+     * @param catalog    the catalog, {@literal null} to keep the driver's one
+     */
+    public SessionDefaults(boolean autocommit, int isolation, boolean readOnly, String catalog) {
+        this.autocommit = autocommit;
+        this.isolation = isolation;
+        this.readOnly = readOnly;
+        this.catalog = catalog;
+    }
+
+    /**
+     * Wraps the physical connection to track its session state.
+     *
+     * @param connection the physical connection
+     * @return the tracking connection
+     */
+    @Override
+    public Connection onAcquire(Connection connection) {
+        if (connection instanceof SessionTrackingConnection) {
+            return connection;
+        }
+        return new SessionTrackingConnection(connection);
+    }
+
+    /**
+     * Applies the settings to the given connection. If the connection tracks its state, only the settings that
+     * changed are applied.
+     *
+     * @param connection the connection
+     * @throws SQLException if one of the setting cannot be applied
+     */
+    @Override
+    public void onCheckOut(Connection connection) throws SQLException {
+        int settings = catalog != null ? 4 : 3;
+        if (connection instanceof SessionTrackingConnection) {
+            int calls = ((SessionTrackingConnection) connection).apply(autocommit, isolation, readOnly, catalog);
+            issued.addAndGet(calls);
+            saved.addAndGet(settings - calls);
+            return;
+        }
+        connection.setAutoCommit(autocommit);
+        connection.setTransactionIsolation(isolation);
+        connection.setReadOnly(readOnly);
+        if (catalog != null) {
+            connection.setCatalog(catalog);
+        }
+        issued.addAndGet(settings);
+    }
+
+    @Override
+    public void onCheckIn(Connection connection) {
+        // Nothing to do.
+    }
+
+    /**
+     * @return the number of session settings sent to the driver on checkout
+     */
+    public long getIssuedCalls() {
+        return issued.get();
+    }
+
+    /**
+     * @return the number of session settings skipped on checkout because they were already in place
+     */
+    public long getSavedCalls() {
+        return saved.get();
+    }
+}
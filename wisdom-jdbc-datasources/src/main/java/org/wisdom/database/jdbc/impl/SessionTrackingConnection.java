@@ -0,0 +1,130 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.wisdom.database.jdbc.impl.pool.DelegatingConnection;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Wraps a physical connection to remember the session state set through the JDBC API (auto-commit, isolation,
+ * read-only and catalog), so {@link SessionDefaults} only issues the calls that actually change something. A
+ * {@literal null} value means the state is unknown: never set, or a call failed.
+ * <p/>
+ * Changes done with plain SQL (such as {@code SET autocommit=0}) are not seen.
+ * <p/>
+ * The connection also carries the start of its current lease, used by {@link PoolMetrics}.
+ */
+public class SessionTrackingConnection extends DelegatingConnection {
+
+    private Boolean autoCommit;
+    private Integer isolation;
+    private Boolean readOnly;
+    private String catalog;
+
+    private long leaseStart;
+
+    /**
+     * Creates a new tracking connection.
+     *
+     * @param delegate the physical connection
+     */
+    public SessionTrackingConnection(Connection delegate) {
+        super(delegate);
+    }
+
+    /**
+     * Applies the given session state, skipping the settings already in place.
+     *
+     * @param autoCommit the auto-commit mode
+     * @param isolation  the transaction isolation level
+     * @param readOnly   the read-only mode
+     * @param catalog    the catalog, {@literal null} to keep the current one
+     * @return the number of calls issued to the driver
+     * @throws SQLException if a setting cannot be applied
+     */
+    int apply(boolean autoCommit, int isolation, boolean readOnly, String catalog) throws SQLException {
+        int calls = 0;
+        if (this.autoCommit == null || this.autoCommit != autoCommit) {
+            setAutoCommit(autoCommit);
+            calls++;
+        }
+        if (this.isolation == null || this.isolation != isolation) {
+            setTransactionIsolation(isolation);
+            calls++;
+        }
+        if (this.readOnly == null || this.readOnly != readOnly) {
+            setReadOnly(readOnly);
+            calls++;
+        }
+        if (catalog != null && !catalog.equals(this.catalog)) {
+            setCatalog(catalog);
+            calls++;
+        }
+        return calls;
+    }
+
+    long getLeaseStart() {
+        return leaseStart;
+    }
+
+    void setLeaseStart(long leaseStart) {
+        this.leaseStart = leaseStart;
+    }
+
+    @Override
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        this.autoCommit = null;
+        delegate.setAutoCommit(autoCommit);
+        this.autoCommit = autoCommit;
+    }
+
+    @Override
+    public void setTransactionIsolation(int level) throws SQLException {
+        this.isolation = null;
+        delegate.setTransactionIsolation(level);
+        this.isolation = level;
+    }
+
+    @Override
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        this.readOnly = null;
+        delegate.setReadOnly(readOnly);
+        this.readOnly = readOnly;
+    }
+
+    @Override
+    public void setCatalog(String catalog) throws SQLException {
+        this.catalog = null;
+        delegate.setCatalog(catalog);
+        this.catalog = catalog;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        delegate.close();
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+}
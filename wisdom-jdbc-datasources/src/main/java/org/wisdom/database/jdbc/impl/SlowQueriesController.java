@@ -0,0 +1,101 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.apache.felix.ipojo.annotations.Requires;
+import org.wisdom.api.DefaultController;
+import org.wisdom.api.annotations.Controller;
+import org.wisdom.api.annotations.Route;
+import org.wisdom.api.configuration.ApplicationConfiguration;
+import org.wisdom.api.http.HttpMethod;
+import org.wisdom.api.http.Result;
+import org.wisdom.database.jdbc.service.DataSourceMetrics;
+import org.wisdom.database.jdbc.service.QueryStatistics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Exposes the slowest statement fingerprints of each data source as JSON, on {@code /monitor/jdbc/queries}. The
+ * {@code top} parameter sets the number of fingerprints per data source (20 by default). The route is enabled in
+ * dev mode, and in the other modes if {@code jdbc.monitor.queries} is set to {@code true}, as the statements may
+ * reveal the database schema.
+ * <p>
+ * The statements are timed by the {@code bonecp} pool engine only ({@code queryExecuteTimeLimit}), the data sources
+ * using the other engines report no slow query.
+ */
+@Controller
+public class SlowQueriesController extends DefaultController {
+
+    /**
+     * The key enabling the route outside of the dev mode.
+     */
+    public static final String ENABLED_KEY = "jdbc.monitor.queries";
+
+    private static final double NS_PER_MS = 1000000d;
+
+    @Requires(optional = true, specification = DataSourceMetrics.class)
+    DataSourceMetrics[] metrics;
+
+    @Requires
+    ApplicationConfiguration configuration;
+
+    @Route(method = HttpMethod.GET, uri = "/monitor/jdbc/queries")
+    public Result queries() {
+        if (!isEnabled()) {
+            return notFound();
+        }
+        int top = context().parameterAsInteger("top", 20);
+        Map<String, List<Map<String, Object>>> result = new TreeMap<>();
+        for (DataSourceMetrics m : metrics) {
+            List<Map<String, Object>> queries = new ArrayList<>();
+            for (QueryStatistics statistics : m.getSlowQueries(top)) {
+                Map<String, Object> query = new LinkedHashMap<>();
+                query.put("fingerprint", statistics.getFingerprint());
+                query.put("count", statistics.getCount());
+                query.put("totalMs", statistics.getTotalInNs() / NS_PER_MS);
+                query.put("meanMs", statistics.getMeanInNs() / NS_PER_MS);
+                query.put("p99Ms", statistics.getValueAtPercentileInNs(99) / NS_PER_MS);
+                query.put("maxMs", statistics.getMaxInNs() / NS_PER_MS);
+                queries.add(query);
+            }
+            result.put(m.getDataSourceName(), queries);
+        }
+        return ok(result).json();
+    }
+
+    @Route(method = HttpMethod.DELETE, uri = "/monitor/jdbc/queries")
+    public Result reset() {
+        if (!isEnabled()) {
+            return notFound();
+        }
+        for (DataSourceMetrics m : metrics) {
+            m.resetSlowQueries();
+        }
+        return ok();
+    }
+
+    private boolean isEnabled() {
+        return configuration.getBooleanWithDefault(ENABLED_KEY, configuration.isDev());
+    }
+}
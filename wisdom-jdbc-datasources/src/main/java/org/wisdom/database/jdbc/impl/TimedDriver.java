@@ -0,0 +1,105 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import java.sql.*;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * A driver recording the time spent to open connections in the data source metrics, and reporting the connection
+ * failures to the circuit breaker. It is given to the pools instead of the driver instance published by the
+ * {@link org.osgi.service.jdbc.DataSourceFactory}.
+ */
+public class TimedDriver implements Driver {
+
+    private final Driver delegate;
+    private final PoolMetrics metrics;
+    private final CircuitBreaker breaker;
+
+    /**
+     * Creates the driver.
+     *
+     * @param delegate the driver
+     * @param metrics  the metrics
+     * @param breaker  the circuit breaker, {@code null} if the pool is not protected by a breaker
+     */
+    public TimedDriver(Driver delegate, PoolMetrics metrics, CircuitBreaker breaker) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        this.breaker = breaker;
+    }
+
+    @Override
+    public Connection connect(String url, Properties info) throws SQLException {
+        long start = System.nanoTime();
+        Connection connection;
+        try {
+            connection = delegate.connect(url, info);
+        } catch (SQLException e) {
+            if (breaker != null) {
+                breaker.onFailure(e);
+            }
+            throw e;
+        }
+        if (connection != null) {
+            metrics.onConnectionCreated(start);
+            if (breaker != null) {
+                breaker.onSuccess();
+            }
+        }
+        return connection;
+    }
+
+    @Override
+    public boolean acceptsURL(String url) throws SQLException {
+        return delegate.acceptsURL(url);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) throws SQLException {
+        return delegate.getPropertyInfo(url, info);
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return delegate.getMajorVersion();
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return delegate.getMinorVersion();
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return delegate.jdbcCompliant();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return delegate.getParentLogger();
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import javax.sql.CommonDataSource;
+import javax.sql.ConnectionPoolDataSource;
+import javax.sql.PooledConnection;
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
+
+/**
+ * The {@link TimedDriver} counterpart for the native and XA pools: records the time spent to open physical
+ * connections in the data source metrics, and reports the failures to the circuit breaker. Only the interface
+ * implemented by the wrapped data source can be used.
+ */
+public class TimedPoolDataSource implements ConnectionPoolDataSource, XADataSource {
+
+    private final CommonDataSource delegate;
+    private final PoolMetrics metrics;
+    private final CircuitBreaker breaker;
+
+    /**
+     * Creates the data source.
+     *
+     * @param delegate the connection pool data source or the XA data source of the driver
+     * @param metrics  the metrics
+     * @param breaker  the circuit breaker, {@code null} if the pool is not protected by a breaker
+     */
+    public TimedPoolDataSource(CommonDataSource delegate, PoolMetrics metrics, CircuitBreaker breaker) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        this.breaker = breaker;
+    }
+
+    @Override
+    public PooledConnection getPooledConnection() throws SQLException {
+        long start = System.nanoTime();
+        PooledConnection connection;
+        try {
+            connection = ((ConnectionPoolDataSource) delegate).getPooledConnection();
+        } catch (SQLException e) {
+            onFailure(e);
+            throw e;
+        }
+        return onCreated(connection, start);
+    }
+
+    @Override
+    public PooledConnection getPooledConnection(String user, String password) throws SQLException {
+        return ((ConnectionPoolDataSource) delegate).getPooledConnection(user, password);
+    }
+
+    @Override
+    public XAConnection getXAConnection() throws SQLException {
+        long start = System.nanoTime();
+        XAConnection connection;
+        try {
+            connection = ((XADataSource) delegate).getXAConnection();
+        } catch (SQLException e) {
+            onFailure(e);
+            throw e;
+        }
+        return onCreated(connection, start);
+    }
+
+    @Override
+    public XAConnection getXAConnection(String user, String password) throws SQLException {
+        return ((XADataSource) delegate).getXAConnection(user, password);
+    }
+
+    private void onFailure(SQLException e) {
+        if (breaker != null) {
+            breaker.onFailure(e);
+        }
+    }
+
+    private <T extends PooledConnection> T onCreated(T connection, long start) {
+        if (connection != null) {
+            metrics.onConnectionCreated(start);
+            if (breaker != null) {
+                breaker.onSuccess();
+            }
+        }
+        return connection;
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return delegate.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        delegate.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        delegate.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return delegate.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return delegate.getParentLogger();
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+}
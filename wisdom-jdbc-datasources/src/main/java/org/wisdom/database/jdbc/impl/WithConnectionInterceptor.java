@@ -0,0 +1,104 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.apache.felix.ipojo.annotations.Component;
+import org.apache.felix.ipojo.annotations.Instantiate;
+import org.apache.felix.ipojo.annotations.Provides;
+import org.apache.felix.ipojo.annotations.Requires;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wisdom.api.http.Result;
+import org.wisdom.api.interception.Interceptor;
+import org.wisdom.api.interception.RequestContext;
+import org.wisdom.database.jdbc.service.DataSources;
+import org.wisdom.database.jdbc.service.WithConnection;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * The interceptor binding a connection to the actions annotated with {@link WithConnection}.
+ */
+@Component
+@Provides(specifications = {Interceptor.class})
+@Instantiate
+public class WithConnectionInterceptor extends Interceptor<WithConnection> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WithConnectionInterceptor.class);
+
+    @Requires
+    DataSources sources;
+
+    /**
+     * The interception method. The method should call {@link org.wisdom.api.interception.RequestContext#proceed()}
+     * to call the next interception. Without this call it cuts the chain.
+     *
+     * @param configuration the interception configuration
+     * @param context       the interception context
+     * @return the result
+     * @throws Exception if anything bad happen
+     */
+    @Override
+    public Result call(WithConnection configuration, RequestContext context) throws Exception {
+        String database = configuration.datasource();
+        if (BoundConnections.get(database) != null) {
+            // Already bound by an enclosing action.
+            return context.proceed();
+        }
+        Connection connection = sources.getConnection(database);
+        if (connection == null) {
+            // The data source is not available, each access will fail as without the binding.
+            return context.proceed();
+        }
+        BoundConnections.bind(database, connection);
+        try {
+            return context.proceed();
+        } finally {
+            BoundConnections.unbind(database);
+            release(database, connection);
+        }
+    }
+
+    private static void release(String database, Connection connection) {
+        try {
+            if (!connection.isClosed() && !connection.getAutoCommit()) {
+                connection.rollback();
+            }
+        } catch (SQLException e) {
+            LOGGER.warn("Cannot roll back the connection bound to an action on '{}'", database, e);
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOGGER.error("Cannot give back the connection bound to an action on '{}'", database, e);
+        }
+    }
+
+    /**
+     * Gets the annotation class configuring the current interceptor.
+     *
+     * @return the annotation
+     */
+    @Override
+    public Class<WithConnection> annotation() {
+        return WithConnection.class;
+    }
+}
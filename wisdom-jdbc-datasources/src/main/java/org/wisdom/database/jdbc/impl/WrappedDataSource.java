@@ -21,18 +21,28 @@ package org.wisdom.database.jdbc.impl;
 
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
+import org.slf4j.LoggerFactory;
 import org.wisdom.api.configuration.Configuration;
+import org.wisdom.database.jdbc.impl.pool.Bulkhead;
+import org.wisdom.database.jdbc.service.DataSourceMetrics;
 import org.wisdom.database.jdbc.service.DataSources;
+import org.wisdom.database.jdbc.service.ReadIntent;
 
 import javax.sql.DataSource;
 import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 /**
@@ -41,10 +51,27 @@ import java.util.logging.Logger;
  */
 public class WrappedDataSource implements DataSource {
 
+    private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(WrappedDataSource.class);
+
     private Configuration configuration;
     private final String name;
-    private DataSource wrapped;
+    private volatile DataSource wrapped;
     private ServiceRegistration<DataSource> registration;
+    private ServiceRegistration<DataSourceMetrics> metricsRegistration;
+    private SessionDefaults sessionDefaults;
+    private final PoolMetrics metrics = new PoolMetrics(this);
+    private volatile Replica[] replicas = new Replica[0];
+    private AdaptiveSizer sizer;
+    private volatile CircuitBreaker breaker;
+    private volatile LeakDetector leakDetector;
+    private volatile Bulkhead bulkhead;
+    private volatile ResultCache resultCache;
+
+    /**
+     * Set while a thread creates the pools, so the activation of the data source and the arrival of its driver do
+     * not both create them.
+     */
+    private final AtomicBoolean creating = new AtomicBoolean();
 
     public WrappedDataSource(String name, Configuration conf) {
         this.name = name;
@@ -61,6 +88,126 @@ public class WrappedDataSource implements DataSource {
 
     public synchronized void unset() {
         this.wrapped = null;
+        this.sessionDefaults = null;
+    }
+
+    /**
+     * Stops the data source: withdraws its services, stops its background tasks (adaptive sizing, leak detection,
+     * circuit breaker probes), clears its result cache and detaches its pools (primary and replicas). The data source
+     * can be created again afterwards.
+     *
+     * @return the detached pools, for the caller to close or drain them
+     */
+    public synchronized List<DataSource> stop() {
+        unregister();
+        if (sizer != null) {
+            sizer.stop();
+            sizer = null;
+        }
+        LeakDetector detector = leakDetector;
+        if (detector != null) {
+            detector.stop();
+            leakDetector = null;
+        }
+        CircuitBreaker current = breaker;
+        if (current != null) {
+            current.stop();
+            breaker = null;
+        }
+        ResultCache cache = resultCache;
+        if (cache != null) {
+            cache.clear();
+            resultCache = null;
+        }
+        SessionDefaults defaults = sessionDefaults;
+        if (defaults != null) {
+            LOGGER.debug("Session settings of '{}': {} call(s) issued, {} call(s) saved on checkout", name,
+                    defaults.getIssuedCalls(), defaults.getSavedCalls());
+        }
+        List<DataSource> pools = new ArrayList<>();
+        if (wrapped != null) {
+            pools.add(wrapped);
+        }
+        for (Replica replica : replicas) {
+            pools.add(replica.getPool());
+        }
+        replicas = new Replica[0];
+        unset();
+        return pools;
+    }
+
+    public List<Replica> getReplicas() {
+        return Collections.unmodifiableList(Arrays.asList(replicas));
+    }
+
+    public void setReplicas(List<Replica> replicas) {
+        this.replicas = replicas.toArray(new Replica[replicas.size()]);
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    public void setCircuitBreaker(CircuitBreaker breaker) {
+        this.breaker = breaker;
+    }
+
+    public Bulkhead getBulkhead() {
+        return bulkhead;
+    }
+
+    public void setBulkhead(Bulkhead bulkhead) {
+        this.bulkhead = bulkhead;
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Claims the creation of the pools.
+     *
+     * @return {@code true} if the caller creates the pools and then calls {@link #endCreation()}, {@code false} if
+     * another thread is creating them
+     */
+    public boolean startCreation() {
+        return creating.compareAndSet(false, true);
+    }
+
+    public void endCreation() {
+        creating.set(false);
+    }
+
+    public LeakDetector getLeakDetector() {
+        return leakDetector;
+    }
+
+    public void setLeakDetector(LeakDetector leakDetector) {
+        this.leakDetector = leakDetector;
+    }
+
+    public synchronized AdaptiveSizer getSizer() {
+        return sizer;
+    }
+
+    public synchronized void setSizer(AdaptiveSizer sizer) {
+        this.sizer = sizer;
+    }
+
+    public PoolMetrics getMetrics() {
+        return metrics;
+    }
+
+    public synchronized SessionDefaults getSessionDefaults() {
+        return sessionDefaults;
+    }
+
+    public synchronized void setSessionDefaults(SessionDefaults defaults) {
+        this.sessionDefaults = defaults;
     }
 
     public synchronized boolean isAvailable() {
@@ -76,7 +223,78 @@ public class WrappedDataSource implements DataSource {
      */
     @Override
     public Connection getConnection() throws SQLException {
-        return wrapped.getConnection();
+        return getConnection(ReadIntent.current());
+    }
+
+    /**
+     * Gets a connection for the given intent. Read-only connections are served by the replica having the fewest
+     * outstanding connections. A replica failing to open or validate a connection is taken out of rotation for a
+     * while, a replica whose pool is exhausted is only skipped. When no replica is available, the primary serves the
+     * request.
+     *
+     * @param intent the intent
+     * @return the connection
+     * @throws SQLException if the connection cannot be obtained, a
+     *                      {@link org.wisdom.database.jdbc.service.DataSourceUnavailableException} without waiting if
+     *                      the database is considered down
+     */
+    public Connection getConnection(ReadIntent intent) throws SQLException {
+        long start = metrics.onAcquireStart();
+        try {
+            if (intent == ReadIntent.READ_ONLY && replicas.length > 0) {
+                Connection connection = getReplicaConnection();
+                if (connection != null) {
+                    return connection;
+                }
+            }
+            CircuitBreaker current = breaker;
+            if (current != null) {
+                current.check();
+            }
+            return wrapped.getConnection();
+        } finally {
+            metrics.onAcquireEnd(start);
+        }
+    }
+
+    private Connection getReplicaConnection() {
+        Replica[] candidates = replicas;
+        // The replicas whose pool is exhausted, skipped without being taken out of rotation.
+        boolean[] busy = null;
+        for (int attempt = 0; attempt < candidates.length; attempt++) {
+            long now = System.nanoTime();
+            int selected = -1;
+            for (int i = 0; i < candidates.length; i++) {
+                if ((busy == null || !busy[i]) && candidates[i].isAvailable(now)
+                        && (selected < 0 || candidates[i].getOutstanding() < candidates[selected].getOutstanding())) {
+                    selected = i;
+                }
+            }
+            if (selected < 0) {
+                return null;
+            }
+            Replica replica = candidates[selected];
+            try {
+                Connection connection = replica.getPool().getConnection();
+                if (replica.reinstate()) {
+                    LOGGER.info("The replica {} of '{}' is back in rotation", replica, name);
+                }
+                return connection;
+            } catch (SQLTransientException e) {
+                // The pool of the replica is exhausted (or a lane is full), the replica itself is fine.
+                LOGGER.debug("No connection available in time from the replica {} of '{}', trying the next one",
+                        replica, name, e);
+                if (busy == null) {
+                    busy = new boolean[candidates.length];
+                }
+                busy[selected] = true;
+            } catch (SQLException e) {
+                LOGGER.warn("Cannot get a connection from the replica {} of '{}', taking it out of rotation",
+                        replica, name, e);
+                replica.eject();
+            }
+        }
+        return null;
     }
 
     /**
@@ -246,7 +464,7 @@ public class WrappedDataSource implements DataSource {
         return configuration.get("driver");
     }
 
-    public void register(BundleContext context) {
+    public synchronized void register(BundleContext context) {
         if (registration != null) {
             return;
         }
@@ -264,13 +482,18 @@ public class WrappedDataSource implements DataSource {
         //
         props.put(DataSources.DATASOURCE_NAME_PROPERTY, name);
         registration = context.registerService(DataSource.class, this, props);
+        metricsRegistration = context.registerService(DataSourceMetrics.class, metrics, props);
     }
 
-    public void unregister() {
+    public synchronized void unregister() {
         if (registration != null) {
             registration.unregister();
             registration = null;
         }
+        if (metricsRegistration != null) {
+            metricsRegistration.unregister();
+            metricsRegistration = null;
+        }
     }
 
     public DataSource getWrapped() {
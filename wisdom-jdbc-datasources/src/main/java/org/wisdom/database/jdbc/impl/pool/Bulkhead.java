@@ -0,0 +1,338 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl.pool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the connections leased by each lane of a data source, so a burst on one lane (a reporting endpoint, a
+ * batch) cannot take all the connections of the pool. Each lane has a maximum number of concurrent leases and a
+ * priority. The leases of all the lanes are also capped by the pool size: when the pool is exhausted, the waiters of
+ * the lane with the highest priority are served first, in arrival order within a lane.
+ * <p/>
+ * The capacity and the lanes can be changed while the bulkhead is used, when the data source is reconfigured: the
+ * connections leased before the change give back their slot to the same lanes.
+ * <p/>
+ * Connections obtained without lane are not accounted.
+ */
+public class Bulkhead {
+
+    private final String name;
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TreeSet<Waiter> waiters = new TreeSet<>();
+    private int capacity;
+    private int leased;
+    private long sequence;
+
+    /**
+     * Creates the bulkhead.
+     *
+     * @param name     the data source name
+     * @param capacity the maximum number of connections leased by all the lanes, usually the pool size
+     */
+    public Bulkhead(String name, int capacity) {
+        this.name = name;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Changes the maximum number of connections leased by all the lanes, when the pool is resized. The leases in
+     * excess are not revoked, new slots are granted once they have been given back.
+     *
+     * @param capacity the new capacity
+     */
+    public void setCapacity(int capacity) {
+        lock.lock();
+        try {
+            this.capacity = Math.max(1, capacity);
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Declares a lane, or updates its limit and priority if it is already declared. The waiters already queued keep
+     * their priority.
+     *
+     * @param lane     the lane name
+     * @param max      the maximum number of connections leased concurrently by the lane
+     * @param priority the priority of the lane waiters, the highest first
+     * @return the current bulkhead
+     */
+    public Bulkhead addLane(String lane, int max, int priority) {
+        lock.lock();
+        try {
+            Lane l = lanes.get(lane);
+            if (l == null) {
+                l = new Lane();
+                lanes.put(lane, l);
+            }
+            l.max = Math.max(1, max);
+            l.priority = priority;
+            l.declared = true;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Withdraws the lanes not in the given collection. Their connections still leased give back their slot when
+     * closed.
+     *
+     * @param kept the lanes to keep
+     */
+    public void retainLanes(Collection<String> kept) {
+        for (Map.Entry<String, Lane> entry : lanes.entrySet()) {
+            if (!kept.contains(entry.getKey())) {
+                entry.getValue().declared = false;
+            }
+        }
+    }
+
+    /**
+     * @param lane the lane name
+     * @return whether the lane is declared
+     */
+    public boolean hasLane(String lane) {
+        Lane l = lanes.get(lane);
+        return l != null && l.declared;
+    }
+
+    /**
+     * @param lane the lane name
+     * @return the number of connections currently leased by the lane, 0 if the lane does not exist
+     */
+    public int getLeased(String lane) {
+        Lane l = lanes.get(lane);
+        if (l == null) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            return l.leased;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a slot in the given lane.
+     *
+     * @param lane    the lane name
+     * @param timeout the maximum time to wait
+     * @param unit    the unit of the timeout
+     * @throws SQLException if the lane does not exist, if no slot has been granted before the timeout
+     *                      ({@link SQLTransientConnectionException}), or if the thread is interrupted
+     */
+    public void acquire(String lane, long timeout, TimeUnit unit) throws SQLException {
+        Lane l = lanes.get(lane);
+        if (l == null || !l.declared) {
+            throw new SQLException("No lane '" + lane + "' configured on the data source '" + name + "'");
+        }
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            if (waiters.isEmpty() && l.hasRoom()) {
+                grant(l);
+                return;
+            }
+            Waiter waiter = new Waiter(l, l.priority, sequence++, lock.newCondition());
+            waiters.add(waiter);
+            dispatch();
+            try {
+                while (!waiter.granted) {
+                    if (remaining <= 0L) {
+                        waiters.remove(waiter);
+                        // Our departure may unblock a waiter of another lane.
+                        dispatch();
+                        throw new SQLTransientConnectionException("No connection available in the lane '" + lane +
+                                "' of '" + name + "' (" + l.leased + "/" + l.max + " leased, " + leased + "/" +
+                                capacity + " for all the lanes) after " + unit.toMillis(timeout) + " ms");
+                    }
+                    remaining = waiter.condition.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                if (waiter.granted) {
+                    release(l);
+                } else {
+                    waiters.remove(waiter);
+                    dispatch();
+                }
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for the lane '" + lane + "' of '" + name + "'", e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives back a slot of the given lane.
+     *
+     * @param lane the lane name
+     */
+    public void release(String lane) {
+        Lane l = lanes.get(lane);
+        if (l == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            release(l);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wraps a connection obtained after {@link #acquire(String, long, TimeUnit)}, closing it gives back the slot.
+     *
+     * @param connection the connection
+     * @param lane       the lane name
+     * @return the wrapped connection
+     */
+    public Connection wrap(Connection connection, String lane) {
+        return new LaneConnection(connection, lane);
+    }
+
+    private void grant(Lane lane) {
+        lane.leased++;
+        leased++;
+    }
+
+    private void release(Lane lane) {
+        lane.leased--;
+        leased--;
+        dispatch();
+    }
+
+    /**
+     * Grants the slots to the waiters by priority. A waiter whose lane is full does not block the waiters of the
+     * other lanes. Must be called with the lock held.
+     */
+    private void dispatch() {
+        if (waiters.isEmpty() || leased >= capacity) {
+            return;
+        }
+        Iterator<Waiter> iterator = waiters.iterator();
+        while (iterator.hasNext() && leased < capacity) {
+            Waiter waiter = iterator.next();
+            if (waiter.lane.hasRoom()) {
+                iterator.remove();
+                grant(waiter.lane);
+                waiter.granted = true;
+                waiter.condition.signal();
+            }
+        }
+    }
+
+    /**
+     * A lane, its limit and priority are guarded by the lock.
+     */
+    private final class Lane {
+        private int max;
+        private int priority;
+        private int leased;
+        private volatile boolean declared;
+
+        private boolean hasRoom() {
+            return leased < max && Bulkhead.this.leased < capacity;
+        }
+    }
+
+    private static final class Waiter implements Comparable<Waiter> {
+        private final Lane lane;
+        /**
+         * The priority of the lane when the waiter arrived, so a reconfiguration does not break the ordering.
+         */
+        private final int priority;
+        private final long sequence;
+        private final Condition condition;
+        private boolean granted;
+
+        private Waiter(Lane lane, int priority, long sequence, Condition condition) {
+            this.lane = lane;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.condition = condition;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * The connection handed to the application for a lane, closing it gives back the slot, once.
+     */
+    private final class LaneConnection extends DelegatingConnection {
+
+        private final String lane;
+        private boolean closed;
+
+        private LaneConnection(Connection delegate, String lane) {
+            super(delegate, true);
+            this.lane = lane;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closeStatements();
+            try {
+                delegate.close();
+            } finally {
+                release(lane);
+            }
+        }
+
+        @Override
+        public boolean isClosed() throws SQLException {
+            return closed || delegate.isClosed();
+        }
+
+        @Override
+        public String toString() {
+            return "LaneConnection[" + lane + ", " + delegate + "]";
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl.pool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Invokes two customizers in sequence. The connection returned by the first {@link #onAcquire(Connection)} is given
+ * to the second one. The lease start is forwarded to the customizers accepting it.
+ */
+public class ChainedCustomizer implements LeaseAwareCustomizer {
+
+    private final ConnectionCustomizer first;
+    private final ConnectionCustomizer second;
+
+    public ChainedCustomizer(ConnectionCustomizer first, ConnectionCustomizer second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    @Override
+    public Connection onAcquire(Connection connection) {
+        return second.onAcquire(first.onAcquire(connection));
+    }
+
+    @Override
+    public void onCheckOut(Connection connection) throws SQLException {
+        first.onCheckOut(connection);
+        second.onCheckOut(connection);
+    }
+
+    @Override
+    public void onCheckIn(Connection connection) {
+        first.onCheckIn(connection);
+        second.onCheckIn(connection);
+    }
+
+    @Override
+    public void onCheckIn(Connection connection, long leaseStart) {
+        onCheckIn(first, connection, leaseStart);
+        onCheckIn(second, connection, leaseStart);
+    }
+
+    /**
+     * Gives a connection back to a customizer, with its lease start if the customizer accepts it.
+     *
+     * @param customizer the customizer
+     * @param connection the connection
+     * @param leaseStart the instant the connection was leased, as given by {@link System#nanoTime()}
+     */
+    static void onCheckIn(ConnectionCustomizer customizer, Connection connection, long leaseStart) {
+        if (customizer instanceof LeaseAwareCustomizer) {
+            ((LeaseAwareCustomizer) customizer).onCheckIn(connection, leaseStart);
+        } else {
+            customizer.onCheckIn(connection);
+        }
+    }
+}
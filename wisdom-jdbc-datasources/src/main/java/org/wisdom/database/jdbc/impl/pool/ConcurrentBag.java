@@ -0,0 +1,466 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl.pool;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A lock-free container of pooled items. Items are never removed from the shared list when they are borrowed,
+ * instead their state is flipped using a CAS operation. Each thread also keeps a (weak) list of the items it used
+ * recently, so a thread releasing and borrowing again in a loop gets back the same item without contending on the
+ * shared list. When the bag is empty, borrowers wait on a hand-off queue fed directly by {@link #requite(Entry)}.
+ * <p/>
+ * Borrowers that must not block register a {@link Waiter} instead. Waiters are queued in FIFO order and are served
+ * before the blocked threads: the thread giving back an item completes the oldest waiter itself, so no thread is
+ * parked on behalf of a waiter.
+ * <p/>
+ * Thread-local references are weak so the bag never pins the bundle class loader from a container thread.
+ *
+ * @param <T> the type of item
+ */
+public class ConcurrentBag<T extends ConcurrentBag.Entry> {
+
+    /**
+     * The item is available.
+     */
+    public static final int STATE_NOT_IN_USE = 0;
+
+    /**
+     * The item is borrowed.
+     */
+    public static final int STATE_IN_USE = 1;
+
+    /**
+     * The item has been removed from the bag.
+     */
+    public static final int STATE_REMOVED = -1;
+
+    /**
+     * The item is reserved by the pool maintenance, it cannot be borrowed.
+     */
+    public static final int STATE_RESERVED = -2;
+
+    /**
+     * The maximum number of items cached per thread.
+     */
+    private static final int THREAD_CACHE_SIZE = 16;
+
+    /**
+     * Listener notified when a borrower does not find any available item.
+     */
+    public interface Listener {
+        /**
+         * Requests the creation of a new item.
+         *
+         * @param waiting the number of threads currently waiting for an item
+         */
+        void addBagItem(int waiting);
+    }
+
+    /**
+     * A borrower waiting for an item without blocking a thread.
+     *
+     * @param <T> the type of item
+     */
+    public interface Waiter<T> {
+        /**
+         * Gives an item to the waiter. The item is in the {@link #STATE_IN_USE} state when this method is called.
+         *
+         * @param item the item
+         * @return {@code true} if the waiter took the item, {@code false} if the waiter is gone (timed out or
+         * cancelled), the item is then offered to the next waiter
+         */
+        boolean accept(T item);
+    }
+
+    /**
+     * Base class of the items stored in the bag.
+     */
+    public abstract static class Entry {
+        private static final AtomicIntegerFieldUpdater<Entry> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Entry.class, "state");
+
+        private volatile int state;
+
+        /**
+         * @return the current state of the item
+         */
+        public int getState() {
+            return state;
+        }
+
+        boolean compareAndSet(int expected, int update) {
+            return STATE.compareAndSet(this, expected, update);
+        }
+
+        void setState(int update) {
+            STATE.set(this, update);
+        }
+    }
+
+    private final CopyOnWriteArrayList<T> shared = new CopyOnWriteArrayList<>();
+
+    private final ThreadLocal<List<WeakReference<T>>> local = new ThreadLocal<List<WeakReference<T>>>() {
+        @Override
+        protected List<WeakReference<T>> initialValue() {
+            return new ArrayList<>(THREAD_CACHE_SIZE);
+        }
+    };
+
+    private final SynchronousQueue<T> handoff = new SynchronousQueue<>(true);
+
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    private final ConcurrentLinkedDeque<Waiter<T>> asyncWaiters = new ConcurrentLinkedDeque<>();
+
+    private final Listener listener;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a new bag.
+     *
+     * @param listener the listener called when a borrower has to wait
+     */
+    public ConcurrentBag(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Borrows an item from the bag. The thread-local list is tried first, then the shared list, and finally the
+     * calling thread waits on the hand-off queue until the timeout expires.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the unit of the timeout
+     * @return the borrowed item, {@code null} if none became available before the timeout
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public T borrow(long timeout, TimeUnit unit) throws InterruptedException {
+        // Fast path, try the items recently used by the current thread.
+        List<WeakReference<T>> list = local.get();
+        for (int i = list.size() - 1; i >= 0; i--) {
+            T item = list.remove(i).get();
+            if (item != null && item.compareAndSet(STATE_NOT_IN_USE, STATE_IN_USE)) {
+                return item;
+            }
+        }
+
+        int waiting = waiters.incrementAndGet();
+        try {
+            for (T item : shared) {
+                if (item.compareAndSet(STATE_NOT_IN_USE, STATE_IN_USE)) {
+                    // We may have stolen an item another waiter was about to get, compensate.
+                    if (waiting > 1) {
+                        listener.addBagItem(waiting - 1);
+                    }
+                    return item;
+                }
+            }
+
+            listener.addBagItem(waiting);
+
+            long remaining = unit.toNanos(timeout);
+            do {
+                long start = System.nanoTime();
+                T item = handoff.poll(remaining, TimeUnit.NANOSECONDS);
+                if (item == null || item.compareAndSet(STATE_NOT_IN_USE, STATE_IN_USE)) {
+                    return item;
+                }
+                remaining -= System.nanoTime() - start;
+            } while (remaining > 10000 && !closed);
+
+            return null;
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Borrows an item without blocking. If an item is available, the waiter gets it immediately (in the calling
+     * thread). Otherwise the waiter is queued and will be completed by the thread giving back or adding the next
+     * item. The waiter is responsible for its own timeout, see {@link #cancel(Waiter)}.
+     *
+     * @param waiter the waiter
+     */
+    public void borrowAsync(Waiter<T> waiter) {
+        borrowAsync(waiter, false);
+    }
+
+    /**
+     * Borrows an item without blocking for a waiter that got an unusable item: the waiter keeps its turn, it is
+     * queued ahead of the other non-blocking waiters.
+     *
+     * @param waiter the waiter
+     */
+    public void retryAsync(Waiter<T> waiter) {
+        borrowAsync(waiter, true);
+    }
+
+    private void borrowAsync(Waiter<T> waiter, boolean first) {
+        if (tryServe(waiter)) {
+            return;
+        }
+        if (first) {
+            asyncWaiters.addFirst(waiter);
+        } else {
+            asyncWaiters.addLast(waiter);
+        }
+        listener.addBagItem(waiters.get() + asyncWaiters.size());
+        // An item may have been given back between the first scan and the registration of the waiter.
+        for (T item : shared) {
+            if (item.compareAndSet(STATE_NOT_IN_USE, STATE_IN_USE)) {
+                // If the waiter is no longer queued, another thread is serving it.
+                if (!asyncWaiters.remove(waiter) || !waiter.accept(item)) {
+                    requite(item);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes a waiter from the queue, typically when it times out.
+     *
+     * @param waiter the waiter
+     */
+    public void cancel(Waiter<T> waiter) {
+        asyncWaiters.remove(waiter);
+    }
+
+    private boolean tryServe(Waiter<T> waiter) {
+        for (T item : shared) {
+            if (item.compareAndSet(STATE_NOT_IN_USE, STATE_IN_USE)) {
+                if (!waiter.accept(item)) {
+                    requite(item);
+                }
+                // Either the waiter got the item, or it was already completed.
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hands an item (in the {@link #STATE_IN_USE} state) to the oldest non-blocking waiter.
+     *
+     * @param item the item
+     * @return {@code true} if a waiter took it
+     */
+    private boolean serveAsyncWaiter(T item) {
+        Waiter<T> waiter;
+        while ((waiter = asyncWaiters.poll()) != null) {
+            if (waiter.accept(item)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gives back a borrowed item. If a non-blocking waiter is queued, it gets the item. If threads are waiting,
+     * the item is handed to one of them directly, otherwise it is cached in the releasing thread's list.
+     *
+     * @param item the item
+     */
+    public void requite(T item) {
+        if (!asyncWaiters.isEmpty() && serveAsyncWaiter(item)) {
+            return;
+        }
+        item.setState(STATE_NOT_IN_USE);
+
+        for (int i = 0; waiters.get() > 0; i++) {
+            if (item.getState() != STATE_NOT_IN_USE || handoff.offer(item)) {
+                return;
+            } else if ((i & 0xff) == 0xff) {
+                parkBriefly();
+            } else {
+                Thread.yield();
+            }
+        }
+
+        List<WeakReference<T>> list = local.get();
+        if (list.size() < THREAD_CACHE_SIZE) {
+            list.add(new WeakReference<>(item));
+        }
+    }
+
+    /**
+     * Adds a new item to the bag, handing it to a waiter if any.
+     *
+     * @param item the item
+     */
+    public void add(T item) {
+        if (closed) {
+            throw new IllegalStateException("The bag has been closed");
+        }
+        shared.add(item);
+
+        if (!asyncWaiters.isEmpty() && item.compareAndSet(STATE_NOT_IN_USE, STATE_IN_USE)) {
+            if (serveAsyncWaiter(item)) {
+                return;
+            }
+            item.setState(STATE_NOT_IN_USE);
+        }
+
+        // Spin until a waiter took it, or there are no more waiters.
+        while (waiters.get() > 0 && item.getState() == STATE_NOT_IN_USE && !handoff.offer(item)) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Removes an item from the bag. The item must have been borrowed or reserved beforehand.
+     *
+     * @param item the item
+     * @return {@code true} if the item was removed
+     */
+    public boolean remove(T item) {
+        if (!item.compareAndSet(STATE_IN_USE, STATE_REMOVED) && !item.compareAndSet(STATE_RESERVED, STATE_REMOVED)
+                && !closed) {
+            return false;
+        }
+        return shared.remove(item);
+    }
+
+    /**
+     * Reserves an available item so it cannot be borrowed, typically before evicting it.
+     *
+     * @param item the item
+     * @return {@code true} if the item has been reserved
+     */
+    public boolean reserve(T item) {
+        return item.compareAndSet(STATE_NOT_IN_USE, STATE_RESERVED);
+    }
+
+    /**
+     * Makes a reserved item available again.
+     *
+     * @param item the item
+     */
+    public void unreserve(T item) {
+        if (item.compareAndSet(STATE_RESERVED, STATE_IN_USE)) {
+            requite(item);
+        }
+    }
+
+    /**
+     * Gets a snapshot of the items in the given state.
+     *
+     * @param state the state
+     * @return the list of items, empty if none
+     */
+    public List<T> values(int state) {
+        List<T> list = new ArrayList<>();
+        for (T item : shared) {
+            if (item.getState() == state) {
+                list.add(item);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @return a snapshot of all the items
+     */
+    public List<T> values() {
+        return new ArrayList<>(shared);
+    }
+
+    /**
+     * Counts the items in the given state.
+     *
+     * @param state the state
+     * @return the number of items in the given state
+     */
+    public int getCount(int state) {
+        int count = 0;
+        for (T item : shared) {
+            if (item.getState() == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of items in the bag, whatever their state
+     */
+    public int size() {
+        return shared.size();
+    }
+
+    /**
+     * @return the number of threads waiting for an item
+     */
+    public int getWaitingThreadCount() {
+        return waiters.get();
+    }
+
+    /**
+     * @return the number of non-blocking waiters queued
+     */
+    public int getAsyncWaiterCount() {
+        return asyncWaiters.size();
+    }
+
+    /**
+     * Removes all the queued non-blocking waiters, typically when the bag is closed.
+     *
+     * @return the removed waiters
+     */
+    public List<Waiter<T>> drainAsyncWaiters() {
+        List<Waiter<T>> list = new ArrayList<>();
+        Waiter<T> waiter;
+        while ((waiter = asyncWaiters.poll()) != null) {
+            list.add(waiter);
+        }
+        return list;
+    }
+
+    /**
+     * Closes the bag. New items are rejected and waiters stop waiting at their next wake-up.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * @return whether or not the bag has been closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private static void parkBriefly() {
+        try {
+            TimeUnit.MICROSECONDS.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,775 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl.pool;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.jolbox.bonecp.BoneCP;
+import com.jolbox.bonecp.BoneCPConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.PrintWriter;
+import java.sql.*;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A connection pool built around a lock-free {@link ConcurrentBag}. Connections are borrowed by flipping their state
+ * with a CAS, so there is no lock and no queue operation on the checkout path. A thread giving back a connection
+ * hands it directly to a waiting thread if any.
+ * <p/>
+ * The pool is configured from a {@link BoneCPConfig} so both pool engines share the same configuration keys:
+ * <ul>
+ * <li>the pool size is bounded by {@code partitionCount * maxConnectionsPerPartition}</li>
+ * <li>the pool tries to keep {@code partitionCount * minConnectionsPerPartition} connections open</li>
+ * <li>{@code connectionTimeout}, {@code idleMaxAge}, {@code maxConnectionAge}, {@code idleConnectionTestPeriod},
+ * {@code acquireRetryDelay}, {@code initSQL} and {@code connectionTestStatement} keep their meaning</li>
+ * </ul>
+ */
+public class ConcurrentDataSource implements DataSource, Closeable, ConcurrentBag.Listener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrentDataSource.class);
+
+    /**
+     * Used when the connection timeout is set to 0 (no timeout), small enough to not overflow when added to
+     * {@link System#nanoTime()}.
+     */
+    private static final long NO_TIMEOUT = Long.MAX_VALUE >> 2;
+
+    /**
+     * Period of the maintenance task.
+     */
+    private static final long HOUSEKEEPING_PERIOD_MS = 30000;
+
+    private final String name;
+    private final String url;
+    private final String username;
+    private final String password;
+    private final Driver driver;
+    private final Properties properties = new Properties();
+    private final String initSQL;
+    private final ConnectionValidator validator;
+
+    // Sizes and timeouts can be changed while the pool is running, see reconfigure.
+    private volatile int maxSize;
+    private volatile int minIdle;
+    private volatile long connectionTimeoutNs;
+    private volatile long idleMaxAge;
+    private volatile long maxConnectionAge;
+    private final long idleTestPeriod;
+    private volatile long acquireRetryDelay;
+
+    private final ConcurrentBag<PoolEntry> bag;
+    private final AtomicInteger total = new AtomicInteger();
+    private final ThreadPoolExecutor creator;
+    private final ScheduledExecutorService housekeeper;
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Validates and prepares the connections handed to the non-blocking requests, so the thread giving a connection
+     * back does not pay for the checkout of the next request.
+     */
+    private final Executor checkouts;
+
+    private final ConnectionCustomizer customizer;
+    private volatile SQLException lastFailure;
+    private volatile boolean shutdown;
+
+    private PrintWriter logWriter;
+    private int loginTimeout;
+
+    /**
+     * Creates the pool, without customizer.
+     *
+     * @param name   the data source name, used to name the threads and in the log messages
+     * @param config the configuration
+     */
+    public ConcurrentDataSource(String name, BoneCPConfig config) {
+        this(name, config, null);
+    }
+
+    /**
+     * Creates the pool. No connection is opened by the constructor, the pool is filled in background.
+     *
+     * @param name       the data source name, used to name the threads and in the log messages
+     * @param config     the configuration
+     * @param customizer the callbacks invoked when connections are opened, leased and given back, may be
+     *                   {@code null}
+     */
+    public ConcurrentDataSource(String name, BoneCPConfig config, ConnectionCustomizer customizer) {
+        this.name = name;
+        this.customizer = customizer;
+        this.url = config.getJdbcUrl();
+        this.username = config.getUsername();
+        this.password = config.getPassword();
+
+        Driver instance = null;
+        ConnectionValidator connectionValidator = null;
+        MaintenanceScheduler maintenance = null;
+        if (config.getDriverProperties() != null) {
+            for (Map.Entry<Object, Object> entry : config.getDriverProperties().entrySet()) {
+                if (BoneCP.DRIVER_INSTANCE_PROPERTY.equals(entry.getKey())) {
+                    instance = (Driver) entry.getValue();
+                } else if (BoneCP.VALIDATOR_PROPERTY.equals(entry.getKey())) {
+                    connectionValidator = (ConnectionValidator) entry.getValue();
+                } else if (BoneCP.MAINTENANCE_PROPERTY.equals(entry.getKey())) {
+                    maintenance = (MaintenanceScheduler) entry.getValue();
+                } else {
+                    properties.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        this.driver = instance;
+        this.initSQL = config.getInitSQL();
+        if (connectionValidator == null) {
+            // No validation on checkout.
+            String testStatement = config.getConnectionTestStatement();
+            connectionValidator = new ConnectionValidator(testStatement == null ? ConnectionValidator.Mode.IS_VALID :
+                    ConnectionValidator.Mode.STATEMENT, testStatement, 5000, -1);
+        }
+        this.validator = connectionValidator;
+
+        applySettings(config);
+        this.idleTestPeriod = config.getIdleConnectionTestPeriod(TimeUnit.MILLISECONDS);
+
+        this.bag = new ConcurrentBag<>(this);
+        this.creator = new ThreadPoolExecutor(1, 1, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(maxSize),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("wisdom-pool-creator-" + name).build(),
+                new ThreadPoolExecutor.DiscardPolicy());
+        this.creator.allowCoreThreadTimeOut(true);
+        if (maintenance != null) {
+            // Shared threads, two groups as the housekeeper lets its pending tasks complete on close.
+            this.housekeeper = maintenance.newGroup();
+            this.timer = maintenance.newGroup();
+            this.checkouts = maintenance.getExecutor();
+        } else {
+            this.housekeeper = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("wisdom-pool-housekeeper-" + name).build());
+
+            // Expires the non-blocking waiters, kept apart from the housekeeper as liveness tests may block.
+            ScheduledThreadPoolExecutor expirations = new ScheduledThreadPoolExecutor(1,
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("wisdom-pool-timer-" + name).build());
+            expirations.setRemoveOnCancelPolicy(true);
+            this.timer = expirations;
+
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 5, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("wisdom-pool-checkout-" + name).build());
+            executor.allowCoreThreadTimeOut(true);
+            this.checkouts = executor;
+        }
+
+        long period = HOUSEKEEPING_PERIOD_MS;
+        if (idleTestPeriod > 0) {
+            period = Math.min(period, idleTestPeriod);
+        }
+        housekeeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                housekeeping();
+            }
+        }, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void applySettings(BoneCPConfig config) {
+        int partitions = Math.max(1, config.getPartitionCount());
+        int max = Math.max(1, partitions * config.getMaxConnectionsPerPartition());
+        this.minIdle = Math.min(max, partitions * config.getMinConnectionsPerPartition());
+        this.maxSize = max;
+        long timeout = config.getConnectionTimeoutInMs();
+        this.connectionTimeoutNs = timeout <= 0 ? NO_TIMEOUT : TimeUnit.MILLISECONDS.toNanos(timeout);
+        this.idleMaxAge = config.getIdleMaxAge(TimeUnit.MILLISECONDS);
+        this.maxConnectionAge = config.getMaxConnectionAge(TimeUnit.MILLISECONDS);
+        this.acquireRetryDelay = config.getAcquireRetryDelayInMs();
+    }
+
+    /**
+     * Applies new sizes and timeouts to the running pool: the partition count, the maximum and minimum number of
+     * connections per partition, the connection timeout, the idle and max ages and the acquire retry delay. The other
+     * settings of the given configuration are ignored. When the pool shrinks, the idle connections above the new
+     * maximum are closed immediately, and the leased ones when they are given back. Neither the leased connections
+     * nor the waiting threads are interrupted.
+     *
+     * @param config the new configuration
+     */
+    public void reconfigure(BoneCPConfig config) {
+        if (shutdown) {
+            return;
+        }
+        applySettings(config);
+        LOGGER.info("Pool of '{}' reconfigured: {} connection(s) max, {} idle min, {} ms timeout", name, maxSize,
+                minIdle, TimeUnit.NANOSECONDS.toMillis(connectionTimeoutNs));
+        applySize();
+    }
+
+    /**
+     * Changes the maximum number of connections of the running pool. When the pool shrinks, the idle connections above
+     * the new maximum are closed immediately, and the leased ones when they are given back.
+     *
+     * @param size the new maximum, at least 1
+     */
+    public void resize(int size) {
+        if (shutdown || size == maxSize) {
+            return;
+        }
+        int max = Math.max(1, size);
+        this.minIdle = Math.min(minIdle, max);
+        this.maxSize = max;
+        applySize();
+    }
+
+    private void applySize() {
+        for (PoolEntry entry : bag.values(ConcurrentBag.STATE_NOT_IN_USE)) {
+            if (total.get() <= maxSize) {
+                break;
+            }
+            if (bag.reserve(entry)) {
+                evict(entry);
+            }
+        }
+        // Grows up to the new minimum, and serves the threads waiting for the old maximum.
+        try {
+            creator.execute(new Runnable() {
+                @Override
+                public void run() {
+                    fill(true);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down.
+        }
+    }
+
+    /**
+     * Borrows a connection from the pool, waiting at most {@code connectionTimeout} ms.
+     *
+     * @return the connection, to be closed by the caller
+     * @throws SQLException if the pool is closed, or no connection became available in time
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (shutdown) {
+            throw new SQLException("The pool of '" + name + "' has been shut down");
+        }
+        long deadline = System.nanoTime() + connectionTimeoutNs;
+        long remaining = connectionTimeoutNs;
+        try {
+            do {
+                PoolEntry entry = bag.borrow(remaining, TimeUnit.NANOSECONDS);
+                if (entry == null) {
+                    break;
+                }
+                if (isExpired(entry, System.currentTimeMillis())) {
+                    evict(entry);
+                } else if (!validator.isAliveOnCheckout(entry.getConnection(), entry.getLastAccessed())) {
+                    LOGGER.warn("Connection {} of '{}' failed the validation, evicting it", entry.getConnection(), name);
+                    evict(entry);
+                } else {
+                    try {
+                        if (customizer != null) {
+                            customizer.onCheckOut(entry.getConnection());
+                        }
+                        return new ProxyConnection(this, entry);
+                    } catch (SQLException e) {
+                        LOGGER.warn("Cannot prepare connection {} of '{}', evicting it", entry.getConnection(), name, e);
+                        evict(entry);
+                    }
+                }
+                remaining = deadline - System.nanoTime();
+            } while (remaining > 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection on '" + name + "'", e);
+        }
+        throw new SQLTransientConnectionException(String.format("Cannot get a connection from '%s' within %d ms " +
+                        "(%d leased, %d waiting, %d max)", name, TimeUnit.NANOSECONDS.toMillis(connectionTimeoutNs),
+                getTotalLeased(), getWaitingThreadCount(), maxSize), lastFailure);
+    }
+
+    /**
+     * Borrows a connection without blocking the calling thread. If no connection is available, the request is queued
+     * and served the next connection given back (or created), in FIFO order. The connection is validated and prepared
+     * on the I/O threads of the maintenance scheduler (or a thread of the pool if it has none), listeners attached
+     * with a direct executor hence run on that thread, and should not do more than dispatching the work.
+     *
+     * @param timeout the maximum time to wait, 0 or negative to use the configured connection timeout
+     * @param unit    the unit of the timeout
+     * @return a future completed with the connection, or failed with a {@link SQLTransientConnectionException} if
+     * no connection became available in time. Cancelling the future withdraws the request.
+     */
+    public ListenableFuture<Connection> acquire(long timeout, TimeUnit unit) {
+        SettableFuture<Connection> future = SettableFuture.create();
+        if (shutdown) {
+            future.setException(new SQLException("The pool of '" + name + "' has been shut down"));
+            return future;
+        }
+        long timeoutNs = timeout <= 0 ? connectionTimeoutNs : unit.toNanos(timeout);
+        AsyncWaiter waiter = new AsyncWaiter(future, timeoutNs);
+        if (timeoutNs < NO_TIMEOUT) {
+            try {
+                waiter.expiration = timer.schedule(waiter, timeoutNs, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                future.setException(new SQLException("The pool of '" + name + "' has been shut down"));
+                return future;
+            }
+        }
+        bag.borrowAsync(waiter);
+        return future;
+    }
+
+    /**
+     * A request queued by {@link #acquire(long, TimeUnit)}. The waiter is completed exactly once, either by the
+     * connection given back first, or by its expiration (run on the timer). The connection is validated and prepared
+     * on the checkout executor, not on the thread giving it back.
+     */
+    private final class AsyncWaiter implements ConcurrentBag.Waiter<PoolEntry>, Runnable {
+        private final SettableFuture<Connection> future;
+        private final long timeoutNs;
+        /**
+         * Taken before scheduling the expiration, so the expiration never runs before it.
+         */
+        private final long deadline;
+        private final AtomicBoolean done = new AtomicBoolean();
+        private volatile ScheduledFuture<?> expiration;
+
+        private AsyncWaiter(SettableFuture<Connection> future, long timeoutNs) {
+            this.future = future;
+            this.timeoutNs = timeoutNs;
+            this.deadline = System.nanoTime() + timeoutNs;
+        }
+
+        @Override
+        public boolean accept(final PoolEntry entry) {
+            // Claim the waiter before checking the connection: if the waiter expired meanwhile, the entry goes to the
+            // next waiter untouched.
+            if (future.isDone() || !done.compareAndSet(false, true)) {
+                return false;
+            }
+            try {
+                checkouts.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        checkOut(entry);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shutting down.
+                done.set(false);
+                fail(new SQLException("The pool of '" + name + "' has been shut down"));
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Validates and prepares the connection, on the checkout executor.
+         */
+        private void checkOut(PoolEntry entry) {
+            if (shutdown) {
+                evict(entry);
+                done.set(false);
+                fail(new SQLException("The pool of '" + name + "' has been shut down"));
+                return;
+            }
+            if (isExpired(entry, System.currentTimeMillis())
+                    || !validator.isAliveOnCheckout(entry.getConnection(), entry.getLastAccessed())) {
+                evict(entry);
+                done.set(false);
+                // Wait for the next one.
+                retry();
+                return;
+            }
+            if (future.isCancelled()) {
+                bag.requite(entry);
+                return;
+            }
+            try {
+                if (customizer != null) {
+                    customizer.onCheckOut(entry.getConnection());
+                }
+            } catch (SQLException e) {
+                LOGGER.warn("Cannot prepare connection {} of '{}', evicting it", entry.getConnection(), name, e);
+                evict(entry);
+                done.set(false);
+                retry();
+                return;
+            }
+            ScheduledFuture<?> task = expiration;
+            if (task != null) {
+                task.cancel(false);
+            }
+            if (future.set(new ProxyConnection(ConcurrentDataSource.this, entry))) {
+                return;
+            }
+            // The future has been cancelled meanwhile, the entry goes to the next waiter.
+            if (customizer != null) {
+                customizer.onCheckIn(entry.getConnection());
+            }
+            bag.requite(entry);
+        }
+
+        /**
+         * Queues the waiter again, ahead of the others, after an unusable entry. The expiration may have run while
+         * the waiter was claimed, it then had no effect and the waiter fails here.
+         */
+        private void retry() {
+            if (timeoutNs < NO_TIMEOUT && System.nanoTime() - deadline >= 0) {
+                run();
+            } else if (!done.get()) {
+                bag.retryAsync(this);
+            }
+        }
+
+        /**
+         * Expiration.
+         */
+        @Override
+        public void run() {
+            fail(new SQLTransientConnectionException(String.format("Cannot get a connection from '%s' within %d ms " +
+                            "(%d leased, %d waiting, %d max)", name, TimeUnit.NANOSECONDS.toMillis(timeoutNs),
+                    getTotalLeased(), getWaitingThreadCount(), maxSize), lastFailure));
+        }
+
+        void fail(SQLException e) {
+            if (done.compareAndSet(false, true)) {
+                bag.cancel(this);
+                future.setException(e);
+            }
+        }
+    }
+
+    /**
+     * Not supported, the credentials are part of the configuration.
+     */
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("The concurrent pool does not support per-user connections");
+    }
+
+    /**
+     * Called by {@link ProxyConnection#close()}.
+     *
+     * @param entry  the entry
+     * @param broken whether or not the physical connection is known to be unusable
+     */
+    void release(PoolEntry entry, boolean broken) {
+        if (customizer != null) {
+            customizer.onCheckIn(entry.getConnection());
+        }
+        long now = System.currentTimeMillis();
+        entry.setLastAccessed(now);
+        if (broken || shutdown || isExpired(entry, now) || total.get() > maxSize) {
+            evict(entry);
+        } else {
+            bag.requite(entry);
+        }
+    }
+
+    /**
+     * Called by the bag when a thread has to wait. Schedules a connection creation unless enough are already
+     * pending.
+     *
+     * @param waiting the number of threads waiting for a connection
+     */
+    @Override
+    public void addBagItem(int waiting) {
+        if (!shutdown && total.get() < maxSize && creator.getQueue().size() < waiting) {
+            creator.execute(new Runnable() {
+                @Override
+                public void run() {
+                    fill(true);
+                }
+            });
+        }
+    }
+
+    /**
+     * Opens connections while there are waiters (if requested) or while we are under the minimum.
+     *
+     * @param forWaiters whether or not the call was triggered by a waiting thread
+     */
+    private void fill(boolean forWaiters) {
+        while (!shutdown
+                && ((forWaiters && getWaitingThreadCount() > 0) || bag.getCount(ConcurrentBag.STATE_NOT_IN_USE) < minIdle)) {
+            int current = total.get();
+            if (current >= maxSize) {
+                return;
+            }
+            if (!total.compareAndSet(current, current + 1)) {
+                continue;
+            }
+            try {
+                bag.add(new PoolEntry(newConnection()));
+                lastFailure = null;
+            } catch (SQLException | RuntimeException e) {
+                total.decrementAndGet();
+                lastFailure = e instanceof SQLException ? (SQLException) e : new SQLException(e);
+                LOGGER.error("Cannot open a connection to '{}' ({})", name, url, e);
+                pause(acquireRetryDelay);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Opens a new physical connection.
+     *
+     * @return the connection
+     * @throws SQLException if the connection cannot be opened
+     */
+    private Connection newConnection() throws SQLException {
+        Properties info = new Properties();
+        info.putAll(properties);
+        if (username != null) {
+            info.put("user", username);
+        }
+        if (password != null) {
+            info.put("password", password);
+        }
+        Connection connection = driver != null ? driver.connect(url, info) : DriverManager.getConnection(url, info);
+        if (connection == null) {
+            throw new SQLException("The driver " + driver + " does not accept the url " + url);
+        }
+        if (initSQL != null) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(initSQL);
+            } catch (SQLException e) {
+                closeQuietly(connection);
+                throw e;
+            }
+        }
+        return customizer != null ? customizer.onAcquire(connection) : connection;
+    }
+
+    /**
+     * Maintenance task: retires old connections, closes idle ones above the minimum, tests the connections unused
+     * for longer than {@code idleConnectionTestPeriod} and fills the pool up to the minimum.
+     */
+    private void housekeeping() {
+        if (shutdown) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            int idle = bag.getCount(ConcurrentBag.STATE_NOT_IN_USE);
+            for (PoolEntry entry : bag.values(ConcurrentBag.STATE_NOT_IN_USE)) {
+                long unused = now - entry.getLastAccessed();
+                boolean retire = isExpired(entry, now) || (idleMaxAge > 0 && unused > idleMaxAge && idle > minIdle);
+                if (retire) {
+                    if (bag.reserve(entry)) {
+                        evict(entry);
+                        idle--;
+                    }
+                } else if (idleTestPeriod > 0 && unused > idleTestPeriod && bag.reserve(entry)) {
+                    if (validator.isAlive(entry.getConnection())) {
+                        entry.setLastAccessed(now);
+                        bag.unreserve(entry);
+                    } else {
+                        LOGGER.warn("Connection {} of '{}' failed the liveness test, evicting it", entry.getConnection(),
+                                name);
+                        evict(entry);
+                        idle--;
+                    }
+                }
+            }
+            fill(false);
+        } catch (RuntimeException e) {
+            LOGGER.error("Error during the maintenance of the pool '{}'", name, e);
+        }
+    }
+
+    private boolean isExpired(PoolEntry entry, long now) {
+        return maxConnectionAge > 0 && now - entry.getCreationTime() > maxConnectionAge;
+    }
+
+    /**
+     * Removes the entry from the pool and closes the physical connection asynchronously. The entry must be borrowed
+     * or reserved.
+     *
+     * @param entry the entry
+     */
+    private void evict(final PoolEntry entry) {
+        if (bag.remove(entry)) {
+            total.decrementAndGet();
+            try {
+                housekeeper.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        closeQuietly(entry.getConnection());
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shutting down.
+                closeQuietly(entry.getConnection());
+            }
+            int waiting = getWaitingThreadCount();
+            if (!shutdown && waiting > 0) {
+                addBagItem(waiting);
+            }
+        }
+    }
+
+    /**
+     * Shuts down the pool. Available connections are closed immediately, leased connections are closed when the
+     * application gives them back.
+     */
+    @Override
+    public void close() {
+        if (shutdown) {
+            return;
+        }
+        shutdown = true;
+        LOGGER.info("Shutting down the pool of '{}'", name);
+        bag.close();
+        creator.shutdownNow();
+        housekeeper.shutdown();
+        timer.shutdownNow();
+        if (checkouts instanceof ExecutorService) {
+            // Not shared, the pending checkouts see the shutdown.
+            ((ExecutorService) checkouts).shutdown();
+        }
+        for (ConcurrentBag.Waiter<PoolEntry> waiter : bag.drainAsyncWaiters()) {
+            ((AsyncWaiter) waiter).fail(new SQLException("The pool of '" + name + "' has been shut down"));
+        }
+        for (PoolEntry entry : bag.values(ConcurrentBag.STATE_NOT_IN_USE)) {
+            if (bag.reserve(entry)) {
+                evict(entry);
+            }
+        }
+        try {
+            housekeeper.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return whether or not the pool has been shut down
+     */
+    public boolean isClosed() {
+        return shutdown;
+    }
+
+    /**
+     * @return the number of connections used by the application
+     */
+    public int getTotalLeased() {
+        return bag.getCount(ConcurrentBag.STATE_IN_USE);
+    }
+
+    /**
+     * @return the number of available connections
+     */
+    public int getTotalFree() {
+        return bag.getCount(ConcurrentBag.STATE_NOT_IN_USE);
+    }
+
+    /**
+     * @return the number of physical connections opened by the pool
+     */
+    public int getTotalCreatedConnections() {
+        return total.get();
+    }
+
+    /**
+     * @return the number of requests waiting for a connection, blocked threads and pending {@link #acquire(long,
+     * TimeUnit)} calls
+     */
+    public int getWaitingThreadCount() {
+        return bag.getWaitingThreadCount() + bag.getAsyncWaiterCount();
+    }
+
+    /**
+     * @return the maximum number of connections
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOGGER.debug("Cannot close connection {}", connection, e);
+        }
+    }
+
+    private static void pause(long ms) {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public synchronized PrintWriter getLogWriter() throws SQLException {
+        return logWriter;
+    }
+
+    @Override
+    public synchronized void setLogWriter(PrintWriter out) throws SQLException {
+        this.logWriter = out;
+    }
+
+    @Override
+    public synchronized void setLoginTimeout(int seconds) throws SQLException {
+        this.loginTimeout = seconds;
+    }
+
+    @Override
+    public synchronized int getLoginTimeout() throws SQLException {
+        return loginTimeout;
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException("java.util.logging is not used");
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return (T) this;
+        }
+        throw new SQLException(this + " is not a wrapper for " + iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrentDataSource[" + name + ", " + url + "]";
+    }
+}
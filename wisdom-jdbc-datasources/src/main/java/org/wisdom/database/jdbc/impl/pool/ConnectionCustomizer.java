@@ -0,0 +1,53 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl.pool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Callbacks invoked by the {@link ConcurrentDataSource} when a connection is leased or given back. It plays the
+ * role of the Bone CP connection hook for the concurrent pool.
+ */
+public interface ConnectionCustomizer {
+
+    /**
+     * Called when a physical connection has been opened, before it enters the pool.
+     *
+     * @param connection the physical connection
+     * @return the connection to pool, either the given one or a wrapper around it
+     */
+    Connection onAcquire(Connection connection);
+
+    /**
+     * Called when the connection is about to be given to the application.
+     *
+     * @param connection the physical connection
+     * @throws SQLException if the connection cannot be prepared, the connection is then evicted from the pool
+     */
+    void onCheckOut(Connection connection) throws SQLException;
+
+    /**
+     * Called when the application has closed the connection, before it goes back to the pool.
+     *
+     * @param connection the physical connection
+     */
+    void onCheckIn(Connection connection);
+}
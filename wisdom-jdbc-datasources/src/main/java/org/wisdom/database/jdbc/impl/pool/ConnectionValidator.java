@@ -0,0 +1,208 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl.pool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that pooled connections are still usable. By default, the check relies on {@link Connection#isValid(int)},
+ * which drivers implement with their native ping (an empty query on PostgreSQL, a protocol-level ping on MySQL...),
+ * instead of the catalog query Bone CP uses when no test statement is set. Drivers not supporting {@code isValid}
+ * fall back to the test statement if one is given (such as the validation query of the driver profile), and to that
+ * catalog query otherwise.
+ * <p>
+ * Connections used within the last {@code skipWindow} ms are not validated on checkout. The validations performed,
+ * skipped and failed, and their cost, are counted.
+ */
+public class ConnectionValidator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionValidator.class);
+
+    /**
+     * The validation modes.
+     */
+    public enum Mode {
+        /**
+         * Uses {@link Connection#isValid(int)}.
+         */
+        IS_VALID,
+        /**
+         * Executes the configured test statement.
+         */
+        STATEMENT,
+        /**
+         * Reads the table metadata, as Bone CP does without test statement.
+         */
+        METADATA
+    }
+
+    private static final String[] METADATA_TABLE = new String[]{"TABLE"};
+    private static final String KEEP_ALIVE_METADATA = "BONECPKEEPALIVE";
+
+    private final Mode mode;
+    private final String testStatement;
+    private final int timeoutInSeconds;
+    private final long skipWindow;
+
+    private volatile boolean isValidUnsupported;
+
+    private final AtomicLong validations = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong totalTime = new AtomicLong();
+
+    /**
+     * Creates a validator.
+     *
+     * @param mode          the mode, {@link Mode#STATEMENT} requires a test statement
+     * @param testStatement the test statement, may be {@code null} for the other modes, used instead of the table
+     *                      metadata when {@code isValid} is not supported
+     * @param timeoutInMs   the time allowed to the {@code isValid} check, rounded up to the second
+     * @param skipWindow    the time in ms since the last use under which the validation on checkout is skipped,
+     *                      negative to disable the validation on checkout
+     */
+    public ConnectionValidator(Mode mode, String testStatement, long timeoutInMs, long skipWindow) {
+        if (mode == Mode.STATEMENT && testStatement == null) {
+            throw new IllegalArgumentException("The statement validation mode requires a test statement");
+        }
+        this.mode = mode;
+        this.testStatement = testStatement;
+        this.timeoutInSeconds = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(timeoutInMs + 999));
+        this.skipWindow = skipWindow;
+    }
+
+    /**
+     * Validates a connection about to be given to the application, unless it has been used recently.
+     *
+     * @param connection the physical connection
+     * @param lastUsed   the last time (epoch in ms) the connection was used
+     * @return {@code false} if the connection is broken
+     */
+    public boolean isAliveOnCheckout(Connection connection, long lastUsed) {
+        if (skipWindow < 0) {
+            return true;
+        }
+        if (System.currentTimeMillis() - lastUsed <= skipWindow) {
+            skipped.incrementAndGet();
+            return true;
+        }
+        return isAlive(connection);
+    }
+
+    /**
+     * Validates a connection.
+     *
+     * @param connection the physical connection
+     * @return {@code false} if the connection is broken
+     */
+    public boolean isAlive(Connection connection) {
+        long start = System.nanoTime();
+        boolean alive = false;
+        try {
+            alive = check(connection);
+        } catch (SQLException e) {
+            LOGGER.debug("Broken connection {}", connection, e);
+        } finally {
+            validations.incrementAndGet();
+            totalTime.addAndGet(System.nanoTime() - start);
+            if (!alive) {
+                failures.incrementAndGet();
+            }
+        }
+        return alive;
+    }
+
+    private boolean check(Connection connection) throws SQLException {
+        if (mode == Mode.STATEMENT) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(testStatement);
+            }
+            return true;
+        }
+        if (mode == Mode.IS_VALID && !isValidUnsupported) {
+            try {
+                return connection.isValid(timeoutInSeconds);
+            } catch (SQLFeatureNotSupportedException | AbstractMethodError e) {
+                LOGGER.info("The driver of {} does not support Connection.isValid, validating with {}",
+                        connection, testStatement == null ? "the table metadata" : "'" + testStatement + "'");
+                isValidUnsupported = true;
+            }
+        }
+        if (mode == Mode.IS_VALID && testStatement != null) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(testStatement);
+            }
+            return true;
+        }
+        ResultSet rs = connection.getMetaData().getTables(null, null, KEEP_ALIVE_METADATA, METADATA_TABLE);
+        if (rs != null) {
+            rs.close();
+        }
+        return true;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the number of validations performed
+     */
+    public long getValidations() {
+        return validations.get();
+    }
+
+    /**
+     * @return the number of checkouts without validation, as the connection was used recently
+     */
+    public long getSkippedValidations() {
+        return skipped.get();
+    }
+
+    /**
+     * @return the number of validations having detected a broken connection
+     */
+    public long getFailedValidations() {
+        return failures.get();
+    }
+
+    /**
+     * @return the mean time of a validation in nanoseconds
+     */
+    public double getMeanValidationTimeInNs() {
+        long count = validations.get();
+        return count == 0 ? 0 : (double) totalTime.get() / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s validation: %d performed (%d failed, %.0fns mean), %d skipped", mode,
+                getValidations(), getFailedValidations(), getMeanValidationTimeInNs(), getSkippedValidations());
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl.pool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+/**
+ * A connection forwarding all calls to another connection. Sub-classes decide what {@link #close()} means, and can
+ * override {@link #delegate()} to check the state of the connection before each call.
+ * <p/>
+ * The connections handed to the application wrap their statements and metadata, whose {@code getConnection()}
+ * returns the delegating connection: closing the connection reached from a statement must not close the physical
+ * connection behind the back of the pool. They also keep their open statements, so they can be closed when the
+ * connection is given back ({@link #closeStatements()}).
+ */
+public abstract class DelegatingConnection implements Connection {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DelegatingConnection.class);
+
+    /**
+     * The wrapped connection.
+     */
+    protected final Connection delegate;
+
+    /**
+     * Whether the statements and metadata are wrapped.
+     */
+    private final boolean wrap;
+
+    /**
+     * The open statements, {@code null} if they are not tracked.
+     */
+    private final List<DelegatingStatement> statements;
+
+    /**
+     * Creates a new delegating connection, forwarding the statements of the wrapped connection as they are.
+     *
+     * @param delegate the wrapped connection, must not be {@code null}
+     */
+    protected DelegatingConnection(Connection delegate) {
+        this.delegate = delegate;
+        this.wrap = false;
+        this.statements = null;
+    }
+
+    /**
+     * Creates a new delegating connection, wrapping the statements and metadata of the wrapped connection.
+     *
+     * @param delegate the wrapped connection, must not be {@code null}
+     * @param track    whether or not the open statements are kept, to be closed by {@link #closeStatements()}
+     */
+    protected DelegatingConnection(Connection delegate, boolean track) {
+        this.delegate = delegate;
+        this.wrap = true;
+        this.statements = track ? new ArrayList<DelegatingStatement>() : null;
+    }
+
+    /**
+     * Called before a statement created by this connection is executed (or a batch entry added). Does nothing by
+     * default.
+     *
+     * @param sql the SQL text, {@code null} when executing the batch of a plain statement
+     */
+    protected void executing(String sql) {
+        // Nothing by default.
+    }
+
+    private <S extends DelegatingStatement> S track(S statement) {
+        if (statements != null) {
+            synchronized (statements) {
+                statements.add(statement);
+            }
+        }
+        return statement;
+    }
+
+    /**
+     * Called when a statement of this connection is closed.
+     */
+    void forget(DelegatingStatement statement) {
+        if (statements != null) {
+            synchronized (statements) {
+                // Statements are usually closed in the reverse order of their creation.
+                for (int i = statements.size() - 1; i >= 0; i--) {
+                    if (statements.get(i) == statement) {
+                        statements.remove(i);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the statements created by this connection and left open. Failures are logged.
+     */
+    protected void closeStatements() {
+        if (statements == null) {
+            return;
+        }
+        List<DelegatingStatement> open;
+        synchronized (statements) {
+            if (statements.isEmpty()) {
+                return;
+            }
+            open = new ArrayList<>(statements);
+            statements.clear();
+        }
+        for (DelegatingStatement statement : open) {
+            try {
+                statement.delegate.close();
+            } catch (SQLException e) {
+                LOGGER.debug("Cannot close statement {}", statement, e);
+            }
+        }
+    }
+
+    /**
+     * Gets the connection on which calls are forwarded.
+     *
+     * @return the wrapped connection
+     * @throws SQLException if the connection must not be used anymore
+     */
+    protected Connection delegate() throws SQLException {
+        return delegate;
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        Statement statement = delegate().createStatement();
+        return wrap ? track(new DelegatingStatement(this, statement, null)) : statement;
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        PreparedStatement statement = delegate().prepareStatement(sql);
+        return wrap ? track(new DelegatingPreparedStatement(this, statement, sql)) : statement;
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        CallableStatement statement = delegate().prepareCall(sql);
+        return wrap ? track(new DelegatingCallableStatement(this, statement, sql)) : statement;
+    }
+
+    @Override
+    public String nativeSQL(String sql) throws SQLException {
+        return delegate().nativeSQL(sql);
+    }
+
+    @Override
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        delegate().setAutoCommit(autoCommit);
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        return delegate().getAutoCommit();
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        delegate().commit();
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        delegate().rollback();
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return delegate().isClosed();
+    }
+
+    @Override
+    public DatabaseMetaData getMetaData() throws SQLException {
+        DatabaseMetaData metadata = delegate().getMetaData();
+        return wrap ? new DelegatingDatabaseMetaData(this, metadata) : metadata;
+    }
+
+    @Override
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        delegate().setReadOnly(readOnly);
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        return delegate().isReadOnly();
+    }
+
+    @Override
+    public void setCatalog(String catalog) throws SQLException {
+        delegate().setCatalog(catalog);
+    }
+
+    @Override
+    public String getCatalog() throws SQLException {
+        return delegate().getCatalog();
+    }
+
+    @Override
+    public void setTransactionIsolation(int level) throws SQLException {
+        delegate().setTransactionIsolation(level);
+    }
+
+    @Override
+    public int getTransactionIsolation() throws SQLException {
+        return delegate().getTransactionIsolation();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return delegate().getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        delegate().clearWarnings();
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+        Statement statement = delegate().createStatement(resultSetType, resultSetConcurrency);
+        return wrap ? track(new DelegatingStatement(this, statement, null)) : statement;
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        PreparedStatement statement = delegate().prepareStatement(sql, resultSetType, resultSetConcurrency);
+        return wrap ? track(new DelegatingPreparedStatement(this, statement, sql)) : statement;
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        CallableStatement statement = delegate().prepareCall(sql, resultSetType, resultSetConcurrency);
+        return wrap ? track(new DelegatingCallableStatement(this, statement, sql)) : statement;
+    }
+
+    @Override
+    public Map<String, Class<?>> getTypeMap() throws SQLException {
+        return delegate().getTypeMap();
+    }
+
+    @Override
+    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+        delegate().setTypeMap(map);
+    }
+
+    @Override
+    public void setHoldability(int holdability) throws SQLException {
+        delegate().setHoldability(holdability);
+    }
+
+    @Override
+    public int getHoldability() throws SQLException {
+        return delegate().getHoldability();
+    }
+
+    @Override
+    public Savepoint setSavepoint() throws SQLException {
+        return delegate().setSavepoint();
+    }
+
+    @Override
+    public Savepoint setSavepoint(String name) throws SQLException {
+        return delegate().setSavepoint(name);
+    }
+
+    @Override
+    public void rollback(Savepoint savepoint) throws SQLException {
+        delegate().rollback(savepoint);
+    }
+
+    @Override
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        delegate().releaseSavepoint(savepoint);
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        Statement statement = delegate().createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+        return wrap ? track(new DelegatingStatement(this, statement, null)) : statement;
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        PreparedStatement statement = delegate().prepareStatement(sql, resultSetType, resultSetConcurrency,
+                resultSetHoldability);
+        return wrap ? track(new DelegatingPreparedStatement(this, statement, sql)) : statement;
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        CallableStatement statement = delegate().prepareCall(sql, resultSetType, resultSetConcurrency,
+                resultSetHoldability);
+        return wrap ? track(new DelegatingCallableStatement(this, statement, sql)) : statement;
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        PreparedStatement statement = delegate().prepareStatement(sql, autoGeneratedKeys);
+        return wrap ? track(new DelegatingPreparedStatement(this, statement, sql)) : statement;
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+        PreparedStatement statement = delegate().prepareStatement(sql, columnIndexes);
+        return wrap ? track(new DelegatingPreparedStatement(this, statement, sql)) : statement;
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+        PreparedStatement statement = delegate().prepareStatement(sql, columnNames);
+        return wrap ? track(new DelegatingPreparedStatement(this, statement, sql)) : statement;
+    }
+
+    @Override
+    public Clob createClob() throws SQLException {
+        return delegate().createClob();
+    }
+
+    @Override
+    public Blob createBlob() throws SQLException {
+        return delegate().createBlob();
+    }
+
+    @Override
+    public NClob createNClob() throws SQLException {
+        return delegate().createNClob();
+    }
+
+    @Override
+    public SQLXML createSQLXML() throws SQLException {
+        return delegate().createSQLXML();
+    }
+
+    @Override
+    public boolean isValid(int timeout) throws SQLException {
+        return delegate().isValid(timeout);
+    }
+
+    @Override
+    public void setClientInfo(String name, String value) throws SQLClientInfoException {
+        // delegate() may throw a plain SQLException, not allowed here
+        delegate.setClientInfo(name, value);
+    }
+
+    @Override
+    public void setClientInfo(Properties properties) throws SQLClientInfoException {
+        delegate.setClientInfo(properties);
+    }
+
+    @Override
+    public String getClientInfo(String name) throws SQLException {
+        return delegate().getClientInfo(name);
+    }
+
+    @Override
+    public Properties getClientInfo() throws SQLException {
+        return delegate().getClientInfo();
+    }
+
+    @Override
+    public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+        return delegate().createArrayOf(typeName, elements);
+    }
+
+    @Override
+    public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+        return delegate().createStruct(typeName, attributes);
+    }
+
+    @Override
+    public void setSchema(String schema) throws SQLException {
+        delegate().setSchema(schema);
+    }
+
+    @Override
+    public String getSchema() throws SQLException {
+        return delegate().getSchema();
+    }
+
+    @Override
+    public void abort(Executor executor) throws SQLException {
+        delegate().abort(executor);
+    }
+
+    @Override
+    public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+        delegate().setNetworkTimeout(executor, milliseconds);
+    }
+
+    @Override
+    public int getNetworkTimeout() throws SQLException {
+        return delegate().getNetworkTimeout();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return (T) this;
+        }
+        if (iface.isInstance(delegate)) {
+            return (T) delegate;
+        }
+        return delegate().unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || iface.isInstance(delegate) || delegate().isWrapperFor(iface);
+    }
+}
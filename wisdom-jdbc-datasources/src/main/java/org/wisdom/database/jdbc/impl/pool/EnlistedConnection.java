@@ -0,0 +1,95 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl.pool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+
+/**
+ * A view of a connection enlisted in a JTA transaction, handed out by the {@link XAPool}. Closing the view does not
+ * give the connection back to the pool, the pool does it when the transaction completes. The transaction demarcation
+ * belongs to the transaction manager: {@code commit} and {@code rollback} throw an {@link SQLException}, and enabling
+ * the auto-commit mode is ignored (the data source manager enables it on every connection it hands out). Once closed,
+ * any call on the view throws an {@link SQLException}.
+ */
+class EnlistedConnection extends DelegatingConnection {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EnlistedConnection.class);
+
+    private boolean closed;
+
+    EnlistedConnection(Connection delegate) {
+        super(delegate, true);
+    }
+
+    @Override
+    protected Connection delegate() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection is closed");
+        }
+        return delegate;
+    }
+
+    @Override
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        if (autoCommit) {
+            LOGGER.debug("Ignoring the auto-commit mode requested on a connection enlisted in a transaction");
+            // Still rejected once the view is closed.
+            delegate();
+            return;
+        }
+        delegate().setAutoCommit(false);
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        throw new SQLException("Cannot commit a connection enlisted in a transaction, use the transaction manager");
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        throw new SQLException("Cannot rollback a connection enlisted in a transaction, use the transaction manager");
+    }
+
+    @Override
+    public void rollback(Savepoint savepoint) throws SQLException {
+        throw new SQLException("Cannot rollback a connection enlisted in a transaction, use the transaction manager");
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        closeStatements();
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed || delegate.isClosed();
+    }
+
+    @Override
+    public String toString() {
+        return "EnlistedConnection[" + delegate + "]";
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl.pool;
+
+import java.sql.Connection;
+
+/**
+ * A {@link ConnectionCustomizer} receiving the lease start of the connections given back to a
+ * {@link PooledConnectionPool}. The pool keeps it on its entries, as the logical connections it hands out cannot
+ * carry it.
+ */
+public interface LeaseAwareCustomizer extends ConnectionCustomizer {
+
+    /**
+     * Called instead of {@link #onCheckIn(Connection)} when the application has closed the connection, before it goes
+     * back to the pool.
+     *
+     * @param connection the logical connection
+     * @param leaseStart the instant the connection was leased, as given by {@link System#nanoTime()}
+     */
+    void onCheckIn(Connection connection, long leaseStart);
+}
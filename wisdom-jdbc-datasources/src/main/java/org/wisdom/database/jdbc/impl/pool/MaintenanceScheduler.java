@@ -0,0 +1,373 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl.pool;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A scheduler shared by all the pools for their maintenance tasks (keep-alive, max age, pool fill, expiration of the
+ * waiters...), so the number of threads does not grow with the number of data sources. Each pool gets its own
+ * {@link #newGroup() group}: a view on the shared threads whose shutdown only cancels the tasks of the pool.
+ * <p>
+ * The shared scheduling threads only keep the time: when a task is due, it is handed to an I/O thread, and the tasks
+ * of a group run one at a time. So a task blocking on the database (a connection creation, a validation, a probe)
+ * delays the tasks of its own group, and at most one I/O thread is busy per group. A periodic task still running
+ * when its next run is due skips that run. The failures of the tasks are logged.
+ * <p>
+ * The scheduler uses {@code threads} scheduling threads plus at most {@code ioThreads} I/O threads
+ * ({@link #DEFAULT_IO_THREADS} by default), whatever the number of pools. The groups having due tasks while all the
+ * I/O threads are busy wait in a queue (one entry per group at most), so only as many databases as I/O threads can
+ * block the maintenance of the others.
+ */
+public class MaintenanceScheduler implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MaintenanceScheduler.class);
+
+    /**
+     * The default number of I/O threads.
+     */
+    public static final int DEFAULT_IO_THREADS = 4;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * The threads running the tasks, at most one per group, released after a minute of inactivity.
+     */
+    private final ThreadPoolExecutor io;
+
+    /**
+     * Creates the scheduler, with {@link #DEFAULT_IO_THREADS} I/O threads.
+     *
+     * @param name    the prefix of the thread names
+     * @param threads the number of scheduling threads
+     */
+    public MaintenanceScheduler(String name, int threads) {
+        this(name, threads, DEFAULT_IO_THREADS);
+    }
+
+    /**
+     * Creates the scheduler.
+     *
+     * @param name      the prefix of the thread names
+     * @param threads   the number of scheduling threads
+     * @param ioThreads the maximum number of threads running the tasks
+     */
+    public MaintenanceScheduler(String name, int threads, int ioThreads) {
+        executor = new ScheduledThreadPoolExecutor(Math.max(1, threads),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat(name + "-%d").build());
+        executor.setRemoveOnCancelPolicy(true);
+        int size = Math.max(1, ioThreads);
+        // The queue holds at most one drain per group.
+        io = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat(name + "-io-%d").build());
+        io.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return a new group of tasks, to give to a pool
+     */
+    public ScheduledExecutorService newGroup() {
+        return new Group();
+    }
+
+    /**
+     * @return the I/O threads, for the work that may block on the database but must not wait for the other tasks of
+     * a group (the checkout of a connection for a non-blocking request)
+     */
+    public Executor getExecutor() {
+        return io;
+    }
+
+    /**
+     * @return the number of tasks currently scheduled, for all the pools
+     */
+    public int getScheduledTasks() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of threads currently running tasks
+     */
+    public int getActiveTasks() {
+        return io.getActiveCount();
+    }
+
+    /**
+     * Stops the shared threads, cancelling the tasks of all the groups.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        io.shutdownNow();
+    }
+
+    /**
+     * The tasks of a pool. Shutting down the group rejects the new tasks and cancels the periodic ones (and the
+     * pending ones with {@link #shutdownNow()}), without affecting the other groups.
+     */
+    private final class Group extends AbstractExecutorService implements ScheduledExecutorService {
+
+        private final Set<OneShot<?>> tasks =
+                Collections.newSetFromMap(new ConcurrentHashMap<OneShot<?>, Boolean>());
+        private final Set<ScheduledFuture<?>> periodicTasks =
+                Collections.newSetFromMap(new ConcurrentHashMap<ScheduledFuture<?>, Boolean>());
+
+        /**
+         * The tasks due, waiting for the I/O thread of the group.
+         */
+        private final Queue<Runnable> due = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean running = new AtomicBoolean();
+        private final Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Runnable task;
+                    while ((task = due.poll()) != null) {
+                        task.run();
+                    }
+                } finally {
+                    running.set(false);
+                }
+                // A task may have been queued after the last poll.
+                dispatch();
+            }
+        };
+        private volatile boolean shutdown;
+
+        /**
+         * Queues a due task, run on the I/O thread of the group.
+         *
+         * @param task the task, not throwing
+         */
+        private void run(Runnable task) {
+            due.add(task);
+            dispatch();
+        }
+
+        private void dispatch() {
+            if (!due.isEmpty() && running.compareAndSet(false, true)) {
+                try {
+                    io.execute(drain);
+                } catch (RejectedExecutionException e) {
+                    // The scheduler is closed.
+                    running.set(false);
+                    due.clear();
+                }
+            }
+        }
+
+        private ScheduledFuture<?> track(ScheduledFuture<?> future) {
+            periodicTasks.add(future);
+            if (shutdown) {
+                future.cancel(false);
+                periodicTasks.remove(future);
+            }
+            return future;
+        }
+
+        private void checkRunning() {
+            if (shutdown) {
+                throw new RejectedExecutionException("The maintenance tasks of the pool have been shut down");
+            }
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            return schedule(Executors.callable(command), delay, unit);
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+            checkRunning();
+            final OneShot<V> task = new OneShot<>(callable);
+            tasks.add(task);
+            task.trigger = executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Group.this.run(task);
+                }
+            }, delay, unit);
+            if (task.isDone()) {
+                // Cancelled meanwhile.
+                task.trigger.cancel(false);
+            }
+            return task;
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period,
+                                                      TimeUnit unit) {
+            checkRunning();
+            return track(executor.scheduleAtFixedRate(new Periodic(command), initialDelay, period, unit));
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay,
+                                                         TimeUnit unit) {
+            checkRunning();
+            return track(executor.scheduleWithFixedDelay(new Periodic(command), initialDelay, delay, unit));
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            schedule(command, 0, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+            for (ScheduledFuture<?> future : periodicTasks) {
+                future.cancel(false);
+            }
+            periodicTasks.clear();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown();
+            for (OneShot<?> task : tasks) {
+                task.cancel(false);
+            }
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown && tasks.isEmpty();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!tasks.isEmpty()) {
+                if (System.nanoTime() >= deadline) {
+                    return false;
+                }
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+            return shutdown;
+        }
+
+        /**
+         * A one-shot task, forgotten by the group once run or cancelled. The trigger is the scheduled task handing it
+         * to the I/O thread when due.
+         */
+        private final class OneShot<V> extends FutureTask<V> implements ScheduledFuture<V> {
+            private volatile ScheduledFuture<?> trigger;
+
+            private OneShot(Callable<V> callable) {
+                super(callable);
+            }
+
+            @Override
+            public long getDelay(TimeUnit unit) {
+                ScheduledFuture<?> current = trigger;
+                return current == null ? 0 : current.getDelay(unit);
+            }
+
+            @Override
+            public int compareTo(Delayed other) {
+                long diff = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                ScheduledFuture<?> current = trigger;
+                if (cancelled && current != null) {
+                    current.cancel(false);
+                }
+                return cancelled;
+            }
+
+            @Override
+            protected void setException(Throwable failure) {
+                LOGGER.error("A maintenance task has failed", failure);
+                super.setException(failure);
+            }
+
+            @Override
+            protected void done() {
+                tasks.remove(this);
+            }
+        }
+
+        /**
+         * The trigger of a periodic task, skipping the runs due while the previous one is still queued or running.
+         */
+        private final class Periodic implements Runnable {
+            private final Runnable command;
+            private final AtomicBoolean pending = new AtomicBoolean();
+            private final Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        command.run();
+                    } catch (RuntimeException e) {
+                        LOGGER.error("A periodic maintenance task has failed, it keeps running", e);
+                    } finally {
+                        pending.set(false);
+                    }
+                }
+            };
+
+            private Periodic(Runnable command) {
+                this.command = command;
+            }
+
+            @Override
+            public void run() {
+                if (pending.compareAndSet(false, true)) {
+                    Group.this.run(task);
+                }
+            }
+        }
+    }
+}
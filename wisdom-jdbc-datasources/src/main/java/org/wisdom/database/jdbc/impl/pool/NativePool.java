@@ -0,0 +1,67 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl.pool;
+
+import com.jolbox.bonecp.BoneCPConfig;
+
+import javax.sql.ConnectionPoolDataSource;
+import javax.sql.PooledConnection;
+import java.sql.SQLException;
+
+/**
+ * A pool of the {@link PooledConnection}s opened by the {@link ConnectionPoolDataSource} of the driver. The driver
+ * keeps its own state per physical connection (prepared statement cache sized by {@code maxStatements}, session
+ * state), which is reused as long as the physical connection stays in the pool.
+ */
+public class NativePool extends PooledConnectionPool {
+
+    private final ConnectionPoolDataSource source;
+
+    /**
+     * Creates the pool.
+     *
+     * @param name       the data source name, used in the log messages
+     * @param source     the connection pool data source of the driver, already configured
+     * @param config     the pool configuration
+     * @param customizer the callbacks invoked when connections are leased and given back, may be {@code null}
+     * @param validator  the validator checking the connections on checkout, may be {@code null}
+     */
+    public NativePool(String name, ConnectionPoolDataSource source, BoneCPConfig config,
+                      ConnectionCustomizer customizer, ConnectionValidator validator) {
+        super(name, config, customizer, validator);
+        this.source = source;
+    }
+
+    @Override
+    protected PooledConnection open() throws SQLException {
+        PooledConnection connection = source.getPooledConnection();
+        if (connection == null) {
+            throw new SQLException("The connection pool data source of '" + getName() + "' returned no connection");
+        }
+        return connection;
+    }
+
+    /**
+     * @return the connection pool data source of the driver
+     */
+    public ConnectionPoolDataSource getSource() {
+        return source;
+    }
+}
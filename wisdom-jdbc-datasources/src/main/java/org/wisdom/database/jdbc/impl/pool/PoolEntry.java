@@ -0,0 +1,75 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl.pool;
+
+import java.sql.Connection;
+
+/**
+ * A physical connection managed by the {@link ConcurrentDataSource}.
+ */
+public class PoolEntry extends ConcurrentBag.Entry {
+
+    private final Connection connection;
+
+    private final long creationTime;
+
+    private volatile long lastAccessed;
+
+    /**
+     * Creates a new entry.
+     *
+     * @param connection the physical connection
+     */
+    public PoolEntry(Connection connection) {
+        this.connection = connection;
+        this.creationTime = System.currentTimeMillis();
+        this.lastAccessed = creationTime;
+    }
+
+    /**
+     * @return the physical connection
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * @return the time (epoch in ms) when the connection was opened
+     */
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * @return the last time (epoch in ms) the connection was released to the pool
+     */
+    public long getLastAccessed() {
+        return lastAccessed;
+    }
+
+    void setLastAccessed(long time) {
+        this.lastAccessed = time;
+    }
+
+    @Override
+    public String toString() {
+        return "PoolEntry[" + connection + ", state=" + getState() + "]";
+    }
+}
@@ -0,0 +1,574 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl.pool;
+
+import com.jolbox.bonecp.BoneCPConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.DataSource;
+import javax.sql.PooledConnection;
+import javax.sql.StatementEvent;
+import javax.sql.StatementEventListener;
+import java.io.Closeable;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of {@link PooledConnection}s provided by the driver. The pool hands out the logical connections of the
+ * driver as they are, without wrapper: closing them fires {@link ConnectionEventListener#connectionClosed} and gives
+ * the physical connection back to the pool, and {@link ConnectionEventListener#connectionErrorOccurred} evicts it.
+ * The statement events tell which connections had a statement failing, they are validated on their next checkout.
+ * <p/>
+ * The pool is sized by {@code partitionCount * maxConnectionsPerPartition}. Connections are opened on demand, and the
+ * most recently used idle connection is reused first. The idle and max ages are checked on checkout and check-in, and
+ * once {@link #start(ScheduledExecutorService) started}, by a periodic task, as the least recently used connections
+ * may stay idle for long: it closes the expired idle connections (keeping {@code partitionCount *
+ * minConnectionsPerPartition} of them for the idle age), tests the connections idle for more than
+ * {@code idleConnectionTestPeriod}, and opens connections up to the minimum. As the physical connection is not
+ * visible, the {@link ConnectionCustomizer#onAcquire(Connection)} callback is not invoked, the check-out and check-in
+ * callbacks receive the logical connections, and a {@link LeaseAwareCustomizer} receives the lease start on check-in.
+ */
+public abstract class PooledConnectionPool implements DataSource, Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PooledConnectionPool.class);
+
+    /**
+     * Period of the maintenance task.
+     */
+    private static final long HOUSEKEEPING_PERIOD_MS = 30000;
+
+    private final String name;
+    private final int maxSize;
+    private final int minSize;
+    private final long idleTestPeriod;
+    private final long connectionTimeoutMs;
+    private final long idleMaxAge;
+    private final long maxConnectionAge;
+    private final ConnectionCustomizer customizer;
+    private final ConnectionValidator validator;
+    private final String initSQL;
+
+    /**
+     * One permit per connection that can be leased, fair so the waiting threads are served in arrival order.
+     */
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<Entry> idle = new LinkedBlockingDeque<>();
+    private final Map<PooledConnection, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicInteger leased = new AtomicInteger();
+    private final AtomicLong statementErrors = new AtomicLong();
+    private volatile boolean closed;
+    private volatile ScheduledExecutorService housekeeper;
+
+    private PrintWriter logWriter;
+    private int loginTimeout;
+
+    /**
+     * Creates the pool. No connection is opened by the constructor.
+     *
+     * @param name       the data source name, used in the log messages
+     * @param config     the pool configuration (sizes, connection timeout, idle and max ages)
+     * @param customizer the callbacks invoked when connections are leased and given back, may be {@code null}
+     * @param validator  the validator checking the connections on checkout, {@code null} to use
+     *                   {@link Connection#isValid(int)} or the {@code connectionTestStatement}
+     */
+    protected PooledConnectionPool(String name, BoneCPConfig config, ConnectionCustomizer customizer,
+                                   ConnectionValidator validator) {
+        this.name = name;
+        int partitions = Math.max(1, config.getPartitionCount());
+        this.maxSize = Math.max(1, partitions * config.getMaxConnectionsPerPartition());
+        this.minSize = Math.max(0, Math.min(maxSize, partitions * config.getMinConnectionsPerPartition()));
+        this.idleTestPeriod = config.getIdleConnectionTestPeriod(TimeUnit.MILLISECONDS);
+        this.connectionTimeoutMs = config.getConnectionTimeoutInMs() <= 0 ? Long.MAX_VALUE
+                : config.getConnectionTimeoutInMs();
+        this.idleMaxAge = config.getIdleMaxAge(TimeUnit.MILLISECONDS);
+        this.maxConnectionAge = config.getMaxConnectionAge(TimeUnit.MILLISECONDS);
+        this.customizer = customizer;
+        this.initSQL = config.getInitSQL();
+        if (validator == null) {
+            String testStatement = config.getConnectionTestStatement();
+            validator = new ConnectionValidator(testStatement == null ? ConnectionValidator.Mode.IS_VALID :
+                    ConnectionValidator.Mode.STATEMENT, testStatement, 5000, -1);
+        }
+        this.validator = validator;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Opens a new physical connection.
+     *
+     * @return the pooled connection
+     * @throws SQLException if the connection cannot be opened
+     */
+    protected abstract PooledConnection open() throws SQLException;
+
+    /**
+     * Starts the maintenance of the pool, once it is fully constructed. The maintenance task runs right away, to open
+     * the minimum number of connections, then every 30 seconds (or every {@code idleConnectionTestPeriod} if
+     * shorter). The scheduler is shut down with the pool.
+     *
+     * @param scheduler the scheduler, owned by the pool from now on
+     */
+    public void start(ScheduledExecutorService scheduler) {
+        this.housekeeper = scheduler;
+        long period = HOUSEKEEPING_PERIOD_MS;
+        if (idleTestPeriod > 0) {
+            period = Math.min(period, idleTestPeriod);
+        }
+        try {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    housekeeping();
+                }
+            }, 0, period, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down.
+        }
+        if (closed) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Borrows a connection from the pool, waiting at most {@code connectionTimeout} ms.
+     *
+     * @return the logical connection, to be closed by the caller
+     * @throws SQLException if the pool is closed, if no connection became available in time, or if a new connection
+     *                      cannot be opened
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("The pool of '" + name + "' has been shut down");
+        }
+        try {
+            if (!permits.tryAcquire(connectionTimeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new SQLTransientConnectionException(String.format("Cannot get a connection from '%s' within " +
+                        "%d ms (%d leased, %d max)", name, connectionTimeoutMs, leased.get(), maxSize));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection on '" + name + "'", e);
+        }
+        Entry entry;
+        try {
+            entry = checkOut();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        Connection connection = entry.connection;
+        try {
+            return onLease(entry.pooled, connection);
+        } catch (SQLException | RuntimeException e) {
+            // Closing the logical connection gives the physical one back.
+            try {
+                connection.close();
+            } catch (SQLException closing) {
+                LOGGER.debug("Cannot close connection {} of '{}'", connection, name, closing);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Called when a connection has been leased, before handing it to the application. The default implementation
+     * returns the logical connection as it is.
+     *
+     * @param pooled     the physical connection
+     * @param connection the logical connection, closing it gives the physical connection back to the pool
+     * @return the connection to hand to the application
+     * @throws SQLException if the connection cannot be used, the physical connection is given back to the pool
+     */
+    protected Connection onLease(PooledConnection pooled, Connection connection) throws SQLException {
+        return connection;
+    }
+
+    private Entry checkOut() throws SQLException {
+        while (true) {
+            Entry entry = idle.pollFirst();
+            boolean created = false;
+            if (entry == null) {
+                entry = new Entry(open());
+                entries.put(entry.pooled, entry);
+                created = true;
+            } else if (isExpired(entry, System.currentTimeMillis())) {
+                destroy(entry);
+                continue;
+            }
+            Connection connection;
+            try {
+                connection = entry.pooled.getConnection();
+                if (created && initSQL != null) {
+                    try (Statement statement = connection.createStatement()) {
+                        statement.execute(initSQL);
+                    }
+                } else if (!created && !isAlive(entry, connection)) {
+                    LOGGER.warn("Connection {} of '{}' failed the validation, evicting it", entry.pooled, name);
+                    destroy(entry);
+                    continue;
+                }
+                entry.leaseStart = System.nanoTime();
+                if (customizer != null) {
+                    customizer.onCheckOut(connection);
+                }
+            } catch (SQLException e) {
+                LOGGER.warn("Cannot prepare connection {} of '{}', evicting it", entry.pooled, name, e);
+                destroy(entry);
+                if (created) {
+                    throw e;
+                }
+                continue;
+            }
+            entry.connection = connection;
+            leased.incrementAndGet();
+            return entry;
+        }
+    }
+
+    private boolean isAlive(Entry entry, Connection connection) {
+        if (entry.suspect) {
+            entry.suspect = false;
+            return validator.isAlive(connection);
+        }
+        return validator.isAliveOnCheckout(connection, entry.lastUsed);
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return idleMaxAge > 0 && now - entry.lastUsed > idleMaxAge
+                || maxConnectionAge > 0 && now - entry.created > maxConnectionAge;
+    }
+
+    /**
+     * Closes the expired idle connections and tests the ones idle for long, starting from the least recently used,
+     * then opens connections up to the minimum. The connections being checked are taken out of the idle ones, so they
+     * cannot be leased meanwhile.
+     */
+    private void housekeeping() {
+        if (closed) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            Iterator<Entry> candidates = idle.descendingIterator();
+            while (candidates.hasNext() && !closed) {
+                Entry entry = candidates.next();
+                boolean aged = maxConnectionAge > 0 && now - entry.created > maxConnectionAge;
+                boolean unused = idleMaxAge > 0 && now - entry.lastUsed > idleMaxAge && entries.size() > minSize;
+                if (aged || unused) {
+                    if (idle.remove(entry)) {
+                        destroy(entry);
+                    }
+                } else if (idleTestPeriod > 0 && now - Math.max(entry.lastUsed, entry.lastTested) > idleTestPeriod
+                        && idle.remove(entry)) {
+                    test(entry, now);
+                }
+            }
+            fill();
+        } catch (RuntimeException e) {
+            LOGGER.error("Error during the maintenance of the pool '{}'", name, e);
+        }
+    }
+
+    /**
+     * Tests an idle connection taken out of the idle ones, and gives it back at the end of the idle ones (it is still
+     * the least recently used) if it is alive.
+     */
+    private void test(Entry entry, long now) {
+        boolean alive;
+        try {
+            // The entry is not leased, closing the logical connection does not check it in.
+            try (Connection connection = entry.pooled.getConnection()) {
+                alive = validator.isAlive(connection);
+            }
+        } catch (SQLException e) {
+            LOGGER.debug("Cannot test connection {} of '{}'", entry.pooled, name, e);
+            alive = false;
+        }
+        if (!alive || entry.broken) {
+            LOGGER.warn("Connection {} of '{}' failed the liveness test, evicting it", entry.pooled, name);
+            destroy(entry);
+            return;
+        }
+        entry.lastTested = now;
+        giveBack(entry);
+    }
+
+    /**
+     * Opens connections until the pool holds the minimum number of physical connections.
+     */
+    private void fill() {
+        while (!closed && entries.size() < minSize) {
+            Entry entry;
+            try {
+                entry = new Entry(open());
+            } catch (SQLException | RuntimeException e) {
+                LOGGER.warn("Cannot open a connection to '{}' to keep {} connection(s) in the pool", name, minSize, e);
+                return;
+            }
+            entries.put(entry.pooled, entry);
+            giveBack(entry);
+        }
+    }
+
+    /**
+     * Adds an entry to the least recently used end of the idle connections, or closes it if the pool is closed.
+     */
+    private void giveBack(Entry entry) {
+        idle.offerLast(entry);
+        if (closed && idle.remove(entry)) {
+            destroy(entry);
+        }
+    }
+
+    /**
+     * Called when the application has closed the logical connection of the given entry.
+     */
+    private void checkIn(Entry entry) {
+        Connection connection = entry.connection;
+        if (connection == null) {
+            // Not leased, or already given back.
+            return;
+        }
+        entry.connection = null;
+        if (customizer != null) {
+            ChainedCustomizer.onCheckIn(customizer, connection, entry.leaseStart);
+        }
+        entry.lastUsed = System.currentTimeMillis();
+        leased.decrementAndGet();
+        if (closed || entry.broken || isExpired(entry, entry.lastUsed)) {
+            destroy(entry);
+        } else {
+            idle.offerFirst(entry);
+            if (closed && idle.remove(entry)) {
+                // Closed in the meantime.
+                destroy(entry);
+            }
+        }
+        permits.release();
+    }
+
+    private void destroy(Entry entry) {
+        entries.remove(entry.pooled);
+        entry.pooled.removeConnectionEventListener(entry);
+        entry.pooled.removeStatementEventListener(entry);
+        try {
+            entry.pooled.close();
+        } catch (SQLException e) {
+            LOGGER.debug("Cannot close connection {} of '{}'", entry.pooled, name, e);
+        }
+    }
+
+    /**
+     * Closes the pool. The idle connections are closed right away, the leased ones when they are given back.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LOGGER.info("Shutting down the pool of '{}'", name);
+        ScheduledExecutorService scheduler = housekeeper;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        Entry entry;
+        while ((entry = idle.pollFirst()) != null) {
+            destroy(entry);
+        }
+    }
+
+    /**
+     * @return whether or not the pool has been shut down
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return the number of connections used by the application
+     */
+    public int getTotalLeased() {
+        return leased.get();
+    }
+
+    /**
+     * @return the number of available connections
+     */
+    public int getTotalFree() {
+        return idle.size();
+    }
+
+    /**
+     * @return the number of physical connections currently opened by the pool
+     */
+    public int getTotalCreatedConnections() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of requests waiting for a connection
+     */
+    public int getWaitingThreadCount() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * @return the number of statement errors reported by the driver
+     */
+    public long getStatementErrors() {
+        return statementErrors.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("The pool of '" + name + "' only serves the configured user");
+    }
+
+    @Override
+    public synchronized PrintWriter getLogWriter() throws SQLException {
+        return logWriter;
+    }
+
+    @Override
+    public synchronized void setLogWriter(PrintWriter out) throws SQLException {
+        this.logWriter = out;
+    }
+
+    @Override
+    public synchronized void setLoginTimeout(int seconds) throws SQLException {
+        this.loginTimeout = seconds;
+    }
+
+    @Override
+    public synchronized int getLoginTimeout() throws SQLException {
+        return loginTimeout;
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException("java.util.logging is not used");
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return (T) this;
+        }
+        throw new SQLException(this + " is not a wrapper for " + iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + name + "]";
+    }
+
+    /**
+     * A physical connection of the pool, listening to the events of the driver.
+     */
+    private final class Entry implements ConnectionEventListener, StatementEventListener {
+        private final PooledConnection pooled;
+        private final long created = System.currentTimeMillis();
+        private volatile long lastUsed = created;
+        private volatile long lastTested = created;
+
+        /**
+         * The instant of the last checkout, as given by {@link System#nanoTime()}, given back to the
+         * {@link LeaseAwareCustomizer}.
+         */
+        private volatile long leaseStart;
+
+        /**
+         * The logical connection handed to the application, {@code null} when the connection is idle.
+         */
+        private volatile Connection connection;
+
+        /**
+         * Set when the driver reported a fatal error, the connection is closed when given back.
+         */
+        private volatile boolean broken;
+
+        /**
+         * Set when a statement failed, the connection is validated on its next checkout.
+         */
+        private volatile boolean suspect;
+
+        private Entry(PooledConnection pooled) {
+            this.pooled = pooled;
+            pooled.addConnectionEventListener(this);
+            pooled.addStatementEventListener(this);
+        }
+
+        @Override
+        public void connectionClosed(ConnectionEvent event) {
+            checkIn(this);
+        }
+
+        @Override
+        public void connectionErrorOccurred(ConnectionEvent event) {
+            LOGGER.warn("Connection {} of '{}' reported a fatal error, evicting it", pooled, name,
+                    event.getSQLException());
+            broken = true;
+            if (connection == null && idle.remove(this)) {
+                destroy(this);
+            }
+        }
+
+        @Override
+        public void statementClosed(StatementEvent event) {
+            // The driver keeps the statement in its own cache (maxStatements).
+        }
+
+        @Override
+        public void statementErrorOccurred(StatementEvent event) {
+            LOGGER.debug("A statement of connection {} of '{}' failed", pooled, name, event.getSQLException());
+            statementErrors.incrementAndGet();
+            suspect = true;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl.pool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * The connection handed to the application by the {@link ConcurrentDataSource}. Closing it gives the physical
+ * connection back to the pool, closing the statements left open. Once closed, any call throws an
+ * {@link SQLException}.
+ */
+class ProxyConnection extends DelegatingConnection {
+
+    private final ConcurrentDataSource pool;
+
+    private final PoolEntry entry;
+
+    private volatile boolean closed;
+
+    ProxyConnection(ConcurrentDataSource pool, PoolEntry entry) {
+        super(entry.getConnection(), true);
+        this.pool = pool;
+        this.entry = entry;
+    }
+
+    @Override
+    protected Connection delegate() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection is closed");
+        }
+        return delegate;
+    }
+
+    /**
+     * Gives the connection back to the pool. Calling this method several times has no effect.
+     */
+    @Override
+    public void close() throws SQLException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closeStatements();
+        boolean broken;
+        try {
+            broken = delegate.isClosed();
+        } catch (SQLException e) {
+            broken = true;
+        }
+        pool.release(entry, broken);
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed || delegate.isClosed();
+    }
+
+    @Override
+    public String toString() {
+        return "ProxyConnection[" + delegate + "]";
+    }
+}
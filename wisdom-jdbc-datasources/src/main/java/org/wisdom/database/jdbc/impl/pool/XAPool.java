@@ -0,0 +1,186 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl.pool;
+
+import com.jolbox.bonecp.BoneCPConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.PooledConnection;
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A pool of the {@link XAConnection}s opened by the {@link XADataSource} of the driver. When a connection is requested
+ * within a JTA transaction, the {@link javax.transaction.xa.XAResource} of the leased connection is enlisted in the
+ * transaction, and the same physical connection serves all the following requests of the transaction. It is given
+ * back to the pool when the transaction completes.
+ * <p/>
+ * As each data source contributes a single resource to a transaction, a transaction involving only one database is
+ * committed in one phase by the transaction manager, without the prepare phase and its log record. The two-phase
+ * commit only happens when several resources are enlisted.
+ * <p/>
+ * Outside of a transaction, the connections are plain local connections.
+ */
+public class XAPool extends PooledConnectionPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(XAPool.class);
+
+    private final XADataSource source;
+    private volatile TransactionManager transactionManager;
+
+    /**
+     * The connections enlisted in the running transactions.
+     */
+    private final Map<Transaction, Connection> enlisted = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the pool.
+     *
+     * @param name       the data source name, used in the log messages
+     * @param source     the XA data source of the driver, already configured
+     * @param config     the pool configuration
+     * @param customizer the callbacks invoked when connections are leased and given back, may be {@code null}
+     * @param validator  the validator checking the connections on checkout, may be {@code null}
+     */
+    public XAPool(String name, XADataSource source, BoneCPConfig config, ConnectionCustomizer customizer,
+                  ConnectionValidator validator) {
+        super(name, config, customizer, validator);
+        this.source = source;
+    }
+
+    @Override
+    protected PooledConnection open() throws SQLException {
+        XAConnection connection = source.getXAConnection();
+        if (connection == null) {
+            throw new SQLException("The XA data source of '" + getName() + "' returned no connection");
+        }
+        return connection;
+    }
+
+    /**
+     * Gets a connection. Within a transaction, the connection already enlisted in the transaction is returned, if
+     * any.
+     *
+     * @return the connection
+     * @throws SQLException if the connection cannot be leased or enlisted
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        Transaction transaction = getTransaction();
+        if (transaction != null) {
+            Connection connection = enlisted.get(transaction);
+            if (connection != null) {
+                return new EnlistedConnection(connection);
+            }
+        }
+        return super.getConnection();
+    }
+
+    @Override
+    protected Connection onLease(PooledConnection pooled, final Connection connection) throws SQLException {
+        final Transaction transaction = getTransaction();
+        if (transaction == null) {
+            return connection;
+        }
+        try {
+            if (!transaction.enlistResource(((XAConnection) pooled).getXAResource())) {
+                throw new SQLException("The connection of '" + getName() + "' cannot be enlisted in " + transaction);
+            }
+            transaction.registerSynchronization(new Synchronization() {
+                @Override
+                public void beforeCompletion() {
+                    // Nothing to do.
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    enlisted.remove(transaction);
+                    try {
+                        connection.close();
+                    } catch (SQLException e) {
+                        LOGGER.warn("Cannot give back the connection of '{}' after the completion of {}",
+                                getName(), transaction, e);
+                    }
+                }
+            });
+        } catch (RollbackException | SystemException | IllegalStateException e) {
+            throw new SQLException("The connection of '" + getName() + "' cannot be enlisted in " + transaction, e);
+        }
+        enlisted.put(transaction, connection);
+        return new EnlistedConnection(connection);
+    }
+
+    /**
+     * @return the transaction associated with the current thread, {@code null} if none, or if there is no
+     * transaction manager
+     * @throws SQLException if the transaction manager fails
+     */
+    private Transaction getTransaction() throws SQLException {
+        TransactionManager manager = transactionManager;
+        if (manager == null) {
+            return null;
+        }
+        try {
+            Transaction transaction = manager.getTransaction();
+            if (transaction == null || transaction.getStatus() == Status.STATUS_NO_TRANSACTION) {
+                return null;
+            }
+            return transaction;
+        } catch (SystemException e) {
+            throw new SQLException("Cannot get the current transaction", e);
+        }
+    }
+
+    /**
+     * Sets the transaction manager in which the connections are enlisted. The connections already enlisted are not
+     * affected. The parameter is not typed so that the callers do not depend on JTA, which is an optional import of
+     * the bundle: only this class requires it.
+     *
+     * @param transactionManager the {@link TransactionManager}, {@code null} to stop enlisting the connections
+     */
+    public void setTransactionManager(Object transactionManager) {
+        this.transactionManager = (TransactionManager) transactionManager;
+    }
+
+    /**
+     * @return the number of transactions having a connection of the pool enlisted
+     */
+    public int getEnlistedTransactions() {
+        return enlisted.size();
+    }
+
+    /**
+     * @return the XA data source of the driver
+     */
+    public XADataSource getSource() {
+        return source;
+    }
+}
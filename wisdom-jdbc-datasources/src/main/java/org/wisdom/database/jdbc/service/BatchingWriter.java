@@ -0,0 +1,61 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.service;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Groups the writes submitted concurrently by many threads (audit rows, events...) into JDBC batches. The rows
+ * submitted for a statement are queued, and a flusher executes them with a single {@code executeBatch} and a
+ * single commit, as soon as {@code jdbc.batching.maxBatchSize} rows are queued or {@code jdbc.batching.maxLinger}
+ * milliseconds after the first row of the batch. When the queue of the statement is full
+ * ({@code jdbc.batching.queueSize} rows), the submitting threads wait for room, up to
+ * {@code jdbc.batching.offerTimeout} milliseconds.
+ * <p/>
+ * If the batch fails, its rows are executed one by one, so each row gets its own outcome.
+ */
+public interface BatchingWriter {
+
+    /**
+     * Registers a statement. Registering the same statement twice returns the same instance.
+     *
+     * @param datasource the data source name
+     * @param sql        the statement, with {@code ?} placeholders
+     * @return the statement to submit rows to
+     */
+    Statement register(String datasource, String sql);
+
+    /**
+     * A statement registered on the writer.
+     */
+    interface Statement {
+
+        /**
+         * Submits a row.
+         *
+         * @param parameters the statement parameters, set with {@link java.sql.PreparedStatement#setObject(int,
+         *                   Object)}
+         * @return the future update count of the row, failed with a {@link java.sql.SQLException} if the row
+         * cannot be written, or with a {@link java.util.concurrent.RejectedExecutionException} if the queue stayed
+         * full or the writer is stopped
+         */
+        ListenableFuture<Integer> submit(Object... parameters);
+    }
+}
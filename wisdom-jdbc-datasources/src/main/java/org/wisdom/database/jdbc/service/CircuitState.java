@@ -0,0 +1,42 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.service;
+
+/**
+ * The state of the circuit breaker protecting a data source. When the database cannot be reached, the circuit opens
+ * and the connection requests fail immediately with a {@link DataSourceUnavailableException}, instead of blocking
+ * for the connection timeout. A single probe checks in background whether the database is back.
+ */
+public enum CircuitState {
+    /**
+     * The database is reachable, the requests are served by the pool.
+     */
+    CLOSED,
+
+    /**
+     * The database is considered down, the requests fail immediately.
+     */
+    OPEN,
+
+    /**
+     * The probe is checking whether the database is back, the requests still fail immediately.
+     */
+    HALF_OPEN
+}
@@ -0,0 +1,48 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.service;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * The rows of a query, mapped one by one as the caller iterates. Rows are read from the database by chunks of the
+ * fetch size, on demand, so the memory used does not depend on the size of the result. The connection is given
+ * back to the pool once the last row has been read, or when the cursor is closed: always use the cursor in a
+ * try-with-resources block. The cursor can be iterated only once.
+ * <p/>
+ * As {@link Iterator} methods cannot throw {@link java.sql.SQLException}, database errors are reported with a
+ * {@link CursorException}, after which the cursor is closed.
+ *
+ * @param <T> the type of the mapped rows
+ */
+public interface Cursor<T> extends Iterator<T>, Iterable<T>, Closeable {
+
+    /**
+     * Releases the result set, the statement and the connection. Calling this method several times has no effect.
+     */
+    @Override
+    void close();
+
+    /**
+     * @return the number of rows returned so far
+     */
+    int getRowCount();
+}
@@ -0,0 +1,132 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.service;
+
+import java.util.List;
+
+/**
+ * Telemetry of the pool behind a data source. A service is published for each data source, with the
+ * {@link DataSources#DATASOURCE_NAME_PROPERTY} property. Recording is always on, and does not allocate on the
+ * connection hot path.
+ */
+public interface DataSourceMetrics {
+
+    /**
+     * @return the data source name
+     */
+    String getDataSourceName();
+
+    /**
+     * @return the number of connections currently used by the application
+     */
+    int getLeasedConnections();
+
+    /**
+     * @return the number of connections available in the pool
+     */
+    int getIdleConnections();
+
+    /**
+     * @return the number of connection requests currently waiting
+     */
+    int getPendingRequests();
+
+    /**
+     * @return the time spent waiting for a connection, including the failed attempts
+     */
+    LatencyStatistics getAcquireWait();
+
+    /**
+     * @return the time between the checkout of a connection and its return to the pool
+     */
+    LatencyStatistics getLeaseDuration();
+
+    /**
+     * @return the time spent opening physical connections
+     */
+    LatencyStatistics getConnectionCreation();
+
+    /**
+     * Gets the slow statements (exceeding the {@code queryExecuteTimeLimit}) grouped by fingerprint.
+     *
+     * @param count the maximum number of fingerprints to return
+     * @return the fingerprints having the highest total execution time, highest first, empty if the pool engine
+     * does not time the statements (only the {@code bonecp} engine does)
+     */
+    List<QueryStatistics> getSlowQueries(int count);
+
+    /**
+     * Forgets the slow statements recorded so far.
+     */
+    void resetSlowQueries();
+
+    /**
+     * @return the number of connections leased for longer than the {@code leakDetectionThreshold}, 0 if the leak
+     * detection is disabled
+     */
+    int getSuspectedLeaks();
+
+    /**
+     * @return the number of {@link DataSources#cachedQuery} calls served by the result cache, 0 if the cache is
+     * disabled
+     */
+    long getResultCacheHits();
+
+    /**
+     * @return the number of {@link DataSources#cachedQuery} calls that executed the query, 0 if the cache is disabled
+     */
+    long getResultCacheMisses();
+
+    /**
+     * @return the number of results in the result cache, 0 if the cache is disabled
+     */
+    long getResultCacheSize();
+
+    /**
+     * @return the number of invalidations of the result cache caused by writes, 0 if the cache is disabled
+     */
+    long getResultCacheInvalidations();
+
+    /**
+     * @return the state of the circuit breaker of the data source, {@link CircuitState#CLOSED} if the breaker is
+     * disabled
+     */
+    CircuitState getCircuitState();
+
+    /**
+     * @return the number of connection validations performed (on checkout, on idle connections or after an error)
+     */
+    long getValidations();
+
+    /**
+     * @return the number of checkouts without validation, as the connection had been used recently
+     */
+    long getSkippedValidations();
+
+    /**
+     * @return the number of validations having detected a broken connection
+     */
+    long getFailedValidations();
+
+    /**
+     * @return the mean time spent in a validation, in nanoseconds
+     */
+    double getMeanValidationTimeInNs();
+}
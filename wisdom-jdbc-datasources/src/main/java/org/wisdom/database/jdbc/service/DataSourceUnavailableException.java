@@ -0,0 +1,50 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.service;
+
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * Thrown, without waiting, when a connection is requested while the circuit breaker of the data source is open,
+ * i.e. the database is considered down. The cause is the last connection failure.
+ */
+public class DataSourceUnavailableException extends SQLTransientConnectionException {
+
+    private final String dataSourceName;
+
+    /**
+     * Creates the exception.
+     *
+     * @param dataSourceName the data source name
+     * @param message        the message
+     * @param cause          the last connection failure, may be {@code null}
+     */
+    public DataSourceUnavailableException(String dataSourceName, String message, Throwable cause) {
+        super(message, cause);
+        this.dataSourceName = dataSourceName;
+    }
+
+    /**
+     * @return the name of the unavailable data source
+     */
+    public String getDataSourceName() {
+        return dataSourceName;
+    }
+}
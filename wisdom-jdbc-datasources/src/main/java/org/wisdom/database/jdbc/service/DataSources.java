@@ -19,12 +19,16 @@
  */
 package org.wisdom.database.jdbc.service;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A service letting application to retrieve data sources and open connections on these data sources. It's a
@@ -95,4 +99,93 @@ public interface DataSources {
      * or if the connection cannot be opened.
      */
     Connection getConnection(String database, boolean autocommit);
+
+    /**
+     * Gets a connection on the given database for the given intent. Read-only connections are served by one of the
+     * read replicas of the data source, if any, and by the primary otherwise.
+     * The auto-commit is enabled.
+     * @param database the data source name
+     * @param intent the intent
+     * @return the connection, {@literal null} if the data source with the given name is not configured,
+     * or if the connection cannot be opened.
+     */
+    Connection getConnection(String database, ReadIntent intent);
+
+    /**
+     * Gets a connection on the given database for the given lane. Lanes are configured with
+     * {@code db.<name>.lanes.<lane>.max} (the maximum number of connections leased concurrently by the lane) and
+     * {@code db.<name>.lanes.<lane>.priority} (waiters of the lanes with the highest priority are served first when
+     * the pool is exhausted). The call waits at most the connection timeout of the data source for a slot.
+     * The auto-commit is enabled.
+     * @param database the data source name
+     * @param lane the lane name
+     * @return the connection, {@literal null} if the data source with the given name or the lane are not configured,
+     * if the lane stayed full for the connection timeout, or if the connection cannot be opened.
+     */
+    Connection getConnection(String database, String lane);
+
+    /**
+     * Executes a query and returns its rows as they are read. The query runs on a forward-only, read-only result
+     * set with the {@code fetchSize} of the data source (100 by default), on a read replica if some are configured.
+     * Rows are fetched as the cursor is iterated, so the memory used does not depend on the size of the result. The
+     * connection is given back once the last row has been read or when the cursor is closed, use it in a
+     * try-with-resources block. Some drivers only honor the fetch size under conditions: PostgreSQL outside of the
+     * auto-commit mode (the cursor runs its own transaction), MySQL with {@code useCursorFetch=true} in the url
+     * (added by the driver profile, unless disabled):
+     * <pre>
+     * try (Cursor&lt;String&gt; names = sources.stream("default", "SELECT NAME FROM USERS WHERE AGE &gt; ?", mapper, 18)) {
+     *     for (String name : names) {
+     *         // ...
+     *     }
+     * }
+     * </pre>
+     * @param database the data source name
+     * @param sql the query
+     * @param mapper the row mapper
+     * @param parameters the query parameters
+     * @param <T> the type of the mapped rows
+     * @return the cursor
+     * @throws SQLException if the data source is not configured, if no connection can be obtained, or if the query
+     * fails
+     */
+    <T> Cursor<T> stream(String database, String sql, RowMapper<T> mapper, Object... parameters)
+            throws SQLException;
+
+    /**
+     * Executes a cacheable query and returns all its rows. When the {@code resultCacheSize} of the data source is
+     * set, the rows are kept in the result cache of the data source, keyed by SQL, parameters and mapper, until a
+     * statement executed through the data source modifies one of the tables read by the query, or until they are
+     * evicted by more recently used results. Otherwise, the query is executed on each call.
+     * <p/>
+     * The returned list and its rows are shared by all the callers: rows should be immutable, and the mapper should
+     * be reused (its {@code equals} is part of the key). Within an action annotated with
+     * {@link WithConnection} whose connection has the auto-commit disabled, the cache is bypassed so the
+     * uncommitted changes of the transaction are seen.
+     * @param database the data source name
+     * @param sql the query
+     * @param mapper the row mapper
+     * @param parameters the query parameters
+     * @param <T> the type of the mapped rows
+     * @return the unmodifiable list of rows
+     * @throws SQLException if the data source is not configured, if no connection can be obtained, or if the query
+     * fails
+     */
+    <T> List<T> cachedQuery(String database, String sql, RowMapper<T> mapper, Object... parameters)
+            throws SQLException;
+
+    /**
+     * Acquires a connection on the given database without blocking the calling thread.
+     * The future is completed with a connection configured with the data source defaults, or failed with a
+     * {@link SQLException} if the data source is not configured, or if no connection became available before the
+     * timeout ({@link java.sql.SQLTransientConnectionException}). Cancelling the future withdraws the request.
+     * <p/>
+     * With the {@code concurrent} pool engine, no thread waits on behalf of the caller: the request is completed by
+     * the thread releasing the next connection. Listeners should therefore be registered with an executor when they
+     * do more than dispatching the work.
+     * @param database the data source name
+     * @param timeout the maximum time to wait, 0 to use the data source connection timeout
+     * @param unit the unit of the timeout
+     * @return the future connection
+     */
+    ListenableFuture<Connection> acquire(String database, long timeout, TimeUnit unit);
 }
@@ -0,0 +1,48 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.service;
+
+/**
+ * A snapshot of a latency distribution. Values are recorded with a relative precision of about 3%.
+ */
+public interface LatencyStatistics {
+
+    /**
+     * @return the number of recorded values
+     */
+    long getCount();
+
+    /**
+     * @return the mean of the recorded values in nanoseconds, 0 if none
+     */
+    double getMeanInNs();
+
+    /**
+     * @return the highest recorded value in nanoseconds, 0 if none
+     */
+    long getMaxInNs();
+
+    /**
+     * Gets the value below which the given percentage of the recorded values fall.
+     * @param percentile the percentile, between 0 and 100 (for instance 99.9)
+     * @return the value in nanoseconds, 0 if no value was recorded
+     */
+    long getValueAtPercentileInNs(double percentile);
+}
@@ -0,0 +1,37 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.service;
+
+/**
+ * The execution times of the slow statements sharing the same fingerprint: the SQL text with the literals replaced
+ * by {@code ?}, the value lists collapsed and the whitespace normalized.
+ */
+public interface QueryStatistics extends LatencyStatistics {
+
+    /**
+     * @return the fingerprint of the statements
+     */
+    String getFingerprint();
+
+    /**
+     * @return the total execution time of the statements in nanoseconds
+     */
+    long getTotalInNs();
+}
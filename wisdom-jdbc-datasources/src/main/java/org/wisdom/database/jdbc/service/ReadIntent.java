@@ -0,0 +1,74 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.service;
+
+/**
+ * Declares whether the connections requested by the current thread are used to write, or only to read. Read-only
+ * connections are served by the read replicas of the data source ({@code db.<name>.replicas}) when some are
+ * configured and available, and by the primary otherwise.
+ * <p/>
+ * The intent can be given explicitly to {@link DataSources#getConnection(String, ReadIntent)}, or set for the
+ * current thread (this is what {@code @Transactional(readOnly = true)} does), in which case it applies to all the
+ * connections obtained from the data source services.
+ */
+public enum ReadIntent {
+    /**
+     * The connection may be used to write, it is always served by the primary.
+     */
+    READ_WRITE,
+
+    /**
+     * The connection is only used to read, it may be served by a replica.
+     */
+    READ_ONLY;
+
+    private static final ThreadLocal<ReadIntent> CURRENT = new ThreadLocal<>();
+
+    /**
+     * @return the intent of the current thread, {@link #READ_WRITE} if not set
+     */
+    public static ReadIntent current() {
+        ReadIntent intent = CURRENT.get();
+        return intent == null ? READ_WRITE : intent;
+    }
+
+    /**
+     * Sets the intent of the current thread.
+     * @param intent the intent
+     * @return the previous intent, to give to {@link #restore(ReadIntent)}
+     */
+    public static ReadIntent enter(ReadIntent intent) {
+        ReadIntent previous = CURRENT.get();
+        CURRENT.set(intent);
+        return previous;
+    }
+
+    /**
+     * Restores the intent of the current thread.
+     * @param previous the intent returned by {@link #enter(ReadIntent)}
+     */
+    public static void restore(ReadIntent previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.service;
+
+import org.wisdom.api.annotations.Interception;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Binds one connection of a data source to the action. The connection is leased when the action starts and given
+ * back once it completes. Meanwhile, the {@link DataSources#getConnection(String)} calls (and their variants) on
+ * this data source return a view of the bound connection, whose {@link java.sql.Connection#close()} does not give
+ * the connection back to the pool. An action accessing the database several times therefore checks out a single
+ * connection. These calls never enable the auto-commit mode of the bound connection, as it would commit the pending
+ * work of the action. {@link DataSources#getConnection(String, boolean)} with {@code autocommit} set to
+ * {@code false} disables it, starting the transaction of the action.
+ * <p/>
+ * Work left uncommitted by the action (auto-commit disabled) is rolled back when the connection is given back.
+ */
+@Interception
+@Target({ElementType.METHOD, ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface WithConnection {
+
+    /**
+     * The name of the data source, the default data source if not set.
+     */
+    String datasource() default DataSources.DEFAULT_DATASOURCE;
+}
@@ -0,0 +1,420 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.utils;
+
+import org.wisdom.database.jdbc.service.RowMapper;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps rows to instances of a class with a public no-argument constructor. Columns are matched to the properties
+ * by name, ignoring case and underscores ({@code FIRST_NAME} sets {@code firstName}), through the setter or,
+ * failing that, the non-final field. Columns without matching property are ignored.
+ * <p/>
+ * The properties of a class are resolved once, as method handles. The column indexes are resolved once per column
+ * layout (the list of column labels of a query), and the resulting plans are cached, so mapping a row costs one
+ * typed getter and one method handle invocation per column, without reflection. Mappers are thread-safe.
+ *
+ * @param <T> the type of the mapped objects
+ */
+public final class BeanRowMapper<T> implements RowMapper<T> {
+
+    private static final Map<Class<?>, BeanRowMapper<?>> MAPPERS = new ConcurrentHashMap<>();
+
+    /**
+     * The maximum number of column layouts cached per class.
+     */
+    private static final int MAX_LAYOUTS = 64;
+
+    private final Class<T> type;
+    private final MethodHandle constructor;
+    private final Map<String, Property> properties;
+    private final Map<Layout, Plan> plans = new ConcurrentHashMap<>();
+
+    /**
+     * The plan of the last result set, so the metadata is read once per result set.
+     */
+    private volatile LastPlan last;
+
+    private BeanRowMapper(Class<T> type) {
+        this.type = type;
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        try {
+            this.constructor = lookup.findConstructor(type, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalArgumentException("The class " + type.getName() + " must have a public no-argument "
+                    + "constructor", e);
+        }
+        this.properties = resolve(type, lookup);
+    }
+
+    /**
+     * Gets the mapper of the given class, created on the first call.
+     *
+     * @param type the class
+     * @param <T>  the type of the mapped objects
+     * @return the mapper
+     * @throws IllegalArgumentException if the class does not have a public no-argument constructor
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> BeanRowMapper<T> of(Class<T> type) {
+        BeanRowMapper<T> mapper = (BeanRowMapper<T>) MAPPERS.get(type);
+        if (mapper == null) {
+            mapper = new BeanRowMapper<>(type);
+            BeanRowMapper<T> previous = (BeanRowMapper<T>) ((ConcurrentHashMap<Class<?>, BeanRowMapper<?>>) MAPPERS)
+                    .putIfAbsent(type, mapper);
+            if (previous != null) {
+                mapper = previous;
+            }
+        }
+        return mapper;
+    }
+
+    @Override
+    public T map(ResultSet results, int row) throws SQLException {
+        LastPlan current = last;
+        Plan plan;
+        if (current != null && current.results == results) {
+            plan = current.plan;
+        } else {
+            plan = plan(results.getMetaData());
+            last = new LastPlan(results, plan);
+        }
+        try {
+            Object bean = constructor.invokeExact();
+            for (int i = 0; i < plan.columns.length; i++) {
+                Object value = plan.readers[i].read(results, plan.columns[i]);
+                plan.setters[i].invokeExact(bean, value);
+            }
+            return type.cast(bean);
+        } catch (SQLException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new SQLException("Cannot map a row to " + type.getName(), e);
+        }
+    }
+
+    private Plan plan(ResultSetMetaData metadata) throws SQLException {
+        String[] labels = new String[metadata.getColumnCount()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = metadata.getColumnLabel(i + 1);
+        }
+        Layout layout = new Layout(labels);
+        Plan plan = plans.get(layout);
+        if (plan == null) {
+            plan = new Plan(labels, properties);
+            if (plans.size() >= MAX_LAYOUTS) {
+                plans.clear();
+            }
+            plans.put(layout, plan);
+        }
+        return plan;
+    }
+
+    private static Map<String, Property> resolve(Class<?> type, MethodHandles.Lookup lookup) {
+        Map<String, Property> properties = new HashMap<>();
+        // Public fields first, the setters take precedence.
+        for (Field field : type.getFields()) {
+            if (Modifier.isStatic(field.getModifiers()) || Modifier.isFinal(field.getModifiers())) {
+                continue;
+            }
+            try {
+                properties.put(normalize(field.getName()), new Property(field.getType(),
+                        lookup.unreflectSetter(field)));
+            } catch (IllegalAccessException e) {
+                // Not accessible, ignored.
+            }
+        }
+        for (Method method : type.getMethods()) {
+            if (Modifier.isStatic(method.getModifiers()) || method.getParameterTypes().length != 1
+                    || !method.getName().startsWith("set") || method.getName().length() == 3) {
+                continue;
+            }
+            try {
+                properties.put(normalize(method.getName().substring(3)),
+                        new Property(method.getParameterTypes()[0], lookup.unreflect(method)));
+            } catch (IllegalAccessException e) {
+                // Not accessible, ignored.
+            }
+        }
+        return properties;
+    }
+
+    private static String normalize(String name) {
+        return name.replace("_", "").toLowerCase(Locale.ENGLISH);
+    }
+
+    private static final class Property {
+        private final Reader reader;
+        private final MethodHandle setter;
+
+        private Property(Class<?> type, MethodHandle setter) {
+            this.reader = Reader.of(type);
+            // (Object, Object)void, unboxing the value for primitive properties.
+            this.setter = setter.asType(MethodType.methodType(void.class, Object.class, Object.class));
+        }
+    }
+
+    /**
+     * The columns to read for a layout, and the setters of the matching properties.
+     */
+    private static final class Plan {
+        private final int[] columns;
+        private final Reader[] readers;
+        private final MethodHandle[] setters;
+
+        private Plan(String[] labels, Map<String, Property> properties) {
+            int[] columns = new int[labels.length];
+            Reader[] readers = new Reader[labels.length];
+            MethodHandle[] setters = new MethodHandle[labels.length];
+            int count = 0;
+            for (int i = 0; i < labels.length; i++) {
+                Property property = properties.get(normalize(labels[i]));
+                if (property != null) {
+                    columns[count] = i + 1;
+                    readers[count] = property.reader;
+                    setters[count] = property.setter;
+                    count++;
+                }
+            }
+            this.columns = Arrays.copyOf(columns, count);
+            this.readers = Arrays.copyOf(readers, count);
+            this.setters = Arrays.copyOf(setters, count);
+        }
+    }
+
+    private static final class Layout {
+        private final String[] labels;
+        private final int hash;
+
+        private Layout(String[] labels) {
+            this.labels = labels;
+            this.hash = Arrays.hashCode(labels);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Layout && Arrays.equals(labels, ((Layout) o).labels);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class LastPlan {
+        private final ResultSet results;
+        private final Plan plan;
+
+        private LastPlan(ResultSet results, Plan plan) {
+            this.results = results;
+            this.plan = plan;
+        }
+    }
+
+    /**
+     * Reads a column with the getter matching the property type. SQL {@code NULL} is read as {@code null} for
+     * objects, and as the default value for primitives.
+     */
+    private enum Reader {
+        BOOLEAN {
+            @Override
+            Object read(ResultSet results, int column) throws SQLException {
+                boolean value = results.getBoolean(column);
+                return results.wasNull() ? null : value;
+            }
+        },
+        BOOLEAN_PRIMITIVE {
+            @Override
+            Object read(ResultSet results, int column) throws SQLException {
+                return results.getBoolean(column);
+            }
+        },
+        INT {
+            @Override
+            Object read(ResultSet results, int column) throws SQLException {
+                int value = results.getInt(column);
+                return results.wasNull() ? null : value;
+            }
+        },
+        INT_PRIMITIVE {
+            @Override
+            Object read(ResultSet results, int column) throws SQLException {
+                return results.getInt(column);
+            }
+        },
+        LONG {
+            @Override
+            Object read(ResultSet results, int column) throws SQLException {
+                long value = results.getLong(column);
+                return results.wasNull() ? null : value;
+            }
+        },
+        LONG_PRIMITIVE {
+            @Override
+            Object read(ResultSet results, int column) throws SQLException {
+                return results.getLong(column);
+            }
+        },
+        DOUBLE {
+            @Override
+            Object read(ResultSet results, int column) throws SQLException {
+                double value = results.getDouble(column);
+                return results.wasNull() ? null : value;
+            }
+        },
+        DOUBLE_PRIMITIVE {
+            @Override
+            Object read(ResultSet results, int column) throws SQLException {
+                return results.getDouble(column);
+            }
+        },
+        FLOAT {
+            @Override
+            Object read(ResultSet results, int column) throws SQLException {
+                float value = results.getFloat(column);
+                return results.wasNull() ? null : value;
+            }
+        },
+        FLOAT_PRIMITIVE {
+            @Override
+            Object read(ResultSet results, int column) throws SQLException {
+                return results.getFloat(column);
+            }
+        },
+        SHORT {
+            @Override
+            Object read(ResultSet results, int column) throws SQLException {
+                short value = results.getShort(column);
+                return results.wasNull() ? null : value;
+            }
+        },
+        SHORT_PRIMITIVE {
+            @Override
+            Object read(ResultSet results, int column) throws SQLException {
+                return results.getShort(column);
+            }
+        },
+        BYTE {
+            @Override
+            Object read(ResultSet results, int column) throws SQLException {
+                byte value = results.getByte(column);
+                return results.wasNull() ? null : value;
+            }
+        },
+        BYTE_PRIMITIVE {
+            @Override
+            Object read(ResultSet results, int column) throws SQLException {
+                return results.getByte(column);
+            }
+        },
+        STRING {
+            @Override
+            Object read(ResultSet results, int column) throws SQLException {
+                return results.getString(column);
+            }
+        },
+        BIG_DECIMAL {
+            @Override
+            Object read(ResultSet results, int column) throws SQLException {
+                return results.getBigDecimal(column);
+            }
+        },
+        DATE {
+            @Override
+            Object read(ResultSet results, int column) throws SQLException {
+                return results.getTimestamp(column);
+            }
+        },
+        SQL_DATE {
+            @Override
+            Object read(ResultSet results, int column) throws SQLException {
+                return results.getDate(column);
+            }
+        },
+        SQL_TIME {
+            @Override
+            Object read(ResultSet results, int column) throws SQLException {
+                return results.getTime(column);
+            }
+        },
+        BYTES {
+            @Override
+            Object read(ResultSet results, int column) throws SQLException {
+                return results.getBytes(column);
+            }
+        },
+        OBJECT {
+            @Override
+            Object read(ResultSet results, int column) throws SQLException {
+                return results.getObject(column);
+            }
+        };
+
+        abstract Object read(ResultSet results, int column) throws SQLException;
+
+        private static final Map<Class<?>, Reader> READERS = new HashMap<>();
+
+        static {
+            READERS.put(Boolean.class, BOOLEAN);
+            READERS.put(Boolean.TYPE, BOOLEAN_PRIMITIVE);
+            READERS.put(Integer.class, INT);
+            READERS.put(Integer.TYPE, INT_PRIMITIVE);
+            READERS.put(Long.class, LONG);
+            READERS.put(Long.TYPE, LONG_PRIMITIVE);
+            READERS.put(Double.class, DOUBLE);
+            READERS.put(Double.TYPE, DOUBLE_PRIMITIVE);
+            READERS.put(Float.class, FLOAT);
+            READERS.put(Float.TYPE, FLOAT_PRIMITIVE);
+            READERS.put(Short.class, SHORT);
+            READERS.put(Short.TYPE, SHORT_PRIMITIVE);
+            READERS.put(Byte.class, BYTE);
+            READERS.put(Byte.TYPE, BYTE_PRIMITIVE);
+            READERS.put(String.class, STRING);
+            READERS.put(BigDecimal.class, BIG_DECIMAL);
+            READERS.put(java.util.Date.class, DATE);
+            READERS.put(java.sql.Timestamp.class, DATE);
+            READERS.put(java.sql.Date.class, SQL_DATE);
+            READERS.put(java.sql.Time.class, SQL_TIME);
+            READERS.put(byte[].class, BYTES);
+        }
+
+        static Reader of(Class<?> type) {
+            Reader reader = READERS.get(type);
+            return reader == null ? OBJECT : reader;
+        }
+    }
+}
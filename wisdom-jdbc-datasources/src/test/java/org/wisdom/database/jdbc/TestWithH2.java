@@ -19,11 +19,15 @@
  */
 package org.wisdom.database.jdbc;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.typesafe.config.ConfigFactory;
 import org.h2.Driver;
+import org.h2.jdbcx.JdbcDataSource;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.osgi.framework.Bundle;
@@ -33,17 +37,54 @@ import org.wisdom.api.configuration.ApplicationConfiguration;
 import org.wisdom.api.configuration.Configuration;
 import org.wisdom.configuration.ConfigurationImpl;
 import org.wisdom.database.jdbc.impl.BoneCPDataSources;
+import org.wisdom.database.jdbc.impl.WrappedDataSource;
+import org.wisdom.database.jdbc.impl.pool.ConcurrentDataSource;
+import org.wisdom.database.jdbc.impl.pool.NativePool;
+import org.wisdom.database.jdbc.impl.pool.XAPool;
+import org.wisdom.database.jdbc.service.Cursor;
+import org.wisdom.database.jdbc.service.DataSourceMetrics;
+import org.wisdom.database.jdbc.service.DataSources;
+import org.wisdom.database.jdbc.service.ReadIntent;
+import org.wisdom.database.jdbc.service.RowMapper;
 
+import javax.sql.ConnectionPoolDataSource;
+import javax.sql.DataSource;
+import javax.sql.XADataSource;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAResource;
 import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverPropertyInfo;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -161,6 +202,642 @@ public class TestWithH2 {
         sources.onStop();
     }
 
+    @Test
+    public void testH2MemoryWithConcurrentPool() throws ClassNotFoundException, SQLException, InterruptedException,
+            ExecutionException, TimeoutException {
+        Bundle bundle = mock(Bundle.class);
+        BundleContext context = mock(BundleContext.class);
+        when(context.getBundle()).thenReturn(bundle);
+        when(bundle.loadClass(anyString())).thenAnswer(new Answer<Class>() {
+            @Override
+            public Class answer(InvocationOnMock invocation) throws Throwable {
+                return TestWithH2.class.getClassLoader().loadClass((String) invocation.getArguments()[0]);
+            }
+        });
+
+        DataSourceFactory factory = mock(DataSourceFactory.class);
+        when(factory.createDriver(any(Properties.class))).thenReturn(new Driver());
+
+        Map<String, Object> map = ImmutableMap.<String, Object>of(
+                "default.driver", "org.h2.Driver",
+                "default.url", "jdbc:h2:mem:wisdom-concurrent",
+                "default.pool", "concurrent",
+                "default.maxConnectionsPerPartition", "2"
+        );
+        Configuration conf = new ConfigurationImpl(null, ConfigFactory.parseMap(map));
+
+        ApplicationConfiguration configuration = mock(ApplicationConfiguration.class);
+        when(configuration.getConfiguration(BoneCPDataSources.DB_CONFIGURATION_PREFIX)).thenReturn(conf);
+
+        BoneCPDataSources sources = new BoneCPDataSources(context).setApplicationConfiguration(configuration);
+        sources.bindFactory(factory, ImmutableMap.of(DataSourceFactory.OSGI_JDBC_DRIVER_CLASS, "org.h2.Driver"));
+        sources.onStart();
+
+        assertThat(((WrappedDataSource) sources.getDataSource()).getWrapped()).isInstanceOf(ConcurrentDataSource.class);
+        ConcurrentDataSource pool = (ConcurrentDataSource) ((WrappedDataSource) sources.getDataSource()).getWrapped();
+
+        Connection connection = sources.getConnection();
+        connection.createStatement().execute(Statements.CREATE_TABLE);
+        connection.createStatement().execute(Statements.INSERT_CARIBOU);
+        assertThat(pool.getTotalLeased()).isEqualTo(1);
+        connection.close();
+        assertThat(pool.getTotalLeased()).isEqualTo(0);
+
+        // The pool is bounded to 2 connections, we can still get and release many of them.
+        for (int i = 0; i < 10; i++) {
+            Connection c1 = sources.getConnection();
+            Connection c2 = sources.getConnection();
+            ResultSet results = c1.createStatement().executeQuery(Statements.SELECT_WITH_LAT);
+            results.next();
+            assertThat(results.getString(2)).isEqualTo("Caribou");
+            results.close();
+            c1.close();
+            c2.close();
+        }
+        assertThat(pool.getTotalCreatedConnections()).isLessThanOrEqualTo(2);
+
+        // Asynchronous acquisition, the pending request is completed by the release of a connection.
+        Connection c1 = sources.acquire(DataSources.DEFAULT_DATASOURCE, 1, TimeUnit.SECONDS).get();
+        Connection c2 = sources.acquire(DataSources.DEFAULT_DATASOURCE, 1, TimeUnit.SECONDS).get();
+        ListenableFuture<Connection> pending = sources.acquire(DataSources.DEFAULT_DATASOURCE, 5, TimeUnit.SECONDS);
+        assertThat(pending.isDone()).isFalse();
+        c1.close();
+        // Checked out on another thread.
+        pending.get(1, TimeUnit.SECONDS).close();
+
+        ListenableFuture<Connection> timedOut = sources.acquire(DataSources.DEFAULT_DATASOURCE, 10,
+                TimeUnit.MILLISECONDS);
+        try {
+            timedOut.get();
+            fail("Timeout expected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(SQLTransientConnectionException.class);
+        }
+        c2.close();
+        assertThat(pool.getWaitingThreadCount()).isEqualTo(0);
+
+        DataSourceMetrics metrics = ((WrappedDataSource) sources.getDataSource()).getMetrics();
+        assertThat(metrics.getLeasedConnections()).isEqualTo(0);
+        assertThat(metrics.getIdleConnections()).isEqualTo(2);
+        assertThat(metrics.getPendingRequests()).isEqualTo(0);
+        assertThat(metrics.getAcquireWait().getCount()).isGreaterThanOrEqualTo(25);
+        assertThat(metrics.getLeaseDuration().getCount()).isGreaterThanOrEqualTo(24);
+        assertThat(metrics.getConnectionCreation().getCount()).isLessThanOrEqualTo(2);
+
+        sources.onStop();
+        assertThat(pool.isClosed()).isTrue();
+    }
+
+    @Test
+    public void testH2MemoryWithReplicas() throws ClassNotFoundException, SQLException {
+        Bundle bundle = mock(Bundle.class);
+        BundleContext context = mock(BundleContext.class);
+        when(context.getBundle()).thenReturn(bundle);
+        when(bundle.loadClass(anyString())).thenAnswer(new Answer<Class>() {
+            @Override
+            public Class answer(InvocationOnMock invocation) throws Throwable {
+                return TestWithH2.class.getClassLoader().loadClass((String) invocation.getArguments()[0]);
+            }
+        });
+
+        DataSourceFactory factory = mock(DataSourceFactory.class);
+        when(factory.createDriver(any(Properties.class))).thenReturn(new Driver());
+
+        Map<String, Object> map = ImmutableMap.<String, Object>of(
+                "default.driver", "org.h2.Driver",
+                "default.url", "jdbc:h2:mem:wisdom-primary",
+                "default.pool", "concurrent",
+                "default.connectionTimeout", "200",
+                "default.replicas", ImmutableList.of("jdbc:h2:mem:wisdom-replica", "jdbc:unknown:wisdom-broken")
+        );
+        Configuration conf = new ConfigurationImpl(null, ConfigFactory.parseMap(map));
+
+        ApplicationConfiguration configuration = mock(ApplicationConfiguration.class);
+        when(configuration.getConfiguration(BoneCPDataSources.DB_CONFIGURATION_PREFIX)).thenReturn(conf);
+
+        BoneCPDataSources sources = new BoneCPDataSources(context).setApplicationConfiguration(configuration);
+        sources.bindFactory(factory, ImmutableMap.of(DataSourceFactory.OSGI_JDBC_DRIVER_CLASS, "org.h2.Driver"));
+        sources.onStart();
+
+        WrappedDataSource source = (WrappedDataSource) sources.getDataSource();
+        assertThat(source.getReplicas()).hasSize(2);
+
+        Connection primary = sources.getConnection(DataSources.DEFAULT_DATASOURCE, ReadIntent.READ_WRITE);
+        assertThat(primary.getMetaData().getURL()).contains("wisdom-primary");
+        primary.close();
+
+        // Both replicas are idle, the first one is selected.
+        Connection replica = sources.getConnection(DataSources.DEFAULT_DATASOURCE, ReadIntent.READ_ONLY);
+        assertThat(replica.getMetaData().getURL()).contains("wisdom-replica");
+
+        // The second replica has fewer outstanding connections, but fails: it is taken out of rotation.
+        Connection other = sources.getConnection(DataSources.DEFAULT_DATASOURCE, ReadIntent.READ_ONLY);
+        assertThat(other.getMetaData().getURL()).contains("wisdom-replica");
+        assertThat(source.getReplicas().get(1).isAvailable(System.nanoTime())).isFalse();
+        other.close();
+        replica.close();
+
+        // The intent of the current thread is used by the data source.
+        ReadIntent previous = ReadIntent.enter(ReadIntent.READ_ONLY);
+        try {
+            Connection connection = sources.getDataSource().getConnection();
+            assertThat(connection.getMetaData().getURL()).contains("wisdom-replica");
+            connection.close();
+        } finally {
+            ReadIntent.restore(previous);
+        }
+        assertThat(ReadIntent.current()).isEqualTo(ReadIntent.READ_WRITE);
+
+        sources.onStop();
+        assertThat(source.getReplicas()).isEmpty();
+    }
+
+    @Test
+    public void testH2MemoryWithAnExhaustedReplica() throws ClassNotFoundException, SQLException {
+        Bundle bundle = mock(Bundle.class);
+        BundleContext context = mock(BundleContext.class);
+        when(context.getBundle()).thenReturn(bundle);
+        when(bundle.loadClass(anyString())).thenAnswer(new Answer<Class>() {
+            @Override
+            public Class answer(InvocationOnMock invocation) throws Throwable {
+                return TestWithH2.class.getClassLoader().loadClass((String) invocation.getArguments()[0]);
+            }
+        });
+
+        DataSourceFactory factory = mock(DataSourceFactory.class);
+        when(factory.createDriver(any(Properties.class))).thenReturn(new Driver());
+
+        Map<String, Object> map = ImmutableMap.<String, Object>of(
+                "default.driver", "org.h2.Driver",
+                "default.url", "jdbc:h2:mem:wisdom-primary",
+                "default.pool", "concurrent",
+                "default.connectionTimeout", "200",
+                "default.maxConnectionsPerPartition", "1",
+                "default.replicas", ImmutableList.of("jdbc:h2:mem:wisdom-replica")
+        );
+        Configuration conf = new ConfigurationImpl(null, ConfigFactory.parseMap(map));
+
+        ApplicationConfiguration configuration = mock(ApplicationConfiguration.class);
+        when(configuration.getConfiguration(BoneCPDataSources.DB_CONFIGURATION_PREFIX)).thenReturn(conf);
+
+        BoneCPDataSources sources = new BoneCPDataSources(context).setApplicationConfiguration(configuration);
+        sources.bindFactory(factory, ImmutableMap.of(DataSourceFactory.OSGI_JDBC_DRIVER_CLASS, "org.h2.Driver"));
+        sources.onStart();
+
+        WrappedDataSource source = (WrappedDataSource) sources.getDataSource();
+        Connection replica = sources.getConnection(DataSources.DEFAULT_DATASOURCE, ReadIntent.READ_ONLY);
+        assertThat(replica.getMetaData().getURL()).contains("wisdom-replica");
+
+        // The pool of the replica is exhausted: the primary serves the request, the replica stays in rotation.
+        Connection other = sources.getConnection(DataSources.DEFAULT_DATASOURCE, ReadIntent.READ_ONLY);
+        assertThat(other.getMetaData().getURL()).contains("wisdom-primary");
+        assertThat(source.getReplicas().get(0).isAvailable(System.nanoTime())).isTrue();
+        other.close();
+        replica.close();
+
+        sources.onStop();
+    }
+
+    @Test
+    public void testH2MemoryReconfiguration() throws ClassNotFoundException, SQLException, InterruptedException {
+        Bundle bundle = mock(Bundle.class);
+        BundleContext context = mock(BundleContext.class);
+        when(context.getBundle()).thenReturn(bundle);
+        when(bundle.loadClass(anyString())).thenAnswer(new Answer<Class>() {
+            @Override
+            public Class answer(InvocationOnMock invocation) throws Throwable {
+                return TestWithH2.class.getClassLoader().loadClass((String) invocation.getArguments()[0]);
+            }
+        });
+
+        DataSourceFactory factory = mock(DataSourceFactory.class);
+        when(factory.createDriver(any(Properties.class))).thenReturn(new Driver());
+
+        Configuration conf = new ConfigurationImpl(null, ConfigFactory.parseMap(ImmutableMap.<String, Object>of(
+                "default.driver", "org.h2.Driver",
+                "default.url", "jdbc:h2:mem:wisdom-blue",
+                "default.pool", "concurrent",
+                "default.maxConnectionsPerPartition", "2"
+        )));
+        ApplicationConfiguration configuration = mock(ApplicationConfiguration.class);
+        when(configuration.getConfiguration(BoneCPDataSources.DB_CONFIGURATION_PREFIX)).thenReturn(conf);
+
+        BoneCPDataSources sources = new BoneCPDataSources(context).setApplicationConfiguration(configuration);
+        sources.bindFactory(factory, ImmutableMap.of(DataSourceFactory.OSGI_JDBC_DRIVER_CLASS, "org.h2.Driver"));
+        sources.onStart();
+
+        WrappedDataSource source = (WrappedDataSource) sources.getDataSource();
+        ConcurrentDataSource blue = (ConcurrentDataSource) source.getWrapped();
+        assertThat(blue.getMaxSize()).isEqualTo(2);
+
+        // Size change, applied in place.
+        conf = new ConfigurationImpl(null, ConfigFactory.parseMap(ImmutableMap.<String, Object>of(
+                "default.driver", "org.h2.Driver",
+                "default.url", "jdbc:h2:mem:wisdom-blue",
+                "default.pool", "concurrent",
+                "default.maxConnectionsPerPartition", "4"
+        )));
+        when(configuration.getConfiguration(BoneCPDataSources.DB_CONFIGURATION_PREFIX)).thenReturn(conf);
+        sources.onStart();
+        assertThat(source.getWrapped()).isSameAs(blue);
+        assertThat(blue.getMaxSize()).isEqualTo(4);
+
+        // Url change, the pool is replaced, the connection in use remains usable.
+        Connection leased = sources.getConnection();
+        conf = new ConfigurationImpl(null, ConfigFactory.parseMap(ImmutableMap.<String, Object>of(
+                "default.driver", "org.h2.Driver",
+                "default.url", "jdbc:h2:mem:wisdom-green",
+                "default.pool", "concurrent",
+                "default.maxConnectionsPerPartition", "4"
+        )));
+        when(configuration.getConfiguration(BoneCPDataSources.DB_CONFIGURATION_PREFIX)).thenReturn(conf);
+        sources.onStart();
+        assertThat(source.getWrapped()).isNotSameAs(blue);
+        Connection connection = sources.getConnection();
+        assertThat(connection.getMetaData().getURL()).contains("wisdom-green");
+        connection.close();
+
+        Thread.sleep(300);
+        assertThat(blue.isClosed()).isFalse();
+        assertThat(leased.getMetaData().getURL()).contains("wisdom-blue");
+        leased.close();
+
+        // Closed once drained.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!blue.isClosed() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(blue.isClosed()).isTrue();
+
+        sources.onStop();
+    }
+
+    @Test
+    public void testH2MemoryStreaming() throws ClassNotFoundException, SQLException {
+        Bundle bundle = mock(Bundle.class);
+        BundleContext context = mock(BundleContext.class);
+        when(context.getBundle()).thenReturn(bundle);
+        when(bundle.loadClass(anyString())).thenAnswer(new Answer<Class>() {
+            @Override
+            public Class answer(InvocationOnMock invocation) throws Throwable {
+                return TestWithH2.class.getClassLoader().loadClass((String) invocation.getArguments()[0]);
+            }
+        });
+        DataSourceFactory factory = mock(DataSourceFactory.class);
+        when(factory.createDriver(any(Properties.class))).thenReturn(new Driver());
+
+        Map<String, Object> map = ImmutableMap.<String, Object>of(
+                "default.driver", "org.h2.Driver",
+                "default.url", "jdbc:h2:mem:wisdom-streaming",
+                "default.fetchSize", "2"
+        );
+        Configuration conf = new ConfigurationImpl(null, ConfigFactory.parseMap(map));
+
+        ApplicationConfiguration configuration = mock(ApplicationConfiguration.class);
+        when(configuration.getConfiguration(BoneCPDataSources.DB_CONFIGURATION_PREFIX)).thenReturn(conf);
+
+        BoneCPDataSources sources = new BoneCPDataSources(context).setApplicationConfiguration(configuration);
+        sources.bindFactory(factory, ImmutableMap.of(DataSourceFactory.OSGI_JDBC_DRIVER_CLASS, "org.h2.Driver"));
+        sources.onStart();
+
+        Connection connection = sources.getConnection();
+        connection.createStatement().execute(Statements.CREATE_TABLE);
+        connection.createStatement().execute(Statements.INSERT_CARIBOU);
+        connection.createStatement().execute(Statements.INSERT_DENVER);
+        connection.createStatement().execute(Statements.INSERT_PHOENIX);
+        connection.close();
+
+        RowMapper<String> city = new RowMapper<String>() {
+            @Override
+            public String map(ResultSet results, int row) throws SQLException {
+                return results.getString("CITY").trim();
+            }
+        };
+        DataSourceMetrics metrics = ((WrappedDataSource) sources.getDataSource()).getMetrics();
+
+        // Read until the end, the connection is given back without closing the cursor.
+        Cursor<String> cursor = sources.stream("default", "SELECT CITY FROM STATION WHERE LAT_N > ? ORDER BY ID",
+                city, 35);
+        List<String> cities = new ArrayList<>();
+        for (String name : cursor) {
+            cities.add(name);
+        }
+        assertThat(cities).containsExactly("Denver", "Caribou");
+        assertThat(cursor.getRowCount()).isEqualTo(2);
+        assertThat(metrics.getLeasedConnections()).isEqualTo(0);
+
+        // Closing the cursor early gives the connection back too.
+        try (Cursor<String> all = sources.stream("default", "SELECT CITY FROM STATION ORDER BY ID", city)) {
+            assertThat(all.next()).isEqualTo("Phoenix");
+            assertThat(metrics.getLeasedConnections()).isEqualTo(1);
+        }
+        assertThat(metrics.getLeasedConnections()).isEqualTo(0);
+
+        try {
+            sources.stream("default", "SELECT * FROM MISSING", city);
+            fail("The query should fail");
+        } catch (SQLException e) {
+            // Expected.
+        }
+        assertThat(metrics.getLeasedConnections()).isEqualTo(0);
+
+        sources.onStop();
+    }
+
+    @Test
+    public void testH2MemoryWithNativePool() throws ClassNotFoundException, SQLException {
+        Bundle bundle = mock(Bundle.class);
+        BundleContext context = mock(BundleContext.class);
+        when(context.getBundle()).thenReturn(bundle);
+        when(bundle.loadClass(anyString())).thenAnswer(new Answer<Class>() {
+            @Override
+            public Class answer(InvocationOnMock invocation) throws Throwable {
+                return TestWithH2.class.getClassLoader().loadClass((String) invocation.getArguments()[0]);
+            }
+        });
+
+        DataSourceFactory factory = mock(DataSourceFactory.class);
+        when(factory.createDriver(any(Properties.class))).thenReturn(new Driver());
+        when(factory.createConnectionPoolDataSource(any(Properties.class))).thenAnswer(
+                new Answer<ConnectionPoolDataSource>() {
+                    @Override
+                    public ConnectionPoolDataSource answer(InvocationOnMock invocation) throws Throwable {
+                        Properties properties = (Properties) invocation.getArguments()[0];
+                        JdbcDataSource source = new JdbcDataSource();
+                        source.setURL(properties.getProperty(DataSourceFactory.JDBC_URL));
+                        return source;
+                    }
+                });
+
+        Map<String, Object> map = ImmutableMap.<String, Object>of(
+                "default.driver", "org.h2.Driver",
+                "default.url", "jdbc:h2:mem:wisdom-native",
+                "default.pool", "native",
+                "default.minConnectionsPerPartition", "0",
+                "default.maxConnectionsPerPartition", "2"
+        );
+        Configuration conf = new ConfigurationImpl(null, ConfigFactory.parseMap(map));
+
+        ApplicationConfiguration configuration = mock(ApplicationConfiguration.class);
+        when(configuration.getConfiguration(BoneCPDataSources.DB_CONFIGURATION_PREFIX)).thenReturn(conf);
+
+        BoneCPDataSources sources = new BoneCPDataSources(context).setApplicationConfiguration(configuration);
+        sources.bindFactory(factory, ImmutableMap.of(DataSourceFactory.OSGI_JDBC_DRIVER_CLASS, "org.h2.Driver"));
+        sources.onStart();
+
+        assertThat(((WrappedDataSource) sources.getDataSource()).getWrapped()).isInstanceOf(NativePool.class);
+        NativePool pool = (NativePool) ((WrappedDataSource) sources.getDataSource()).getWrapped();
+
+        Connection connection = sources.getConnection();
+        connection.createStatement().execute(Statements.CREATE_TABLE);
+        connection.createStatement().execute(Statements.INSERT_CARIBOU);
+        assertThat(pool.getTotalLeased()).isEqualTo(1);
+        connection.close();
+        assertThat(pool.getTotalLeased()).isEqualTo(0);
+        assertThat(pool.getTotalFree()).isEqualTo(1);
+
+        // The physical connections are reused, closing the logical ones gives them back to the pool.
+        for (int i = 0; i < 10; i++) {
+            Connection c1 = sources.getConnection();
+            Connection c2 = sources.getConnection();
+            ResultSet results = c1.createStatement().executeQuery(Statements.SELECT_WITH_LAT);
+            results.next();
+            assertThat(results.getString(2)).isEqualTo("Caribou");
+            results.close();
+            c1.close();
+            c2.close();
+        }
+        assertThat(pool.getTotalCreatedConnections()).isEqualTo(2);
+        // The lease durations are recorded for the logical connections too.
+        assertThat(((WrappedDataSource) sources.getDataSource()).getMetrics().getLeaseDuration().getCount())
+                .isGreaterThanOrEqualTo(21);
+
+        // A failing statement does not evict the connection.
+        connection = sources.getConnection();
+        try {
+            connection.prepareStatement("SELECT * FROM MISSING").executeQuery();
+            fail("Missing table expected");
+        } catch (SQLException e) {
+            // Expected.
+        }
+        connection.close();
+        assertThat(pool.getTotalFree()).isEqualTo(2);
+
+        Connection c1 = sources.getConnection();
+        Connection c2 = sources.getConnection();
+        try {
+            sources.getConnection();
+            fail("Timeout expected");
+        } catch (SQLException e) {
+            assertThat(e).isInstanceOf(SQLTransientConnectionException.class);
+        }
+        c1.close();
+        c2.close();
+
+        DataSourceMetrics metrics = ((WrappedDataSource) sources.getDataSource()).getMetrics();
+        assertThat(metrics.getLeasedConnections()).isEqualTo(0);
+        assertThat(metrics.getIdleConnections()).isEqualTo(2);
+        assertThat(metrics.getConnectionCreation().getCount()).isEqualTo(2);
+
+        sources.onStop();
+        assertThat(pool.isClosed()).isTrue();
+        assertThat(pool.getTotalCreatedConnections()).isEqualTo(0);
+    }
+
+    @Test
+    public void testH2MemoryWithXAPool() throws Exception {
+        Bundle bundle = mock(Bundle.class);
+        BundleContext context = mock(BundleContext.class);
+        when(context.getBundle()).thenReturn(bundle);
+        when(bundle.loadClass(anyString())).thenAnswer(new Answer<Class>() {
+            @Override
+            public Class answer(InvocationOnMock invocation) throws Throwable {
+                return TestWithH2.class.getClassLoader().loadClass((String) invocation.getArguments()[0]);
+            }
+        });
+
+        DataSourceFactory factory = mock(DataSourceFactory.class);
+        when(factory.createDriver(any(Properties.class))).thenReturn(new Driver());
+        when(factory.createXADataSource(any(Properties.class))).thenAnswer(new Answer<XADataSource>() {
+            @Override
+            public XADataSource answer(InvocationOnMock invocation) throws Throwable {
+                Properties properties = (Properties) invocation.getArguments()[0];
+                JdbcDataSource source = new JdbcDataSource();
+                source.setURL(properties.getProperty(DataSourceFactory.JDBC_URL));
+                return source;
+            }
+        });
+
+        Map<String, Object> map = ImmutableMap.<String, Object>of(
+                "default.driver", "org.h2.Driver",
+                "default.url", "jdbc:h2:mem:wisdom-xa",
+                "default.pool", "xa",
+                "default.maxConnectionsPerPartition", "2"
+        );
+        Configuration conf = new ConfigurationImpl(null, ConfigFactory.parseMap(map));
+
+        ApplicationConfiguration configuration = mock(ApplicationConfiguration.class);
+        when(configuration.getConfiguration(BoneCPDataSources.DB_CONFIGURATION_PREFIX)).thenReturn(conf);
+
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getStatus()).thenReturn(Status.STATUS_ACTIVE);
+        when(transaction.enlistResource(any(XAResource.class))).thenReturn(true);
+        TransactionManager manager = mock(TransactionManager.class);
+
+        BoneCPDataSources sources = new BoneCPDataSources(context).setApplicationConfiguration(configuration);
+        sources.bindFactory(factory, ImmutableMap.of(DataSourceFactory.OSGI_JDBC_DRIVER_CLASS, "org.h2.Driver"));
+        sources.bindTransactionManager(manager);
+        sources.onStart();
+
+        assertThat(((WrappedDataSource) sources.getDataSource()).getWrapped()).isInstanceOf(XAPool.class);
+        XAPool pool = (XAPool) ((WrappedDataSource) sources.getDataSource()).getWrapped();
+
+        // Within a transaction, the service hands out the enlisted connection.
+        when(manager.getTransaction()).thenReturn(transaction);
+        Connection c1 = sources.getConnection();
+        assertThat(c1).isNotNull();
+        Connection c2 = sources.getConnection(DataSources.DEFAULT_DATASOURCE, ReadIntent.READ_WRITE);
+        assertThat(c2).isNotNull();
+        assertThat(pool.getTotalLeased()).isEqualTo(1);
+        assertThat(pool.getEnlistedTransactions()).isEqualTo(1);
+        verify(transaction, times(1)).enlistResource(any(XAResource.class));
+        ArgumentCaptor<Synchronization> synchronization = ArgumentCaptor.forClass(Synchronization.class);
+        verify(transaction).registerSynchronization(synchronization.capture());
+        c1.close();
+        c2.close();
+        synchronization.getValue().afterCompletion(Status.STATUS_COMMITTED);
+        assertThat(pool.getTotalLeased()).isEqualTo(0);
+
+        // Outside of a transaction, plain connections.
+        when(manager.getTransaction()).thenReturn(null);
+        Connection connection = sources.getConnection();
+        assertThat(connection.getAutoCommit()).isTrue();
+        connection.close();
+        assertThat(pool.getTotalLeased()).isEqualTo(0);
+
+        sources.onStop();
+        assertThat(pool.isClosed()).isTrue();
+    }
+
+    @Test
+    public void testH2MemoryResultCache() throws ClassNotFoundException, SQLException {
+        Bundle bundle = mock(Bundle.class);
+        BundleContext context = mock(BundleContext.class);
+        when(context.getBundle()).thenReturn(bundle);
+        when(bundle.loadClass(anyString())).thenAnswer(new Answer<Class>() {
+            @Override
+            public Class answer(InvocationOnMock invocation) throws Throwable {
+                return TestWithH2.class.getClassLoader().loadClass((String) invocation.getArguments()[0]);
+            }
+        });
+        DataSourceFactory factory = mock(DataSourceFactory.class);
+        when(factory.createDriver(any(Properties.class))).thenReturn(new Driver());
+
+        Map<String, Object> map = ImmutableMap.<String, Object>of(
+                "default.driver", "org.h2.Driver",
+                "default.url", "jdbc:h2:mem:wisdom-result-cache",
+                "default.resultCacheSize", "10"
+        );
+        Configuration conf = new ConfigurationImpl(null, ConfigFactory.parseMap(map));
+
+        ApplicationConfiguration configuration = mock(ApplicationConfiguration.class);
+        when(configuration.getConfiguration(BoneCPDataSources.DB_CONFIGURATION_PREFIX)).thenReturn(conf);
+
+        BoneCPDataSources sources = new BoneCPDataSources(context).setApplicationConfiguration(configuration);
+        sources.bindFactory(factory, ImmutableMap.of(DataSourceFactory.OSGI_JDBC_DRIVER_CLASS, "org.h2.Driver"));
+        sources.onStart();
+
+        Connection connection = sources.getConnection();
+        connection.createStatement().execute(Statements.CREATE_TABLE);
+        connection.createStatement().execute(Statements.INSERT_PHOENIX);
+        connection.close();
+
+        RowMapper<String> city = new RowMapper<String>() {
+            @Override
+            public String map(ResultSet results, int row) throws SQLException {
+                return results.getString("CITY").trim();
+            }
+        };
+        DataSourceMetrics metrics = ((WrappedDataSource) sources.getDataSource()).getMetrics();
+        String query = "SELECT CITY FROM STATION WHERE LAT_N > ? ORDER BY ID";
+
+        assertThat(sources.cachedQuery("default", query, city, 30)).containsExactly("Phoenix");
+        assertThat(sources.cachedQuery("default", query, city, 30)).containsExactly("Phoenix");
+        assertThat(metrics.getResultCacheHits()).isEqualTo(1);
+        assertThat(metrics.getResultCacheMisses()).isEqualTo(1);
+
+        // Writing to the table through the data source invalidates the result.
+        connection = sources.getConnection();
+        connection.prepareStatement(Statements.INSERT_DENVER).executeUpdate();
+        connection.close();
+        assertThat(metrics.getResultCacheSize()).isEqualTo(0);
+        assertThat(sources.cachedQuery("default", query, city, 30)).containsExactly("Phoenix", "Denver");
+        assertThat(metrics.getResultCacheMisses()).isEqualTo(2);
+
+        sources.onStop();
+    }
+
+    @Test
+    public void testH2MemoryResultCacheReadsThePrimary() throws ClassNotFoundException, SQLException {
+        Bundle bundle = mock(Bundle.class);
+        BundleContext context = mock(BundleContext.class);
+        when(context.getBundle()).thenReturn(bundle);
+        when(bundle.loadClass(anyString())).thenAnswer(new Answer<Class>() {
+            @Override
+            public Class answer(InvocationOnMock invocation) throws Throwable {
+                return TestWithH2.class.getClassLoader().loadClass((String) invocation.getArguments()[0]);
+            }
+        });
+        DataSourceFactory factory = mock(DataSourceFactory.class);
+        when(factory.createDriver(any(Properties.class))).thenReturn(new Driver());
+
+        // A lagging replica, with other rows.
+        Connection replica = new Driver().connect("jdbc:h2:mem:wisdom-cache-replica", new Properties());
+        replica.createStatement().execute(Statements.CREATE_TABLE);
+        replica.createStatement().execute(Statements.INSERT_CARIBOU);
+
+        Map<String, Object> map = ImmutableMap.<String, Object>of(
+                "default.driver", "org.h2.Driver",
+                "default.url", "jdbc:h2:mem:wisdom-cache-primary",
+                "default.pool", "concurrent",
+                "default.resultCacheSize", "10",
+                "default.replicas", ImmutableList.of("jdbc:h2:mem:wisdom-cache-replica")
+        );
+        Configuration conf = new ConfigurationImpl(null, ConfigFactory.parseMap(map));
+
+        ApplicationConfiguration configuration = mock(ApplicationConfiguration.class);
+        when(configuration.getConfiguration(BoneCPDataSources.DB_CONFIGURATION_PREFIX)).thenReturn(conf);
+
+        BoneCPDataSources sources = new BoneCPDataSources(context).setApplicationConfiguration(configuration);
+        sources.bindFactory(factory, ImmutableMap.of(DataSourceFactory.OSGI_JDBC_DRIVER_CLASS, "org.h2.Driver"));
+        sources.onStart();
+
+        Connection connection = sources.getConnection(DataSources.DEFAULT_DATASOURCE, ReadIntent.READ_WRITE);
+        connection.createStatement().execute(Statements.CREATE_TABLE);
+        connection.createStatement().execute(Statements.INSERT_PHOENIX);
+        connection.close();
+
+        RowMapper<String> city = new RowMapper<String>() {
+            @Override
+            public String map(ResultSet results, int row) throws SQLException {
+                return results.getString("CITY").trim();
+            }
+        };
+        String query = "SELECT CITY FROM STATION WHERE LAT_N > ? ORDER BY ID";
+
+        // The cache is filled from the primary, even for a read-only request.
+        ReadIntent previous = ReadIntent.enter(ReadIntent.READ_ONLY);
+        try {
+            assertThat(sources.cachedQuery("default", query, city, 30)).containsExactly("Phoenix");
+        } finally {
+            ReadIntent.restore(previous);
+        }
+        assertThat(sources.cachedQuery("default", query, city, 30)).containsExactly("Phoenix");
+
+        sources.onStop();
+        replica.close();
+    }
+
     @Test
     public void testH2File() throws ClassNotFoundException, SQLException {
         Bundle bundle = mock(Bundle.class);
@@ -213,4 +890,151 @@ public class TestWithH2 {
         sources.onStop();
     }
 
+    @Test
+    public void testBootstrapWithUnreachableDataSource() throws Exception {
+        Bundle bundle = mock(Bundle.class);
+        BundleContext context = mock(BundleContext.class);
+        when(context.getBundle()).thenReturn(bundle);
+        when(bundle.loadClass(anyString())).thenAnswer(new Answer<Class>() {
+            @Override
+            public Class answer(InvocationOnMock invocation) throws Throwable {
+                return TestWithH2.class.getClassLoader().loadClass((String) invocation.getArguments()[0]);
+            }
+        });
+
+        UnreachableDriver driver = new UnreachableDriver();
+        DataSourceFactory factory = mock(DataSourceFactory.class);
+        when(factory.createDriver(any(Properties.class))).thenReturn(driver);
+
+        Map<String, Object> map = ImmutableMap.<String, Object>builder()
+                .put("slow.driver", "org.h2.Driver")
+                .put("slow.url", "jdbc:h2:mem:slow")
+                .put("slow.pool", "concurrent")
+                .put("slow.minConnectionsPerPartition", "0")
+                .put("slow.circuitBreakerThreshold", "5")
+                .put("fast.driver", "org.h2.Driver")
+                .put("fast.url", "jdbc:h2:mem:fast")
+                .put("fast.pool", "concurrent")
+                .put("fast.minConnectionsPerPartition", "0")
+                .build();
+        Configuration conf = new ConfigurationImpl(null, ConfigFactory.parseMap(map));
+        ApplicationConfiguration configuration = mock(ApplicationConfiguration.class);
+        when(configuration.getConfiguration(BoneCPDataSources.DB_CONFIGURATION_PREFIX)).thenReturn(conf);
+        when(configuration.getLongWithDefault(eq(BoneCPDataSources.STARTUP_TIMEOUT_KEY), anyLong())).thenReturn(500L);
+
+        BoneCPDataSources sources = new BoneCPDataSources(context).setApplicationConfiguration(configuration);
+        sources.bindFactory(factory, ImmutableMap.of(DataSourceFactory.OSGI_JDBC_DRIVER_CLASS, "org.h2.Driver"));
+
+        // The start does not wait for the slow data source past the deadline.
+        long start = System.currentTimeMillis();
+        sources.onStart();
+        assertThat(System.currentTimeMillis() - start).isLessThan(5000);
+
+        // The data sources are activated in parallel, the fast one is ready.
+        WrappedDataSource fast = (WrappedDataSource) sources.getDataSource("fast");
+        WrappedDataSource slow = (WrappedDataSource) sources.getDataSource("slow");
+        verify(context).registerService(eq(DataSource.class), same(fast), any(Dictionary.class));
+        verify(context, never()).registerService(eq(DataSource.class), same(slow), any(Dictionary.class));
+        Connection connection = fast.getConnection();
+        connection.close();
+
+        // Retried in background while the database is down.
+        driver.release();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (driver.getAttempts() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(driver.getAttempts()).isGreaterThanOrEqualTo(2);
+        verify(context, never()).registerService(eq(DataSource.class), same(slow), any(Dictionary.class));
+
+        // Registered once it is back.
+        driver.up();
+        verify(context, timeout(10000)).registerService(eq(DataSource.class), same(slow), any(Dictionary.class));
+
+        // Removed from the configuration, its tasks are stopped.
+        assertThat(slow.getCircuitBreaker()).isNotNull();
+        conf = new ConfigurationImpl(null, ConfigFactory.parseMap(ImmutableMap.<String, Object>of(
+                "fast.driver", "org.h2.Driver",
+                "fast.url", "jdbc:h2:mem:fast",
+                "fast.pool", "concurrent",
+                "fast.minConnectionsPerPartition", "0"
+        )));
+        when(configuration.getConfiguration(BoneCPDataSources.DB_CONFIGURATION_PREFIX)).thenReturn(conf);
+        sources.onStart();
+        assertThat(sources.getDataSources()).containsOnlyKeys("fast");
+        assertThat(slow.isAvailable()).isFalse();
+        assertThat(slow.getCircuitBreaker()).isNull();
+        assertThat(fast.isAvailable()).isTrue();
+
+        sources.onStop();
+    }
+
+    /**
+     * The H2 driver, except that the connections to the {@code slow} database block until released, then fail until
+     * the database is up.
+     */
+    private static final class UnreachableDriver implements java.sql.Driver {
+        private final Driver delegate = new Driver();
+        private final CountDownLatch released = new CountDownLatch(1);
+        private final AtomicInteger attempts = new AtomicInteger();
+        private volatile boolean up;
+
+        void release() {
+            released.countDown();
+        }
+
+        void up() {
+            up = true;
+        }
+
+        int getAttempts() {
+            return attempts.get();
+        }
+
+        @Override
+        public Connection connect(String url, Properties info) throws SQLException {
+            if (url.contains("slow") && !up) {
+                attempts.incrementAndGet();
+                try {
+                    released.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (!up) {
+                    throw new SQLException("The database is down");
+                }
+            }
+            return delegate.connect(url, info);
+        }
+
+        @Override
+        public boolean acceptsURL(String url) throws SQLException {
+            return delegate.acceptsURL(url);
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) throws SQLException {
+            return delegate.getPropertyInfo(url, info);
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return delegate.getMajorVersion();
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return delegate.getMinorVersion();
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return delegate.jdbcCompliant();
+        }
+
+        @Override
+        public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
 }
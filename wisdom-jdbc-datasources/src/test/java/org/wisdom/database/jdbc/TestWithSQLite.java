@@ -0,0 +1,145 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc;
+
+import com.google.common.collect.ImmutableMap;
+import com.typesafe.config.ConfigFactory;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.jdbc.DataSourceFactory;
+import org.wisdom.api.configuration.ApplicationConfiguration;
+import org.wisdom.api.configuration.Configuration;
+import org.wisdom.configuration.ConfigurationImpl;
+import org.wisdom.database.jdbc.impl.BoneCPDataSources;
+import org.wisdom.database.jdbc.service.ReadIntent;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Check the single-writer mode of the data source manager with SQLite.
+ */
+public class TestWithSQLite {
+
+    private static final File DATABASE = new File("target/sqlite/single-writer.db");
+
+    @After
+    public void cleanup() {
+        FileUtils.deleteQuietly(DATABASE.getParentFile());
+    }
+
+    @Test
+    public void testSingleWriter() throws ClassNotFoundException, SQLException, InterruptedException {
+        DATABASE.getParentFile().mkdirs();
+        BundleContext context = prepareContext();
+
+        Map<String, Object> map = ImmutableMap.<String, Object>of(
+                "default.driver", "org.sqlite.JDBC",
+                "default.url", "jdbc:sqlite:" + DATABASE.getAbsolutePath(),
+                "default.singleWriter", "true",
+                "default.isolation", "SERIALIZABLE"
+        );
+        Configuration conf = new ConfigurationImpl(null, ConfigFactory.parseMap(map));
+
+        ApplicationConfiguration configuration = mock(ApplicationConfiguration.class);
+        when(configuration.getConfiguration(BoneCPDataSources.DB_CONFIGURATION_PREFIX)).thenReturn(conf);
+
+        BoneCPDataSources sources = new BoneCPDataSources(context).setApplicationConfiguration(configuration);
+        sources.bindFactory(factory, ImmutableMap.of(DataSourceFactory.OSGI_JDBC_DRIVER_CLASS, "org.sqlite.JDBC"));
+        sources.onStart();
+
+        final Connection writer = sources.getConnection();
+        writer.createStatement().execute(Statements.CREATE_TABLE);
+        writer.createStatement().execute(Statements.INSERT_CARIBOU);
+
+        // Reads are served by the readers while the writer is leased.
+        Connection reader = sources.getConnection("default", ReadIntent.READ_ONLY);
+        assertThat(reader.isReadOnly()).isTrue();
+        ResultSet results = reader.createStatement().executeQuery(Statements.SELECT_WITH_LAT);
+        assertThat(results.next()).isTrue();
+        assertThat(results.getString(2).trim()).isEqualTo("Caribou");
+        results.close();
+        reader.close();
+
+        // A second writer waits for the first one.
+        final BoneCPDataSources manager = sources;
+        final AtomicBoolean acquired = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Connection connection = manager.getConnection();
+                try {
+                    if (connection != null) {
+                        connection.createStatement().execute(Statements.INSERT_DENVER);
+                        connection.close();
+                        acquired.set(true);
+                    }
+                } catch (SQLException e) {
+                    // Reported by the assertion below.
+                } finally {
+                    done.countDown();
+                }
+            }
+        }).start();
+        assertThat(done.await(200, TimeUnit.MILLISECONDS)).isFalse();
+        writer.close();
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(acquired.get()).isTrue();
+
+        sources.onStop();
+    }
+
+    private DataSourceFactory factory;
+
+    private BundleContext prepareContext() throws ClassNotFoundException, SQLException {
+        Bundle bundle = mock(Bundle.class);
+        BundleContext context = mock(BundleContext.class);
+        when(context.getBundle()).thenReturn(bundle);
+        when(bundle.loadClass(anyString())).thenAnswer(new Answer<Class>() {
+            @Override
+            public Class answer(InvocationOnMock invocation) throws Throwable {
+                return TestWithSQLite.class.getClassLoader().loadClass((String) invocation.getArguments()[0]);
+            }
+        });
+
+        factory = mock(DataSourceFactory.class);
+        when(factory.createDriver(any(Properties.class))).thenReturn(new org.sqlite.JDBC());
+        return context;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.google.common.collect.ImmutableMap;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+import org.wisdom.configuration.ConfigurationImpl;
+import org.wisdom.database.jdbc.impl.pool.ConcurrentDataSource;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks the decisions of the adaptive sizing controller.
+ */
+public class AdaptiveSizerTest {
+
+    @Test
+    public void testGrowthAndShrink() {
+        WrappedDataSource source = new WrappedDataSource("test", new ConfigurationImpl(null,
+                ConfigFactory.parseMap(ImmutableMap.<String, Object>of(
+                        "maxConnectionsPerPartition", "10",
+                        "minConnectionsPerPartition", "2",
+                        "adaptiveTargetWait", "50",
+                        "adaptiveMaxGrowth", "3",
+                        "adaptiveShrinkDelay", "1000"))));
+        ConcurrentDataSource pool = mock(ConcurrentDataSource.class);
+        source.set(pool);
+        AdaptiveSizer sizer = new AdaptiveSizer(source);
+
+        // New pool, starts from the lower bound.
+        sizer.adjust(ms(0));
+        verify(pool).resize(2);
+
+        // The acquire wait exceeds the target, grows by at most 3 connections.
+        when(pool.getMaxSize()).thenReturn(2);
+        when(pool.getTotalLeased()).thenReturn(2);
+        recordWait(source, 100);
+        sizer.adjust(ms(1000));
+        verify(pool).resize(5);
+
+        // Capped by the maximum.
+        when(pool.getMaxSize()).thenReturn(9);
+        recordWait(source, 100);
+        sizer.adjust(ms(2000));
+        verify(pool).resize(10);
+
+        // Fast acquisitions, low utilisation, shrinks once the delay is elapsed.
+        when(pool.getMaxSize()).thenReturn(10);
+        when(pool.getTotalLeased()).thenReturn(1);
+        recordWait(source, 1);
+        sizer.adjust(ms(2500));
+        verify(pool, times(3)).resize(anyInt());
+        sizer.adjust(ms(3500));
+        verify(pool).resize(9);
+
+        // Requests queued on a full pool, grows even without a slow acquisition.
+        when(pool.getMaxSize()).thenReturn(9);
+        when(pool.getTotalLeased()).thenReturn(9);
+        when(pool.getWaitingThreadCount()).thenReturn(4);
+        sizer.adjust(ms(4500));
+        verify(pool, times(2)).resize(10);
+    }
+
+    private static void recordWait(WrappedDataSource source, long ms) {
+        PoolMetrics metrics = source.getMetrics();
+        metrics.onAcquireEnd(metrics.onAcquireStart() - TimeUnit.MILLISECONDS.toNanos(ms));
+    }
+
+    private static long ms(long ms) {
+        return TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+}
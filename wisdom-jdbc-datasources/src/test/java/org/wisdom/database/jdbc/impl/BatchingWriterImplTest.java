@@ -0,0 +1,251 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.typesafe.config.ConfigFactory;
+import org.h2.Driver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.jdbc.DataSourceFactory;
+import org.wisdom.api.configuration.ApplicationConfiguration;
+import org.wisdom.configuration.ConfigurationImpl;
+import org.wisdom.database.jdbc.service.BatchingWriter;
+import org.wisdom.database.jdbc.service.DataSources;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks the batching writer against H2.
+ */
+public class BatchingWriterImplTest {
+
+    private BoneCPDataSources sources;
+    private BatchingWriterImpl writer;
+
+    @Before
+    public void setUp() throws Exception {
+        Bundle bundle = mock(Bundle.class);
+        BundleContext context = mock(BundleContext.class);
+        when(context.getBundle()).thenReturn(bundle);
+        when(bundle.loadClass(anyString())).thenAnswer(new Answer<Class>() {
+            @Override
+            public Class answer(InvocationOnMock invocation) throws Throwable {
+                return BatchingWriterImplTest.class.getClassLoader()
+                        .loadClass((String) invocation.getArguments()[0]);
+            }
+        });
+        DataSourceFactory factory = mock(DataSourceFactory.class);
+        when(factory.createDriver(any(Properties.class))).thenReturn(new Driver());
+
+        ApplicationConfiguration configuration = mock(ApplicationConfiguration.class);
+        when(configuration.getConfiguration(BoneCPDataSources.DB_CONFIGURATION_PREFIX)).thenReturn(
+                new ConfigurationImpl(null, ConfigFactory.parseMap(ImmutableMap.<String, Object>of(
+                        "default.driver", "org.h2.Driver",
+                        "default.url", "jdbc:h2:mem:batching;DB_CLOSE_DELAY=-1"))));
+
+        sources = new BoneCPDataSources(context).setApplicationConfiguration(configuration);
+        sources.bindFactory(factory, ImmutableMap.of(DataSourceFactory.OSGI_JDBC_DRIVER_CLASS, "org.h2.Driver"));
+        sources.onStart();
+        try (Connection connection = sources.getConnection()) {
+            connection.createStatement().execute("CREATE TABLE EVENTS(ID INT PRIMARY KEY, NAME VARCHAR(255))");
+        }
+
+        writer = new BatchingWriterImpl();
+        writer.sources = sources;
+        writer.configuration = configuration;
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        writer.stop();
+        try (Connection connection = sources.getConnection()) {
+            connection.createStatement().execute("DROP TABLE EVENTS");
+        }
+        sources.onStop();
+    }
+
+    @Test
+    public void testConcurrentSubmissions() throws Exception {
+        final BatchingWriter.Statement statement = writer.register("default",
+                "INSERT INTO EVENTS(ID, NAME) VALUES (?, ?)");
+        assertThat(writer.register("default", "INSERT INTO EVENTS(ID, NAME) VALUES (?, ?)")).isSameAs(statement);
+
+        final List<ListenableFuture<Integer>> futures = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int offset = t * 100;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        ListenableFuture<Integer> future = statement.submit(offset + i, "event-" + (offset + i));
+                        synchronized (futures) {
+                            futures.add(future);
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (ListenableFuture<Integer> future : futures) {
+            assertThat(future.get(10, TimeUnit.SECONDS)).isEqualTo(1);
+        }
+        assertThat(count()).isEqualTo(800);
+    }
+
+    @Test
+    public void testFailingRow() throws Exception {
+        BatchingWriter.Statement statement = writer.register("default", "INSERT INTO EVENTS(ID, NAME) VALUES (?, ?)");
+        ListenableFuture<Integer> first = statement.submit(1, "first");
+        ListenableFuture<Integer> duplicate = statement.submit(1, "duplicate");
+        ListenableFuture<Integer> second = statement.submit(2, "second");
+
+        assertThat(first.get(10, TimeUnit.SECONDS)).isEqualTo(1);
+        assertThat(second.get(10, TimeUnit.SECONDS)).isEqualTo(1);
+        try {
+            duplicate.get(10, TimeUnit.SECONDS);
+            fail("Duplicated key");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(SQLException.class);
+        }
+        assertThat(count()).isEqualTo(2);
+    }
+
+    @Test
+    public void testRuntimeFailureOnlyFailsItsBatch() throws Exception {
+        BatchingWriter.Statement statement = writer.register("default", "INSERT INTO EVENTS(ID, NAME) VALUES (?, ?)");
+        DataSources broken = mock(DataSources.class);
+        when(broken.getConnection(anyString(), anyBoolean())).thenThrow(new IllegalStateException("broken"));
+        writer.sources = broken;
+        try {
+            statement.submit(1, "lost").get(10, TimeUnit.SECONDS);
+            fail("The data sources are broken");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(IllegalStateException.class);
+        }
+
+        writer.sources = sources;
+        assertThat(statement.submit(2, "written").get(10, TimeUnit.SECONDS)).isEqualTo(1);
+        assertThat(count()).isEqualTo(1);
+    }
+
+    @Test
+    public void testCommitFailureFailsTheWholeBatch() throws Exception {
+        BatchingWriter.Statement statement = writer.register("default", "INSERT INTO EVENTS(ID, NAME) VALUES (?, ?)");
+        PreparedStatement prepared = mock(PreparedStatement.class);
+        when(prepared.executeBatch()).thenReturn(new int[]{1, 1});
+        Connection connection = mock(Connection.class);
+        when(connection.prepareStatement(anyString())).thenReturn(prepared);
+        doThrow(new SQLException("commit")).when(connection).commit();
+        DataSources broken = mock(DataSources.class);
+        when(broken.getConnection(anyString(), anyBoolean())).thenReturn(connection);
+        writer.sources = broken;
+
+        List<ListenableFuture<Integer>> futures = new ArrayList<>();
+        futures.add(statement.submit(1, "first"));
+        futures.add(statement.submit(2, "second"));
+        for (ListenableFuture<Integer> future : futures) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+                fail("The commit failed");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause()).hasMessage("commit");
+            }
+        }
+        // The rows are not written again one by one.
+        verify(prepared, never()).executeUpdate();
+        verify(connection).rollback();
+    }
+
+    @Test
+    public void testMoreStatementsThanFlushers() throws Exception {
+        when(writer.configuration.getIntegerWithDefault(BatchingWriterImpl.FLUSHERS_KEY, 4)).thenReturn(1);
+        BatchingWriter.Statement first = writer.register("default", "INSERT INTO EVENTS(ID, NAME) VALUES (?, ?)");
+        BatchingWriter.Statement second = writer.register("default", "INSERT INTO EVENTS(NAME, ID) VALUES (?, ?)");
+        List<ListenableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            futures.add(first.submit(i, "first-" + i));
+            futures.add(second.submit("second-" + i, 1000 + i));
+        }
+        for (ListenableFuture<Integer> future : futures) {
+            assertThat(future.get(10, TimeUnit.SECONDS)).isEqualTo(1);
+        }
+        assertThat(count()).isEqualTo(1000);
+    }
+
+    @Test
+    public void testStop() throws Exception {
+        BatchingWriter.Statement statement = writer.register("default", "INSERT INTO EVENTS(ID, NAME) VALUES (?, ?)");
+        List<ListenableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(statement.submit(i, "event-" + i));
+        }
+        writer.stop();
+        for (ListenableFuture<Integer> future : futures) {
+            assertThat(future.get(10, TimeUnit.SECONDS)).isEqualTo(1);
+        }
+        try {
+            statement.submit(100, "late").get(10, TimeUnit.SECONDS);
+            fail("The writer is stopped");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(RejectedExecutionException.class);
+        }
+        assertThat(count()).isEqualTo(50);
+    }
+
+    private int count() throws SQLException {
+        try (Connection connection = sources.getConnection()) {
+            ResultSet results = connection.createStatement().executeQuery("SELECT COUNT(*) FROM EVENTS");
+            results.next();
+            return results.getInt(1);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.wisdom.database.jdbc.service.CircuitState;
+import org.wisdom.database.jdbc.service.DataSourceUnavailableException;
+
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks the transitions of the circuit breaker.
+ */
+public class CircuitBreakerTest {
+
+    @Test
+    public void testOpenProbeAndClose() throws Exception {
+        final AtomicBoolean up = new AtomicBoolean();
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        CircuitBreaker breaker = new CircuitBreaker("test", 3, 100, new Callable<Void>() {
+            @Override
+            public Void call() throws SQLException {
+                if (!up.get()) {
+                    throw new SQLException("down");
+                }
+                return null;
+            }
+        }, scheduler);
+
+        breaker.onFailure(new SQLException("1"));
+        breaker.onFailure(new SQLException("2"));
+        breaker.check();
+        assertThat(breaker.getState()).isEqualTo(CircuitState.CLOSED);
+
+        breaker.onFailure(new SQLException("3"));
+        assertThat(breaker.getState()).isEqualTo(CircuitState.OPEN);
+        try {
+            breaker.check();
+            fail("The circuit is open");
+        } catch (DataSourceUnavailableException e) {
+            assertThat(e.getDataSourceName()).isEqualTo("test");
+            assertThat(e.getCause()).hasMessage("3");
+        }
+
+        // The probe fails, the delay doubles.
+        ArgumentCaptor<Runnable> probe = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(probe.capture(), eq(100L), eq(TimeUnit.MILLISECONDS));
+        probe.getValue().run();
+        assertThat(breaker.getState()).isEqualTo(CircuitState.OPEN);
+        verify(scheduler).schedule(probe.capture(), eq(200L), eq(TimeUnit.MILLISECONDS));
+
+        // The probe succeeds, the circuit closes.
+        up.set(true);
+        probe.getValue().run();
+        assertThat(breaker.getState()).isEqualTo(CircuitState.CLOSED);
+        breaker.check();
+        verify(scheduler, times(2)).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    public void testSuccessResetsFailures() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        CircuitBreaker breaker = new CircuitBreaker("test", 2, 100, mock(Callable.class), scheduler);
+
+        breaker.onFailure(new SQLException("1"));
+        breaker.onSuccess();
+        breaker.onFailure(new SQLException("2"));
+        assertThat(breaker.getState()).isEqualTo(CircuitState.CLOSED);
+
+        breaker.onFailure(new SQLException("3"));
+        assertThat(breaker.getState()).isEqualTo(CircuitState.OPEN);
+
+        // A connection opened by the pool closes the circuit, the pending probe does nothing.
+        breaker.onSuccess();
+        assertThat(breaker.getState()).isEqualTo(CircuitState.CLOSED);
+        ArgumentCaptor<Runnable> probe = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(probe.capture(), eq(100L), eq(TimeUnit.MILLISECONDS));
+        probe.getValue().run();
+        assertThat(breaker.getState()).isEqualTo(CircuitState.CLOSED);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.junit.Test;
+import org.wisdom.database.jdbc.service.LatencyStatistics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks the latency histogram.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        LatencyStatistics statistics = new LatencyHistogram().snapshot();
+        assertThat(statistics.getCount()).isEqualTo(0);
+        assertThat(statistics.getMeanInNs()).isEqualTo(0.0);
+        assertThat(statistics.getValueAtPercentileInNs(99)).isEqualTo(0);
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        LatencyStatistics statistics = histogram.snapshot();
+        assertThat(statistics.getCount()).isEqualTo(1000);
+        assertThat(statistics.getMaxInNs()).isEqualTo(1000000);
+        assertThat(statistics.getMeanInNs()).isEqualTo(500500.0);
+        // 3% precision.
+        assertThat(statistics.getValueAtPercentileInNs(50)).isBetween(500000L, 515000L);
+        assertThat(statistics.getValueAtPercentileInNs(99)).isBetween(990000L, 1000000L);
+        assertThat(statistics.getValueAtPercentileInNs(100)).isEqualTo(1000000);
+    }
+
+    @Test
+    public void testBuckets() {
+        for (long value : new long[]{0, 1, 31, 32, 33, 63, 64, 1000, 123456789, 1L << 41}) {
+            long highest = LatencyHistogram.highestValueOf(LatencyHistogram.indexOf(value));
+            assertThat(highest).isGreaterThanOrEqualTo(value);
+            assertThat(highest - value).isLessThanOrEqualTo(Math.max(1, value / 32));
+        }
+        // Very long values go in the last bucket.
+        assertThat(LatencyHistogram.indexOf(Long.MAX_VALUE)).isEqualTo(LatencyHistogram.indexOf(Long.MAX_VALUE - 1));
+    }
+}
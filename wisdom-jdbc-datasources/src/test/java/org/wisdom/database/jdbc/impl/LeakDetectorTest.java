@@ -0,0 +1,63 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Checks the reports of the leak detector.
+ */
+public class LeakDetectorTest {
+
+    @Test
+    public void testLeaseReportedOnce() {
+        LeakDetector detector = new LeakDetector("test", 1000, 1);
+        Connection leaked = mock(Connection.class);
+        Connection returned = mock(Connection.class);
+
+        detector.onCheckOut(leaked);
+        detector.onCheckOut(returned);
+        long start = System.nanoTime();
+        assertThat(detector.sweep(start)).isEqualTo(0);
+
+        detector.onCheckIn(returned);
+        long later = start + TimeUnit.SECONDS.toNanos(2);
+        assertThat(detector.sweep(later)).isEqualTo(1);
+        // Already reported.
+        assertThat(detector.sweep(later)).isEqualTo(0);
+
+        detector.onCheckIn(leaked);
+        assertThat(detector.getSuspectedLeaks()).isEqualTo(0);
+        assertThat(detector.sweep(later)).isEqualTo(0);
+    }
+
+    @Test
+    public void testLeaseReportedWithoutSampling() {
+        LeakDetector detector = new LeakDetector("test", 1000, 0);
+        detector.onCheckOut(mock(Connection.class));
+        assertThat(detector.sweep(System.nanoTime() + TimeUnit.SECONDS.toNanos(2))).isEqualTo(1);
+    }
+}
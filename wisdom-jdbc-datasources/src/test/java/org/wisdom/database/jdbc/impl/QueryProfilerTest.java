@@ -0,0 +1,97 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.junit.Test;
+import org.wisdom.database.jdbc.service.QueryStatistics;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks the fingerprints and the aggregation of the query profiler.
+ */
+public class QueryProfilerTest {
+
+    @Test
+    public void testFingerprint() {
+        assertThat(QueryProfiler.fingerprint("SELECT * FROM  T1 WHERE ID = 42 AND NAME = 'O''Hara'"))
+                .isEqualTo("SELECT * FROM T1 WHERE ID = ? AND NAME = ?");
+        assertThat(QueryProfiler.fingerprint("select a\n  from t -- comment\nwhere x in (1, 2.5, ?) /* hint */"))
+                .isEqualTo("select a from t where x in (?)");
+        assertThat(QueryProfiler.fingerprint("UPDATE T SET V = ? WHERE K = ?"))
+                .isEqualTo("UPDATE T SET V = ? WHERE K = ?");
+    }
+
+    @Test
+    public void testAggregationAndEviction() {
+        QueryProfiler profiler = new QueryProfiler();
+        profiler.setCapacity(2);
+
+        assertThat(profiler.record("SELECT * FROM A WHERE ID = 1", 300)).isTrue();
+        assertThat(profiler.record("SELECT * FROM A WHERE ID = 2", 500)).isFalse();
+        assertThat(profiler.record("SELECT * FROM B", 100)).isTrue();
+
+        List<QueryStatistics> top = profiler.getTop(10);
+        assertThat(top).hasSize(2);
+        assertThat(top.get(0).getFingerprint()).isEqualTo("SELECT * FROM A WHERE ID = ?");
+        assertThat(top.get(0).getCount()).isEqualTo(2);
+        assertThat(top.get(0).getTotalInNs()).isEqualTo(800);
+
+        // The fingerprint with the lowest total time is evicted.
+        assertThat(profiler.record("SELECT * FROM C", 1000)).isTrue();
+        top = profiler.getTop(10);
+        assertThat(top).hasSize(2);
+        assertThat(top.get(0).getFingerprint()).isEqualTo("SELECT * FROM C");
+        assertThat(top.get(1).getFingerprint()).isEqualTo("SELECT * FROM A WHERE ID = ?");
+        assertThat(profiler.getTop(1)).hasSize(1);
+    }
+
+    @Test
+    public void testAdmissionOfCandidates() {
+        QueryProfiler profiler = new QueryProfiler();
+        profiler.setCapacity(2);
+        assertThat(profiler.record("SELECT * FROM A", 800)).isTrue();
+        assertThat(profiler.record("SELECT * FROM B", 1000)).isTrue();
+
+        // Statements seen once do not push the profiled fingerprints out.
+        for (int i = 0; i < 50; i++) {
+            assertThat(profiler.record("SELECT * FROM T" + i, 10)).isFalse();
+        }
+        List<QueryStatistics> top = profiler.getTop(10);
+        assertThat(top).hasSize(2);
+        assertThat(top.get(0).getFingerprint()).isEqualTo("SELECT * FROM B");
+        assertThat(top.get(1).getFingerprint()).isEqualTo("SELECT * FROM A");
+
+        // A candidate is admitted once its total time exceeds the lowest one, and reported once.
+        for (int i = 0; i < 8; i++) {
+            assertThat(profiler.record("SELECT * FROM C", 100)).isFalse();
+        }
+        assertThat(profiler.record("SELECT * FROM C", 100)).isTrue();
+        assertThat(profiler.record("SELECT * FROM C", 200)).isFalse();
+        top = profiler.getTop(10);
+        assertThat(top).hasSize(2);
+        assertThat(top.get(0).getFingerprint()).isEqualTo("SELECT * FROM C");
+        assertThat(top.get(1).getFingerprint()).isEqualTo("SELECT * FROM B");
+        // The latency is recorded from the admission.
+        assertThat(top.get(0).getCount()).isEqualTo(2);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.junit.Test;
+import org.wisdom.database.jdbc.Statements;
+import org.wisdom.database.jdbc.service.RowMapper;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks the table extraction and the invalidation of the result cache.
+ */
+public class ResultCacheTest {
+
+    private static final RowMapper<String> MAPPER = new RowMapper<String>() {
+        @Override
+        public String map(ResultSet results, int row) throws SQLException {
+            return results.getString(1);
+        }
+    };
+
+    @Test
+    public void testTables() {
+        assertThat(ResultCache.tables("SELECT * FROM STATION WHERE ID = 1")).containsExactly("STATION");
+        assertThat(ResultCache.tables("select a.x from \"PUBLIC\".t1 a, t2 b join T3 on a.id = b.id "
+                + "where x in (select y from t4)")).containsExactly("T1", "T2", "T3", "T4");
+        assertThat(ResultCache.tables("INSERT INTO station(id) VALUES (1)")).containsExactly("STATION");
+        assertThat(ResultCache.tables("UPDATE s.T SET V = 'FROM X' WHERE K = ?")).containsExactly("T");
+        assertThat(ResultCache.tables("CALL proc()")).isEmpty();
+
+        assertThat(ResultCache.isWrite("select * from T")).isFalse();
+        assertThat(ResultCache.isWrite("DELETE FROM T")).isTrue();
+        assertThat(ResultCache.isWrite("CALL proc()")).isTrue();
+    }
+
+    @Test
+    public void testQueriesWithUnknownTablesAreNotCached() {
+        ResultCache cache = new ResultCache("test", 10);
+        for (String sql : Arrays.asList("SELECT 1", "SELECT * FROM TABLE(X INT=(1, 2))",
+                "SELECT * FROM STATION S JOIN NEARBY(?) N ON S.ID = N.ID",
+                "WITH A AS (SELECT * FROM STATION) SELECT * FROM A")) {
+            ResultCache.Key key = cache.key(sql, new Object[]{1}, MAPPER);
+            cache.put(key, Collections.singletonList("x"), cache.getGeneration());
+            assertThat(cache.get(key)).isNull();
+        }
+        assertThat(cache.getSize()).isEqualTo(0);
+
+        assertThat(cache.getModifiedTables("SELECT * FROM STATION")).isNull();
+        assertThat(cache.getModifiedTables("DELETE FROM STATION")).containsExactly("STATION");
+        assertThat(cache.getModifiedTables("CALL proc()")).isEmpty();
+    }
+
+    @Test
+    public void testInvalidation() throws SQLException {
+        ResultCache cache = new ResultCache("test", 10);
+        ResultCache.Key station = cache.key("SELECT CITY FROM STATION WHERE ID = ?", new Object[]{13}, MAPPER);
+        ResultCache.Key other = cache.key("SELECT NAME FROM OTHER", null, MAPPER);
+        cache.put(station, Collections.singletonList("Phoenix"), cache.getGeneration());
+        cache.put(other, Collections.singletonList("x"), cache.getGeneration());
+        assertThat(cache.get(cache.key("SELECT CITY FROM STATION WHERE ID = ?", new Object[]{13}, MAPPER)))
+                .containsExactly("Phoenix");
+        assertThat(cache.get(cache.key("SELECT CITY FROM STATION WHERE ID = ?", new Object[]{44}, MAPPER)))
+                .isNull();
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(cache.getMisses()).isEqualTo(1);
+
+        long generation = cache.getGeneration();
+        try (Connection connection = cache.onAcquire(DriverManager.getConnection("jdbc:h2:mem:wisdom-cache"))) {
+            connection.createStatement().execute(Statements.CREATE_TABLE);
+            connection.prepareStatement("SELECT * FROM STATION").executeQuery().close();
+            assertThat(cache.get(station)).isNotNull();
+
+            connection.prepareStatement(Statements.INSERT_PHOENIX).executeUpdate();
+            assertThat(cache.get(station)).isNull();
+            assertThat(cache.get(other)).isNotNull();
+        }
+
+        // A result read before the invalidation is not cached.
+        cache.put(station, Arrays.asList("Stale"), generation);
+        assertThat(cache.get(station)).isNull();
+        assertThat(cache.getSize()).isEqualTo(1);
+
+        cache.clear();
+        assertThat(cache.getSize()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks that the session settings are only sent to the driver when they change.
+ */
+public class SessionDefaultsTest {
+
+    @Test
+    public void testOnlyChangesAreApplied() throws SQLException {
+        SessionDefaults defaults = new SessionDefaults(true, Connection.TRANSACTION_READ_COMMITTED, false, null);
+        Connection physical = mock(Connection.class);
+        Connection connection = defaults.onAcquire(physical);
+        assertThat(connection).isInstanceOf(SessionTrackingConnection.class);
+
+        // First checkout, the state is unknown.
+        defaults.onCheckOut(connection);
+        verify(physical).setAutoCommit(true);
+        verify(physical).setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        verify(physical).setReadOnly(false);
+        assertThat(defaults.getIssuedCalls()).isEqualTo(3);
+
+        // Nothing changed.
+        defaults.onCheckOut(connection);
+        verifyNoMoreInteractions(physical);
+        assertThat(defaults.getSavedCalls()).isEqualTo(3);
+
+        // The application disabled the auto-commit, only this setting is reset.
+        connection.setAutoCommit(false);
+        defaults.onCheckOut(connection);
+        verify(physical).setAutoCommit(false);
+        verify(physical, times(2)).setAutoCommit(true);
+        verifyNoMoreInteractions(physical);
+        assertThat(defaults.getIssuedCalls()).isEqualTo(4);
+        assertThat(defaults.getSavedCalls()).isEqualTo(5);
+    }
+
+    @Test
+    public void testFailedCallIsRetried() throws SQLException {
+        SessionDefaults defaults = new SessionDefaults(true, Connection.TRANSACTION_READ_COMMITTED, false, null);
+        Connection physical = mock(Connection.class);
+        Connection connection = defaults.onAcquire(physical);
+        defaults.onCheckOut(connection);
+
+        doThrow(new SQLException("boom")).when(physical).setReadOnly(true);
+        try {
+            connection.setReadOnly(true);
+        } catch (SQLException e) {
+            // Expected.
+        }
+        defaults.onCheckOut(connection);
+        verify(physical, times(2)).setReadOnly(false);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.google.common.collect.ImmutableMap;
+import com.typesafe.config.ConfigFactory;
+import org.h2.Driver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.jdbc.DataSourceFactory;
+import org.wisdom.api.configuration.ApplicationConfiguration;
+import org.wisdom.api.http.Result;
+import org.wisdom.api.interception.RequestContext;
+import org.wisdom.configuration.ConfigurationImpl;
+import org.wisdom.database.jdbc.service.DataSources;
+import org.wisdom.database.jdbc.service.ReadIntent;
+import org.wisdom.database.jdbc.service.WithConnection;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that the actions annotated with {@link WithConnection} use a single connection.
+ */
+public class WithConnectionInterceptorTest {
+
+    private BoneCPDataSources sources;
+    private WithConnectionInterceptor interceptor;
+
+    @Before
+    public void setUp() throws Exception {
+        Bundle bundle = mock(Bundle.class);
+        BundleContext context = mock(BundleContext.class);
+        when(context.getBundle()).thenReturn(bundle);
+        when(bundle.loadClass(anyString())).thenAnswer(new Answer<Class>() {
+            @Override
+            public Class answer(InvocationOnMock invocation) throws Throwable {
+                return WithConnectionInterceptorTest.class.getClassLoader()
+                        .loadClass((String) invocation.getArguments()[0]);
+            }
+        });
+        DataSourceFactory factory = mock(DataSourceFactory.class);
+        when(factory.createDriver(any(Properties.class))).thenReturn(new Driver());
+
+        ApplicationConfiguration configuration = mock(ApplicationConfiguration.class);
+        when(configuration.getConfiguration(BoneCPDataSources.DB_CONFIGURATION_PREFIX)).thenReturn(
+                new ConfigurationImpl(null, ConfigFactory.parseMap(ImmutableMap.<String, Object>of(
+                        "default.driver", "org.h2.Driver",
+                        "default.url", "jdbc:h2:mem:bound"))));
+
+        sources = new BoneCPDataSources(context).setApplicationConfiguration(configuration);
+        sources.bindFactory(factory, ImmutableMap.of(DataSourceFactory.OSGI_JDBC_DRIVER_CLASS, "org.h2.Driver"));
+        sources.onStart();
+
+        interceptor = new WithConnectionInterceptor();
+        interceptor.sources = sources;
+    }
+
+    @After
+    public void tearDown() {
+        sources.onStop();
+    }
+
+    @Test
+    public void testSingleConnectionPerAction() throws Exception {
+        WithConnection configuration = mock(WithConnection.class);
+        when(configuration.datasource()).thenReturn(DataSources.DEFAULT_DATASOURCE);
+        RequestContext ctx = mock(RequestContext.class);
+        when(ctx.proceed()).thenAnswer(new Answer<Result>() {
+            @Override
+            public Result answer(InvocationOnMock invocation) throws Throwable {
+                // Local temporary tables are only visible from the session creating them.
+                Connection first = sources.getConnection();
+                first.createStatement().execute("CREATE LOCAL TEMPORARY TABLE BOUND(ID INT)");
+                first.close();
+                try {
+                    first.createStatement();
+                    fail("The view is closed");
+                } catch (SQLException e) {
+                    // Expected.
+                }
+
+                Connection second = sources.getConnection();
+                ResultSet results = second.createStatement().executeQuery("SELECT COUNT(*) FROM BOUND");
+                assertThat(results.next()).isTrue();
+                second.close();
+                return null;
+            }
+        });
+
+        interceptor.call(configuration, ctx);
+        assertThat(BoundConnections.get(DataSources.DEFAULT_DATASOURCE)).isNull();
+
+        // The connection has been given back, the next connection is not bound.
+        Connection connection = sources.getConnection();
+        assertThat(connection).isNotInstanceOf(BoundConnection.class);
+        connection.close();
+    }
+
+    @Test
+    public void testNestedCallsKeepTheTransaction() throws Exception {
+        Connection setup = sources.getConnection();
+        setup.createStatement().execute("CREATE TABLE NESTED(ID INT)");
+        setup.close();
+
+        WithConnection configuration = mock(WithConnection.class);
+        when(configuration.datasource()).thenReturn(DataSources.DEFAULT_DATASOURCE);
+        RequestContext ctx = mock(RequestContext.class);
+        when(ctx.proceed()).thenAnswer(new Answer<Result>() {
+            @Override
+            public Result answer(InvocationOnMock invocation) throws Throwable {
+                Connection connection = sources.getConnection();
+                connection.setAutoCommit(false);
+                connection.createStatement().execute("INSERT INTO NESTED VALUES (1)");
+
+                // Nested calls must not commit the pending work by enabling the auto-commit.
+                Connection nested = sources.getConnection(DataSources.DEFAULT_DATASOURCE, ReadIntent.READ_WRITE);
+                assertThat(nested.getAutoCommit()).isFalse();
+                nested.close();
+                nested = sources.getConnection(DataSources.DEFAULT_DATASOURCE, true);
+                assertThat(nested.getAutoCommit()).isFalse();
+                nested.close();
+
+                connection.rollback();
+                connection.close();
+                return null;
+            }
+        });
+        interceptor.call(configuration, ctx);
+
+        Connection connection = sources.getConnection();
+        ResultSet results = connection.createStatement().executeQuery("SELECT COUNT(*) FROM NESTED");
+        assertThat(results.next()).isTrue();
+        assertThat(results.getInt(1)).isEqualTo(0);
+        connection.close();
+    }
+
+    @Test
+    public void testRollbackOfTheBoundConnection() throws Exception {
+        Connection setup = sources.getConnection();
+        setup.createStatement().execute("CREATE TABLE ROLLED_BACK(ID INT)");
+        setup.close();
+
+        WithConnection configuration = mock(WithConnection.class);
+        when(configuration.datasource()).thenReturn(DataSources.DEFAULT_DATASOURCE);
+        RequestContext ctx = mock(RequestContext.class);
+        when(ctx.proceed()).thenAnswer(new Answer<Result>() {
+            @Override
+            public Result answer(InvocationOnMock invocation) throws Throwable {
+                // Disabling the auto-commit applies to the bound connection.
+                Connection connection = sources.getConnection(DataSources.DEFAULT_DATASOURCE, false);
+                assertThat(connection.getAutoCommit()).isFalse();
+                connection.createStatement().execute("INSERT INTO ROLLED_BACK VALUES (1)");
+                connection.close();
+
+                Connection same = sources.getConnection(DataSources.DEFAULT_DATASOURCE, false);
+                ResultSet results = same.createStatement().executeQuery("SELECT COUNT(*) FROM ROLLED_BACK");
+                assertThat(results.next()).isTrue();
+                assertThat(results.getInt(1)).isEqualTo(1);
+                same.rollback();
+                same.close();
+                return null;
+            }
+        });
+        interceptor.call(configuration, ctx);
+
+        Connection connection = sources.getConnection();
+        ResultSet results = connection.createStatement().executeQuery("SELECT COUNT(*) FROM ROLLED_BACK");
+        assertThat(results.next()).isTrue();
+        assertThat(results.getInt(1)).isEqualTo(0);
+        connection.close();
+    }
+
+    @Test
+    public void testAnnotation() {
+        assertThat(interceptor.annotation()).isEqualTo(WithConnection.class);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl.pool;
+
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/**
+ * Checks the lane limits and the priority of the waiters of the bulkhead.
+ */
+public class BulkheadTest {
+
+    @Test
+    public void testLaneLimits() throws SQLException {
+        Bulkhead bulkhead = new Bulkhead("test", 3).addLane("batch", 1, 0).addLane("web", 3, 10);
+
+        bulkhead.acquire("batch", 10, TimeUnit.MILLISECONDS);
+        try {
+            bulkhead.acquire("batch", 10, TimeUnit.MILLISECONDS);
+            fail("The batch lane is full");
+        } catch (SQLTransientConnectionException e) {
+            // Expected.
+        }
+        // The other lane keeps its share.
+        bulkhead.acquire("web", 10, TimeUnit.MILLISECONDS);
+        bulkhead.acquire("web", 10, TimeUnit.MILLISECONDS);
+        try {
+            bulkhead.acquire("web", 10, TimeUnit.MILLISECONDS);
+            fail("The pool is exhausted");
+        } catch (SQLTransientConnectionException e) {
+            // Expected.
+        }
+        assertThat(bulkhead.getLeased("web")).isEqualTo(2);
+
+        bulkhead.release("batch");
+        bulkhead.addLane("web", 3, 10);
+        bulkhead.acquire("web", 10, TimeUnit.MILLISECONDS);
+        assertThat(bulkhead.getLeased("web")).isEqualTo(3);
+        assertThat(bulkhead.getLeased("batch")).isEqualTo(0);
+
+        try {
+            bulkhead.acquire("missing", 10, TimeUnit.MILLISECONDS);
+            fail("Unknown lane");
+        } catch (SQLException e) {
+            assertThat(e).isNotInstanceOf(SQLTransientConnectionException.class);
+        }
+    }
+
+    @Test
+    public void testReconfigurationInPlace() throws SQLException {
+        Bulkhead bulkhead = new Bulkhead("test", 2).addLane("batch", 1, 0).addLane("web", 2, 10);
+        bulkhead.acquire("batch", 10, TimeUnit.MILLISECONDS);
+        bulkhead.acquire("web", 10, TimeUnit.MILLISECONDS);
+
+        // Larger pool and batch lane, the leases in flight are still accounted.
+        bulkhead.setCapacity(4);
+        bulkhead.addLane("batch", 2, 0);
+        bulkhead.acquire("batch", 10, TimeUnit.MILLISECONDS);
+        assertThat(bulkhead.getLeased("batch")).isEqualTo(2);
+        bulkhead.acquire("web", 10, TimeUnit.MILLISECONDS);
+        try {
+            bulkhead.acquire("web", 10, TimeUnit.MILLISECONDS);
+            fail("The pool is exhausted");
+        } catch (SQLTransientConnectionException e) {
+            // Expected.
+        }
+
+        // A withdrawn lane rejects the new requests, its leases are still given back.
+        bulkhead.retainLanes(Collections.singleton("web"));
+        assertThat(bulkhead.hasLane("batch")).isFalse();
+        bulkhead.release("batch");
+        assertThat(bulkhead.getLeased("batch")).isEqualTo(1);
+        bulkhead.addLane("web", 3, 10);
+        bulkhead.acquire("web", 10, TimeUnit.MILLISECONDS);
+        assertThat(bulkhead.getLeased("web")).isEqualTo(3);
+        try {
+            bulkhead.acquire("batch", 10, TimeUnit.MILLISECONDS);
+            fail("Withdrawn lane");
+        } catch (SQLException e) {
+            assertThat(e).isNotInstanceOf(SQLTransientConnectionException.class);
+        }
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        final Bulkhead bulkhead = new Bulkhead("test", 1).addLane("batch", 1, 0).addLane("web", 1, 10);
+        bulkhead.acquire("web", 10, TimeUnit.MILLISECONDS);
+
+        CountDownLatch batchDone = new CountDownLatch(1);
+        CountDownLatch webDone = new CountDownLatch(1);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        waitFor(bulkhead, "batch", batchDone, failure);
+        // Let the batch request queue first.
+        Thread.sleep(100);
+        waitFor(bulkhead, "web", webDone, failure);
+        Thread.sleep(100);
+
+        // The web request is served first, despite arriving last.
+        bulkhead.release("web");
+        assertThat(webDone.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(bulkhead.getLeased("batch")).isEqualTo(0);
+        assertThat(bulkhead.getLeased("web")).isEqualTo(1);
+
+        bulkhead.release("web");
+        assertThat(batchDone.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(bulkhead.getLeased("batch")).isEqualTo(1);
+        assertThat(failure.get()).isNull();
+    }
+
+    private static void waitFor(final Bulkhead bulkhead, final String lane, final CountDownLatch done,
+                                final AtomicReference<Exception> failure) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    bulkhead.acquire(lane, 10, TimeUnit.SECONDS);
+                    done.countDown();
+                } catch (SQLException e) {
+                    failure.set(e);
+                }
+            }
+        }).start();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl.pool;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks the behavior of the concurrent bag.
+ */
+public class ConcurrentBagTest {
+
+    private static class Item extends ConcurrentBag.Entry {
+    }
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final ConcurrentBag<Item> bag = new ConcurrentBag<>(new ConcurrentBag.Listener() {
+        @Override
+        public void addBagItem(int waiting) {
+            requests.incrementAndGet();
+        }
+    });
+
+    @Test
+    public void testBorrowAndRequite() throws InterruptedException {
+        Item item = new Item();
+        bag.add(item);
+        assertThat(bag.getCount(ConcurrentBag.STATE_NOT_IN_USE)).isEqualTo(1);
+
+        assertThat(bag.borrow(10, TimeUnit.MILLISECONDS)).isSameAs(item);
+        assertThat(item.getState()).isEqualTo(ConcurrentBag.STATE_IN_USE);
+        assertThat(bag.borrow(10, TimeUnit.MILLISECONDS)).isNull();
+        assertThat(requests.get()).isEqualTo(1);
+
+        bag.requite(item);
+        assertThat(item.getState()).isEqualTo(ConcurrentBag.STATE_NOT_IN_USE);
+        // Served from the thread-local list.
+        assertThat(bag.borrow(10, TimeUnit.MILLISECONDS)).isSameAs(item);
+    }
+
+    @Test
+    public void testHandOffToWaiter() throws InterruptedException {
+        final Item item = new Item();
+        bag.add(item);
+        assertThat(bag.borrow(10, TimeUnit.MILLISECONDS)).isSameAs(item);
+
+        final CountDownLatch waiting = new CountDownLatch(1);
+        final AtomicReference<Item> received = new AtomicReference<>();
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                waiting.countDown();
+                try {
+                    received.set(bag.borrow(5, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    // Ignored.
+                }
+            }
+        };
+        waiter.start();
+        waiting.await();
+        while (bag.getWaitingThreadCount() == 0) {
+            Thread.sleep(1);
+        }
+        bag.requite(item);
+        waiter.join(5000);
+
+        assertThat(received.get()).isSameAs(item);
+        assertThat(item.getState()).isEqualTo(ConcurrentBag.STATE_IN_USE);
+    }
+
+    @Test
+    public void testReserveAndRemove() throws InterruptedException {
+        Item item = new Item();
+        bag.add(item);
+
+        assertThat(bag.reserve(item)).isTrue();
+        assertThat(bag.borrow(10, TimeUnit.MILLISECONDS)).isNull();
+        bag.unreserve(item);
+        assertThat(bag.reserve(item)).isTrue();
+        assertThat(bag.remove(item)).isTrue();
+        assertThat(bag.size()).isEqualTo(0);
+        assertThat(item.getState()).isEqualTo(ConcurrentBag.STATE_REMOVED);
+    }
+
+    @Test
+    public void testAsyncWaiterServedOnRequite() throws InterruptedException {
+        Item item = new Item();
+        bag.add(item);
+        assertThat(bag.borrow(10, TimeUnit.MILLISECONDS)).isSameAs(item);
+
+        final List<Item> received = new ArrayList<>();
+        ConcurrentBag.Waiter<Item> gone = new ConcurrentBag.Waiter<Item>() {
+            @Override
+            public boolean accept(Item item) {
+                return false;
+            }
+        };
+        ConcurrentBag.Waiter<Item> waiter = new ConcurrentBag.Waiter<Item>() {
+            @Override
+            public boolean accept(Item item) {
+                return received.add(item);
+            }
+        };
+        bag.borrowAsync(gone);
+        bag.borrowAsync(waiter);
+        assertThat(bag.getAsyncWaiterCount()).isEqualTo(2);
+        assertThat(received).isEmpty();
+
+        // The first waiter does not want the item anymore, it goes to the second one, still in use.
+        bag.requite(item);
+        assertThat(received).containsExactly(item);
+        assertThat(item.getState()).isEqualTo(ConcurrentBag.STATE_IN_USE);
+        assertThat(bag.getAsyncWaiterCount()).isEqualTo(0);
+
+        bag.requite(item);
+        assertThat(item.getState()).isEqualTo(ConcurrentBag.STATE_NOT_IN_USE);
+        // Served immediately.
+        bag.borrowAsync(waiter);
+        assertThat(received).hasSize(2);
+    }
+
+    @Test
+    public void testRetriedWaiterKeepsItsTurn() throws InterruptedException {
+        Item item = new Item();
+        bag.add(item);
+        assertThat(bag.borrow(10, TimeUnit.MILLISECONDS)).isSameAs(item);
+
+        final List<String> served = new ArrayList<>();
+        ConcurrentBag.Waiter<Item> late = new ConcurrentBag.Waiter<Item>() {
+            @Override
+            public boolean accept(Item item) {
+                return served.add("late");
+            }
+        };
+        ConcurrentBag.Waiter<Item> retried = new ConcurrentBag.Waiter<Item>() {
+            @Override
+            public boolean accept(Item item) {
+                return served.add("retried");
+            }
+        };
+        bag.borrowAsync(late);
+        bag.retryAsync(retried);
+
+        bag.requite(item);
+        assertThat(served).containsExactly("retried");
+    }
+}
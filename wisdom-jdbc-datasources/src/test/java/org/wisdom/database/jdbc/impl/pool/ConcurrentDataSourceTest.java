@@ -0,0 +1,140 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl.pool;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.jolbox.bonecp.BoneCPConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks the connections handed out by the concurrent pool, and its non-blocking acquisition.
+ */
+public class ConcurrentDataSourceTest {
+
+    private final AtomicInteger checkOuts = new AtomicInteger();
+    private final AtomicInteger checkIns = new AtomicInteger();
+    private ConcurrentDataSource pool;
+
+    @Before
+    public void setUp() {
+        BoneCPConfig config = new BoneCPConfig();
+        config.setJdbcUrl("jdbc:h2:mem:wisdom-concurrent;DB_CLOSE_DELAY=-1");
+        config.setPartitionCount(1);
+        config.setMinConnectionsPerPartition(0);
+        config.setMaxConnectionsPerPartition(2);
+        config.setConnectionTimeoutInMs(1000);
+        pool = new ConcurrentDataSource("concurrent", config, new ConnectionCustomizer() {
+            @Override
+            public Connection onAcquire(Connection connection) {
+                return connection;
+            }
+
+            @Override
+            public void onCheckOut(Connection connection) {
+                checkOuts.incrementAndGet();
+                // Widens the window in which the waiter expires.
+                Thread.yield();
+            }
+
+            @Override
+            public void onCheckIn(Connection connection) {
+                checkIns.incrementAndGet();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void testStatementsDoNotExposeThePhysicalConnection() throws Exception {
+        Connection connection = pool.getConnection();
+        Statement statement = connection.createStatement();
+        assertThat(statement.getConnection()).isSameAs(connection);
+        assertThat(connection.getMetaData().getConnection()).isSameAs(connection);
+        ResultSet results = statement.executeQuery("SELECT 1");
+        assertThat(results.getStatement()).isSameAs(statement);
+        PreparedStatement prepared = connection.prepareStatement("SELECT 2");
+
+        // Closing the connection reached from the statement gives it back, and closes the statements left open.
+        statement.getConnection().close();
+        assertThat(statement.isClosed()).isTrue();
+        assertThat(prepared.isClosed()).isTrue();
+        assertThat(pool.getTotalLeased()).isEqualTo(0);
+
+        // The physical connection is still usable.
+        connection = pool.getConnection();
+        assertThat(connection.isValid(1)).isTrue();
+        connection.close();
+    }
+
+    @Test
+    public void testExpiredAndCancelledWaitersDoNotCheckOut() throws Exception {
+        final AtomicInteger served = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 500; i++) {
+                        ListenableFuture<Connection> future = pool.acquire(1 + i % 3, TimeUnit.MILLISECONDS);
+                        if (i % 7 == 0) {
+                            future.cancel(false);
+                        }
+                        try (Connection connection = future.get(5, TimeUnit.SECONDS)) {
+                            served.incrementAndGet();
+                        } catch (CancellationException | ExecutionException e) {
+                            // Expired or cancelled.
+                        } catch (Exception e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Every connection prepared for a waiter has been handed to it, and given back.
+        assertThat(checkOuts.get()).isEqualTo(served.get());
+        assertThat(checkIns.get()).isEqualTo(served.get());
+        assertThat(pool.getTotalLeased()).isEqualTo(0);
+    }
+}
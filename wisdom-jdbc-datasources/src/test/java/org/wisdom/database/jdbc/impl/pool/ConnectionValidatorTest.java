@@ -0,0 +1,92 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl.pool;
+
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks the connection validation modes and counters.
+ */
+public class ConnectionValidatorTest {
+
+    @Test
+    public void testIsValidAndSkipWindow() throws SQLException {
+        ConnectionValidator validator = new ConnectionValidator(ConnectionValidator.Mode.IS_VALID, null, 2000, 1000);
+        Connection connection = mock(Connection.class);
+        when(connection.isValid(2)).thenReturn(true);
+
+        // Used recently, not validated.
+        assertThat(validator.isAliveOnCheckout(connection, System.currentTimeMillis())).isTrue();
+        verifyZeroInteractions(connection);
+        assertThat(validator.getSkippedValidations()).isEqualTo(1);
+
+        // Idle for a while, validated with isValid.
+        assertThat(validator.isAliveOnCheckout(connection, System.currentTimeMillis() - 5000)).isTrue();
+        verify(connection).isValid(2);
+        verify(connection, never()).getMetaData();
+        assertThat(validator.getValidations()).isEqualTo(1);
+
+        when(connection.isValid(2)).thenReturn(false);
+        assertThat(validator.isAlive(connection)).isFalse();
+        assertThat(validator.getValidations()).isEqualTo(2);
+        assertThat(validator.getFailedValidations()).isEqualTo(1);
+    }
+
+    @Test
+    public void testFallbackOnMetadata() throws SQLException {
+        ConnectionValidator validator = new ConnectionValidator(ConnectionValidator.Mode.IS_VALID, null, 5000, -1);
+        Connection connection = mock(Connection.class);
+        DatabaseMetaData metadata = mock(DatabaseMetaData.class);
+        when(connection.getMetaData()).thenReturn(metadata);
+        when(connection.isValid(anyInt())).thenThrow(new SQLFeatureNotSupportedException());
+
+        // No validation on checkout.
+        assertThat(validator.isAliveOnCheckout(connection, 0)).isTrue();
+        verifyZeroInteractions(connection);
+
+        assertThat(validator.isAlive(connection)).isTrue();
+        assertThat(validator.isAlive(connection)).isTrue();
+        // isValid is not called again once known as unsupported.
+        verify(connection, times(1)).isValid(anyInt());
+        verify(metadata, times(2)).getTables(anyString(), anyString(), anyString(), any(String[].class));
+        assertThat(validator.getFailedValidations()).isZero();
+    }
+
+    @Test
+    public void testStatement() throws SQLException {
+        ConnectionValidator validator = new ConnectionValidator(ConnectionValidator.Mode.STATEMENT, "SELECT 1", 5000,
+                0);
+        Connection connection = mock(Connection.class);
+        when(connection.createStatement()).thenThrow(new SQLException("broken"));
+        assertThat(validator.isAlive(connection)).isFalse();
+        assertThat(validator.getFailedValidations()).isEqualTo(1);
+    }
+}
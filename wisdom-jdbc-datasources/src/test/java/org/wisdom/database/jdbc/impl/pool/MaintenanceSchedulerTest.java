@@ -0,0 +1,225 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl.pool;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/**
+ * Checks the isolation of the task groups of the shared maintenance scheduler.
+ */
+public class MaintenanceSchedulerTest {
+
+    private final MaintenanceScheduler scheduler = new MaintenanceScheduler("test-maintenance", 1);
+
+    @After
+    public void tearDown() {
+        scheduler.close();
+    }
+
+    @Test
+    public void testGroupShutdownOnlyCancelsItsTasks() throws InterruptedException {
+        ScheduledExecutorService first = scheduler.newGroup();
+        ScheduledExecutorService second = scheduler.newGroup();
+        final AtomicInteger firstRuns = new AtomicInteger();
+        final CountDownLatch secondRuns = new CountDownLatch(3);
+
+        ScheduledFuture<?> periodic = first.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                firstRuns.incrementAndGet();
+            }
+        }, 0, 10, TimeUnit.MILLISECONDS);
+        second.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                secondRuns.countDown();
+            }
+        }, 0, 10, TimeUnit.MILLISECONDS);
+
+        first.shutdownNow();
+        assertThat(periodic.isCancelled()).isTrue();
+        assertThat(first.isShutdown()).isTrue();
+        try {
+            first.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Nothing.
+                }
+            });
+            fail("Task accepted after shutdown");
+        } catch (RejectedExecutionException e) {
+            // Expected.
+        }
+
+        // The other group is not affected.
+        assertThat(secondRuns.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(second.isShutdown()).isFalse();
+    }
+
+    @Test
+    public void testShutdownLetsPendingTasksComplete() throws InterruptedException {
+        ScheduledExecutorService group = scheduler.newGroup();
+        final CountDownLatch done = new CountDownLatch(1);
+        group.schedule(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> later = group.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // Nothing.
+            }
+        }, 1, TimeUnit.HOURS);
+        later.cancel(false);
+
+        group.shutdown();
+        assertThat(group.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(done.getCount()).isZero();
+        assertThat(group.isTerminated()).isTrue();
+    }
+
+    @Test
+    public void testBlockingTaskOnlyDelaysItsGroup() throws InterruptedException {
+        ScheduledExecutorService blocked = scheduler.newGroup();
+        ScheduledExecutorService other = scheduler.newGroup();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch otherRuns = new CountDownLatch(3);
+        final AtomicInteger blockedRuns = new AtomicInteger();
+
+        blocked.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        blocked.execute(new Runnable() {
+            @Override
+            public void run() {
+                blockedRuns.incrementAndGet();
+            }
+        });
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // A single scheduling thread, still serving the other group.
+        other.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                otherRuns.countDown();
+            }
+        }, 0, 10, TimeUnit.MILLISECONDS);
+        assertThat(otherRuns.await(5, TimeUnit.SECONDS)).isTrue();
+        // The tasks of a group run one at a time.
+        assertThat(blockedRuns.get()).isZero();
+
+        release.countDown();
+        blocked.shutdown();
+        assertThat(blocked.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(blockedRuns.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testIoThreadsAreBounded() throws InterruptedException {
+        MaintenanceScheduler bounded = new MaintenanceScheduler("test-bounded", 1, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(5);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger max = new AtomicInteger();
+        try {
+            for (int i = 0; i < 5; i++) {
+                bounded.newGroup().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        int current = running.incrementAndGet();
+                        while (max.get() < current && !max.compareAndSet(max.get(), current)) {
+                            // Retry.
+                        }
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        running.decrementAndGet();
+                        done.countDown();
+                    }
+                });
+            }
+            Thread.sleep(200);
+            assertThat(bounded.getActiveTasks()).isEqualTo(2);
+
+            // The groups waiting for a thread run once the blocked ones complete.
+            release.countDown();
+            assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(max.get()).isEqualTo(2);
+        } finally {
+            bounded.close();
+        }
+    }
+
+    @Test
+    public void testFailuresAreReported() throws InterruptedException {
+        ScheduledExecutorService group = scheduler.newGroup();
+        ScheduledFuture<?> failing = group.schedule(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("boom");
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+        try {
+            failing.get(5, TimeUnit.SECONDS);
+            fail("Failure not reported");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(IllegalStateException.class);
+        } catch (TimeoutException e) {
+            fail("Task not run");
+        }
+
+        // A failing periodic task keeps running.
+        final CountDownLatch runs = new CountDownLatch(3);
+        group.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                runs.countDown();
+                throw new IllegalStateException("boom");
+            }
+        }, 0, 10, TimeUnit.MILLISECONDS);
+        assertThat(runs.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl.pool;
+
+import com.jolbox.bonecp.BoneCPConfig;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks the maintenance of the pool of the driver pooled connections.
+ */
+public class NativePoolTest {
+
+    private final MaintenanceScheduler scheduler = new MaintenanceScheduler("test-native", 1);
+    private NativePool pool;
+
+    @Before
+    public void setUp() {
+        JdbcDataSource source = new JdbcDataSource();
+        source.setURL("jdbc:h2:mem:wisdom-native;DB_CLOSE_DELAY=-1");
+        BoneCPConfig config = new BoneCPConfig();
+        config.setPartitionCount(1);
+        config.setMinConnectionsPerPartition(2);
+        config.setMaxConnectionsPerPartition(4);
+        config.setConnectionTimeoutInMs(1000);
+        config.setIdleMaxAge(200, TimeUnit.MILLISECONDS);
+        config.setIdleConnectionTestPeriod(100, TimeUnit.MILLISECONDS);
+        pool = new NativePool("native", source, config, null, null);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+        scheduler.close();
+    }
+
+    @Test
+    public void testIdleConnectionsAreRetiredDownToTheMinimum() throws Exception {
+        pool.start(scheduler.newGroup());
+        // Filled up to the minimum.
+        waitFor(2);
+        assertThat(pool.getTotalFree()).isEqualTo(2);
+
+        List<Connection> connections = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            connections.add(pool.getConnection());
+        }
+        assertThat(pool.getTotalCreatedConnections()).isEqualTo(4);
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        assertThat(pool.getTotalFree()).isEqualTo(4);
+
+        // The connections idle for longer than idleMaxAge are closed, even if never leased again.
+        waitFor(2);
+        assertThat(pool.getTotalFree()).isEqualTo(2);
+        Connection connection = pool.getConnection();
+        assertThat(connection.isValid(1)).isTrue();
+        connection.close();
+    }
+
+    @Test
+    public void testCloseStopsTheMaintenance() {
+        ScheduledExecutorService group = scheduler.newGroup();
+        pool.start(group);
+        pool.close();
+        assertThat(group.isShutdown()).isTrue();
+    }
+
+    private void waitFor(int connections) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getTotalCreatedConnections() != connections && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertThat(pool.getTotalCreatedConnections()).isEqualTo(connections);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl.pool;
+
+import com.jolbox.bonecp.BoneCPConfig;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAResource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks the enlistment of the connections of the XA pool in the transactions.
+ */
+public class XAPoolTest {
+
+    private XAPool pool;
+    private TransactionManager manager;
+
+    @Before
+    public void setUp() {
+        JdbcDataSource source = new JdbcDataSource();
+        source.setURL("jdbc:h2:mem:wisdom-xa;DB_CLOSE_DELAY=-1");
+        BoneCPConfig config = new BoneCPConfig();
+        config.setPartitionCount(1);
+        config.setMaxConnectionsPerPartition(2);
+        config.setConnectionTimeoutInMs(1000);
+        manager = mock(TransactionManager.class);
+        pool = new XAPool("xa", source, config, null, null);
+        pool.setTransactionManager(manager);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void testSameConnectionWithinTransaction() throws Exception {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getStatus()).thenReturn(Status.STATUS_ACTIVE);
+        when(transaction.enlistResource(any(XAResource.class))).thenReturn(true);
+        when(manager.getTransaction()).thenReturn(transaction);
+
+        Connection c1 = pool.getConnection();
+        Connection c2 = pool.getConnection();
+        // A single physical connection, enlisted once.
+        assertThat(pool.getTotalLeased()).isEqualTo(1);
+        assertThat(pool.getTotalCreatedConnections()).isEqualTo(1);
+        assertThat(pool.getEnlistedTransactions()).isEqualTo(1);
+        verify(transaction, times(1)).enlistResource(any(XAResource.class));
+        ArgumentCaptor<Synchronization> synchronization = ArgumentCaptor.forClass(Synchronization.class);
+        verify(transaction).registerSynchronization(synchronization.capture());
+
+        // The transaction manager demarcates the transaction.
+        try {
+            c1.commit();
+            fail("Commit must be rejected");
+        } catch (SQLException e) {
+            // Expected.
+        }
+
+        // Enabling the auto-commit mode is ignored.
+        c2.setAutoCommit(true);
+
+        // Closing the connections does not give the physical connection back.
+        c1.close();
+        assertThat(c1.isClosed()).isTrue();
+        assertThat(c2.isClosed()).isFalse();
+        c2.close();
+        assertThat(pool.getTotalLeased()).isEqualTo(1);
+
+        // The completion of the transaction does.
+        synchronization.getValue().afterCompletion(Status.STATUS_COMMITTED);
+        assertThat(pool.getTotalLeased()).isEqualTo(0);
+        assertThat(pool.getTotalFree()).isEqualTo(1);
+        assertThat(pool.getEnlistedTransactions()).isEqualTo(0);
+    }
+
+    @Test
+    public void testWithoutTransaction() throws Exception {
+        when(manager.getTransaction()).thenReturn(null);
+
+        Connection connection = pool.getConnection();
+        assertThat(connection).isNotInstanceOf(EnlistedConnection.class);
+        assertThat(pool.getTotalLeased()).isEqualTo(1);
+        connection.close();
+        assertThat(pool.getTotalLeased()).isEqualTo(0);
+
+        // Without transaction manager either.
+        pool.setTransactionManager(null);
+        connection = pool.getConnection();
+        assertThat(connection).isNotInstanceOf(EnlistedConnection.class);
+        connection.close();
+        assertThat(pool.getTotalCreatedConnections()).isEqualTo(1);
+    }
+
+    @Test
+    public void testEnlistmentFailure() throws Exception {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getStatus()).thenReturn(Status.STATUS_MARKED_ROLLBACK);
+        when(transaction.enlistResource(any(XAResource.class))).thenReturn(false);
+        when(manager.getTransaction()).thenReturn(transaction);
+
+        try {
+            pool.getConnection();
+            fail("Enlistment failure expected");
+        } catch (SQLException e) {
+            // Expected.
+        }
+        // The connection is back in the pool.
+        assertThat(pool.getTotalLeased()).isEqualTo(0);
+        assertThat(pool.getTotalFree()).isEqualTo(1);
+        assertThat(pool.getEnlistedTransactions()).isEqualTo(0);
+    }
+}
@@ -25,6 +25,7 @@ import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.jdbc.DataSourceFactory;
 import org.wisdom.database.jdbc.Statements;
+import org.wisdom.database.jdbc.service.DataSourceMetrics;
 import org.wisdom.database.jdbc.service.DataSources;
 import org.wisdom.test.parents.WisdomTest;
 
@@ -101,6 +102,15 @@ public class DataSourcesIT extends WisdomTest {
         Collection<ServiceReference<DataSource>> refs = context.getServiceReferences(DataSource.class,
                 "(datasource.name=h2mem)");
         assertThat(refs).isNotNull().isNotEmpty().hasSize(1);
+
+        // Check the metrics service
+        Collection<ServiceReference<DataSourceMetrics>> metrics = context.getServiceReferences(DataSourceMetrics
+                .class, "(datasource.name=h2mem)");
+        assertThat(metrics).hasSize(1);
+        DataSourceMetrics service = context.getService(metrics.iterator().next());
+        assertThat(service.getDataSourceName()).isEqualTo("h2mem");
+        assertThat(service.getAcquireWait().getCount()).isGreaterThanOrEqualTo(6);
+        assertThat(service.getConnectionCreation().getCount()).isGreaterThanOrEqualTo(1);
     }
 
 
@@ -0,0 +1,134 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wisdom.database.jdbc.Statements;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks the mapping of rows to beans, with several column layouts.
+ */
+public class BeanRowMapperTest {
+
+    private Connection connection;
+
+    @Before
+    public void setUp() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:h2:mem:wisdom-mapper");
+        connection.createStatement().execute(Statements.CREATE_TABLE);
+        connection.createStatement().execute(Statements.INSERT_PHOENIX);
+        connection.createStatement().execute(Statements.INSERT_DENVER);
+        connection.createStatement().execute("INSERT INTO STATION VALUES (99, 'Nowhere', 'NA', NULL, NULL)");
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    public void testMapping() throws SQLException {
+        List<Station> stations = query("SELECT * FROM STATION ORDER BY ID");
+        assertThat(stations).hasSize(3);
+
+        Station phoenix = stations.get(0);
+        assertThat(phoenix.id).isEqualTo(13);
+        assertThat(phoenix.city.trim()).isEqualTo("Phoenix");
+        assertThat(phoenix.state).isEqualTo("AZ");
+        assertThat(phoenix.latN).isEqualTo(33.0);
+        assertThat(phoenix.longW).isEqualTo(112f);
+
+        // SQL NULL gives null for objects and the default value for primitives.
+        Station nowhere = stations.get(2);
+        assertThat(nowhere.latN).isNull();
+        assertThat(nowhere.longW).isEqualTo(0f);
+    }
+
+    @Test
+    public void testOtherLayouts() throws SQLException {
+        // Other columns, in another order, and an unknown column.
+        List<Station> stations = query("SELECT STATE, ID, 'x' AS UNKNOWN FROM STATION ORDER BY ID");
+        assertThat(stations).hasSize(3);
+        assertThat(stations.get(1).id).isEqualTo(44);
+        assertThat(stations.get(1).state).isEqualTo("CO");
+        assertThat(stations.get(1).city).isNull();
+
+        // Aliases are matched too.
+        stations = query("SELECT CITY AS STATE FROM STATION WHERE ID = 13");
+        assertThat(stations.get(0).state.trim()).isEqualTo("Phoenix");
+    }
+
+    @Test
+    public void testSameMapper() {
+        assertThat(BeanRowMapper.of(Station.class)).isSameAs(BeanRowMapper.of(Station.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoConstructor() {
+        BeanRowMapper.of(Integer.class);
+    }
+
+    private List<Station> query(String sql) throws SQLException {
+        BeanRowMapper<Station> mapper = BeanRowMapper.of(Station.class);
+        List<Station> list = new ArrayList<>();
+        try (ResultSet results = connection.createStatement().executeQuery(sql)) {
+            int row = 0;
+            while (results.next()) {
+                list.add(mapper.map(results, row++));
+            }
+        }
+        return list;
+    }
+
+    public static class Station {
+        private int id;
+        private String city;
+        private String state;
+        private Double latN;
+        public float longW;
+
+        public void setId(int id) {
+            this.id = id;
+        }
+
+        public void setCity(String city) {
+            this.city = city;
+        }
+
+        public void setState(String state) {
+            this.state = state;
+        }
+
+        public void setLatN(Double latN) {
+            this.latN = latN;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.jdbc.driver.helpers;
+
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Sets properties on the instances of a class. The <em>setters</em> of the class are discovered once, when the binder
+ * is built, and invoked through method handles with a converter chosen from the type of their parameter. Binders are
+ * cached per class, see {@link #of(Class)}.
+ */
+public final class BeanBinder {
+
+    private static final ClassValue<BeanBinder> BINDERS = new ClassValue<BeanBinder>() {
+        @Override
+        protected BeanBinder computeValue(Class<?> type) {
+            return new BeanBinder(type);
+        }
+    };
+
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final Class<?> type;
+
+    /**
+     * The setters by property name, in the order of the bean descriptors.
+     */
+    private final Map<String, Setter> setters;
+
+    /**
+     * The introspection failure, {@code null} if the class has been introspected successfully.
+     */
+    private final Exception failure;
+
+    private BeanBinder(Class<?> type) {
+        this.type = type;
+        Map<String, Setter> map = new LinkedHashMap<>();
+        Exception error = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            for (PropertyDescriptor descriptor : Introspector.getBeanInfo(type).getPropertyDescriptors()) {
+                Method method = descriptor.getWriteMethod();
+                if (method != null) {
+                    map.put(descriptor.getName(), new Setter(lookup, method));
+                }
+            }
+        } catch (Exception e) {
+            error = e;
+        }
+        this.setters = Collections.unmodifiableMap(map);
+        this.failure = error;
+    }
+
+    /**
+     * Gets the binder of the given class.
+     *
+     * @param type the class
+     * @return the binder, built on first use
+     */
+    public static BeanBinder of(Class<?> type) {
+        return BINDERS.get(type);
+    }
+
+    /**
+     * @return the names of the writable properties
+     */
+    public Set<String> getPropertyNames() {
+        return setters.keySet();
+    }
+
+    /**
+     * Sets the given properties on the given object. All the property names are checked before setting any of them.
+     *
+     * @param object the object, must be an instance of the class of the binder
+     * @param props  the properties, may be {@code null}
+     * @throws SQLException if the class cannot be introspected, if some properties have no setter (they are all
+     *                      reported in the message), or if a property cannot be set
+     */
+    public void bind(Object object, Properties props) throws SQLException {
+        if (props == null || props.isEmpty()) {
+            return;
+        }
+        checkTarget(object);
+        List<String> unknown = new ArrayList<>();
+        Enumeration<?> enumeration = props.keys();
+        while (enumeration.hasMoreElements()) {
+            String name = (String) enumeration.nextElement();
+            if (!setters.containsKey(name)) {
+                unknown.add(name);
+            }
+        }
+        if (!unknown.isEmpty()) {
+            throw new SQLException("No such properties: " + unknown + " in " + type.getName()
+                    + ". Writable properties are: " + setters.keySet());
+        }
+        enumeration = props.keys();
+        while (enumeration.hasMoreElements()) {
+            String name = (String) enumeration.nextElement();
+            setters.get(name).set(object, props.getProperty(name));
+        }
+    }
+
+    /**
+     * Sets a property on the given object.
+     *
+     * @param object the object, must be an instance of the class of the binder
+     * @param name   the property name
+     * @param value  the value
+     * @throws SQLException if there is no setter for the given property, or if the value cannot be converted to the
+     *                      type of the setter parameter
+     */
+    public void setProperty(Object object, String name, String value) throws SQLException {
+        checkTarget(object);
+        Setter setter = setters.get(name);
+        if (setter == null) {
+            throw new SQLException("No such property: " + name + " in " + type.getName()
+                    + ". Writable properties are: " + setters.keySet());
+        }
+        setter.set(object, value);
+    }
+
+    private void checkTarget(Object object) throws SQLException {
+        if (failure != null) {
+            throw new SQLException(failure);
+        }
+        if (!type.isInstance(object)) {
+            throw new IllegalArgumentException("Cannot bind " + object + ", not an instance of " + type.getName());
+        }
+    }
+
+    /**
+     * A setter, with the converter of its parameter.
+     */
+    private static final class Setter {
+        private final Converter converter;
+        private final String parameterType;
+        private final MethodHandle handle;
+        private final Exception failure;
+
+        private Setter(MethodHandles.Lookup lookup, Method method) {
+            Class<?> parameter = method.getParameterTypes()[0];
+            this.converter = Converter.of(parameter);
+            this.parameterType = parameter.getName();
+            MethodHandle found = null;
+            Exception error = null;
+            try {
+                found = lookup.unreflect(method).asType(SETTER_TYPE);
+            } catch (IllegalAccessException e) {
+                error = e;
+            }
+            this.handle = found;
+            this.failure = error;
+        }
+
+        private void set(Object object, String value) throws SQLException {
+            Object param = converter.convert(value, parameterType);
+            if (handle == null) {
+                throw new SQLException(failure);
+            }
+            try {
+                handle.invokeExact(object, param);
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new SQLException(e);
+            }
+        }
+    }
+
+    /**
+     * The conversions of the values, with the same rules as {@link BeanUtils#toBasicType(String, String)}.
+     */
+    private enum Converter {
+        STRING {
+            @Override
+            Object parse(String value, String type) {
+                return value;
+            }
+        },
+        INTEGER {
+            @Override
+            Object parse(String value, String type) throws SQLException {
+                try {
+                    return Integer.valueOf(value);
+                } catch (NumberFormatException e) {
+                    throw invalid(e, "Integer", value);
+                }
+            }
+        },
+        LONG {
+            @Override
+            Object parse(String value, String type) throws SQLException {
+                try {
+                    return Long.valueOf(value);
+                } catch (NumberFormatException e) {
+                    throw invalid(e, "Long", value);
+                }
+            }
+        },
+        FLOAT {
+            @Override
+            Object parse(String value, String type) throws SQLException {
+                try {
+                    return Float.valueOf(value);
+                } catch (NumberFormatException e) {
+                    throw invalid(e, "Float", value);
+                }
+            }
+        },
+        DOUBLE {
+            @Override
+            Object parse(String value, String type) throws SQLException {
+                try {
+                    return Double.valueOf(value);
+                } catch (NumberFormatException e) {
+                    throw invalid(e, "Double", value);
+                }
+            }
+        },
+        CHARACTER {
+            @Override
+            Object parse(String value, String type) throws SQLException {
+                if (value.length() != 1) {
+                    throw new SQLException("Invalid Character value: " + value);
+                }
+                return value.charAt(0);
+            }
+        },
+        BYTE {
+            @Override
+            Object parse(String value, String type) throws SQLException {
+                try {
+                    return Byte.valueOf(value);
+                } catch (NumberFormatException e) {
+                    throw invalid(e, "Byte", value);
+                }
+            }
+        },
+        SHORT {
+            @Override
+            Object parse(String value, String type) throws SQLException {
+                try {
+                    return Short.valueOf(value);
+                } catch (NumberFormatException e) {
+                    throw invalid(e, "Short", value);
+                }
+            }
+        },
+        BOOLEAN {
+            @Override
+            Object parse(String value, String type) {
+                // Will be "false" if not in correct format...
+                return Boolean.valueOf(value);
+            }
+        },
+        UNSUPPORTED {
+            @Override
+            Object parse(String value, String type) throws SQLException {
+                throw new SQLException("Unrecognized property type: " + type);
+            }
+        };
+
+        Object convert(String value, String type) throws SQLException {
+            return value == null ? null : parse(value, type);
+        }
+
+        abstract Object parse(String value, String type) throws SQLException;
+
+        private static SQLException invalid(Exception cause, String type, String value) {
+            return new SQLException("Invalid " + type + " value: " + value, cause);
+        }
+
+        static Converter of(Class<?> type) {
+            if (type == String.class) {
+                return STRING;
+            } else if (type == Integer.class || type == int.class) {
+                return INTEGER;
+            } else if (type == Long.class || type == long.class) {
+                return LONG;
+            } else if (type == Float.class || type == float.class) {
+                return FLOAT;
+            } else if (type == Double.class || type == double.class) {
+                return DOUBLE;
+            } else if (type == Character.class || type == char.class) {
+                return CHARACTER;
+            } else if (type == Byte.class || type == byte.class) {
+                return BYTE;
+            } else if (type == Short.class || type == short.class) {
+                return SHORT;
+            } else if (type == Boolean.class || type == boolean.class) {
+                return BOOLEAN;
+            }
+            return UNSUPPORTED;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.jdbc.driver.helpers;
+
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.Properties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/**
+ * Test the behavior of the bean binders.
+ */
+public class BeanBinderTest {
+
+    @Test
+    public void testBinderIsCached() {
+        BeanBinder binder = BeanBinder.of(MyDataSourceBean.class);
+        assertThat(BeanBinder.of(MyDataSourceBean.class)).isSameAs(binder);
+        assertThat(binder.getPropertyNames()).contains("url", "count", "flag", "c");
+    }
+
+    @Test
+    public void testBind() throws SQLException {
+        MyDataSourceBean bean = new MyDataSourceBean();
+        Properties props = new Properties();
+        props.put("url", "http://perdu.com");
+        props.put("count", "25");
+        props.put("flag", "true");
+        BeanBinder.of(MyDataSourceBean.class).bind(bean, props);
+
+        assertThat(bean.url).isEqualTo("http://perdu.com");
+        assertThat(bean.count).isEqualTo(25);
+        assertThat(bean.flag).isTrue();
+    }
+
+    @Test
+    public void testUnknownPropertiesAreReportedTogether() {
+        MyDataSourceBean bean = new MyDataSourceBean();
+        Properties props = new Properties();
+        props.put("url", "http://perdu.com");
+        props.put("missing", "1");
+        props.put("other", "2");
+        try {
+            AbstractDataSourceFactory.setBeanProperties(bean, props);
+            fail("SQL Exception expected");
+        } catch (SQLException e) {
+            assertThat(e.getMessage()).contains("missing").contains("other");
+        }
+        // Nothing is set when a property is unknown.
+        assertThat(bean.url).isNull();
+    }
+
+    @Test
+    public void testNullOrEmptyProperties() throws SQLException {
+        MyDataSourceBean bean = new MyDataSourceBean();
+        BeanBinder.of(MyDataSourceBean.class).bind(bean, null);
+        BeanBinder.of(MyDataSourceBean.class).bind(bean, new Properties());
+        assertThat(bean.url).isNull();
+    }
+}
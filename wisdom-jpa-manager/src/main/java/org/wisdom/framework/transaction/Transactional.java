@@ -42,5 +42,9 @@ public @interface Transactional {
 
     Class<? extends Exception>[] rollbackOnlyFor() default {};
 
-
+    /**
+     * Whether the action only reads. If so, the connections obtained from the data sources during the action are
+     * served by the read replicas, when some are configured.
+     */
+    boolean readOnly() default false;
 }
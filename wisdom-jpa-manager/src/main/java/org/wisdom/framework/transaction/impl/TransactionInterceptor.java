@@ -26,6 +26,7 @@ import org.apache.felix.ipojo.annotations.Requires;
 import org.wisdom.api.http.Result;
 import org.wisdom.api.interception.Interceptor;
 import org.wisdom.api.interception.RequestContext;
+import org.wisdom.database.jdbc.service.ReadIntent;
 import org.wisdom.framework.transaction.Transactional;
 
 import javax.transaction.TransactionManager;
@@ -58,6 +59,18 @@ public class TransactionInterceptor extends Interceptor<Transactional> {
      */
     @Override
     public Result call(Transactional configuration, RequestContext context) throws Exception {
+        if (!configuration.readOnly()) {
+            return proceed(configuration, context);
+        }
+        ReadIntent previous = ReadIntent.enter(ReadIntent.READ_ONLY);
+        try {
+            return proceed(configuration, context);
+        } finally {
+            ReadIntent.restore(previous);
+        }
+    }
+
+    private Result proceed(Transactional configuration, RequestContext context) throws Exception {
         propagation.onEntry(configuration.propagation(),
                 configuration.timeout(),
                 context.route().getControllerMethod().getName());